@@ -0,0 +1,670 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
+import nl.bioinf.noback.taxonomy.io.ParseException;
+
+/**
+ * Read-only accession.version to tax_id index that is memory-mapped from a binary
+ * file. The keys are placed with a minimal perfect hash function (hash and
+ * displace): every key hashes to a bucket, and every bucket stores the displacement
+ * that sends its keys to distinct slots of a table that has exactly one slot per key.
+ * A lookup therefore takes one hash, one displacement and one slot read, plus a
+ * comparison of the stored key bytes that rejects absent accessions. The keys are
+ * kept as length-prefixed bytes in an arena; no String objects are created.
+ * <p>
+ * Per accession the index takes about 14 bytes plus the key length. Index files are
+ * created with build() from NCBI accession2taxid files (prot, nucl_gb, ...), which
+ * are read twice; only the key hashes (8 bytes per key) are held in memory while the
+ * hash function is constructed.
+ * <pre>
+ * header         magic "ACCTAXIX", version, seed, key count (long), bucket count (long), arena size (long)
+ * displacements  bucket count longs: d0 in the high, d1 in the low int
+ * tax_ids        key count ints, padded to a multiple of 8 bytes
+ * offsets        key count longs: arena offset of the key in each slot
+ * arena          length byte followed by the key bytes, for every key
+ * </pre>
+ *
+ * @author michiel
+ */
+public final class AccessionTaxIdIndex {
+
+    /**
+     * the magic bytes every index file starts with
+     */
+    public static final byte[] MAGIC = "ACCTAXIX".getBytes(Charset.forName("US-ASCII"));
+    /**
+     * the current index format version
+     */
+    public static final int VERSION = 1;
+    /**
+     * returned by lookup() for absent accessions
+     */
+    public static final int NO_TAX_ID = -1;
+    /**
+     * the maximum length of an accession in bytes
+     */
+    public static final int MAX_KEY_LENGTH = 255;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 40;
+    /*average number of keys per bucket*/
+    private static final int BUCKET_SIZE = 4;
+    /*displacement rounds tried for one bucket before another seed is taken*/
+    private static final int MAX_ROUNDS = 1000;
+    private static final int MAX_SEEDS = 16;
+
+    private final int seed;
+    private final long size;
+    private final long bucketCount;
+    private final Section displacements;
+    private final Section taxIds;
+    private final Section offsets;
+    private final Section arena;
+
+    private AccessionTaxIdIndex(int seed, long size, long bucketCount, Section displacements, Section taxIds,
+            Section offsets, Section arena) {
+        this.seed = seed;
+        this.size = size;
+        this.bucketCount = bucketCount;
+        this.displacements = displacements;
+        this.taxIds = taxIds;
+        this.offsets = offsets;
+        this.arena = arena;
+    }
+
+    /**
+     * maps the given index file
+     *
+     * @param indexFile
+     * @return index
+     * @throws IOException when the file can not be read or is not a valid index
+     */
+    public static AccessionTaxIdIndex open(File indexFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not an accession/tax_id index: " + indexFile.getName());
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported accession/tax_id index version " + version + " in "
+                        + indexFile.getName() + "; expected " + VERSION);
+            }
+            int seed = raf.readInt();
+            long size = raf.readLong();
+            long bucketCount = raf.readLong();
+            long arenaSize = raf.readLong();
+            long displacementsStart = HEADER_SIZE;
+            long taxIdsStart = displacementsStart + 8 * bucketCount;
+            long offsetsStart = taxIdsStart + paddedIntsLength(size);
+            long arenaStart = offsetsStart + 8 * size;
+            if (raf.length() != arenaStart + arenaSize) {
+                throw new IOException("truncated or corrupted accession/tax_id index: " + indexFile.getName());
+            }
+            FileChannel channel = raf.getChannel();
+            return new AccessionTaxIdIndex(seed, size, bucketCount,
+                    new Section(channel, displacementsStart, 8 * bucketCount),
+                    new Section(channel, taxIdsStart, 4 * size),
+                    new Section(channel, offsetsStart, 8 * size),
+                    new Section(channel, arenaStart, arenaSize));
+        } catch (EOFException e) {
+            throw new IOException("not an accession/tax_id index: " + indexFile.getName());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * checks whether the file starts with the index magic bytes
+     *
+     * @param file
+     * @return is index
+     * @throws IOException
+     */
+    public static boolean isIndex(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * returns the number of accessions in the index
+     *
+     * @return size
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * returns the tax_id of the given accession.version, or NO_TAX_ID when it is not
+     * present
+     *
+     * @param accession
+     * @return tax_id
+     */
+    public int lookup(String accession) {
+        byte[] key = accession.getBytes(UTF8);
+        if (size == 0 || key.length > MAX_KEY_LENGTH) {
+            return NO_TAX_ID;
+        }
+        long hash = hash(key, key.length, seed);
+        long displacement = displacements.getLong(8 * bucket(hash, bucketCount));
+        long slot = slot(hash, (int) (displacement >>> 32), (int) displacement, size);
+        long offset = offsets.getLong(8 * slot);
+        if ((arena.get(offset) & 0xFF) != key.length) {
+            return NO_TAX_ID;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (arena.get(offset + 1 + i) != key[i]) {
+                return NO_TAX_ID;
+            }
+        }
+        return taxIds.getInt(4 * slot);
+    }
+
+    /**
+     * builds an index file from NCBI accession2taxid files. These are tab-separated
+     * with the columns accession, accession.version, taxid and gi, and may be
+     * gzipped (.gz); the accession.version column is indexed. Files with only the
+     * columns accession.version and taxid are accepted as well. Header lines are
+     * skipped. When an accession occurs more than once only its first entry is kept.
+     *
+     * @param inputFiles
+     * @param indexFile
+     * @return the number of indexed accessions
+     * @throws IOException
+     * @throws ParseException when a line does not have the right format
+     */
+    public static long build(File[] inputFiles, File indexFile) throws IOException, ParseException {
+        return build(inputFiles, indexFile, null);
+    }
+
+    /**
+     * builds an index file holding only the entries of the given accession.versions.
+     * Lines are selected on a hash of their key, so the input is streamed without
+     * creating a String per line; the rare hash collision merely adds an unrequested
+     * entry to the index
+     *
+     * @param inputFiles
+     * @param indexFile
+     * @param accessions the accession.versions to keep
+     * @return the number of indexed accessions
+     * @throws IOException
+     * @throws ParseException when a line does not have the right format
+     */
+    public static long buildSubset(File[] inputFiles, File indexFile, String[] accessions) throws IOException, ParseException {
+        long[] selection = new long[accessions.length];
+        for (int i = 0; i < accessions.length; i++) {
+            byte[] key = accessions[i].getBytes(UTF8);
+            selection[i] = hash(key, key.length, 0);
+        }
+        Arrays.sort(selection);
+        return build(inputFiles, indexFile, selection);
+    }
+
+    /*selection holds the sorted seed 0 hashes of the keys to keep, or is null to keep all*/
+    private static long build(File[] inputFiles, File indexFile, long[] selection) throws IOException, ParseException {
+        for (File inputFile : inputFiles) {
+            if ((!inputFile.exists()) || (!inputFile.canRead())) {
+                throw new IOException("can not read from input file " + inputFile.getName());
+            }
+        }
+        Random random = new Random(inputFiles.length);
+        for (int attempt = 0; attempt < MAX_SEEDS; attempt++) {
+            int seed = random.nextInt();
+            long[] hashes = readHashes(inputFiles, seed, selection);
+            int size = hashes.length;
+            int bucketCount = Math.max(1, size / BUCKET_SIZE);
+            long[] placement = place(hashes, bucketCount, seed);
+            if (placement != null && write(inputFiles, indexFile, seed, size, bucketCount, placement, hashes, selection)) {
+                return size;
+            }
+            /*the hash function could not be completed, or two keys share a hash: next seed*/
+        }
+        throw new IOException("could not construct a perfect hash function for " + Arrays.toString(inputFiles));
+    }
+
+    /*pass 1: the distinct key hashes, sorted on bucket*/
+    private static long[] readHashes(File[] inputFiles, int seed, long[] selection) throws IOException, ParseException {
+        long[] hashes = new long[1 << 16];
+        int count = 0;
+        byte[] key = new byte[MAX_KEY_LENGTH];
+        for (File inputFile : inputFiles) {
+            FieldTokenizer ft = openInput(inputFile);
+            try {
+                while (ft.nextLine()) {
+                    int keyLength = readKey(ft, key, inputFile, selection);
+                    if (keyLength < 0) {
+                        continue;
+                    }
+                    if (count == hashes.length) {
+                        if (count == Integer.MAX_VALUE - 8) {
+                            throw new IOException("too many accessions for a single index");
+                        }
+                        hashes = Arrays.copyOf(hashes, (int) Math.min(Integer.MAX_VALUE - 8, 2L * count));
+                    }
+                    /*the sign bit is flipped so that the signed sort orders on bucket*/
+                    hashes[count++] = hash(key, keyLength, seed) ^ Long.MIN_VALUE;
+                }
+            } finally {
+                ft.close();
+            }
+        }
+        Arrays.sort(hashes, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || hashes[i] != hashes[unique - 1]) {
+                hashes[unique++] = hashes[i];
+            }
+        }
+        for (int i = 0; i < unique; i++) {
+            hashes[i] ^= Long.MIN_VALUE;
+        }
+        return Arrays.copyOf(hashes, unique);
+    }
+
+    /*
+     * finds the displacement of every bucket; largest buckets first, singletons go to
+     * the remaining free slots directly. Returns null when a bucket can not be placed
+     */
+    private static long[] place(long[] hashes, int bucketCount, int seed) {
+        int size = hashes.length;
+        long[] placement = new long[bucketCount];
+        if (size == 0) {
+            return placement;
+        }
+        /*bucket boundaries; the hashes are sorted on bucket*/
+        int[] starts = new int[bucketCount + 1];
+        for (int i = 0; i < size; i++) {
+            starts[(int) bucket(hashes[i], bucketCount) + 1]++;
+        }
+        int maxBucketSize = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            maxBucketSize = Math.max(maxBucketSize, starts[b + 1]);
+            starts[b + 1] += starts[b];
+        }
+        /*bucket numbers ordered on decreasing size (counting sort)*/
+        int[] sizeCounts = new int[maxBucketSize + 2];
+        for (int b = 0; b < bucketCount; b++) {
+            sizeCounts[maxBucketSize - (starts[b + 1] - starts[b]) + 1]++;
+        }
+        for (int s = 1; s < sizeCounts.length; s++) {
+            sizeCounts[s] += sizeCounts[s - 1];
+        }
+        int[] order = new int[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[sizeCounts[maxBucketSize - (starts[b + 1] - starts[b])]++] = b;
+        }
+
+        long[] occupied = new long[(size + 63) >>> 6];
+        long[] slots = new long[maxBucketSize];
+        long[] f1s = new long[maxBucketSize];
+        long[] f2s = new long[maxBucketSize];
+        long[] bases = new long[maxBucketSize];
+        Random random = new Random(seed);
+        int next = 0;
+        for (; next < bucketCount; next++) {
+            int b = order[next];
+            int from = starts[b];
+            int length = starts[b + 1] - from;
+            if (length < 2) {
+                break;
+            }
+            for (int k = 0; k < length; k++) {
+                f1s[k] = f1(hashes[from + k], size);
+                f2s[k] = f2(hashes[from + k], size);
+            }
+            boolean placed = false;
+            for (int d0 = 0; d0 < MAX_ROUNDS && !placed; d0++) {
+                for (int k = 0; k < length; k++) {
+                    bases[k] = (f1s[k] + (d0 * f2s[k]) % size) % size;
+                }
+                /*try the shifts that send the first key to a free slot, from a random start*/
+                int start = random.nextInt(size);
+                long free = nextFree(occupied, start, size);
+                boolean wrapped = false;
+                while (!placed) {
+                    if (free < 0) {
+                        if (wrapped) {
+                            break;
+                        }
+                        wrapped = true;
+                        free = nextFree(occupied, 0, size);
+                        continue;
+                    }
+                    if (wrapped && free >= start) {
+                        break;
+                    }
+                    int d1 = (int) ((free - bases[0] + size) % size);
+                    free = nextFree(occupied, free + 1, size);
+                    placed = true;
+                    for (int k = 0; k < length && placed; k++) {
+                        /*equals slot(hash, d0, d1, size)*/
+                        long slot = bases[k] + d1;
+                        if (slot >= size) {
+                            slot -= size;
+                        }
+                        placed = !isSet(occupied, slot);
+                        for (int j = 0; j < k && placed; j++) {
+                            placed = slots[j] != slot;
+                        }
+                        slots[k] = slot;
+                    }
+                    if (placed) {
+                        for (int k = 0; k < length; k++) {
+                            set(occupied, slots[k]);
+                        }
+                        placement[b] = ((long) d0 << 32) | (d1 & 0xFFFFFFFFL);
+                    }
+                }
+            }
+            if (!placed) {
+                return null;
+            }
+        }
+        /*singletons: d0 = 0 and d1 is chosen to hit the next free slot*/
+        long free = 0;
+        for (; next < bucketCount; next++) {
+            int b = order[next];
+            if (starts[b + 1] == starts[b]) {
+                break;
+            }
+            free = nextFree(occupied, free, size);
+            set(occupied, free);
+            placement[b] = (free - f1(hashes[starts[b]], size) + size) % size;
+        }
+        return placement;
+    }
+
+    /*
+     * pass 2: fills the slots and writes the index file. Returns false when two
+     * different keys turn out to share a hash
+     */
+    private static boolean write(File[] inputFiles, File indexFile, int seed, int size, int bucketCount,
+            long[] placement, long[] hashes, long[] selection) throws IOException, ParseException {
+        /*the hashes are no longer needed: their array holds the arena offsets*/
+        long[] keyOffsets = hashes;
+        Arrays.fill(keyOffsets, -1);
+        int[] values = new int[size];
+        File arenaFile = new File(indexFile.getPath() + ".arena.tmp");
+        DataOutputStream arenaOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(arenaFile), 1 << 16));
+        RandomAccessFile arenaIn = null;
+        long arenaSize = 0;
+        byte[] key = new byte[MAX_KEY_LENGTH];
+        byte[] stored = new byte[MAX_KEY_LENGTH];
+        boolean complete = false;
+        try {
+            for (File inputFile : inputFiles) {
+                FieldTokenizer ft = openInput(inputFile);
+                try {
+                    while (ft.nextLine()) {
+                        int keyLength = readKey(ft, key, inputFile, selection);
+                        if (keyLength < 0) {
+                            continue;
+                        }
+                        long hash = hash(key, keyLength, seed);
+                        long displacement = placement[(int) bucket(hash, bucketCount)];
+                        int slot = (int) slot(hash, (int) (displacement >>> 32), (int) displacement, size);
+                        if (keyOffsets[slot] >= 0) {
+                            /*seen before: a duplicate entry or a hash collision*/
+                            arenaOut.flush();
+                            if (arenaIn == null) {
+                                arenaIn = new RandomAccessFile(arenaFile, "r");
+                            }
+                            arenaIn.seek(keyOffsets[slot]);
+                            int storedLength = arenaIn.readUnsignedByte();
+                            arenaIn.readFully(stored, 0, storedLength);
+                            if (storedLength != keyLength || !rangeEquals(stored, key, keyLength)) {
+                                return false;
+                            }
+                            continue;
+                        }
+                        keyOffsets[slot] = arenaSize;
+                        values[slot] = ft.getInt(ft.getFieldCount() >= 3 ? 2 : 1);
+                        arenaOut.writeByte(keyLength);
+                        arenaOut.write(key, 0, keyLength);
+                        arenaSize += 1 + keyLength;
+                    }
+                } finally {
+                    ft.close();
+                }
+            }
+            complete = true;
+        } finally {
+            arenaOut.close();
+            if (arenaIn != null) {
+                arenaIn.close();
+            }
+            if (!complete) {
+                arenaFile.delete();
+            }
+        }
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+            try {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(seed);
+                out.writeLong(size);
+                out.writeLong(bucketCount);
+                out.writeLong(arenaSize);
+                for (long displacement : placement) {
+                    out.writeLong(displacement);
+                }
+                for (int value : values) {
+                    out.writeInt(value);
+                }
+                for (long i = 4L * size; i < paddedIntsLength(size); i++) {
+                    out.writeByte(0);
+                }
+                for (long offset : keyOffsets) {
+                    out.writeLong(offset);
+                }
+            } finally {
+                out.close();
+            }
+            appendFile(tmpFile, arenaFile);
+        } finally {
+            arenaFile.delete();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("could not replace existing index " + indexFile.getName());
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("could not rename " + tmpFile.getName() + " to " + indexFile.getName());
+        }
+        return true;
+    }
+
+    private static void appendFile(File target, File source) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel targetChannel = raf.getChannel();
+            FileChannel sourceChannel = in.getChannel();
+            long position = 0;
+            long length = sourceChannel.size();
+            while (position < length) {
+                position += sourceChannel.transferTo(position, length - position,
+                        targetChannel.position(targetChannel.size()));
+            }
+        } finally {
+            in.close();
+            raf.close();
+        }
+    }
+
+    private static FieldTokenizer openInput(File inputFile) throws IOException {
+        InputStream in = new FileInputStream(inputFile);
+        if (inputFile.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        } else {
+            in = new BufferedInputStream(in, 1 << 16);
+        }
+        return new FieldTokenizer(in, "\t");
+    }
+
+    /*
+     * copies the accession.version of the current line into key; -1 for header and
+     * empty lines and for keys that are not in the selection
+     */
+    private static int readKey(FieldTokenizer ft, byte[] key, File inputFile, long[] selection) throws ParseException {
+        if (ft.isEmptyLine() || ft.fieldStartsWith(0, "accession")) {
+            return -1;
+        }
+        int keyField = ft.getFieldCount() >= 3 ? 1 : 0;
+        if (ft.getFieldCount() < 2) {
+            throw new ParseException("error parsing file " + inputFile.getName()
+                    + ": line does not have correct format: " + ft.getLine() + " at line " + ft.getLineNumber());
+        }
+        int keyLength = ft.getFieldLength(keyField);
+        if (keyLength == 0 || keyLength > MAX_KEY_LENGTH) {
+            throw new ParseException("error parsing file " + inputFile.getName()
+                    + ": illegal accession length " + keyLength + " at line " + ft.getLineNumber());
+        }
+        ft.copyField(keyField, key, 0);
+        if (selection != null && Arrays.binarySearch(selection, hash(key, keyLength, 0)) < 0) {
+            return -1;
+        }
+        return keyLength;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long paddedIntsLength(long count) {
+        return (4 * count + 7) & ~7L;
+    }
+
+    private static boolean isSet(long[] bits, long index) {
+        return (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    /*the first clear bit at or after from, or -1*/
+    private static long nextFree(long[] bits, long from, long size) {
+        if (from >= size) {
+            return -1;
+        }
+        int word = (int) (from >>> 6);
+        long free = ~bits[word] & (-1L << from);
+        while (free == 0) {
+            if (++word == bits.length) {
+                return -1;
+            }
+            free = ~bits[word];
+        }
+        long index = ((long) word << 6) + Long.numberOfTrailingZeros(free);
+        return index < size ? index : -1;
+    }
+
+    private static void set(long[] bits, long index) {
+        bits[(int) (index >>> 6)] |= 1L << index;
+    }
+
+    /*FNV-1a over the key bytes, finished with the MurmurHash3 mixer*/
+    static long hash(byte[] key, int length, int seed) {
+        long h = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < length; i++) {
+            h ^= key[i] & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /*monotone in the unsigned hash, so hashes sorted unsigned are sorted on bucket*/
+    private static long bucket(long hash, long bucketCount) {
+        return ((hash >>> 32) * bucketCount) >>> 32;
+    }
+
+    private static long slot(long hash, int d0, int d1, long size) {
+        return ((f1(hash, size) + (d0 * f2(hash, size)) % size) % size + (d1 & 0xFFFFFFFFL)) % size;
+    }
+
+    private static long f1(long hash, long size) {
+        return (hash & 0xFFFFFFFFL) % size;
+    }
+
+    private static long f2(long hash, long size) {
+        return (mix(hash + 0x9E3779B97F4A7C15L) >>> 1) % size;
+    }
+
+    /**
+     * a region of the index file, mapped in segments of 1GB
+     */
+    private static final class Section {
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+        private final MappedByteBuffer[] segments;
+
+        Section(FileChannel channel, long start, long length) throws IOException {
+            int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[count];
+            for (int s = 0; s < count; s++) {
+                long first = (long) s << SEGMENT_SHIFT;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start + first,
+                        Math.min(length - first, 1L << SEGMENT_SHIFT));
+            }
+        }
+
+        /*longs and ints are aligned within the section, so they never span two segments*/
+        long getLong(long position) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+        }
+
+        int getInt(long position) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+        }
+
+        byte get(long position) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * Heap implementation of TaxonomyStore that keeps all node data in parallel
+ * primitive arrays: tax_id, parent index and rank ordinal per node, and the
+ * scientific names as offsets into a single shared UTF-8 byte arena. A lookup
+ * table maps tax_ids directly onto dense indices. For every rank of the short
+ * lineage an int column holds the index of the ancestor at that rank, so the
+ * genus, family, order etc. of a node are found without a lineage walk. Instances
+ * are immutable; use the Builder to create one.
+ *
+ * @author michiel
+ */
+public final class ArrayTaxonomyStore implements TaxonomyStore {
+
+    /**
+     * the charset of the names arena
+     */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * rank byte used for nodes without a known TaxonomyRank
+     */
+    public static final byte NO_RANK_ORDINAL = -1;
+
+    private static final TaxonomyRank[] PROJECTED_RANKS;
+    /*ancestor column of each rank by ordinal; -1 for ranks that are not projected*/
+    private static final int[] COLUMN_OF_RANK = new int[TaxonomyRank.values().length];
+
+    static {
+        List<TaxonomyRank> projected = new ArrayList<TaxonomyRank>();
+        for (TaxonomyRank rank : TaxonomyRank.values()) {
+            COLUMN_OF_RANK[rank.ordinal()] = TaxonomyRank.isShortLineage(rank) ? projected.size() : -1;
+            if (TaxonomyRank.isShortLineage(rank)) {
+                projected.add(rank);
+            }
+        }
+        PROJECTED_RANKS = projected.toArray(new TaxonomyRank[projected.size()]);
+    }
+
+    private final int[] taxIDs;
+    private final int[] parentIndices;
+    private final byte[] ranks;
+    /*size()+1 offsets; the name of node i spans nameOffsets[i] .. nameOffsets[i+1]*/
+    private final int[] nameOffsets;
+    private final byte[] nameArena;
+    /*tax_id to index lookup; NO_INDEX for absent tax_ids*/
+    private final int[] indexByTaxID;
+    /*rankAncestors[c][i] is the index of the ancestor of node i at PROJECTED_RANKS[c]*/
+    private final int[][] rankAncestors;
+
+    /**
+     * constructs from fully prepared arrays; ownership of the arrays is taken over
+     */
+    ArrayTaxonomyStore(int[] taxIDs, int[] parentIndices, byte[] ranks, int[] nameOffsets, byte[] nameArena,
+            int[] indexByTaxID, int[][] rankAncestors) {
+        this.taxIDs = taxIDs;
+        this.parentIndices = parentIndices;
+        this.ranks = ranks;
+        this.nameOffsets = nameOffsets;
+        this.nameArena = nameArena;
+        this.indexByTaxID = indexByTaxID;
+        this.rankAncestors = rankAncestors;
+    }
+
+    /**
+     * returns the ranks that have an ancestor column, from superkingdom down; these
+     * are the ranks of the short lineage
+     *
+     * @return projected ranks
+     */
+    public static TaxonomyRank[] getProjectedRanks() {
+        return PROJECTED_RANKS.clone();
+    }
+
+    /**
+     * @param rank
+     * @return the rank has an ancestor column
+     */
+    public static boolean isProjected(TaxonomyRank rank) {
+        return rank != null && COLUMN_OF_RANK[rank.ordinal()] >= 0;
+    }
+
+    /**
+     * returns the ancestor column of the given rank
+     *
+     * @param rank
+     * @return column number
+     * @throws IllegalArgumentException for ranks outside the short lineage
+     */
+    static int columnOf(TaxonomyRank rank) {
+        if (!isProjected(rank)) {
+            throw new IllegalArgumentException("rank is not part of the short lineage: " + rank);
+        }
+        return COLUMN_OF_RANK[rank.ordinal()];
+    }
+
+    /**
+     * creates the ancestor columns of all projected ranks in one pass: each node
+     * walks up to its first resolved ancestor, after which the path is resolved
+     * top-down from its parent's columns
+     *
+     * @param parentIndices
+     * @param ranks
+     * @return per projected rank the ancestor index of every node
+     * @throws CorruptedLineageException when the parent links contain a cycle
+     */
+    static int[][] createRankAncestors(int[] parentIndices, byte[] ranks) throws CorruptedLineageException {
+        int size = parentIndices.length;
+        int[][] columns = new int[PROJECTED_RANKS.length][size];
+        boolean[] resolved = new boolean[size];
+        int[] path = new int[64];
+        for (int start = 0; start < size; start++) {
+            int length = 0;
+            int node = start;
+            while (node != NO_INDEX && !resolved[node]) {
+                if (length == size) {
+                    throw new CorruptedLineageException("cycle in the parent links at node index " + start);
+                }
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, length * 2);
+                }
+                path[length++] = node;
+                node = parentIndices[node];
+            }
+            for (int p = length - 1; p >= 0; p--) {
+                int index = path[p];
+                int parent = parentIndices[index];
+                int ownColumn = ranks[index] == NO_RANK_ORDINAL ? -1 : COLUMN_OF_RANK[ranks[index]];
+                for (int c = 0; c < columns.length; c++) {
+                    if (c == ownColumn) {
+                        columns[c][index] = index;
+                    } else {
+                        columns[c][index] = parent == NO_INDEX ? NO_INDEX : columns[c][parent];
+                    }
+                }
+                resolved[index] = true;
+            }
+        }
+        return columns;
+    }
+
+    @Override
+    public int size() {
+        return taxIDs.length;
+    }
+
+    @Override
+    public int indexOf(int taxID) {
+        if (taxID < 0 || taxID >= indexByTaxID.length) {
+            return NO_INDEX;
+        }
+        return indexByTaxID[taxID];
+    }
+
+    @Override
+    public int indexOfName(String scientificName) {
+        byte[] query = scientificName.getBytes(UTF8);
+        for (int i = 0; i < taxIDs.length; i++) {
+            if (nameEquals(i, query)) {
+                return i;
+            }
+        }
+        return NO_INDEX;
+    }
+
+    /**
+     * compares the name of the node at index with the given UTF-8 bytes without
+     * decoding it
+     *
+     * @param index
+     * @param utf8
+     * @return names are equal
+     */
+    boolean nameEquals(int index, byte[] utf8) {
+        int start = nameOffsets[index];
+        int length = nameOffsets[index + 1] - start;
+        if (length != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (nameArena[start + i] != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getTaxID(int index) {
+        return taxIDs[index];
+    }
+
+    @Override
+    public int getParentIndex(int index) {
+        return parentIndices[index];
+    }
+
+    @Override
+    public TaxonomyRank getRank(int index) {
+        byte ordinal = ranks[index];
+        return ordinal == NO_RANK_ORDINAL ? null : TaxonomyRank.values()[ordinal];
+    }
+
+    @Override
+    public int getAncestorIndex(int index, TaxonomyRank rank) {
+        return rankAncestors[columnOf(rank)][index];
+    }
+
+    @Override
+    public String getScientificName(int index) {
+        int start = nameOffsets[index];
+        return new String(nameArena, start, nameOffsets[index + 1] - start, UTF8);
+    }
+
+    /**
+     * returns the byte representation of a rank as stored in this class
+     *
+     * @param rank
+     * @return rank ordinal
+     */
+    public static byte toRankOrdinal(TaxonomyRank rank) {
+        return rank == null ? NO_RANK_ORDINAL : (byte) rank.ordinal();
+    }
+
+    /**
+     * Collects nodes in any order and resolves the parent links when build() is
+     * called. Scientific names may be supplied with the node or set afterwards, as
+     * is the case when reading the NCBI nodes.dmp and names.dmp files.
+     */
+    public static final class Builder {
+
+        private int size = 0;
+        private int maxTaxID = 0;
+        private int[] taxIDs;
+        private int[] parentTaxIDs;
+        private byte[] ranks;
+        private int[] nameStarts;
+        private int[] nameLengths;
+        private byte[] arena;
+        private int arenaSize = 0;
+        /*only used for setting names after the nodes have been added*/
+        private int[] builderIndex;
+
+        /**
+         * constructs with a default initial capacity
+         */
+        public Builder() {
+            this(1024);
+        }
+
+        /**
+         * constructs with the expected number of nodes
+         *
+         * @param capacity
+         */
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            taxIDs = new int[capacity];
+            parentTaxIDs = new int[capacity];
+            ranks = new byte[capacity];
+            nameStarts = new int[capacity];
+            nameLengths = new int[capacity];
+            arena = new byte[capacity * 16];
+        }
+
+        /**
+         * adds a node
+         *
+         * @param taxID
+         * @param parentTaxID
+         * @param rank may be null
+         * @param scientificName may be null
+         * @return this builder
+         */
+        public Builder add(int taxID, int parentTaxID, TaxonomyRank rank, String scientificName) {
+            if (taxID < 0) {
+                throw new IllegalArgumentException("negative tax_id: " + taxID);
+            }
+            if (size == taxIDs.length) {
+                int capacity = size + (size >> 1);
+                taxIDs = Arrays.copyOf(taxIDs, capacity);
+                parentTaxIDs = Arrays.copyOf(parentTaxIDs, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                nameStarts = Arrays.copyOf(nameStarts, capacity);
+                nameLengths = Arrays.copyOf(nameLengths, capacity);
+            }
+            taxIDs[size] = taxID;
+            parentTaxIDs[size] = parentTaxID;
+            ranks[size] = toRankOrdinal(rank);
+            if (taxID > maxTaxID) {
+                maxTaxID = taxID;
+            }
+            builderIndex = null;
+            size++;
+            if (scientificName != null) {
+                putName(size - 1, scientificName);
+            }
+            return this;
+        }
+
+        /**
+         * sets the scientific name of a previously added node
+         *
+         * @param taxID
+         * @param scientificName
+         * @return the node was present
+         */
+        public boolean setScientificName(int taxID, String scientificName) {
+            if (builderIndex == null) {
+                builderIndex = createIndex(taxIDs, size, maxTaxID);
+            }
+            if (taxID < 0 || taxID >= builderIndex.length || builderIndex[taxID] == NO_INDEX) {
+                return false;
+            }
+            putName(builderIndex[taxID], scientificName);
+            return true;
+        }
+
+        /**
+         * returns the number of nodes added so far
+         *
+         * @return size
+         */
+        public int size() {
+            return size;
+        }
+
+        private void putName(int index, String scientificName) {
+            byte[] bytes = scientificName.getBytes(UTF8);
+            if (arenaSize + bytes.length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length + (arena.length >> 1), arenaSize + bytes.length));
+            }
+            System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+            nameStarts[index] = arenaSize;
+            nameLengths[index] = bytes.length;
+            arenaSize += bytes.length;
+        }
+
+        /**
+         * creates the store: resolves the parent links and compacts the names
+         * arena, and fills the rank ancestor columns. Only tax_id 1 (the root) may
+         * be without parent.
+         *
+         * @return the store
+         * @throws CorruptedLineageException when a node refers to an absent parent,
+         * or the parent links contain a cycle
+         */
+        public ArrayTaxonomyStore build() throws CorruptedLineageException {
+            int[] index = createIndex(taxIDs, size, maxTaxID);
+            int[] parentIndices = new int[size];
+            for (int i = 0; i < size; i++) {
+                if (taxIDs[i] == 1) {
+                    parentIndices[i] = NO_INDEX;
+                    continue;
+                }
+                int parentTaxID = parentTaxIDs[i];
+                if (parentTaxID < 0 || parentTaxID >= index.length || index[parentTaxID] == NO_INDEX) {
+                    throw new CorruptedLineageException("TaxNode without parent: tax_id=" + taxIDs[i]
+                            + "; parent_tax_id=" + parentTaxID);
+                }
+                parentIndices[i] = index[parentTaxID];
+            }
+
+            /*names may have been set out of order or more than once: compact*/
+            int[] nameOffsets = new int[size + 1];
+            int total = 0;
+            for (int i = 0; i < size; i++) {
+                total += nameLengths[i];
+            }
+            byte[] names = new byte[total];
+            int offset = 0;
+            for (int i = 0; i < size; i++) {
+                nameOffsets[i] = offset;
+                System.arraycopy(arena, nameStarts[i], names, offset, nameLengths[i]);
+                offset += nameLengths[i];
+            }
+            nameOffsets[size] = offset;
+
+            byte[] nodeRanks = Arrays.copyOf(ranks, size);
+            return new ArrayTaxonomyStore(Arrays.copyOf(taxIDs, size), parentIndices, nodeRanks,
+                    nameOffsets, names, index, createRankAncestors(parentIndices, nodeRanks));
+        }
+
+        private static int[] createIndex(int[] taxIDs, int size, int maxTaxID) {
+            int[] index = new int[maxTaxID + 1];
+            Arrays.fill(index, NO_INDEX);
+            for (int i = 0; i < size; i++) {
+                index[taxIDs[i]] = i;
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import nl.bioinf.noback.taxonomy.model.Lineage;
+
+/**
+ * Non-blocking front of a TaxonomyDao: lookups return a CompletableFuture and run on
+ * an executor, so the caller can go on, e.g. parsing input, while the database
+ * answers. Requests for a key that is already being looked up share the future of
+ * that lookup instead of querying again, and all keys of a batch request that are not
+ * in flight go to the database in one call of the batch methods of the TaxonomyDao.
+ * <p>
+ * Futures complete with null when the lineage of the key could not be retrieved, as
+ * the batch methods of TaxonomyDao do, and exceptionally with the DatabaseException
+ * when the database as a whole can not be queried. The TaxonomyDao is called from the
+ * threads of the executor, so it should be thread-safe; the SQL implementations with
+ * more than one connection run that many lookups in parallel. On Java 21 and later an
+ * executor with a virtual thread per task can be passed in.
+ *
+ * @author michiel
+ */
+public final class AsyncTaxonomyDao {
+
+    /**
+     * the default number of lookup threads
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    private final TaxonomyDao taxDB;
+    private final Executor executor;
+    /*the pool created by this object, null for an executor passed in*/
+    private final ExecutorService ownExecutor;
+    private final Coalescer<Integer> taxIds;
+    private final Coalescer<Integer> giNumbers;
+    private final Coalescer<String> accessions;
+
+    /**
+     * looks up lineages on a pool of DEFAULT_THREADS daemon threads
+     *
+     * @param taxDB
+     */
+    public AsyncTaxonomyDao(TaxonomyDao taxDB) {
+        this(taxDB, DEFAULT_THREADS);
+    }
+
+    /**
+     * looks up lineages on a pool of daemon threads; shut it down with shutdown()
+     *
+     * @param taxDB
+     * @param threads
+     */
+    public AsyncTaxonomyDao(TaxonomyDao taxDB, int threads) {
+        this(taxDB, createPool(threads), true);
+    }
+
+    /**
+     * looks up lineages on the given executor, which remains owned by the caller
+     *
+     * @param taxDB
+     * @param executor
+     */
+    public AsyncTaxonomyDao(TaxonomyDao taxDB, Executor executor) {
+        this(taxDB, executor, false);
+    }
+
+    private AsyncTaxonomyDao(final TaxonomyDao taxDB, Executor executor, boolean owned) {
+        this.taxDB = taxDB;
+        this.executor = executor;
+        this.ownExecutor = owned ? (ExecutorService) executor : null;
+        this.taxIds = new Coalescer<Integer>() {
+            @Override
+            Lineage[] lookup(List<Integer> keys) throws DatabaseException {
+                return taxDB.getLineages(toIntArray(keys));
+            }
+        };
+        this.giNumbers = new Coalescer<Integer>() {
+            @Override
+            Lineage[] lookup(List<Integer> keys) throws DatabaseException {
+                return taxDB.getGiLineages(toIntArray(keys));
+            }
+        };
+        this.accessions = new Coalescer<String>() {
+            @Override
+            Lineage[] lookup(List<String> keys) throws DatabaseException {
+                return taxDB.getAccessionLineages(keys.toArray(new String[keys.size()]));
+            }
+        };
+    }
+
+    /**
+     * @return the TaxonomyDao the lookups go to
+     */
+    public TaxonomyDao getTaxonomyDao() {
+        return taxDB;
+    }
+
+    /**
+     * @param taxID
+     * @return the future lineage of the taxID
+     */
+    public CompletableFuture<Lineage> getLineage(int taxID) {
+        return taxIds.get(taxID);
+    }
+
+    /**
+     * @param giNumber
+     * @return the future lineage of the taxID of the gi number
+     */
+    public CompletableFuture<Lineage> getGiLineage(int giNumber) {
+        return giNumbers.get(giNumber);
+    }
+
+    /**
+     * @param accession versioned accession, e.g. NP_000005.3
+     * @return the future lineage of the taxID of the accession
+     */
+    public CompletableFuture<Lineage> getAccessionLineage(String accession) {
+        return accessions.get(accession);
+    }
+
+    /**
+     * @param taxIDs
+     * @return the future lineages, parallel to the argument
+     */
+    public CompletableFuture<Lineage[]> getLineages(int[] taxIDs) {
+        List<Integer> keys = new ArrayList<Integer>(taxIDs.length);
+        for (int taxID : taxIDs) {
+            keys.add(taxID);
+        }
+        return taxIds.getAll(keys);
+    }
+
+    /**
+     * @param giNumbers
+     * @return the future lineages, parallel to the argument
+     */
+    public CompletableFuture<Lineage[]> getGiLineages(int[] giNumbers) {
+        List<Integer> keys = new ArrayList<Integer>(giNumbers.length);
+        for (int giNumber : giNumbers) {
+            keys.add(giNumber);
+        }
+        return this.giNumbers.getAll(keys);
+    }
+
+    /**
+     * @param accessions
+     * @return the future lineages, parallel to the argument
+     */
+    public CompletableFuture<Lineage[]> getAccessionLineages(String[] accessions) {
+        List<String> keys = new ArrayList<String>(accessions.length);
+        for (String accession : accessions) {
+            keys.add(accession);
+        }
+        return this.accessions.getAll(keys);
+    }
+
+    /**
+     * @return the number of keys being looked up at this moment
+     */
+    public int getInFlightCount() {
+        return taxIds.inFlight.size() + giNumbers.inFlight.size() + accessions.inFlight.size();
+    }
+
+    /**
+     * stops the threads created by this object after the submitted lookups; an
+     * executor passed in is left alone. The TaxonomyDao is not disconnected
+     */
+    public void shutdown() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * the in-flight lookups of one kind of key
+     *
+     * @param <K> the type of the keys
+     */
+    private abstract class Coalescer<K> {
+        private final ConcurrentMap<K, CompletableFuture<Lineage>> inFlight = new ConcurrentHashMap<K, CompletableFuture<Lineage>>();
+
+        /**
+         * @param keys distinct keys
+         * @return the lineages, parallel to the keys
+         * @throws DatabaseException
+         */
+        abstract Lineage[] lookup(List<K> keys) throws DatabaseException;
+
+        CompletableFuture<Lineage> get(K key) {
+            List<K> keys = new ArrayList<K>(1);
+            keys.add(key);
+            return futures(keys).get(key);
+        }
+
+        CompletableFuture<Lineage[]> getAll(final List<K> keys) {
+            final Map<K, CompletableFuture<Lineage>> futures = futures(keys);
+            CompletableFuture<?>[] all = futures.values().toArray(new CompletableFuture<?>[futures.size()]);
+            return CompletableFuture.allOf(all).thenApply(new Function<Void, Lineage[]>() {
+                @Override
+                public Lineage[] apply(Void done) {
+                    Lineage[] lineages = new Lineage[keys.size()];
+                    for (int i = 0; i < lineages.length; i++) {
+                        lineages[i] = futures.get(keys.get(i)).join();
+                    }
+                    return lineages;
+                }
+            });
+        }
+
+        /*joins the lookups in flight and starts one batch lookup for the other keys*/
+        private Map<K, CompletableFuture<Lineage>> futures(List<K> keys) {
+            Map<K, CompletableFuture<Lineage>> futures = new LinkedHashMap<K, CompletableFuture<Lineage>>();
+            final Map<K, CompletableFuture<Lineage>> started = new LinkedHashMap<K, CompletableFuture<Lineage>>();
+            for (K key : keys) {
+                if (futures.containsKey(key)) {
+                    continue;
+                }
+                CompletableFuture<Lineage> future = new CompletableFuture<Lineage>();
+                CompletableFuture<Lineage> existing = inFlight.putIfAbsent(key, future);
+                if (existing != null) {
+                    futures.put(key, existing);
+                } else {
+                    futures.put(key, future);
+                    started.put(key, future);
+                }
+            }
+            if (!started.isEmpty()) {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            complete(started);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    /*rejected, e.g. after shutdown()*/
+                    fail(started, e);
+                }
+            }
+            return futures;
+        }
+
+        private void complete(Map<K, CompletableFuture<Lineage>> started) {
+            List<K> keys = new ArrayList<K>(started.keySet());
+            Lineage[] lineages;
+            try {
+                lineages = lookup(keys);
+            } catch (Throwable e) {
+                fail(started, e);
+                return;
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                K key = keys.get(i);
+                /*removed first, so a request arriving later finds the cache of the TaxonomyDao*/
+                inFlight.remove(key, started.get(key));
+                started.get(key).complete(i < lineages.length ? lineages[i] : null);
+            }
+        }
+
+        private void fail(Map<K, CompletableFuture<Lineage>> started, Throwable e) {
+            for (Map.Entry<K, CompletableFuture<Lineage>> entry : started.entrySet()) {
+                inFlight.remove(entry.getKey(), entry.getValue());
+                entry.getValue().completeExceptionally(e);
+            }
+        }
+    }
+
+    private static ExecutorService createPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of lookup threads should be at least 1: " + threads);
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "taxdb-lookup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static int[] toIntArray(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+}
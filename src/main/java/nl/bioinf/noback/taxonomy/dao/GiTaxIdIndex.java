@@ -0,0 +1,517 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
+import nl.bioinf.noback.taxonomy.io.ParseException;
+
+/**
+ * Read-only gi number to tax_id index that is memory-mapped from a binary file
+ * holding the sorted gi numbers (long keys) followed by their tax_ids (int values).
+ * Lookups use interpolation search that falls back to binary search, so any size of
+ * mapping file is served with a small, fixed heap. Files beyond 2GB are mapped in
+ * segments.
+ * <p>
+ * Index files are created with build() from a tab-separated gi_number/tax_id file,
+ * using an external merge sort so that the input never has to fit in memory.
+ * <pre>
+ * header  magic "GITAXIDX", version, reserved int, entry count (long)
+ * keys    count longs, ascending
+ * values  count ints
+ * </pre>
+ *
+ * @author michiel
+ */
+public final class GiTaxIdIndex {
+
+    /**
+     * the magic bytes every index file starts with
+     */
+    public static final byte[] MAGIC = "GITAXIDX".getBytes(Charset.forName("US-ASCII"));
+    /**
+     * the current index format version
+     */
+    public static final int VERSION = 1;
+    /**
+     * returned by lookup() for absent keys
+     */
+    public static final int NO_TAX_ID = -1;
+    /**
+     * the default number of entries sorted in memory per run when building
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 23;
+    private static final int HEADER_SIZE = 24;
+    /*entries per mapped segment; keeps every segment below 2GB*/
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    /*after this many interpolation steps bisection takes over*/
+    private static final int MAX_INTERPOLATION_STEPS = 8;
+
+    private final long size;
+    private final MappedByteBuffer[] keySegments;
+    private final MappedByteBuffer[] valueSegments;
+
+    private GiTaxIdIndex(long size, MappedByteBuffer[] keySegments, MappedByteBuffer[] valueSegments) {
+        this.size = size;
+        this.keySegments = keySegments;
+        this.valueSegments = valueSegments;
+    }
+
+    /**
+     * maps the given index file
+     *
+     * @param indexFile
+     * @return index
+     * @throws IOException when the file can not be read or is not a valid index
+     */
+    public static GiTaxIdIndex open(File indexFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a gi/tax_id index: " + indexFile.getName());
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported gi/tax_id index version " + version + " in " + indexFile.getName()
+                        + "; expected " + VERSION);
+            }
+            raf.readInt();
+            long size = raf.readLong();
+            if (raf.length() != HEADER_SIZE + 12 * size) {
+                throw new IOException("truncated or corrupted gi/tax_id index: " + indexFile.getName());
+            }
+
+            FileChannel channel = raf.getChannel();
+            int segmentCount = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            MappedByteBuffer[] keySegments = new MappedByteBuffer[segmentCount];
+            MappedByteBuffer[] valueSegments = new MappedByteBuffer[segmentCount];
+            long valuesStart = HEADER_SIZE + 8 * size;
+            for (int s = 0; s < segmentCount; s++) {
+                long first = (long) s << SEGMENT_SHIFT;
+                long entries = Math.min(size - first, 1L << SEGMENT_SHIFT);
+                keySegments[s] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 8 * first, 8 * entries);
+                valueSegments[s] = channel.map(FileChannel.MapMode.READ_ONLY, valuesStart + 4 * first, 4 * entries);
+            }
+            return new GiTaxIdIndex(size, keySegments, valueSegments);
+        } catch (EOFException e) {
+            throw new IOException("not a gi/tax_id index: " + indexFile.getName());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * checks whether the file starts with the index magic bytes
+     *
+     * @param file
+     * @return is index
+     * @throws IOException
+     */
+    public static boolean isIndex(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * returns the number of gi numbers in the index
+     *
+     * @return size
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * returns the gi number at the given position
+     *
+     * @param position
+     * @return gi number
+     */
+    public long getKey(long position) {
+        return keySegments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK) << 3);
+    }
+
+    /**
+     * returns the tax_id at the given position
+     *
+     * @param position
+     * @return tax_id
+     */
+    public int getValue(long position) {
+        return valueSegments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK) << 2);
+    }
+
+    /**
+     * returns the tax_id for the given gi number, or NO_TAX_ID when it is not present
+     *
+     * @param giNumber
+     * @return tax_id
+     */
+    public int lookup(long giNumber) {
+        long low = 0;
+        long high = size - 1;
+        int steps = 0;
+        while (low <= high) {
+            long lowKey = getKey(low);
+            long highKey = getKey(high);
+            if (giNumber < lowKey || giNumber > highKey) {
+                return NO_TAX_ID;
+            }
+            long mid;
+            if (highKey == lowKey) {
+                mid = low;
+            } else if (steps++ < MAX_INTERPOLATION_STEPS) {
+                mid = low + (long) ((double) (giNumber - lowKey) / (highKey - lowKey) * (high - low));
+            } else {
+                mid = (low + high) >>> 1;
+            }
+            long key = getKey(mid);
+            if (key < giNumber) {
+                low = mid + 1;
+            } else if (key > giNumber) {
+                high = mid - 1;
+            } else {
+                return getValue(mid);
+            }
+        }
+        return NO_TAX_ID;
+    }
+
+    /**
+     * builds an index file from a tab-separated gi_number/tax_id file, using the
+     * default chunk size
+     *
+     * @param giTaxIdFile
+     * @param indexFile
+     * @param skipHeader the first line of the input is a header
+     * @return the number of indexed gi numbers
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static long build(File giTaxIdFile, File indexFile, boolean skipHeader) throws IOException, ParseException {
+        return build(giTaxIdFile, indexFile, skipHeader, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * builds an index file from a tab-separated gi_number/tax_id file. The input is
+     * read in chunks of chunkSize entries that are sorted in memory and written as
+     * temporary runs; the runs are then merged into the index file. When a gi
+     * number occurs more than once only one of its entries is kept.
+     *
+     * @param giTaxIdFile
+     * @param indexFile
+     * @param skipHeader the first line of the input is a header
+     * @param chunkSize the number of entries sorted in memory
+     * @return the number of indexed gi numbers
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static long build(File giTaxIdFile, File indexFile, boolean skipHeader, int chunkSize) throws IOException, ParseException {
+        return build(giTaxIdFile, indexFile, skipHeader, chunkSize, null);
+    }
+
+    /**
+     * builds an index file holding only the entries of the given gi numbers. The
+     * input is streamed once and the selected entries are sorted in memory, so this
+     * is much cheaper than indexing the complete file when only a small part of it
+     * is needed
+     *
+     * @param giTaxIdFile
+     * @param indexFile
+     * @param skipHeader the first line of the input is a header
+     * @param giNumbers the gi numbers to keep, sorted
+     * @return the number of indexed gi numbers
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static long buildSubset(File giTaxIdFile, File indexFile, boolean skipHeader, long[] giNumbers) throws IOException, ParseException {
+        return build(giTaxIdFile, indexFile, skipHeader, Math.max(1, giNumbers.length), giNumbers);
+    }
+
+    /*selection holds the sorted gi numbers to keep, or is null to keep all*/
+    private static long build(File giTaxIdFile, File indexFile, boolean skipHeader, int chunkSize, long[] selection)
+            throws IOException, ParseException {
+        if ((!giTaxIdFile.exists()) || (!giTaxIdFile.canRead())) {
+            throw new IOException("can not read from input file " + giTaxIdFile.getName());
+        }
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        List<File> runs = new ArrayList<File>();
+        long[] keys = new long[chunkSize];
+        int[] values = new int[chunkSize];
+        FieldTokenizer ft = new FieldTokenizer(new FileInputStream(giTaxIdFile), "\t");
+        try {
+            if (skipHeader) {
+                ft.nextLine();
+            }
+            int fill = 0;
+            while (ft.nextLine()) {
+                if (ft.isEmptyLine()) {
+                    continue;
+                }
+                try {
+                    keys[fill] = ft.getLong(0);
+                    if (selection != null && Arrays.binarySearch(selection, keys[fill]) < 0) {
+                        continue;
+                    }
+                    values[fill] = ft.getInt(1);
+                } catch (ParseException e) {
+                    throw new ParseException("error parsing file " + giTaxIdFile.getName()
+                            + ": line does not have correct format: " + ft.getLine() + " at line " + ft.getLineNumber());
+                }
+                if (++fill == chunkSize) {
+                    runs.add(writeRun(keys, values, fill, dir));
+                    fill = 0;
+                }
+            }
+            if (fill > 0 || runs.isEmpty()) {
+                runs.add(writeRun(keys, values, fill, dir));
+            }
+        } catch (IOException e) {
+            deleteAll(runs);
+            throw new IOException("file processing failed at line " + ft.getLineNumber() + ": " + e.getMessage());
+        } finally {
+            ft.close();
+        }
+        keys = null;
+        values = null;
+
+        try {
+            return merge(runs, indexFile);
+        } finally {
+            deleteAll(runs);
+        }
+    }
+
+    /*sorts the first length entries of the chunk and writes them to a temporary run file*/
+    private static File writeRun(long[] keys, int[] values, int length, File dir) throws IOException {
+        sort(keys, values, 0, length - 1);
+        File run = File.createTempFile("gi_taxid_run", ".tmp", dir);
+        run.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+        try {
+            for (int i = 0; i < length; i++) {
+                out.writeLong(keys[i]);
+                out.writeInt(values[i]);
+            }
+        } finally {
+            out.close();
+        }
+        return run;
+    }
+
+    /*k-way merge of the sorted runs into the index file*/
+    private static long merge(List<File> runs, File indexFile) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        File valuesFile = new File(indexFile.getPath() + ".values.tmp");
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(runs.size(), 1), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader r1, RunReader r2) {
+                return r1.key < r2.key ? -1 : (r1.key == r2.key ? 0 : 1);
+            }
+        });
+        DataOutputStream keysOut = null;
+        DataOutputStream valuesOut = null;
+        long count = 0;
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+            valuesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(valuesFile), 1 << 16));
+            keysOut.write(MAGIC);
+            keysOut.writeInt(VERSION);
+            keysOut.writeInt(0);
+            keysOut.writeLong(0);
+            boolean first = true;
+            long previous = 0;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (first || reader.key != previous) {
+                    keysOut.writeLong(reader.key);
+                    valuesOut.writeInt(reader.value);
+                    previous = reader.key;
+                    first = false;
+                    count++;
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            if (keysOut != null) {
+                keysOut.close();
+            }
+            if (valuesOut != null) {
+                valuesOut.close();
+            }
+        }
+
+        /*append the values section and fill in the entry count*/
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        FileInputStream valuesIn = new FileInputStream(valuesFile);
+        try {
+            raf.seek(16);
+            raf.writeLong(count);
+            FileChannel target = raf.getChannel();
+            FileChannel source = valuesIn.getChannel();
+            long position = 0;
+            long length = source.size();
+            while (position < length) {
+                position += source.transferTo(position, length - position, target.position(target.size()));
+            }
+        } finally {
+            valuesIn.close();
+            raf.close();
+            valuesFile.delete();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("could not replace existing index " + indexFile.getName());
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("could not rename " + tmpFile.getName() + " to " + indexFile.getName());
+        }
+        return count;
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * sorts the parallel key and value arrays on key, from index low to high
+     * (inclusive)
+     *
+     * @param keys
+     * @param values
+     * @param low
+     * @param high
+     */
+    static void sort(long[] keys, int[] values, int low, int high) {
+        while (high - low > 16) {
+            /*median of three pivot*/
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < keys[low]) {
+                swap(keys, values, low, mid);
+            }
+            if (keys[high] < keys[low]) {
+                swap(keys, values, low, high);
+            }
+            if (keys[high] < keys[mid]) {
+                swap(keys, values, mid, high);
+            }
+            long pivot = keys[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            /*recurse into the smaller part to bound the stack depth*/
+            if (j - low < high - i) {
+                sort(keys, values, low, j);
+                low = i;
+            } else {
+                sort(keys, values, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long key = keys[i];
+            int value = values[i];
+            int j = i - 1;
+            while (j >= low && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(long[] keys, int[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * sequential reader of a sorted run file
+     */
+    private static final class RunReader {
+        private final DataInputStream in;
+        private long key;
+        private int value;
+
+        RunReader(File run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            value = in.readInt();
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
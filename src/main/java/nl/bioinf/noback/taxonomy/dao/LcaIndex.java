@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+/**
+ * Lowest common ancestor index over a TaxonomyStore, using binary lifting: for
+ * every node the depth and its ancestors at 1, 2, 4, ... levels up are
+ * precomputed. The LCA of two nodes is then found in O(log depth) without any
+ * allocation, and the LCA of N nodes in O(N log depth). Instances are immutable and
+ * thread-safe.
+ *
+ * @author michiel
+ */
+public final class LcaIndex {
+
+    private final TaxonomyStore store;
+    private final int[] depths;
+    /*jumps[k][i] is the ancestor 2^k levels above node i; the root jumps to itself*/
+    private final int[][] jumps;
+
+    /**
+     * builds the index for the given store
+     *
+     * @param store
+     * @throws IllegalArgumentException when the parent links contain a cycle
+     */
+    public LcaIndex(TaxonomyStore store) {
+        this.store = store;
+        int size = store.size();
+        int[] parents = new int[size];
+        int root = TaxonomyStore.NO_INDEX;
+        for (int i = 0; i < size; i++) {
+            int parent = store.getParentIndex(i);
+            if (parent == TaxonomyStore.NO_INDEX) {
+                parent = i;
+                root = i;
+            }
+            parents[i] = parent;
+        }
+        this.depths = computeDepths(parents, root);
+
+        int maxDepth = 0;
+        for (int depth : depths) {
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        int levels = 1;
+        while ((1 << levels) <= maxDepth) {
+            levels++;
+        }
+        this.jumps = new int[levels][];
+        jumps[0] = parents;
+        for (int k = 1; k < levels; k++) {
+            int[] previous = jumps[k - 1];
+            int[] current = new int[size];
+            for (int i = 0; i < size; i++) {
+                current[i] = previous[previous[i]];
+            }
+            jumps[k] = current;
+        }
+    }
+
+    private static int[] computeDepths(int[] parents, int root) {
+        int size = parents.length;
+        int[] depths = new int[size];
+        boolean[] known = new boolean[size];
+        if (root != TaxonomyStore.NO_INDEX) {
+            known[root] = true;
+        }
+        int[] path = new int[64];
+        for (int i = 0; i < size; i++) {
+            /*walk up to the first node with known depth, then fill in the path*/
+            int length = 0;
+            int node = i;
+            while (!known[node]) {
+                if (length == path.length) {
+                    int[] grown = new int[length * 2];
+                    System.arraycopy(path, 0, grown, 0, length);
+                    path = grown;
+                }
+                if (length > size) {
+                    throw new IllegalArgumentException("cycle in parent links at node index " + i);
+                }
+                path[length++] = node;
+                node = parents[node];
+            }
+            int depth = depths[node];
+            while (length > 0) {
+                node = path[--length];
+                depths[node] = ++depth;
+                known[node] = true;
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * returns the depth of the node at the given index; the root has depth 0
+     *
+     * @param index
+     * @return depth
+     */
+    public int getDepth(int index) {
+        return depths[index];
+    }
+
+    /**
+     * returns the index of the lowest common ancestor of the nodes at the given
+     * indices
+     *
+     * @param indexA
+     * @param indexB
+     * @return index of the LCA
+     */
+    public int lca(int indexA, int indexB) {
+        int a = indexA;
+        int b = indexB;
+        if (depths[a] < depths[b]) {
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+        int difference = depths[a] - depths[b];
+        for (int k = 0; difference != 0; k++, difference >>>= 1) {
+            if ((difference & 1) != 0) {
+                a = jumps[k][a];
+            }
+        }
+        if (a == b) {
+            return a;
+        }
+        for (int k = jumps.length - 1; k >= 0; k--) {
+            if (jumps[k][a] != jumps[k][b]) {
+                a = jumps[k][a];
+                b = jumps[k][b];
+            }
+        }
+        return jumps[0][a];
+    }
+
+    /**
+     * returns the tax_id of the lowest common ancestor of the given tax_ids
+     *
+     * @param taxIDs at least one tax_id
+     * @return tax_id of the LCA
+     * @throws IllegalArgumentException when a tax_id is not present, or no tax_ids are given
+     */
+    public int lcaOfTaxIDs(int[] taxIDs) {
+        if (taxIDs.length == 0) {
+            throw new IllegalArgumentException("no tax_ids given");
+        }
+        int lca = indexOf(taxIDs[0]);
+        for (int i = 1; i < taxIDs.length; i++) {
+            lca = lca(lca, indexOf(taxIDs[i]));
+        }
+        return store.getTaxID(lca);
+    }
+
+    private int indexOf(int taxID) {
+        int index = store.indexOf(taxID);
+        if (index == TaxonomyStore.NO_INDEX) {
+            throw new IllegalArgumentException("taxID is not represented in database: " + taxID);
+        }
+        return index;
+    }
+}
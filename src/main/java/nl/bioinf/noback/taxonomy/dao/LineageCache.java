@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import nl.bioinf.noback.taxonomy.model.Lineage;
+import nl.bioinf.noback.taxonomy.model.TaxNode;
+
+/**
+ * Bounded, thread-safe cache for lineages, used by the TaxonomyDao
+ * implementations. The cache is limited in number of entries and/or in estimated
+ * heap size; when a limit is exceeded entries are evicted with the second-chance
+ * (CLOCK) approximation of least-recently-used, so the lineages of the taxa that
+ * are hit most stay resident during long runs. Hits, misses and evictions are
+ * counted.
+ * <p>
+ * Reads take no lock: a hit only marks the entry as referenced. Only writers that
+ * push the cache over a limit serialize on the eviction sweep.
+ * Cached lineages are shared between all callers and should be treated as read-only.
+ *
+ * @author michiel
+ * @param <K> the key type, e.g. tax_id or organism name
+ */
+public class LineageCache<K> {
+
+    /**
+     * value for maxEntries or maxBytes meaning no limit
+     */
+    public static final long UNLIMITED = 0;
+    /*rough heap estimates used for the byte limit*/
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int NODE_OVERHEAD = 96;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final ConcurrentHashMap<K, Entry> map;
+    /*the clock: keys in insertion order, re-queued when referenced*/
+    private final ConcurrentLinkedQueue<K> clock;
+    private final Object evictionLock = new Object();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    /*striped counters, so concurrent hits do not contend on one cache line*/
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * constructs a cache that is limited in number of entries only
+     *
+     * @param maxEntries
+     */
+    public LineageCache(long maxEntries) {
+        this(maxEntries, UNLIMITED);
+    }
+
+    /**
+     * constructs a cache limited in number of entries and estimated heap bytes;
+     * either limit may be UNLIMITED
+     *
+     * @param maxEntries
+     * @param maxBytes
+     */
+    public LineageCache(long maxEntries, long maxBytes) {
+        if (maxEntries < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("cache limits can not be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.map = new ConcurrentHashMap<K, Entry>(1024);
+        this.clock = new ConcurrentLinkedQueue<K>();
+    }
+
+    /**
+     * returns the cached lineage, or null when it is not cached
+     *
+     * @param key
+     * @return lineage
+     */
+    public Lineage get(K key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.lineage;
+    }
+
+    /**
+     * caches the lineage, evicting entries when a limit is exceeded
+     *
+     * @param key
+     * @param lineage
+     */
+    public void put(K key, Lineage lineage) {
+        Entry entry = new Entry(lineage, estimateBytes(lineage));
+        if (maxBytes != UNLIMITED && entry.bytes > maxBytes) {
+            return;
+        }
+        Entry previous = map.put(key, entry);
+        if (previous == null) {
+            clock.offer(key);
+            estimatedBytes.addAndGet(entry.bytes);
+        } else {
+            estimatedBytes.addAndGet(entry.bytes - previous.bytes);
+        }
+        if (isOverLimit()) {
+            evict();
+        }
+    }
+
+    private boolean isOverLimit() {
+        return (maxEntries != UNLIMITED && map.size() > maxEntries)
+                || (maxBytes != UNLIMITED && estimatedBytes.get() > maxBytes);
+    }
+
+    /*sweeps the clock: referenced entries get a second chance, others are removed*/
+    private void evict() {
+        synchronized (evictionLock) {
+            while (isOverLimit()) {
+                K key = clock.poll();
+                if (key == null) {
+                    return;
+                }
+                Entry entry = map.get(key);
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.offer(key);
+                } else if (map.remove(key, entry)) {
+                    estimatedBytes.addAndGet(-entry.bytes);
+                    evictionCount.increment();
+                } else {
+                    /*replaced concurrently; keep the key on the clock*/
+                    clock.offer(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * removes all entries; the counters are kept
+     */
+    public void clear() {
+        synchronized (evictionLock) {
+            map.clear();
+            clock.clear();
+            estimatedBytes.set(0);
+        }
+    }
+
+    /**
+     * @return the number of cached lineages
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return the estimated heap use of the cached lineages
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    /**
+     * @return the number of get() calls that returned a lineage
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return the number of get() calls that returned null
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return the number of lineages evicted to stay within the limits
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * estimates the heap use of a lineage
+     *
+     * @param lineage
+     * @return bytes
+     */
+    static int estimateBytes(Lineage lineage) {
+        int bytes = ENTRY_OVERHEAD;
+        for (TaxNode node : lineage.getListFromLeaf()) {
+            String name = node.getScientificName();
+            bytes += NODE_OVERHEAD + (name == null ? 0 : 40 + 2 * name.length());
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "LineageCache:[size=" + map.size()
+                + "; estimated_bytes=" + estimatedBytes.get()
+                + "; hits=" + hitCount.sum()
+                + "; misses=" + missCount.sum()
+                + "; evictions=" + evictionCount.sum() + "]";
+    }
+
+    /**
+     * a cached lineage with its size estimate and reference bit
+     */
+    private static final class Entry {
+        private final Lineage lineage;
+        private final int bytes;
+        private volatile boolean referenced;
+
+        Entry(Lineage lineage, int bytes) {
+            this.lineage = lineage;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * The ancestor closure table of a TaxDBlite nodes table: one row (tax_id,
+ * ancestor_tax_id, depth) for every node and each of its ancestors, the node itself
+ * included at depth 0. With it, the complete lineages of a batch of tax_ids are
+ * fetched with one indexed join instead of one query per ancestor. The table is
+ * derived from the nodes table with set-based inserts, one per taxonomy level. When
+ * the nodes table changes, only the rows of the changed subtrees are replaced with
+ * update().
+ *
+ * @author michiel
+ */
+public final class LineageClosureTable {
+
+    /**
+     * the name of the table
+     */
+    public static final String TABLE = "lineage_closure";
+    /**
+     * ancestors query for SqlLineageBatchFetcher: all nodes of the lineages of the {ids}
+     */
+    static final String LINEAGES_QUERY = "select nodes.tax_id, nodes.parent_tax_id, nodes.rank, nodes.scientific_name"
+            + " from " + TABLE + " join nodes on nodes.tax_id = " + TABLE + ".ancestor_tax_id"
+            + " where " + TABLE + ".tax_id in ({ids})";
+    /*guards against cycles in corrupted data*/
+    private static final int MAX_DEPTH = 1000;
+
+    private LineageClosureTable() {
+    }
+
+    /**
+     * (re)creates the closure table from the nodes table, with the columns tax_id and
+     * parent_tax_id; the root is its own parent. An existing closure table is dropped.
+     * The primary key (tax_id, depth) and the index on ancestor_tax_id are created
+     * after the rows are inserted
+     *
+     * @param connection
+     * @return the number of rows
+     * @throws SQLException
+     */
+    public static int create(Connection connection) throws SQLException {
+        Statement s = connection.createStatement();
+        try {
+            if (exists(connection)) {
+                s.execute("drop table " + TABLE);
+            }
+            s.execute("create table " + TABLE + " ("
+                    + " tax_id int NOT NULL,"
+                    + " ancestor_tax_id int NOT NULL,"
+                    + " depth int NOT NULL)");
+            int rows = s.executeUpdate("insert into " + TABLE + " (tax_id, ancestor_tax_id, depth)"
+                    + " select tax_id, tax_id, 0 from nodes");
+            rows += insertLevels(connection);
+            s.execute("alter table " + TABLE + " add constraint " + TABLE + "_pk primary key (tax_id, depth)");
+            s.execute("create index " + TABLE + "_ancestor on " + TABLE + " (ancestor_tax_id)");
+            return rows;
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * replaces the rows of the subtrees under the given tax_ids, after the nodes
+     * table has been updated: the rows of the given tax_ids and of all nodes that
+     * had one of them as ancestor are deleted, and those nodes that are still
+     * present get the rows of their new lineage. Used for the inserted, re-parented
+     * and removed nodes of a TaxonomyStoreDelta; the rows of all other nodes are
+     * left untouched. Runs in one transaction
+     *
+     * @param connection
+     * @param subtreeTaxIDs the tax_ids whose subtrees changed
+     * @param nodes the nodes as they are in the updated nodes table
+     * @return the number of rows deleted and inserted, as reported by the driver
+     * @throws SQLException when the table can not be updated; the transaction is rolled back
+     */
+    public static int update(Connection connection, int[] subtreeTaxIDs, TaxonomyStore nodes) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement select = null;
+        PreparedStatement delete = null;
+        PreparedStatement insert = null;
+        try {
+            /*the subtrees as recorded in the closure table before the update*/
+            int[] affected = Arrays.copyOf(subtreeTaxIDs, subtreeTaxIDs.length);
+            int size = affected.length;
+            select = connection.prepareStatement("select tax_id from " + TABLE + " where ancestor_tax_id = ?");
+            for (int taxID : subtreeTaxIDs) {
+                select.setInt(1, taxID);
+                ResultSet rs = select.executeQuery();
+                while (rs.next()) {
+                    if (size == affected.length) {
+                        affected = Arrays.copyOf(affected, Math.max(16, size * 2));
+                    }
+                    affected[size++] = rs.getInt(1);
+                }
+                rs.close();
+            }
+            Arrays.sort(affected, 0, size);
+
+            int rows = 0;
+            delete = connection.prepareStatement("delete from " + TABLE + " where tax_id = ?");
+            insert = connection.prepareStatement("insert into " + TABLE + " (tax_id, ancestor_tax_id, depth) values (?, ?, ?)");
+            int previous = -1;
+            for (int i = 0; i < size; i++) {
+                int taxID = affected[i];
+                if (i > 0 && taxID == previous) {
+                    continue;
+                }
+                previous = taxID;
+                delete.setInt(1, taxID);
+                delete.addBatch();
+                int depth = 0;
+                for (int index = nodes.indexOf(taxID); index != TaxonomyStore.NO_INDEX; index = nodes.getParentIndex(index)) {
+                    if (depth == MAX_DEPTH) {
+                        throw new SQLException("lineage deeper than " + MAX_DEPTH + " nodes; the nodes contain a cycle");
+                    }
+                    insert.setInt(1, taxID);
+                    insert.setInt(2, nodes.getTaxID(index));
+                    insert.setInt(3, depth++);
+                    insert.addBatch();
+                }
+            }
+            rows += sum(delete.executeBatch());
+            rows += sum(insert.executeBatch());
+            connection.commit();
+            return rows;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            if (select != null) {
+                select.close();
+            }
+            if (delete != null) {
+                delete.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /*update counts; drivers may report SUCCESS_NO_INFO for batched statements*/
+    private static int sum(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count > 0 ? count : 0;
+        }
+        return total;
+    }
+
+    /*adds the parents of the ancestors at the previous depth until the root is reached everywhere*/
+    private static int insertLevels(Connection connection) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement("insert into " + TABLE + " (tax_id, ancestor_tax_id, depth)"
+                + " select " + TABLE + ".tax_id, nodes.parent_tax_id, " + TABLE + ".depth + 1"
+                + " from " + TABLE + " join nodes on nodes.tax_id = " + TABLE + ".ancestor_tax_id"
+                + " where " + TABLE + ".depth = ? and nodes.parent_tax_id <> nodes.tax_id");
+        try {
+            int total = 0;
+            for (int depth = 0; depth < MAX_DEPTH; depth++) {
+                ps.setInt(1, depth);
+                int rows = ps.executeUpdate();
+                if (rows == 0) {
+                    return total;
+                }
+                total += rows;
+            }
+            throw new SQLException("lineage deeper than " + MAX_DEPTH + " nodes; the nodes table contains a cycle");
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * @param connection
+     * @return the database contains the closure table
+     * @throws SQLException
+     */
+    public static boolean exists(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        /*Derby stores unquoted names in upper case, MySQL as given*/
+        return hasTable(metaData, TABLE.toUpperCase()) || hasTable(metaData, TABLE);
+    }
+
+    private static boolean hasTable(DatabaseMetaData metaData, String name) throws SQLException {
+        ResultSet rs = metaData.getTables(null, null, name, new String[]{"TABLE"});
+        try {
+            return rs.next();
+        } finally {
+            rs.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.util.List;
+
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.Lineage;
+import nl.bioinf.noback.taxonomy.model.TaxNode;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * The line format in which TaxonomyDaoServer sends lineages to TaxonomyDaoHttp:
+ * one lineage per line, its nodes leaf first and separated by tabs, each node as
+ * tax_id|parent tax_id|rank|scientific name. An empty line stands for a null
+ * lineage. The name is the last field, so it may itself contain '|'.
+ *
+ * @author michiel
+ */
+final class LineageTextCodec {
+
+    private static final char NODE_SEPARATOR = '\t';
+    private static final char FIELD_SEPARATOR = '|';
+
+    private LineageTextCodec() {
+    }
+
+    /**
+     * appends the encoded lineage, without line end
+     *
+     * @param lineage may be null
+     * @param sb
+     */
+    static void encode(Lineage lineage, StringBuilder sb) {
+        if (lineage == null) {
+            return;
+        }
+        List<TaxNode> nodes = lineage.getListFromLeaf();
+        for (int i = 0; i < nodes.size(); i++) {
+            TaxNode node = nodes.get(i);
+            if (i > 0) {
+                sb.append(NODE_SEPARATOR);
+            }
+            sb.append(node.getTaxID()).append(FIELD_SEPARATOR);
+            sb.append(node.getParentTaxID()).append(FIELD_SEPARATOR);
+            if (node.getRank() != null) {
+                sb.append(node.getRank().toString());
+            }
+            sb.append(FIELD_SEPARATOR);
+            if (node.getScientificName() != null) {
+                sb.append(node.getScientificName());
+            }
+        }
+    }
+
+    /**
+     * decodes one line
+     *
+     * @param line
+     * @return the lineage, or null for an empty line
+     * @throws CorruptedLineageException when the nodes do not form a lineage
+     * @throws IllegalArgumentException when the line does not have the correct format
+     */
+    static Lineage decode(String line) throws CorruptedLineageException {
+        if (line.length() == 0) {
+            return null;
+        }
+        String[] encodedNodes = line.split(String.valueOf(NODE_SEPARATOR));
+        TaxNode[] nodes = new TaxNode[encodedNodes.length];
+        TaxNode child = null;
+        for (int n = 0; n < encodedNodes.length; n++) {
+            String[] fields = encodedNodes[n].split("\\" + FIELD_SEPARATOR, 4);
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("encoded node does not have correct format: " + encodedNodes[n]);
+            }
+            TaxNode tn = new TaxNode(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+            if (fields[2].length() > 0) {
+                tn.setRank(TaxonomyRank.getTaxonomyRank(fields[2]));
+            }
+            tn.setScientificName(fields[3]);
+            if (child != null) {
+                child.setParentNode(tn);
+            }
+            nodes[n] = tn;
+            child = tn;
+        }
+        return new Lineage(nodes);
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * TaxonomyStore that works directly on a memory-mapped binary TaxDB snapshot. Opening
+ * a snapshot only maps the file; no parsing or linking is needed, and processes on
+ * the same host share the mapped pages through the page cache. Snapshots are created
+ * with write(TaxonomyStore, File) from any other store, e.g. an ArrayTaxonomyStore
+ * loaded from the simple nodes file or from the NCBI taxdmp archive.
+ * <p>
+ * Snapshot layout (big-endian):
+ * <pre>
+ * header       magic "TAXDBSNP", version, node count n, max tax_id m, arena length a,
+ *              ancestor column count k
+ * taxIDs       n ints
+ * parents      n ints (parent index; -1 for the root)
+ * nameOffsets  n+1 ints into the names arena
+ * taxIdIndex   m+1 ints (index for tax_id; -1 when absent)
+ * columnRanks  k ints (TaxonomyRank ordinal of each ancestor column)
+ * ancestors    k*n ints (per column the index of the ancestor at its rank; -1 when absent)
+ * ranks        n bytes (TaxonomyRank ordinal; -1 when unknown)
+ * names        a bytes UTF-8
+ * </pre>
+ * The ancestor columns are those of ArrayTaxonomyStore, so rank lookups on a mapped
+ * snapshot are single reads as well.
+ *
+ * @author michiel
+ */
+public final class MappedTaxonomyStore implements TaxonomyStore {
+
+    /**
+     * the magic bytes every snapshot file starts with
+     */
+    public static final byte[] MAGIC = "TAXDBSNP".getBytes(Charset.forName("US-ASCII"));
+    /**
+     * the current snapshot format version
+     */
+    public static final int VERSION = 2;
+    private static final int HEADER_SIZE = 28;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int maxTaxID;
+    private final int taxIDsStart;
+    private final int parentsStart;
+    private final int nameOffsetsStart;
+    private final int indexStart;
+    private final int ancestorsStart;
+    /*ancestor column of each rank by ordinal; -1 for ranks without column*/
+    private final int[] columnOfRank;
+    private final int ranksStart;
+    private final int namesStart;
+
+    private MappedTaxonomyStore(File file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        byte[] magic = new byte[MAGIC.length];
+        read(buffer, 0, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a TaxDB snapshot: " + file.getName());
+        }
+        int version = buffer.getInt(8);
+        if (version != VERSION) {
+            throw new IOException("unsupported TaxDB snapshot version " + version + " in " + file.getName()
+                    + "; expected " + VERSION);
+        }
+        this.size = buffer.getInt(12);
+        this.maxTaxID = buffer.getInt(16);
+        int arenaLength = buffer.getInt(20);
+        int columnCount = buffer.getInt(24);
+
+        this.taxIDsStart = HEADER_SIZE;
+        this.parentsStart = taxIDsStart + 4 * size;
+        this.nameOffsetsStart = parentsStart + 4 * size;
+        this.indexStart = nameOffsetsStart + 4 * (size + 1);
+        int columnRanksStart = indexStart + 4 * (maxTaxID + 1);
+        this.ancestorsStart = columnRanksStart + 4 * columnCount;
+        this.ranksStart = ancestorsStart + 4 * columnCount * size;
+        this.namesStart = ranksStart + size;
+        if ((long) namesStart + arenaLength != buffer.capacity()) {
+            throw new IOException("truncated or corrupted TaxDB snapshot: " + file.getName());
+        }
+        this.columnOfRank = new int[TaxonomyRank.values().length];
+        Arrays.fill(columnOfRank, -1);
+        for (int c = 0; c < columnCount; c++) {
+            int ordinal = buffer.getInt(columnRanksStart + 4 * c);
+            if (ordinal < 0 || ordinal >= columnOfRank.length) {
+                throw new IOException("unknown rank in the ancestor columns of TaxDB snapshot " + file.getName());
+            }
+            columnOfRank[ordinal] = c;
+        }
+    }
+
+    /**
+     * maps the given snapshot file
+     *
+     * @param snapshotFile
+     * @return the store
+     * @throws IOException when the file can not be read or is not a valid snapshot
+     */
+    public static MappedTaxonomyStore open(File snapshotFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("TaxDB snapshot too large to map: " + snapshotFile.getName());
+            }
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("not a TaxDB snapshot: " + snapshotFile.getName());
+            }
+            /*the mapping stays valid after the channel is closed*/
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedTaxonomyStore(snapshotFile, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * checks whether the file starts with the snapshot magic bytes
+     *
+     * @param file
+     * @return is snapshot
+     * @throws IOException
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            int read = 0;
+            while (read < magic.length) {
+                int r = fis.read(magic, read, magic.length - read);
+                if (r < 0) {
+                    return false;
+                }
+                read += r;
+            }
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * writes the given store as snapshot. The snapshot is first written to a
+     * temporary file and then renamed, so readers never map a partial snapshot.
+     *
+     * @param store
+     * @param snapshotFile
+     * @throws IOException
+     */
+    public static void write(TaxonomyStore store, File snapshotFile) throws IOException {
+        int size = store.size();
+        int maxTaxID = 0;
+        TaxonomyRank[] columnRanks = ArrayTaxonomyStore.getProjectedRanks();
+        int[] nameOffsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            maxTaxID = Math.max(maxTaxID, store.getTaxID(i));
+            nameOffsets[i + 1] = nameOffsets[i] + store.getScientificName(i).getBytes(ArrayTaxonomyStore.UTF8).length;
+        }
+
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(maxTaxID);
+            out.writeInt(nameOffsets[size]);
+            out.writeInt(columnRanks.length);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(store.getTaxID(i));
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeInt(store.getParentIndex(i));
+            }
+            for (int i = 0; i <= size; i++) {
+                out.writeInt(nameOffsets[i]);
+            }
+            for (int taxID = 0; taxID <= maxTaxID; taxID++) {
+                out.writeInt(store.indexOf(taxID));
+            }
+            for (TaxonomyRank rank : columnRanks) {
+                out.writeInt(rank.ordinal());
+            }
+            for (TaxonomyRank rank : columnRanks) {
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(store.getAncestorIndex(i, rank));
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeByte(ArrayTaxonomyStore.toRankOrdinal(store.getRank(i)));
+            }
+            for (int i = 0; i < size; i++) {
+                out.write(store.getScientificName(i).getBytes(ArrayTaxonomyStore.UTF8));
+            }
+        } finally {
+            out.close();
+        }
+        if (snapshotFile.exists() && !snapshotFile.delete()) {
+            throw new IOException("could not replace existing snapshot " + snapshotFile.getName());
+        }
+        if (!tmpFile.renameTo(snapshotFile)) {
+            throw new IOException("could not rename " + tmpFile.getName() + " to " + snapshotFile.getName());
+        }
+    }
+
+    /**
+     * @return the mapped snapshot file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /*absolute bulk read; the shared buffer position is left untouched*/
+    private static void read(ByteBuffer buffer, int position, byte[] destination) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(destination);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int indexOf(int taxID) {
+        if (taxID < 0 || taxID > maxTaxID) {
+            return NO_INDEX;
+        }
+        return buffer.getInt(indexStart + 4 * taxID);
+    }
+
+    @Override
+    public int indexOfName(String scientificName) {
+        byte[] query = scientificName.getBytes(ArrayTaxonomyStore.UTF8);
+        for (int i = 0; i < size; i++) {
+            int start = buffer.getInt(nameOffsetsStart + 4 * i);
+            int end = buffer.getInt(nameOffsetsStart + 4 * (i + 1));
+            if (end - start != query.length) {
+                continue;
+            }
+            int j = 0;
+            while (j < query.length && buffer.get(namesStart + start + j) == query[j]) {
+                j++;
+            }
+            if (j == query.length) {
+                return i;
+            }
+        }
+        return NO_INDEX;
+    }
+
+    @Override
+    public int getTaxID(int index) {
+        return buffer.getInt(taxIDsStart + 4 * index);
+    }
+
+    @Override
+    public int getParentIndex(int index) {
+        return buffer.getInt(parentsStart + 4 * index);
+    }
+
+    @Override
+    public TaxonomyRank getRank(int index) {
+        byte ordinal = buffer.get(ranksStart + index);
+        return ordinal == ArrayTaxonomyStore.NO_RANK_ORDINAL ? null : TaxonomyRank.values()[ordinal];
+    }
+
+    @Override
+    public int getAncestorIndex(int index, TaxonomyRank rank) {
+        int column = rank == null ? -1 : columnOfRank[rank.ordinal()];
+        if (column < 0) {
+            throw new IllegalArgumentException("rank is not part of the short lineage: " + rank);
+        }
+        return buffer.getInt(ancestorsStart + 4 * (column * size + index));
+    }
+
+    @Override
+    public String getScientificName(int index) {
+        int start = buffer.getInt(nameOffsetsStart + 4 * index);
+        int end = buffer.getInt(nameOffsetsStart + 4 * (index + 1));
+        byte[] bytes = new byte[end - start];
+        read(buffer, namesStart + start, bytes);
+        return new String(bytes, ArrayTaxonomyStore.UTF8);
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk import of rows into a MySQL table with LOAD DATA LOCAL INFILE, instead of one
+ * INSERT per row. Items are collected in chunks; each chunk is formatted into a
+ * tab-separated file on one of a pool of threads, and the files are imported on the
+ * calling thread, so the connection is only used by one thread. During the load the
+ * non-unique indexes of the table are disabled (MyISAM) and unique and foreign key
+ * checks are switched off (InnoDB); they are restored by finish() or abort().
+ * <p>
+ * The connection should allow local infile, e.g. with allowLoadLocalInfile=true in
+ * the URL of MySQL Connector/J 8. Instances are not thread-safe.
+ *
+ * @author michiel
+ * @param <T> the type of the items, e.g. a line of an NCBI dump file
+ */
+public final class MysqlBulkLoader<T> {
+
+    /**
+     * converts an item into a row of the table
+     *
+     * @param <T> the type of the items
+     */
+    public interface RowFormatter<T> {
+        /**
+         * appends the fields of the row for the item, with appendFields()
+         *
+         * @param item
+         * @param row empty
+         * @return false when the item gives no row
+         * @throws Exception when the item can not be converted
+         */
+        boolean format(T item, StringBuilder row) throws Exception;
+    }
+
+    /**
+     * the default number of items per chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 200000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Connection connection;
+    private final String table;
+    private final String columns;
+    private final RowFormatter<T> formatter;
+    private final int chunkSize;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final CompletionService<File> completionService;
+    private List<T> chunk;
+    private int pending;
+    private long rows;
+    private boolean finished;
+
+    /**
+     * prepares the table for a bulk load
+     *
+     * @param connection
+     * @param table
+     * @param columns the columns in the order of the formatted fields, e.g. "(tax_id, name)"
+     * @param formatter
+     * @param threads the number of threads formatting chunks
+     * @param chunkSize the number of items per chunk
+     * @throws SQLException when the keys and checks can not be disabled
+     */
+    public MysqlBulkLoader(Connection connection, String table, String columns, RowFormatter<T> formatter,
+            int threads, int chunkSize) throws SQLException {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("threads and chunk size should be at least 1: " + threads + ", " + chunkSize);
+        }
+        this.connection = connection;
+        this.table = table;
+        this.columns = columns;
+        this.formatter = formatter;
+        this.chunkSize = chunkSize;
+        /*at most two chunks per thread in memory or on disk*/
+        this.maxPending = 2 * threads;
+        this.chunk = new ArrayList<T>(chunkSize);
+        execute("SET foreign_key_checks = 0", "SET unique_checks = 0", "ALTER TABLE " + table + " DISABLE KEYS");
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.completionService = new ExecutorCompletionService<File>(executor);
+    }
+
+    /**
+     * adds an item; full chunks are formatted in the background and imported as
+     * they become ready
+     *
+     * @param item
+     * @throws SQLException when a chunk can not be imported
+     * @throws IOException when a chunk can not be formatted
+     */
+    public void add(T item) throws SQLException, IOException {
+        chunk.add(item);
+        if (chunk.size() == chunkSize) {
+            submit();
+        }
+    }
+
+    /**
+     * imports the remaining items and restores the keys and checks
+     *
+     * @return the number of rows imported
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long finish() throws SQLException, IOException {
+        try {
+            if (!chunk.isEmpty()) {
+                submit();
+            }
+            while (pending > 0) {
+                importNext();
+            }
+        } finally {
+            close();
+        }
+        return rows;
+    }
+
+    /**
+     * stops the load, e.g. after a failure elsewhere; rows already imported remain.
+     * The keys and checks are restored
+     *
+     * @throws SQLException
+     */
+    public void abort() throws SQLException {
+        executor.shutdownNow();
+        close();
+    }
+
+    /**
+     * @return the number of rows imported so far
+     */
+    public long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * appends tab-separated fields in the format LOAD DATA expects by default: null
+     * as \N, and backslash, tab and newline escaped
+     *
+     * @param row
+     * @param values
+     */
+    public static void appendFields(StringBuilder row, Object... values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                row.append('\t');
+            }
+            Object value = values[i];
+            if (value == null) {
+                row.append("\\N");
+            } else if (value instanceof Number) {
+                row.append(value);
+            } else {
+                String s = value.toString();
+                for (int c = 0; c < s.length(); c++) {
+                    char ch = s.charAt(c);
+                    switch (ch) {
+                        case '\\':
+                            row.append("\\\\");
+                            break;
+                        case '\t':
+                            row.append("\\t");
+                            break;
+                        case '\n':
+                            row.append("\\n");
+                            break;
+                        case '\r':
+                            row.append("\\r");
+                            break;
+                        default:
+                            row.append(ch);
+                    }
+                }
+            }
+        }
+    }
+
+    private void submit() throws SQLException, IOException {
+        final List<T> items = chunk;
+        chunk = new ArrayList<T>(chunkSize);
+        completionService.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return writeChunk(items);
+            }
+        });
+        pending++;
+        if (pending >= maxPending) {
+            importNext();
+        }
+    }
+
+    private File writeChunk(List<T> items) throws Exception {
+        File file = File.createTempFile("bulk_" + table + "_", ".tsv");
+        file.deleteOnExit();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 1 << 16);
+        try {
+            StringBuilder row = new StringBuilder(256);
+            for (T item : items) {
+                row.setLength(0);
+                if (formatter.format(item, row)) {
+                    writer.append(row).append('\n');
+                }
+            }
+        } catch (Exception e) {
+            writer.close();
+            file.delete();
+            throw e;
+        }
+        writer.close();
+        return file;
+    }
+
+    /*waits for the next formatted chunk and imports it*/
+    private void importNext() throws SQLException, IOException {
+        File file;
+        try {
+            Future<File> future = completionService.take();
+            pending--;
+            file = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while formatting rows for table " + table);
+        } catch (ExecutionException e) {
+            throw new IOException("formatting rows for table " + table + " failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        Statement s = connection.createStatement();
+        try {
+            rows += s.executeUpdate("LOAD DATA LOCAL INFILE '" + file.getAbsolutePath().replace("\\", "\\\\").replace("'", "\\'")
+                    + "' INTO TABLE " + table + " CHARACTER SET utf8 " + columns);
+        } finally {
+            s.close();
+            file.delete();
+        }
+    }
+
+    private void close() throws SQLException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        executor.shutdown();
+        execute("ALTER TABLE " + table + " ENABLE KEYS", "SET unique_checks = 1", "SET foreign_key_checks = 1");
+    }
+
+    private void execute(String... statements) throws SQLException {
+        Statement s = connection.createStatement();
+        try {
+            for (String statement : statements) {
+                s.execute(statement);
+            }
+        } finally {
+            s.close();
+        }
+    }
+}
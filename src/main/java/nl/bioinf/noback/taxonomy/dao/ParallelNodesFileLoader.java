@@ -0,0 +1,383 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import nl.bioinf.noback.taxonomy.io.ParseException;
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * Loads the simple tab-separated nodes file (tax_id, parent tax_id, rank, name)
+ * into an ArrayTaxonomyStore using all cores. The file is split into line-aligned
+ * byte ranges that are parsed concurrently on a fork/join pool, directly from bytes
+ * into per-chunk primitive arrays and name arenas; the names are never decoded. The
+ * chunks are then concatenated and the parent links resolved in parallel.
+ *
+ * @author michiel
+ */
+public final class ParallelNodesFileLoader {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /*chunks per worker thread, to even out the load*/
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int LINK_THRESHOLD = 1 << 16;
+
+    private ParallelNodesFileLoader() {
+    }
+
+    /**
+     * loads the nodes file on the common fork/join pool
+     *
+     * @param nodesFile
+     * @return the store
+     * @throws IOException
+     * @throws ParseException when a line does not have the correct format
+     * @throws CorruptedLineageException when a node refers to an absent parent
+     */
+    public static ArrayTaxonomyStore load(File nodesFile) throws IOException, ParseException, CorruptedLineageException {
+        return load(nodesFile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * loads the nodes file on the given pool
+     *
+     * @param nodesFile
+     * @param pool
+     * @return the store
+     * @throws IOException
+     * @throws ParseException when a line does not have the correct format
+     * @throws CorruptedLineageException when a node refers to an absent parent
+     */
+    public static ArrayTaxonomyStore load(File nodesFile, ForkJoinPool pool) throws IOException, ParseException, CorruptedLineageException {
+        if ((!nodesFile.exists()) || (!nodesFile.canRead())) {
+            throw new IOException("can not read from input file " + nodesFile.getName());
+        }
+        RandomAccessFile raf = new RandomAccessFile(nodesFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long[] boundaries = chunkBoundaries(channel, pool.getParallelism() * CHUNKS_PER_THREAD);
+
+            /*parse*/
+            List<ChunkParser> parsers = new ArrayList<ChunkParser>();
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                parsers.add(new ChunkParser(nodesFile.getName(), channel, boundaries[i], boundaries[i + 1]));
+            }
+            for (ChunkParser parser : parsers) {
+                pool.execute(parser);
+            }
+            List<Chunk> chunks = new ArrayList<Chunk>(parsers.size());
+            for (ChunkParser parser : parsers) {
+                chunks.add(parser.join());
+            }
+            for (Chunk chunk : chunks) {
+                if (chunk.ioException != null) {
+                    throw new IOException("file processing failed: " + chunk.ioException.getMessage());
+                }
+                if (chunk.parseException != null) {
+                    throw chunk.parseException;
+                }
+            }
+            return merge(chunks, pool);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*splits the file in ranges that start at the beginning of a line*/
+    private static long[] chunkBoundaries(FileChannel channel, int chunkCount) throws IOException {
+        long length = channel.size();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, length / Math.max(1, chunkCount) + 1);
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        ByteBuffer window = ByteBuffer.allocate(4096);
+        long position = chunkSize;
+        while (position < length) {
+            /*move forward to just after the next newline*/
+            long boundary = -1;
+            long scan = position;
+            while (boundary < 0 && scan < length) {
+                window.clear();
+                int read = channel.read(window, scan);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (window.get(i) == '\n') {
+                        boundary = scan + i + 1;
+                        break;
+                    }
+                }
+                scan += read;
+            }
+            if (boundary < 0 || boundary >= length) {
+                break;
+            }
+            boundaries.add(boundary);
+            position = boundary + chunkSize;
+        }
+        boundaries.add(length);
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /*concatenates the chunks and resolves the parent links*/
+    private static ArrayTaxonomyStore merge(List<Chunk> chunks, ForkJoinPool pool) throws CorruptedLineageException {
+        int size = 0;
+        int arenaSize = 0;
+        int maxTaxID = 0;
+        for (Chunk chunk : chunks) {
+            size += chunk.size;
+            arenaSize += chunk.arenaSize;
+            maxTaxID = Math.max(maxTaxID, chunk.maxTaxID);
+        }
+        int[] taxIDs = new int[size];
+        int[] parentTaxIDs = new int[size];
+        byte[] ranks = new byte[size];
+        int[] nameOffsets = new int[size + 1];
+        byte[] names = new byte[arenaSize];
+        int position = 0;
+        int arenaPosition = 0;
+        for (Chunk chunk : chunks) {
+            System.arraycopy(chunk.taxIDs, 0, taxIDs, position, chunk.size);
+            System.arraycopy(chunk.parentTaxIDs, 0, parentTaxIDs, position, chunk.size);
+            System.arraycopy(chunk.ranks, 0, ranks, position, chunk.size);
+            System.arraycopy(chunk.arena, 0, names, arenaPosition, chunk.arenaSize);
+            for (int i = 0; i < chunk.size; i++) {
+                nameOffsets[position + i] = arenaPosition + chunk.nameOffsets[i];
+            }
+            position += chunk.size;
+            arenaPosition += chunk.arenaSize;
+        }
+        nameOffsets[size] = arenaSize;
+
+        int[] index = new int[maxTaxID + 1];
+        Arrays.fill(index, TaxonomyStore.NO_INDEX);
+        for (int i = 0; i < size; i++) {
+            index[taxIDs[i]] = i;
+        }
+        int[] parentIndices = new int[size];
+        LinkTask linker = new LinkTask(taxIDs, parentTaxIDs, index, parentIndices, 0, size);
+        pool.invoke(linker);
+        if (linker.unlinked >= 0) {
+            throw new CorruptedLineageException("TaxNode without parent: tax_id=" + taxIDs[linker.unlinked]
+                    + "; parent_tax_id=" + parentTaxIDs[linker.unlinked]);
+        }
+        return new ArrayTaxonomyStore(taxIDs, parentIndices, ranks, nameOffsets, names, index,
+                ArrayTaxonomyStore.createRankAncestors(parentIndices, ranks));
+    }
+
+    /**
+     * the parsed nodes of a single byte range
+     */
+    private static final class Chunk {
+        private int size;
+        private int maxTaxID;
+        private int[] taxIDs = new int[1024];
+        private int[] parentTaxIDs = new int[1024];
+        private byte[] ranks = new byte[1024];
+        private int[] nameOffsets = new int[1024];
+        private byte[] arena;
+        private int arenaSize;
+        private IOException ioException;
+        private ParseException parseException;
+
+        void add(int taxID, int parentTaxID, byte rank, byte[] line, int nameStart, int nameEnd) {
+            if (size == taxIDs.length) {
+                int capacity = size * 2;
+                taxIDs = Arrays.copyOf(taxIDs, capacity);
+                parentTaxIDs = Arrays.copyOf(parentTaxIDs, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            }
+            taxIDs[size] = taxID;
+            parentTaxIDs[size] = parentTaxID;
+            ranks[size] = rank;
+            nameOffsets[size] = arenaSize;
+            int length = nameEnd - nameStart;
+            System.arraycopy(line, nameStart, arena, arenaSize, length);
+            arenaSize += length;
+            maxTaxID = Math.max(maxTaxID, taxID);
+            size++;
+        }
+    }
+
+    /**
+     * parses one line-aligned byte range of the nodes file
+     */
+    private static final class ChunkParser extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+        private final String fileName;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkParser(String fileName, FileChannel channel, long start, long end) {
+            this.fileName = fileName;
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Chunk compute() {
+            Chunk chunk = new Chunk();
+            byte[] bytes = new byte[(int) (end - start)];
+            /*the names take less room than the lines they are in*/
+            chunk.arena = new byte[bytes.length];
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    /*positional reads are safe for concurrent use of the channel*/
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of file " + fileName);
+                    }
+                }
+                parse(bytes, chunk);
+            } catch (IOException e) {
+                chunk.ioException = e;
+            } catch (ParseException e) {
+                chunk.parseException = e;
+            }
+            return chunk;
+        }
+
+        private void parse(byte[] bytes, Chunk chunk) throws ParseException {
+            int lineStart = 0;
+            while (lineStart < bytes.length) {
+                int lineEnd = lineStart;
+                while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int contentEnd = lineEnd;
+                if (contentEnd > lineStart && bytes[contentEnd - 1] == '\r') {
+                    contentEnd--;
+                }
+                if (contentEnd > lineStart) {
+                    parseLine(bytes, lineStart, contentEnd, chunk);
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+
+        /*tax_id \t parent tax_id \t rank \t name*/
+        private void parseLine(byte[] bytes, int from, int to, Chunk chunk) throws ParseException {
+            int tab1 = indexOfTab(bytes, from, to);
+            int tab2 = tab1 < 0 ? -1 : indexOfTab(bytes, tab1 + 1, to);
+            int tab3 = tab2 < 0 ? -1 : indexOfTab(bytes, tab2 + 1, to);
+            if (tab3 < 0) {
+                throw formatException(bytes, from, to);
+            }
+            int nameEnd = indexOfTab(bytes, tab3 + 1, to);
+            if (nameEnd < 0) {
+                nameEnd = to;
+            }
+            int taxID = parseInt(bytes, from, tab1);
+            int parentTaxID = parseInt(bytes, tab1 + 1, tab2);
+            if (taxID < 0 || parentTaxID < 0) {
+                throw formatException(bytes, from, to);
+            }
+            TaxonomyRank rank = TaxonomyRank.getTaxonomyRank(new String(bytes, tab2 + 1, tab3 - tab2 - 1, ASCII));
+            chunk.add(taxID, parentTaxID, ArrayTaxonomyStore.toRankOrdinal(rank), bytes, tab3 + 1, nameEnd);
+        }
+
+        private ParseException formatException(byte[] bytes, int from, int to) {
+            return new ParseException("error parsing file " + fileName + ": line does not have correct format: "
+                    + new String(bytes, from, to - from, ArrayTaxonomyStore.UTF8) + " at byte offset " + (start + from));
+        }
+
+        private static int indexOfTab(byte[] bytes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == '\t') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /*returns -1 for anything but a non-empty, non-overflowing decimal number*/
+        private static int parseInt(byte[] bytes, int from, int to) {
+            if (from >= to || to - from > 10) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value > Integer.MAX_VALUE ? -1 : (int) value;
+        }
+    }
+
+    /**
+     * resolves the parent indices of a range of nodes, splitting it in parallel subtasks
+     */
+    private static final class LinkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] taxIDs;
+        private final int[] parentTaxIDs;
+        private final int[] index;
+        private final int[] parentIndices;
+        private final int from;
+        private final int to;
+        /*the first node without parent, or -1*/
+        private int unlinked = -1;
+
+        LinkTask(int[] taxIDs, int[] parentTaxIDs, int[] index, int[] parentIndices, int from, int to) {
+            this.taxIDs = taxIDs;
+            this.parentTaxIDs = parentTaxIDs;
+            this.index = index;
+            this.parentIndices = parentIndices;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LINK_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                LinkTask left = new LinkTask(taxIDs, parentTaxIDs, index, parentIndices, from, mid);
+                LinkTask right = new LinkTask(taxIDs, parentTaxIDs, index, parentIndices, mid, to);
+                ForkJoinTask.invokeAll(left, right);
+                unlinked = left.unlinked >= 0 ? left.unlinked : right.unlinked;
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                /*only tax_id 1 (the root) may be without parent*/
+                if (taxIDs[i] == 1) {
+                    parentIndices[i] = TaxonomyStore.NO_INDEX;
+                    continue;
+                }
+                int parentTaxID = parentTaxIDs[i];
+                if (parentTaxID >= index.length || index[parentTaxID] == TaxonomyStore.NO_INDEX) {
+                    if (unlinked < 0) {
+                        unlinked = i;
+                    }
+                    continue;
+                }
+                parentIndices[i] = index[parentTaxID];
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
+import nl.bioinf.noback.taxonomy.io.ParseException;
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * Loads the part of the simple tab-separated nodes file (tax_id, parent tax_id,
+ * rank, name) that is needed for the lineages of a given set of taxa: the taxa
+ * themselves and all their ancestors. The file is read twice; the first pass only
+ * parses the parent links to determine the ancestor closure, the second pass adds
+ * the ranks and names of the nodes in the closure to the store. Nodes outside the
+ * closure are never decoded or stored.
+ *
+ * @author michiel
+ */
+public final class PartialNodesFileLoader {
+
+    private static final int NO_PARENT = -1;
+
+    private PartialNodesFileLoader() {
+    }
+
+    /**
+     * loads the ancestor closure of the given taxa. Tax_ids that are absent from
+     * the nodes file are ignored.
+     *
+     * @param nodesFile
+     * @param taxIDs
+     * @return the store
+     * @throws IOException
+     * @throws ParseException when a line does not have the correct format
+     * @throws CorruptedLineageException when a node refers to an absent parent
+     */
+    public static ArrayTaxonomyStore load(File nodesFile, int[] taxIDs) throws IOException, ParseException, CorruptedLineageException {
+        if ((!nodesFile.exists()) || (!nodesFile.canRead())) {
+            throw new IOException("can not read from input file " + nodesFile.getName());
+        }
+
+        /*pass 1: the parent of every tax_id*/
+        int[] parents = new int[1 << 16];
+        Arrays.fill(parents, NO_PARENT);
+        FieldTokenizer ft = open(nodesFile);
+        try {
+            while (ft.nextLine()) {
+                if (ft.isEmptyLine()) {
+                    continue;
+                }
+                int taxID = readInt(ft, 0, nodesFile);
+                int parentTaxID = readInt(ft, 1, nodesFile);
+                if (taxID >= parents.length) {
+                    int length = Math.max(taxID + 1, parents.length + (parents.length >> 1));
+                    int oldLength = parents.length;
+                    parents = Arrays.copyOf(parents, length);
+                    Arrays.fill(parents, oldLength, length, NO_PARENT);
+                }
+                parents[taxID] = parentTaxID;
+            }
+        } finally {
+            ft.close();
+        }
+
+        /*the ancestor closure; each walk stops at the first node already included*/
+        boolean[] included = new boolean[parents.length];
+        int closureSize = 0;
+        for (int taxID : taxIDs) {
+            while (taxID >= 0 && taxID < parents.length && parents[taxID] != NO_PARENT && !included[taxID]) {
+                included[taxID] = true;
+                closureSize++;
+                /*the root is its own parent*/
+                taxID = taxID == 1 ? NO_PARENT : parents[taxID];
+            }
+        }
+        parents = null;
+
+        /*pass 2: the nodes of the closure*/
+        ArrayTaxonomyStore.Builder builder = new ArrayTaxonomyStore.Builder(closureSize);
+        ft = open(nodesFile);
+        try {
+            while (ft.nextLine()) {
+                if (ft.isEmptyLine()) {
+                    continue;
+                }
+                int taxID = readInt(ft, 0, nodesFile);
+                if (taxID >= included.length || !included[taxID]) {
+                    continue;
+                }
+                if (ft.getFieldCount() < 4) {
+                    throw formatException(ft, nodesFile);
+                }
+                builder.add(taxID, readInt(ft, 1, nodesFile), TaxonomyRank.getTaxonomyRank(ft.getString(2)), ft.getString(3));
+            }
+        } finally {
+            ft.close();
+        }
+        return builder.build();
+    }
+
+    private static FieldTokenizer open(File nodesFile) throws IOException {
+        return new FieldTokenizer(new BufferedInputStream(new FileInputStream(nodesFile), 1 << 16), "\t");
+    }
+
+    private static int readInt(FieldTokenizer ft, int field, File nodesFile) throws ParseException {
+        int value;
+        try {
+            value = ft.getInt(field);
+        } catch (ParseException e) {
+            throw formatException(ft, nodesFile);
+        }
+        if (value < 0) {
+            throw formatException(ft, nodesFile);
+        }
+        return value;
+    }
+
+    private static ParseException formatException(FieldTokenizer ft, File nodesFile) {
+        return new ParseException("error parsing file " + nodesFile.getName() + ": line does not have correct format: "
+                + ft.getLine() + " at line " + ft.getLineNumber());
+    }
+}
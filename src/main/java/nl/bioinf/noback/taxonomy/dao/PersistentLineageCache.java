@@ -0,0 +1,308 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.Lineage;
+
+/**
+ * Persistent tier behind the in-memory LineageCache of the SQL TaxonomyDao
+ * implementations: an append-only text file with the lineages resolved in earlier
+ * runs, so that a run on a similar sample starts warm and queries the database only
+ * for taxa it has not seen before. The file has a header line with the version of
+ * the TaxDB it was written for; when the TaxDB has changed the file is started anew.
+ * <p>
+ * Each further line is one lineage in the LineageTextCodec format; its leaf tax_id
+ * is the key. The records are kept encoded in memory and decoded on a hit, so a large
+ * file costs its size in heap, not that of the lineage objects. A line torn by a
+ * crash during an append is cut off when the file is opened. Instances are
+ * thread-safe.
+ *
+ * @author michiel
+ */
+public final class PersistentLineageCache {
+
+    /**
+     * the current file format version
+     */
+    public static final int VERSION = 1;
+    private static final String MAGIC = "#TaxDB lineage cache";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final String taxDbVersion;
+    private final ConcurrentHashMap<Integer, String> records = new ConcurrentHashMap<Integer, String>(1024);
+    private final Writer writer;
+    private final int loadedCount;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private boolean closed;
+
+    private PersistentLineageCache(File file, String taxDbVersion) throws IOException {
+        this.file = file;
+        this.taxDbVersion = taxDbVersion;
+        boolean valid = file.exists() && load();
+        if (valid) {
+            this.loadedCount = records.size();
+            this.writer = openWriter(true);
+        } else {
+            records.clear();
+            this.loadedCount = 0;
+            this.writer = openWriter(false);
+            writer.write(header());
+            writer.flush();
+        }
+    }
+
+    /**
+     * opens the cache file, or creates it; an existing file written for another TaxDB
+     * version or in another format is discarded
+     *
+     * @param file
+     * @param taxDbVersion identifies the content of the TaxDB, e.g. with version()
+     * @return the cache
+     * @throws IOException when the file can not be read or written
+     */
+    public static PersistentLineageCache open(File file, String taxDbVersion) throws IOException {
+        if (taxDbVersion.indexOf('\n') >= 0 || taxDbVersion.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("TaxDB version can not contain line ends: " + taxDbVersion);
+        }
+        return new PersistentLineageCache(file, taxDbVersion);
+    }
+
+    /**
+     * derives a version of the TaxDB from the results of the given queries, e.g. row
+     * counts and sums of the nodes table. Queries that fail, e.g. on an optional
+     * table, contribute a fixed value
+     *
+     * @param connection
+     * @param queries each gives one row
+     * @return the version
+     */
+    static String version(Connection connection, String... queries) {
+        StringBuilder version = new StringBuilder();
+        for (String query : queries) {
+            if (version.length() > 0) {
+                version.append('/');
+            }
+            try {
+                Statement s = connection.createStatement();
+                try {
+                    ResultSet rs = s.executeQuery(query);
+                    if (rs.next()) {
+                        int columns = rs.getMetaData().getColumnCount();
+                        for (int c = 1; c <= columns; c++) {
+                            if (c > 1) {
+                                version.append(':');
+                            }
+                            version.append(rs.getString(c));
+                        }
+                    }
+                    rs.close();
+                } finally {
+                    s.close();
+                }
+            } catch (SQLException e) {
+                version.append('-');
+            }
+        }
+        return version.toString();
+    }
+
+    /**
+     * @param taxId a current tax_id
+     * @return the stored lineage, or null
+     */
+    public Lineage get(int taxId) {
+        String record = records.get(taxId);
+        if (record == null) {
+            missCount.increment();
+            return null;
+        }
+        Lineage lineage = decode(record);
+        if (lineage == null || lineage.getExternalNode().getTaxID() != taxId) {
+            /*not expected after the checks on load; treated as absent*/
+            records.remove(taxId, record);
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return lineage;
+    }
+
+    /**
+     * stores the lineage under its leaf tax_id and appends it to the file, when it is
+     * not stored yet
+     *
+     * @param lineage complete, up to the root
+     * @throws IOException when the file can not be written
+     */
+    public void put(Lineage lineage) throws IOException {
+        if (lineage == null || lineage.getLength() == 0) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(256);
+        LineageTextCodec.encode(lineage, sb);
+        String record = sb.toString();
+        if (records.putIfAbsent(lineage.getExternalNode().getTaxID(), record) != null) {
+            return;
+        }
+        synchronized (writer) {
+            if (!closed) {
+                writer.append(record).append('\n');
+            }
+        }
+    }
+
+    /**
+     * @return the number of stored lineages
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return the number of lineages read from the file when it was opened
+     */
+    public int getLoadedCount() {
+        return loadedCount;
+    }
+
+    /**
+     * @return the number of lookups served
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return the number of lookups not served
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return the TaxDB version the file is written for
+     */
+    public String getTaxDbVersion() {
+        return taxDbVersion;
+    }
+
+    /**
+     * writes the appended lineages to disk
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        synchronized (writer) {
+            if (!closed) {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * writes the appended lineages to disk and closes the file; lineages put afterwards
+     * are only kept in memory
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (writer) {
+            if (!closed) {
+                closed = true;
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentLineageCache[" + file.getName() + "; lineages=" + records.size() + "; loaded=" + loadedCount
+                + "; hits=" + getHitCount() + "; misses=" + getMissCount() + "]";
+    }
+
+    private String header() {
+        return MAGIC + '\t' + VERSION + '\t' + taxDbVersion + '\n';
+    }
+
+    /*reads the records; false when the file is not for this format and TaxDB version*/
+    private boolean load() throws IOException {
+        truncateTornLine();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8), 1 << 16);
+        try {
+            String line = reader.readLine();
+            if (line == null || !(line + '\n').equals(header())) {
+                return false;
+            }
+            while ((line = reader.readLine()) != null) {
+                Lineage lineage = decode(line);
+                if (lineage != null) {
+                    records.put(lineage.getExternalNode().getTaxID(), line);
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*a crash during an append may leave a partial last line, which could still decode*/
+    private void truncateTornLine() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < raf.length()) {
+                raf.setLength(end);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*the lineage of a record, or null when it is not a complete lineage*/
+    private static Lineage decode(String record) {
+        try {
+            Lineage lineage = LineageTextCodec.decode(record);
+            if (lineage == null || lineage.getLength() == 0 || lineage.getRoot().getTaxID() != 1) {
+                return null;
+            }
+            return lineage;
+        } catch (CorruptedLineageException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Writer openWriter(boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), UTF8), 1 << 16);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Collects the distinct tax_ids, gi numbers and accession.versions that a
+ * BLAST result set refers to. A TaxonomyDaoInMemory constructed with such a
+ * selection loads only the mapping entries of these identifiers and the
+ * ancestor closure of the taxa they resolve to.
+ *
+ * @author michiel
+ */
+public class RequiredTaxa {
+
+    private final Set<Integer> taxIDs = new HashSet<Integer>();
+    private final Set<Long> giNumbers = new HashSet<Long>();
+    private final Set<String> accessions = new HashSet<String>();
+
+    /**
+     * @param taxID
+     */
+    public void addTaxID(int taxID) {
+        taxIDs.add(taxID);
+    }
+
+    /**
+     * @param giNumber
+     */
+    public void addGiNumber(long giNumber) {
+        giNumbers.add(giNumber);
+    }
+
+    /**
+     * @param accession accession.version
+     */
+    public void addAccession(String accession) {
+        accessions.add(accession);
+    }
+
+    /**
+     * @return the distinct tax_ids, sorted
+     */
+    public int[] getTaxIDs() {
+        int[] array = new int[taxIDs.size()];
+        int i = 0;
+        for (int taxID : taxIDs) {
+            array[i++] = taxID;
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * @return the distinct gi numbers, sorted
+     */
+    public long[] getGiNumbers() {
+        long[] array = new long[giNumbers.size()];
+        int i = 0;
+        for (long giNumber : giNumbers) {
+            array[i++] = giNumber;
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * @return the distinct accession.versions, sorted
+     */
+    public String[] getAccessions() {
+        String[] array = accessions.toArray(new String[accessions.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * @return the total number of distinct identifiers
+     */
+    public int size() {
+        return taxIDs.size() + giNumbers.size() + accessions.size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[taxIDs=" + taxIDs.size() + "; giNumbers=" + giNumbers.size()
+                + "; accessions=" + accessions.size() + "]";
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed-size pool of JDBC connections for the SQL TaxonomyDao implementations. Each
+ * connection has its own SqlLineageBatchFetcher, so the statements of a lookup are
+ * prepared and executed on the connection of the thread that holds it; concurrent
+ * lookups run on different connections instead of queueing on a single one. A
+ * thread acquires a fetcher, uses it, and releases it; when all are in use it waits.
+ *
+ * @author michiel
+ */
+final class SqlFetcherPool {
+
+    /**
+     * creates the connections of the pool and the fetchers on top of them
+     */
+    interface FetcherFactory {
+        /**
+         * @return a new connection
+         * @throws Exception
+         */
+        Connection connect() throws Exception;
+
+        /**
+         * @param connection
+         * @return a fetcher using the connection
+         * @throws SQLException
+         */
+        SqlLineageBatchFetcher createFetcher(Connection connection) throws SQLException;
+    }
+
+    private final List<SqlLineageBatchFetcher> fetchers;
+    private final List<Connection> connections;
+    private final BlockingQueue<SqlLineageBatchFetcher> idle;
+
+    /**
+     * opens the given number of connections; when one fails, the ones already opened
+     * are closed again
+     *
+     * @param size
+     * @param factory
+     * @throws Exception when a connection or fetcher can not be created
+     */
+    SqlFetcherPool(int size, FetcherFactory factory) throws Exception {
+        if (size < 1) {
+            throw new IllegalArgumentException("connection pool size should be at least 1: " + size);
+        }
+        this.fetchers = new ArrayList<SqlLineageBatchFetcher>(size);
+        this.connections = new ArrayList<Connection>(size);
+        this.idle = new ArrayBlockingQueue<SqlLineageBatchFetcher>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection connection = factory.connect();
+                connections.add(connection);
+                fetchers.add(factory.createFetcher(connection));
+            }
+        } catch (Exception e) {
+            closeQuietly();
+            throw e;
+        }
+        idle.addAll(fetchers);
+    }
+
+    /**
+     * @return the number of connections
+     */
+    int size() {
+        return fetchers.size();
+    }
+
+    /**
+     * reads the table that outdated tax_ids are remapped with once, and shares it
+     * between all fetchers; see SqlLineageBatchFetcher.loadRemapTable()
+     *
+     * @param mergedQuery
+     * @param deletedQuery
+     */
+    void loadRemapTable(String mergedQuery, String deletedQuery) {
+        fetchers.get(0).loadRemapTable(mergedQuery, deletedQuery);
+        for (SqlLineageBatchFetcher fetcher : fetchers) {
+            fetcher.setRemapTable(fetchers.get(0).getRemapTable());
+        }
+    }
+
+    /**
+     * @return the table that outdated tax_ids are remapped with
+     */
+    TaxIdRemapTable getRemapTable() {
+        return fetchers.get(0).getRemapTable();
+    }
+
+    /**
+     * shares the file tier behind the in-memory cache between all fetchers
+     *
+     * @param persistentCache null for none
+     */
+    void setPersistentCache(PersistentLineageCache persistentCache) {
+        for (SqlLineageBatchFetcher fetcher : fetchers) {
+            fetcher.setPersistentCache(persistentCache);
+        }
+    }
+
+    /**
+     * derives the version of the TaxDB from the given queries, on a connection that is
+     * not in use; see PersistentLineageCache.version()
+     *
+     * @param queries
+     * @return the version
+     * @throws DatabaseException when interrupted while waiting for a connection
+     */
+    String getTaxDbVersion(String... queries) throws DatabaseException {
+        SqlLineageBatchFetcher fetcher = acquire();
+        try {
+            return PersistentLineageCache.version(connections.get(fetchers.indexOf(fetcher)), queries);
+        } finally {
+            release(fetcher);
+        }
+    }
+
+    /**
+     * @return the first connection, for statements outside the lookups, e.g. tests
+     */
+    Connection getConnection() {
+        return connections.get(0);
+    }
+
+    /**
+     * takes a fetcher for exclusive use; waits when all are in use
+     *
+     * @return the fetcher
+     * @throws DatabaseException when interrupted while waiting
+     */
+    SqlLineageBatchFetcher acquire() throws DatabaseException {
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("interrupted while waiting for a TaxDB connection");
+        }
+    }
+
+    /**
+     * returns a fetcher obtained with acquire()
+     *
+     * @param fetcher
+     */
+    void release(SqlLineageBatchFetcher fetcher) {
+        idle.offer(fetcher);
+    }
+
+    /**
+     * closes all connections
+     *
+     * @throws SQLException the first exception encountered; all connections are tried
+     */
+    void close() throws SQLException {
+        SQLException first = null;
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (SQLException e) {
+            /*already failing*/
+        }
+    }
+}
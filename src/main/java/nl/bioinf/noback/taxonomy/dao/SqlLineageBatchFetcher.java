@@ -0,0 +1,494 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.Lineage;
+import nl.bioinf.noback.taxonomy.model.TaxNode;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * Set-based lineage retrieval for the SQL TaxonomyDao implementations. Instead of
+ * one round trip per node or per lineage, all requested nodes are fetched with
+ * IN-list queries, level by level: each round fetches the parents of the nodes of
+ * the previous round that have not been seen yet. The number of queries is thus
+ * bounded by the depth of the taxonomy (times the IN-list chunks), not by the number
+ * of lineages.
+ * <p>
+ * When the database supports recursive queries, an ancestors query can be set
+ * that returns all nodes of the lineages of the {ids} at once; a chunk of tax_ids
+ * then takes a single query, whatever the depth of the taxonomy. When the server
+ * rejects that query as unsupported, e.g. one without WITH RECURSIVE, the fetcher
+ * falls back to the level-by-level queries; other errors are thrown.
+ * <p>
+ * The queries are given as templates in which {ids} is replaced by the
+ * placeholders. The nodes and ancestors queries should return the columns tax_id,
+ * parent_tax_id, rank and scientific_name; the gi query the columns gi_number and
+ * tax_id; the accession query the columns accession_version and tax_id.
+ * Outdated tax_ids, requested directly or through gi numbers and accessions, are
+ * first remapped with the TaxIdRemapTable; deleted ones give null lineages without
+ * a query.
+ * Instances are not thread-safe; callers serialize on their connection.
+ *
+ * @author michiel
+ */
+class SqlLineageBatchFetcher {
+
+    /**
+     * the maximum number of ids in a single IN-list
+     */
+    static final int IN_LIST_SIZE = 500;
+    /*guards against cycles in corrupted data*/
+    private static final int MAX_DEPTH = 1000;
+
+    private final Connection connection;
+    private final String nodesQueryTemplate;
+    private final String giQueryTemplate;
+    private final String accessionQueryTemplate;
+    private String ancestorsQueryTemplate;
+    private int fetchSize;
+    private TaxIdRemapTable remapTable = TaxIdRemapTable.EMPTY;
+    private volatile PersistentLineageCache persistentCache;
+
+    /**
+     * construct with the connection and the query templates
+     *
+     * @param connection
+     * @param nodesQueryTemplate
+     * @param giQueryTemplate
+     * @param accessionQueryTemplate
+     */
+    SqlLineageBatchFetcher(Connection connection, String nodesQueryTemplate, String giQueryTemplate,
+            String accessionQueryTemplate) {
+        this.connection = connection;
+        this.nodesQueryTemplate = nodesQueryTemplate;
+        this.giQueryTemplate = giQueryTemplate;
+        this.accessionQueryTemplate = accessionQueryTemplate;
+    }
+
+    /**
+     * sets the query that returns all nodes of the lineages of the {ids} at once
+     *
+     * @param ancestorsQueryTemplate
+     * @param fetchSize fetch size hint for its result set, e.g. Integer.MIN_VALUE to
+     * have MySQL Connector/J stream the rows; 0 for the driver default
+     */
+    void setAncestorsQuery(String ancestorsQueryTemplate, int fetchSize) {
+        this.ancestorsQueryTemplate = ancestorsQueryTemplate;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return the ancestors query is (still) used
+     */
+    boolean isUsingAncestorsQuery() {
+        return ancestorsQueryTemplate != null;
+    }
+
+    /**
+     * sets the table that outdated tax_ids are remapped with
+     *
+     * @param remapTable
+     */
+    void setRemapTable(TaxIdRemapTable remapTable) {
+        this.remapTable = remapTable;
+    }
+
+    /**
+     * sets the file tier that is consulted for lineages missing from the in-memory
+     * cache, and that fetched lineages are added to
+     *
+     * @param persistentCache null for none
+     */
+    void setPersistentCache(PersistentLineageCache persistentCache) {
+        this.persistentCache = persistentCache;
+    }
+
+    /**
+     * reads the table that outdated tax_ids are remapped with from the database. The
+     * merged and deleted nodes tables are optional: when they can not be read a
+     * warning is printed and nothing is remapped
+     *
+     * @param mergedQuery returns the columns old_tax_id and new_tax_id
+     * @param deletedQuery returns the column tax_id
+     */
+    void loadRemapTable(String mergedQuery, String deletedQuery) {
+        try {
+            this.remapTable = TaxIdRemapTable.read(connection, mergedQuery, deletedQuery);
+        } catch (SQLException e) {
+            System.err.println("[ " + this.getClass().getSimpleName() + " ] merged and deleted nodes not readable;"
+                    + " outdated tax_ids are not remapped: " + e.getMessage());
+            this.remapTable = TaxIdRemapTable.EMPTY;
+        }
+    }
+
+    /**
+     * @return the table that outdated tax_ids are remapped with
+     */
+    TaxIdRemapTable getRemapTable() {
+        return remapTable;
+    }
+
+    /**
+     * returns the lineages of the given tax_ids, parallel to the argument; lineages
+     * not in the cache are fetched in one set-based pass and cached. Entries are null
+     * for deleted tax_ids and for tax_ids whose lineage is absent or incomplete
+     *
+     * @param taxIDs
+     * @param cache
+     * @return lineages
+     * @throws SQLException
+     */
+    Lineage[] getLineages(int[] taxIDs, LineageCache<Integer> cache) throws SQLException {
+        Integer[] boxed = new Integer[taxIDs.length];
+        for (int i = 0; i < taxIDs.length; i++) {
+            boxed[i] = taxIDs[i];
+        }
+        return getLineages(boxed, cache);
+    }
+
+    /*the lineages of current tax_ids, parallel to the argument*/
+    private Lineage[] getCurrentLineages(int[] taxIDs, LineageCache<Integer> cache) throws SQLException {
+        PersistentLineageCache fileCache = persistentCache;
+        Lineage[] lineages = new Lineage[taxIDs.length];
+        Set<Integer> missing = new LinkedHashSet<Integer>();
+        for (int i = 0; i < taxIDs.length; i++) {
+            lineages[i] = cache.get(taxIDs[i]);
+            if (lineages[i] == null && fileCache != null) {
+                lineages[i] = fileCache.get(taxIDs[i]);
+                if (lineages[i] != null) {
+                    cache.put(taxIDs[i], lineages[i]);
+                }
+            }
+            if (lineages[i] == null) {
+                missing.add(taxIDs[i]);
+            }
+        }
+        if (missing.isEmpty()) {
+            return lineages;
+        }
+        Map<Integer, Lineage> fetched = fetchLineages(missing);
+        for (Map.Entry<Integer, Lineage> entry : fetched.entrySet()) {
+            cache.put(entry.getKey(), entry.getValue());
+            if (fileCache != null) {
+                try {
+                    fileCache.put(entry.getValue());
+                } catch (IOException e) {
+                    /*the lineage is served anyway; the next run fetches it again*/
+                }
+            }
+        }
+        for (int i = 0; i < taxIDs.length; i++) {
+            if (lineages[i] == null) {
+                lineages[i] = fetched.get(taxIDs[i]);
+            }
+        }
+        return lineages;
+    }
+
+    /**
+     * returns the lineages of the given gi numbers, parallel to the argument. Entries
+     * are null for unknown gi numbers and for absent or incomplete lineages
+     *
+     * @param giNumbers
+     * @param cache
+     * @return lineages
+     * @throws SQLException
+     */
+    Lineage[] getGiLineages(int[] giNumbers, LineageCache<Integer> cache) throws SQLException {
+        Set<Integer> unique = new LinkedHashSet<Integer>();
+        for (int giNumber : giNumbers) {
+            unique.add(giNumber);
+        }
+        Map<Integer, Integer> taxIds = fetchTaxIds(unique);
+        Integer[] taxIdsPerGi = new Integer[giNumbers.length];
+        for (int i = 0; i < giNumbers.length; i++) {
+            taxIdsPerGi[i] = taxIds.get(giNumbers[i]);
+        }
+        return getLineages(taxIdsPerGi, cache);
+    }
+
+    /**
+     * returns the lineages of the given accession.versions, parallel to the argument.
+     * Entries are null for unknown accessions and for absent or incomplete lineages
+     *
+     * @param accessions
+     * @param cache
+     * @return lineages
+     * @throws SQLException
+     */
+    Lineage[] getAccessionLineages(String[] accessions, LineageCache<Integer> cache) throws SQLException {
+        Map<String, Integer> taxIds = fetchAccessionTaxIds(new LinkedHashSet<String>(Arrays.asList(accessions)));
+        Integer[] taxIdsPerAccession = new Integer[accessions.length];
+        for (int i = 0; i < accessions.length; i++) {
+            taxIdsPerAccession[i] = taxIds.get(accessions[i]);
+        }
+        return getLineages(taxIdsPerAccession, cache);
+    }
+
+    /*the lineages of the given tax_ids, parallel to the argument; null and deleted tax_ids give null lineages*/
+    private Lineage[] getLineages(Integer[] taxIds, LineageCache<Integer> cache) throws SQLException {
+        int[] known = new int[taxIds.length];
+        int[] positions = new int[taxIds.length];
+        int count = 0;
+        for (int i = 0; i < taxIds.length; i++) {
+            if (taxIds[i] != null) {
+                int taxId = remapTable.remap(taxIds[i]);
+                if (taxId != TaxIdRemapTable.DELETED) {
+                    known[count] = taxId;
+                    positions[count++] = i;
+                }
+            }
+        }
+        Lineage[] knownLineages = getCurrentLineages(Arrays.copyOf(known, count), cache);
+        Lineage[] lineages = new Lineage[taxIds.length];
+        for (int i = 0; i < count; i++) {
+            lineages[positions[i]] = knownLineages[i];
+        }
+        return lineages;
+    }
+
+    /**
+     * fetches the tax_ids of the given gi numbers; absent gi numbers are not in the
+     * returned map
+     *
+     * @param giNumbers
+     * @return map of gi number to tax_id
+     * @throws SQLException
+     */
+    Map<Integer, Integer> fetchTaxIds(Collection<Integer> giNumbers) throws SQLException {
+        Map<Integer, Integer> taxIds = new HashMap<Integer, Integer>();
+        for (List<Integer> chunk : chunks(giNumbers)) {
+            PreparedStatement ps = prepare(giQueryTemplate, chunk);
+            try {
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    taxIds.put(rs.getInt("gi_number"), rs.getInt("tax_id"));
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        }
+        return taxIds;
+    }
+
+    /**
+     * fetches the tax_ids of the given accession.versions; absent accessions are not
+     * in the returned map
+     *
+     * @param accessions
+     * @return map of accession.version to tax_id
+     * @throws SQLException
+     */
+    Map<String, Integer> fetchAccessionTaxIds(Collection<String> accessions) throws SQLException {
+        Map<String, Integer> taxIds = new HashMap<String, Integer>();
+        for (List<String> chunk : chunks(accessions)) {
+            PreparedStatement ps = prepare(accessionQueryTemplate, chunk);
+            try {
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    taxIds.put(rs.getString("accession_version"), rs.getInt("tax_id"));
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        }
+        return taxIds;
+    }
+
+    /**
+     * fetches the lineages of the given tax_ids. TaxNode objects are shared between
+     * the returned lineages. tax_ids whose lineage is absent or incomplete are not in
+     * the returned map
+     *
+     * @param taxIds
+     * @return map of tax_id to lineage
+     * @throws SQLException
+     */
+    Map<Integer, Lineage> fetchLineages(Collection<Integer> taxIds) throws SQLException {
+        Map<Integer, TaxNode> nodes = new HashMap<Integer, TaxNode>();
+        if (ancestorsQueryTemplate != null) {
+            try {
+                fetchAncestors(taxIds, nodes);
+            } catch (SQLException e) {
+                if (!isUnsupported(e)) {
+                    throw e;
+                }
+                /*no recursive queries on this server, or no closure table: level by level from now on*/
+                ancestorsQueryTemplate = null;
+                nodes.clear();
+                fetchLevels(taxIds, nodes);
+            }
+        } else {
+            fetchLevels(taxIds, nodes);
+        }
+
+        /*link and assemble*/
+        Map<Integer, Lineage> lineages = new HashMap<Integer, Lineage>();
+        for (Integer taxId : taxIds) {
+            List<TaxNode> nodesList = new ArrayList<TaxNode>();
+            TaxNode tn = nodes.get(taxId);
+            try {
+                while (tn != null) {
+                    nodesList.add(tn);
+                    if (tn.getTaxID() == 1 || nodesList.size() > MAX_DEPTH) {
+                        break;
+                    }
+                    TaxNode parent = nodes.get(tn.getParentTaxID());
+                    if (parent != null && tn.getParentNode() == null) {
+                        tn.setParentNode(parent);
+                    }
+                    tn = parent;
+                }
+                if (tn != null && tn.getTaxID() == 1) {
+                    lineages.put(taxId, new Lineage(nodesList));
+                }
+            } catch (CorruptedLineageException e) {
+                /*incomplete lineage: left out of the result*/
+            }
+        }
+        return lineages;
+    }
+
+    /**
+     * whether the ancestors query failed because the server does not support it, e.g.
+     * WITH RECURSIVE before MySQL 8 (42000), or because the tables it reads are gone,
+     * e.g. a LineageClosureTable that was dropped (42X05 on Derby). Other failures,
+     * such as a lost connection or a lock timeout while the closure table is being
+     * recreated (40XL1), are not a reason to fall back
+     *
+     * @param e
+     * @return the SQLState is of class 42 (syntax error or access rule violation) or
+     * 0A000 (feature not supported)
+     */
+    static boolean isUnsupported(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("42") || state.equals("0A000"));
+    }
+
+    /*the nodes of the lineages of the tax_ids, one query per chunk*/
+    private void fetchAncestors(Collection<Integer> taxIds, Map<Integer, TaxNode> nodes) throws SQLException {
+        for (List<Integer> chunk : chunks(taxIds)) {
+            PreparedStatement ps = prepare(ancestorsQueryTemplate, chunk);
+            try {
+                if (fetchSize != 0) {
+                    ps.setFetchSize(fetchSize);
+                }
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    readNode(rs, nodes);
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        }
+    }
+
+    /*the nodes of the lineages of the tax_ids, one round of queries per level*/
+    private void fetchLevels(Collection<Integer> taxIds, Map<Integer, TaxNode> nodes) throws SQLException {
+        Set<Integer> frontier = new LinkedHashSet<Integer>(taxIds);
+        int depth = 0;
+        while (!frontier.isEmpty() && depth++ < MAX_DEPTH) {
+            Set<Integer> parents = new LinkedHashSet<Integer>();
+            for (List<Integer> chunk : chunks(frontier)) {
+                PreparedStatement ps = prepare(nodesQueryTemplate, chunk);
+                try {
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        TaxNode tn = readNode(rs, nodes);
+                        if (tn.getTaxID() != 1 && !nodes.containsKey(tn.getParentTaxID())) {
+                            parents.add(tn.getParentTaxID());
+                        }
+                    }
+                    rs.close();
+                } finally {
+                    ps.close();
+                }
+            }
+            parents.removeAll(nodes.keySet());
+            frontier = parents;
+        }
+    }
+
+    private static TaxNode readNode(ResultSet rs, Map<Integer, TaxNode> nodes) throws SQLException {
+        TaxNode tn = new TaxNode(rs.getInt("tax_id"), rs.getInt("parent_tax_id"));
+        tn.setRank(TaxonomyRank.getTaxonomyRank(rs.getString("rank")));
+        tn.setScientificName(rs.getString("scientific_name"));
+        nodes.put(tn.getTaxID(), tn);
+        return tn;
+    }
+
+    /**
+     * intersects the given lineages, which are parallel to the given tax_ids
+     *
+     * @param taxIDs
+     * @param lineages
+     * @return the common lineage
+     * @throws DatabaseException when a lineage is missing or no tax_ids are given
+     */
+    static Lineage intersect(int[] taxIDs, Lineage[] lineages) throws DatabaseException {
+        if (taxIDs.length == 0) {
+            throw new DatabaseException("no tax_ids given");
+        }
+        Lineage common = null;
+        for (int i = 0; i < lineages.length; i++) {
+            if (lineages[i] == null) {
+                throw new DatabaseException("taxID is not represented in database: " + taxIDs[i]);
+            }
+            try {
+                common = (common == null) ? lineages[i] : lineages[i].getIntersection(common);
+            } catch (CorruptedLineageException e) {
+                throw new DatabaseException("corrupted lineage for taxID " + taxIDs[i] + ": " + e.getMessage());
+            }
+        }
+        return common;
+    }
+
+    private PreparedStatement prepare(String template, List<?> ids) throws SQLException {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        PreparedStatement ps = connection.prepareStatement(template.replace("{ids}", placeholders.toString()));
+        for (int i = 0; i < ids.size(); i++) {
+            Object id = ids.get(i);
+            if (id instanceof Integer) {
+                ps.setInt(i + 1, (Integer) id);
+            } else {
+                ps.setString(i + 1, id.toString());
+            }
+        }
+        return ps;
+    }
+
+    private static <T> List<List<T>> chunks(Collection<T> ids) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        List<T> chunk = null;
+        for (T id : ids) {
+            if (chunk == null || chunk.size() == IN_LIST_SIZE) {
+                chunk = new ArrayList<T>(IN_LIST_SIZE);
+                chunks.add(chunk);
+            }
+            chunk.add(id);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
+import nl.bioinf.noback.taxonomy.io.ParseException;
+
+/**
+ * Maps outdated tax_ids to their current state, as recorded by NCBI in merged.dmp
+ * (old tax_id, new tax_id) and delnodes.dmp (tax_id): a merged tax_id is remapped
+ * to the tax_id it was merged into, a deleted tax_id to DELETED, and any other
+ * tax_id to itself. Chains of merges are resolved when the table is created. The
+ * table is held in two sorted int arrays; instances are immutable and thread-safe.
+ *
+ * @author michiel
+ */
+public final class TaxIdRemapTable {
+
+    /**
+     * returned by remap() for deleted tax_ids
+     */
+    public static final int DELETED = -1;
+    /**
+     * the table that remaps nothing
+     */
+    public static final TaxIdRemapTable EMPTY = new TaxIdRemapTable(new int[0], new int[0], new int[0]);
+
+    private static final String DMP_SEPARATOR = "\t|\t";
+    private static final String DMP_LINE_END = "\t|";
+
+    /*sorted outdated tax_ids and, parallel, their current tax_id or DELETED*/
+    private final int[] taxIDs;
+    private final int[] currentTaxIDs;
+    private final int deletedCount;
+
+    /**
+     * constructs from merged pairs and deleted tax_ids. When a tax_id is both merged
+     * and deleted, the merge wins
+     *
+     * @param oldTaxIDs
+     * @param newTaxIDs parallel to oldTaxIDs
+     * @param deletedTaxIDs
+     */
+    public TaxIdRemapTable(int[] oldTaxIDs, int[] newTaxIDs, int[] deletedTaxIDs) {
+        if (oldTaxIDs.length != newTaxIDs.length) {
+            throw new IllegalArgumentException("old and new tax_ids differ in length: "
+                    + oldTaxIDs.length + " and " + newTaxIDs.length);
+        }
+        /*tax_id in the high, target in the low half*/
+        int total = oldTaxIDs.length + deletedTaxIDs.length;
+        long[] entries = new long[total];
+        for (int i = 0; i < oldTaxIDs.length; i++) {
+            entries[i] = ((long) oldTaxIDs[i] << 32) | (newTaxIDs[i] & 0xFFFFFFFFL);
+        }
+        for (int i = 0; i < deletedTaxIDs.length; i++) {
+            entries[oldTaxIDs.length + i] = ((long) deletedTaxIDs[i] << 32) | (DELETED & 0xFFFFFFFFL);
+        }
+        /*sorts on the tax_id; for equal tax_ids DELETED (all ones) sorts after any merge target*/
+        Arrays.sort(entries);
+
+        int[] ids = new int[total];
+        int[] targets = new int[total];
+        int size = 0;
+        for (long entry : entries) {
+            int id = (int) (entry >>> 32);
+            if (size > 0 && ids[size - 1] == id) {
+                continue;
+            }
+            ids[size] = id;
+            targets[size] = (int) entry;
+            size++;
+        }
+        this.taxIDs = Arrays.copyOf(ids, size);
+        this.currentTaxIDs = Arrays.copyOf(targets, size);
+
+        /*resolve chains of merges; a chain longer than the table is a cycle*/
+        for (int i = 0; i < size; i++) {
+            int target = currentTaxIDs[i];
+            for (int hops = 0; target != DELETED; hops++) {
+                int next = Arrays.binarySearch(taxIDs, target);
+                if (next < 0 || next == i) {
+                    break;
+                }
+                if (hops == size) {
+                    throw new IllegalArgumentException("cycle of merged tax_ids at tax_id " + taxIDs[i]);
+                }
+                target = currentTaxIDs[next];
+            }
+            currentTaxIDs[i] = target;
+        }
+        int deleted = 0;
+        for (int target : currentTaxIDs) {
+            if (target == DELETED) {
+                deleted++;
+            }
+        }
+        this.deletedCount = deleted;
+    }
+
+    /**
+     * reads the NCBI merged.dmp and delnodes.dmp files; either may be null
+     *
+     * @param mergedFile
+     * @param deletedFile
+     * @return the table
+     * @throws IOException
+     * @throws ParseException when a line does not have the correct format
+     */
+    public static TaxIdRemapTable read(File mergedFile, File deletedFile) throws IOException, ParseException {
+        InputStream merged = mergedFile == null ? null : new BufferedInputStream(new FileInputStream(mergedFile), 1 << 16);
+        try {
+            InputStream deleted = deletedFile == null ? null : new BufferedInputStream(new FileInputStream(deletedFile), 1 << 16);
+            try {
+                return read(merged, deleted);
+            } finally {
+                if (deleted != null) {
+                    deleted.close();
+                }
+            }
+        } finally {
+            if (merged != null) {
+                merged.close();
+            }
+        }
+    }
+
+    /**
+     * reads the contents of the NCBI merged.dmp and delnodes.dmp files, e.g. from
+     * the taxdump archive; either may be null. The streams are not closed
+     *
+     * @param mergedIn
+     * @param deletedIn
+     * @return the table
+     * @throws IOException
+     * @throws ParseException when a line does not have the correct format
+     */
+    public static TaxIdRemapTable read(InputStream mergedIn, InputStream deletedIn) throws IOException, ParseException {
+        int[] oldTaxIDs = new int[1024];
+        int[] newTaxIDs = new int[1024];
+        int mergedCount = 0;
+        if (mergedIn != null) {
+            FieldTokenizer ft = new FieldTokenizer(mergedIn, DMP_SEPARATOR, DMP_LINE_END, false);
+            while (ft.nextLine()) {
+                if (ft.isEmptyLine()) {
+                    continue;
+                }
+                if (mergedCount == oldTaxIDs.length) {
+                    oldTaxIDs = Arrays.copyOf(oldTaxIDs, mergedCount * 2);
+                    newTaxIDs = Arrays.copyOf(newTaxIDs, mergedCount * 2);
+                }
+                oldTaxIDs[mergedCount] = ft.getInt(0);
+                newTaxIDs[mergedCount] = ft.getInt(1);
+                mergedCount++;
+            }
+        }
+        int[] deletedTaxIDs = new int[1024];
+        int deletedCount = 0;
+        if (deletedIn != null) {
+            FieldTokenizer ft = new FieldTokenizer(deletedIn, DMP_SEPARATOR, DMP_LINE_END, false);
+            while (ft.nextLine()) {
+                if (ft.isEmptyLine()) {
+                    continue;
+                }
+                if (deletedCount == deletedTaxIDs.length) {
+                    deletedTaxIDs = Arrays.copyOf(deletedTaxIDs, deletedCount * 2);
+                }
+                deletedTaxIDs[deletedCount++] = ft.getInt(0);
+            }
+        }
+        return new TaxIdRemapTable(Arrays.copyOf(oldTaxIDs, mergedCount), Arrays.copyOf(newTaxIDs, mergedCount),
+                Arrays.copyOf(deletedTaxIDs, deletedCount));
+    }
+
+    /**
+     * reads the table from the database with the given queries. The merged query
+     * should return the columns old_tax_id and new_tax_id, the deleted query the
+     * column tax_id
+     *
+     * @param connection
+     * @param mergedQuery
+     * @param deletedQuery
+     * @return the table
+     * @throws SQLException
+     */
+    public static TaxIdRemapTable read(Connection connection, String mergedQuery, String deletedQuery) throws SQLException {
+        int[] oldTaxIDs = new int[1024];
+        int[] newTaxIDs = new int[1024];
+        int mergedCount = 0;
+        int[] deletedTaxIDs = new int[1024];
+        int deletedCount = 0;
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery(mergedQuery);
+            while (rs.next()) {
+                if (mergedCount == oldTaxIDs.length) {
+                    oldTaxIDs = Arrays.copyOf(oldTaxIDs, mergedCount * 2);
+                    newTaxIDs = Arrays.copyOf(newTaxIDs, mergedCount * 2);
+                }
+                oldTaxIDs[mergedCount] = rs.getInt("old_tax_id");
+                newTaxIDs[mergedCount] = rs.getInt("new_tax_id");
+                mergedCount++;
+            }
+            rs.close();
+            rs = statement.executeQuery(deletedQuery);
+            while (rs.next()) {
+                if (deletedCount == deletedTaxIDs.length) {
+                    deletedTaxIDs = Arrays.copyOf(deletedTaxIDs, deletedCount * 2);
+                }
+                deletedTaxIDs[deletedCount++] = rs.getInt("tax_id");
+            }
+            rs.close();
+        } finally {
+            statement.close();
+        }
+        return new TaxIdRemapTable(Arrays.copyOf(oldTaxIDs, mergedCount), Arrays.copyOf(newTaxIDs, mergedCount),
+                Arrays.copyOf(deletedTaxIDs, deletedCount));
+    }
+
+    /**
+     * returns the current tax_id of the given tax_id
+     *
+     * @param taxID
+     * @return the tax_id it was merged into, DELETED, or taxID itself
+     */
+    public int remap(int taxID) {
+        int index = Arrays.binarySearch(taxIDs, taxID);
+        return index < 0 ? taxID : currentTaxIDs[index];
+    }
+
+    /**
+     * @param taxID
+     * @return the tax_id has been deleted
+     */
+    public boolean isDeleted(int taxID) {
+        return remap(taxID) == DELETED;
+    }
+
+    /**
+     * @return the number of remapped tax_ids, merged and deleted
+     */
+    public int size() {
+        return taxIDs.length;
+    }
+
+    /**
+     * @return the number of tax_ids that map to DELETED
+     */
+    public int getDeletedCount() {
+        return deletedCount;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.util.Arrays;
+
+/**
+ * Scientific name index over a TaxonomyStore. Exact lookups go through an
+ * open-addressing hash table of node indices (O(1)); case-insensitive prefix
+ * queries go through the node indices sorted by case-insensitive name (O(log n + k)).
+ * Only int arrays are kept: names are decoded from the store when compared, so the
+ * index costs about 16 bytes per node. Instances are immutable and thread-safe.
+ *
+ * @author michiel
+ */
+public final class TaxonNameIndex {
+
+    private static final int EMPTY = -1;
+
+    private final TaxonomyStore store;
+    /*hash of the name per node index*/
+    private final int[] nameHashes;
+    /*open addressing with linear probing; node index or EMPTY*/
+    private final int[] table;
+    private final int mask;
+    /*node indices sorted on String.CASE_INSENSITIVE_ORDER*/
+    private final int[] sortedIndices;
+
+    /**
+     * builds the index for the given store
+     *
+     * @param store
+     */
+    public TaxonNameIndex(TaxonomyStore store) {
+        this.store = store;
+        int size = store.size();
+        int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(table, EMPTY);
+        this.nameHashes = new int[size];
+
+        /*names are decoded once for building and then discarded*/
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = store.getScientificName(i);
+            int hash = names[i].hashCode();
+            nameHashes[i] = hash;
+            /*inserted in index order, so a probe finds the lowest index first*/
+            int slot = spread(hash) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i;
+        }
+
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        mergeSort(indices, new int[size], 0, size, names);
+        this.sortedIndices = indices;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * returns the index of the first node carrying exactly the given scientific
+     * name, or TaxonomyStore.NO_INDEX when there is none
+     *
+     * @param scientificName
+     * @return index
+     */
+    public int indexOf(String scientificName) {
+        int hash = scientificName.hashCode();
+        int slot = spread(hash) & mask;
+        while (table[slot] != EMPTY) {
+            int index = table[slot];
+            if (nameHashes[index] == hash && store.getScientificName(index).equals(scientificName)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return TaxonomyStore.NO_INDEX;
+    }
+
+    /**
+     * returns the indices of all nodes whose scientific name starts with the given
+     * prefix, ignoring case, in case-insensitive name order
+     *
+     * @param prefix
+     * @return indices
+     */
+    public int[] indicesForPrefix(String prefix) {
+        int from = lowerBound(prefix);
+        int to = from;
+        while (to < sortedIndices.length
+                && store.getScientificName(sortedIndices[to]).regionMatches(true, 0, prefix, 0, prefix.length())) {
+            to++;
+        }
+        return Arrays.copyOfRange(sortedIndices, from, to);
+    }
+
+    /*the first position whose name is not smaller than the key*/
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = sortedIndices.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(store.getScientificName(sortedIndices[mid]), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of indexed names
+     */
+    public int size() {
+        return sortedIndices.length;
+    }
+
+    /*stable merge sort of node indices on their names*/
+    private static void mergeSort(int[] indices, int[] buffer, int from, int to, String[] names) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(indices, buffer, from, mid, names);
+        mergeSort(indices, buffer, mid, to, names);
+        if (String.CASE_INSENSITIVE_ORDER.compare(names[indices[mid - 1]], names[indices[mid]]) <= 0) {
+            return;
+        }
+        System.arraycopy(indices, from, buffer, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid
+                    && String.CASE_INSENSITIVE_ORDER.compare(names[buffer[left]], names[buffer[right]]) <= 0)) {
+                indices[i] = buffer[left++];
+            } else {
+                indices[i] = buffer[right++];
+            }
+        }
+    }
+}
@@ -8,6 +8,9 @@ import nl.bioinf.noback.taxonomy.model.Lineage;
 /**
  * This interface defines the methods required of an
  * data access object interfacing with the TaxDB database.
+ * Tax_ids that NCBI has merged into another node are transparently redirected
+ * to their current tax_id, when the implementation has the merged nodes; deleted
+ * tax_ids give null entries from the batch methods, without an exception.
  * @author MA Noback (m.a.noback@pl.hanze.nl)
  * @version 0.1
  */
@@ -30,6 +33,50 @@ public interface TaxonomyDao {
 	 */
 	public Lineage getGiLineage( int giNumber ) throws DatabaseException;
 	
+	/**
+	 * returns a Lineage from the given accession.version-related taxID to the root
+	 * @param accession versioned accession, e.g. NP_000005.3
+	 * @return lineage
+	 * @throws DatabaseException when the accession or its lineage is not present
+	 */
+	public Lineage getAccessionLineage( String accession ) throws DatabaseException;
+	
+	/**
+	 * returns the lineages of all given taxIDs in one call. The returned array is parallel 
+	 * to the argument; entries are null for taxIDs whose lineage could not be retrieved.
+	 * @param taxIDs
+	 * @return lineages
+	 * @throws DatabaseException when the database as a whole can not be queried
+	 */
+	public Lineage[] getLineages( int[] taxIDs ) throws DatabaseException;
+
+	/**
+	 * returns the lineages of all given gi numbers in one call. The returned array is parallel 
+	 * to the argument; entries are null for gi numbers whose lineage could not be retrieved.
+	 * @param giNumbers
+	 * @return lineages
+	 * @throws DatabaseException when the database as a whole can not be queried
+	 */
+	public Lineage[] getGiLineages( int[] giNumbers ) throws DatabaseException;
+
+	/**
+	 * returns the lineages of all given accession.versions in one call. The returned array is parallel 
+	 * to the argument; entries are null for accessions whose lineage could not be retrieved.
+	 * @param accessions
+	 * @return lineages
+	 * @throws DatabaseException when the database as a whole can not be queried
+	 */
+	public Lineage[] getAccessionLineages( String[] accessions ) throws DatabaseException;
+
+	/**
+	 * returns the lineage of the lowest common ancestor of the given taxIDs, which is the 
+	 * intersection of their lineages.
+	 * @param taxIDs at least one taxID
+	 * @return common lineage
+	 * @throws DatabaseException when a taxID is not represented in the database
+	 */
+	public Lineage getCommonLineage( int[] taxIDs ) throws DatabaseException;
+	
 	/**
 	 * returns a lineage based on the given organism name. Throws an exception when the 
 	 * name is not present.
@@ -3,72 +3,94 @@
  */
 package nl.bioinf.noback.taxonomy.dao;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
 import java.util.Properties;
 
-import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.model.Lineage;
-import nl.bioinf.noback.taxonomy.model.TaxNode;
 
 /**
  * This is the Derby embedded implementation of TaxDB interaction. 
  * It has to be provided with a location of the database, the user name and password.
+ * The instance can be shared between threads: cached lineages are served without locking,
+ * lookups run on a pool of connections, so that as many threads as there are connections
+ * query concurrently.
+ * When the database has a LineageClosureTable, as created by TaxDbLiteDerbyCreator,
+ * the lineages of a batch of tax_ids are fetched in one indexed query; otherwise
+ * level by level. A closure table that disappears while connected makes the lookups
+ * continue level by level; other errors of the closure query, e.g. a lock timeout,
+ * are reported as DatabaseException.
  * @author MA Noback (m.a.noback@pl.hanze.nl)
  * @version 1.0
  */
 public class TaxonomyDaoDerby implements TaxonomyDao {
 	private static TaxonomyDaoDerby uniqueInstance;
-	private Connection connection = null;
+	private String database;
+	private String username;
+	private String password;
 	/**
-	 * gi_prepared statement
+	 * the number of connections
 	 */
-	private PreparedStatement gi_ps;
+	private int connections;
 	/**
-	 * node table prepared statement
-	 */
-	private PreparedStatement node_ps;
-	/**
-	 * reusable resultset
+	 * for heap space safety reasons, a maximum cache size is set
 	 */
-	private ResultSet rs;
+	private int cacheSize = 10000;
 	/**
 	 * for performance, hte retrieved lineages are cache in memory
 	 */
-	private HashMap<Integer, Lineage> lineageCache;
+	private LineageCache<Integer> lineageCache;
 	/**
-	 * for heap space safety reasons, a maximum cache size is set
+	 * the connections, each with its set-based lineage retrieval
 	 */
-	private int cacheSize = 10000;
+	private SqlFetcherPool fetcherPool;
 	/**
-	 * the number of cached lineages
+	 * the lineages of earlier runs; null when not opened
 	 */
-	private int cachedLineages = 0;
+	private PersistentLineageCache persistentCache;
 	
-	private TaxonomyDaoDerby( String database, String username, String password ) throws DatabaseException{
-		this.lineageCache = new HashMap<Integer, Lineage>(); 
-		connect( database, username, password );
+	private TaxonomyDaoDerby( String database, String username, String password, int connections ) throws DatabaseException{
+		this.lineageCache = new LineageCache<Integer>( cacheSize ); 
+		this.database = database;
+		this.username = username;
+		this.password = password;
+		this.connections = connections;
+		connect();
 	}
 
-	private void connect( String database, String username, String password ) throws DatabaseException {
-		Properties props = new Properties();
+	private void connect() throws DatabaseException {
+		final Properties props = new Properties();
         props.put("user", username );
         props.put("password", password );
-		String protocol = "jdbc:derby:";
+		final String url = "jdbc:derby:" + database + ";create=false";
 
         try{
 			String driver = "org.apache.derby.jdbc.EmbeddedDriver";
 			Class.forName(driver).newInstance();
-			connection = DriverManager.getConnection(protocol + database + ";create=false", props);
-			
-			/*create prepared statements*/
-			gi_ps = connection.prepareStatement( "select tax_id from gi_numbers where gi_number=?" );
-			node_ps = connection.prepareStatement( "select * from nodes where tax_id=?" ); 
+			fetcherPool = new SqlFetcherPool( connections, new SqlFetcherPool.FetcherFactory(){
+				@Override
+				public Connection connect() throws Exception {
+					return DriverManager.getConnection( url, props );
+				}
+
+				@Override
+				public SqlLineageBatchFetcher createFetcher( Connection connection ) throws SQLException {
+					SqlLineageBatchFetcher batchFetcher = new SqlLineageBatchFetcher( connection,
+							"select * from nodes where tax_id in ({ids})",
+							"select gi_number, tax_id from gi_numbers where gi_number in ({ids})",
+							"select accession_version, tax_id from accession2taxid where accession_version in ({ids})" );
+					if( LineageClosureTable.exists( connection ) ){
+						batchFetcher.setAncestorsQuery( LineageClosureTable.LINEAGES_QUERY, 0 );
+					}
+					return batchFetcher;
+				}
+			});
+			fetcherPool.loadRemapTable( "select old_tax_id, new_tax_id from merged_nodes", "select tax_id from deleted_nodes" );
 			
 			//System.out.println( "connected to the database" );
         }catch (Exception e){
@@ -77,37 +99,116 @@ public class TaxonomyDaoDerby implements TaxonomyDao {
 	}
 
 	/**
-	 * Eagerly created Singleton pattern. Get the single instance of this class
+	 * Eagerly created Singleton pattern. Get the single instance of this class, with a
+	 * single connection
 	 * @return SequenceToolsWebDaoMySQLImpl instance
+	 * @throws DatabaseException when the instance exists with other settings
 	 */
 	public static TaxonomyDaoDerby getInstance( String database, String username, String password ) throws DatabaseException{
+		return getInstance( database, username, password, 1 );
+	}
+
+	/**
+	 * Get the single instance of this class, with a pool of connections so that the
+	 * given number of threads can query concurrently. Once created, the instance can
+	 * only be obtained with the same settings until it is disconnected
+	 * @param database
+	 * @param username
+	 * @param password
+	 * @param connections the number of connections; at least 1
+	 * @return the instance
+	 * @throws DatabaseException when the instance exists with other settings, or the
+	 * connections can not be made
+	 */
+	public static synchronized TaxonomyDaoDerby getInstance( String database, String username, String password, int connections ) throws DatabaseException{
+		if( connections < 1 ){
+			throw new DatabaseException( "number of TaxDB connections should be at least 1: " + connections );
+		}
 		if( uniqueInstance == null ){
-			uniqueInstance = new TaxonomyDaoDerby( database, username, password );
+			uniqueInstance = new TaxonomyDaoDerby( database, username, password, connections );
+		}
+		else if( !( equal( uniqueInstance.database, database ) && equal( uniqueInstance.username, username )
+				&& equal( uniqueInstance.password, password ) && uniqueInstance.connections == connections ) ){
+			throw new DatabaseException( "TaxDB connection already exists with other settings: " + uniqueInstance.database
+					+ " as " + uniqueInstance.username + " with " + uniqueInstance.connections + " connections; disconnect it first" );
 		}
 		return uniqueInstance;
 	}
 
+	private static boolean equal( String a, String b ){
+		return a == null ? b == null : a.equals( b );
+	}
+
+	/**
+	 * @return the lineage cache
+	 */
+	public LineageCache<Integer> getLineageCache() {
+		return lineageCache;
+	}
+
+	/**
+	 * @return the table that merged and deleted tax_ids are redirected with; empty
+	 * when the merged_nodes and deleted_nodes tables could not be read
+	 */
+	public TaxIdRemapTable getRemapTable() {
+		return fetcherPool.getRemapTable();
+	}
+
+	/**
+	 * adds a persistent tier behind the lineage cache: lineages resolved in earlier
+	 * runs are read from the file instead of the database, and newly resolved ones are
+	 * appended to it. The file is started anew when the nodes, merged_nodes or
+	 * deleted_nodes table has changed since it was written. It is closed by disconnect()
+	 * @param file
+	 * @return the persistent cache
+	 * @throws DatabaseException when the file can not be read or written
+	 */
+	public synchronized PersistentLineageCache openPersistentCache( File file ) throws DatabaseException {
+		closePersistentCache();
+		/*Derby sums in the type of the column*/
+		String version = fetcherPool.getTaxDbVersion(
+				"select count(*), sum(cast(tax_id as bigint)), sum(cast(parent_tax_id as bigint)) from nodes",
+				"select count(*), sum(cast(old_tax_id as bigint)), sum(cast(new_tax_id as bigint)) from merged_nodes",
+				"select count(*), sum(cast(tax_id as bigint)) from deleted_nodes" );
+		try {
+			persistentCache = PersistentLineageCache.open( file, "derby:" + version );
+		} catch (IOException e) {
+			throw new DatabaseException( "unable to open lineage cache file " + file + ": " + e.getMessage() );
+		}
+		fetcherPool.setPersistentCache( persistentCache );
+		return persistentCache;
+	}
+
+	private synchronized void closePersistentCache() throws DatabaseException {
+		if( persistentCache == null ) return;
+		fetcherPool.setPersistentCache( null );
+		try {
+			persistentCache.close();
+		} catch (IOException e) {
+			throw new DatabaseException( "unable to write lineage cache file: " + e.getMessage() );
+		} finally {
+			persistentCache = null;
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#disconnect()
 	 */
 	public void disconnect() throws DatabaseException {
-		try {
-			if( rs != null ){
-				rs.close();
-				rs = null;
+		synchronized( TaxonomyDaoDerby.class ){
+			if( uniqueInstance == this ){
+				uniqueInstance = null;
 			}
-			if( gi_ps != null ){
-				gi_ps.close();
-				gi_ps = null;
-			}
-			if( node_ps != null ){
-				node_ps.close();
-				node_ps = null;
+		}
+		try {
+			closePersistentCache();
+		} finally {
+			try {
+				fetcherPool.close();
+			} catch (SQLException e) {
+				//e.printStackTrace();
+				throw new DatabaseException( "closing the TaxDB connection encountered an Exception: " + e.getMessage() );
 			}
-			connection.close();
-		} catch (SQLException e) {
-			//e.printStackTrace();
-			throw new DatabaseException( "closing the TaxDB connection encountered an Exception: " + e.getMessage() );
 		}
 	}
 	
@@ -115,56 +216,22 @@ public class TaxonomyDaoDerby implements TaxonomyDao {
 	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineage(int)
 	 */
 	public Lineage getLineage(int taxID) throws DatabaseException {
-		try{
-			
-			if( lineageCache.containsKey(taxID) ){
-				//System.out.println( "returning cached lineage for tax_id=" + taxID );
-				return lineageCache.get( taxID );
-			}
-			else{
-				//System.out.println( "retrieving lineage from TaxDB for tax_id=" + taxID );
-				//lineage = getLineage( taxID );
-				Lineage lineage = new Lineage();
-				boolean root = false;
-				while( !root ){
-					node_ps.setInt( 1, taxID );
-					rs = node_ps.executeQuery();
-					if(! rs.next() ){
-						throw new DatabaseException("no result for tax_id number " + taxID );
-					}
-					else{
-						//System.out.println( "tax_id=" + trs.getInt("tax_id") + " scientific name=" + trs.getString("scientific_name") );//+ " gi=" + rs.getInt("gi_number")
-						taxID = rs.getInt("parent_tax_id");
-						
-						TaxNode node = new TaxNode();
-						node.setTaxID( rs.getInt("tax_id") );
-						node.setParentTaxID( rs.getInt("parent_tax_id") );
-						node.setScientificName( rs.getString("scientific_name") );
-						node.setRank( TaxonomyRank.getTaxonomyRank( rs.getString("rank") ) );
-						lineage.addNode(node);
-						if(rs.getInt("tax_id") == 1) root = true;
-					}
-					node_ps.clearParameters();
-					//rs.close();
-					//rs = null;
-				}
-				//System.out.println( "lineage retieved for tax_id=" + taxID + ": " + lineage );
-				
-				if( cachedLineages < cacheSize ){
-					//System.out.println( "caching lineage for tax_id=" + taxID );
-					lineageCache.put(lineage.getExternalNode().getTaxID(), lineage);
-					cachedLineages++;
-				}
-				else{
-					System.out.println( "exceeding cache size for stored lineages!" );
-				}
-				
-				return lineage;
-			}
-
-		}catch (Exception e) {
-			throw new DatabaseException("could not obtain lineage for tax_id " + taxID + ": " + e.getMessage() );
+		if( fetcherPool.getRemapTable().isDeleted( taxID ) ){
+			throw new DatabaseException( "taxID has been deleted from the taxonomy: " + taxID );
+		}
+		Lineage lineage = getLineages( new int[]{ taxID } )[0];
+		if( lineage == null ){
+			throw new DatabaseException("could not obtain lineage for tax_id " + taxID + ": no complete lineage in TaxDB" );
 		}
+		return lineage;
+	}
+
+	/* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getCommonLineage(int[])
+	 */
+	@Override
+	public Lineage getCommonLineage( int[] taxIDs ) throws DatabaseException {
+		return SqlLineageBatchFetcher.intersect( taxIDs, getLineages( taxIDs ) );
 	}
 
 	@Override
@@ -177,25 +244,67 @@ public class TaxonomyDaoDerby implements TaxonomyDao {
 	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineage(int)
 	 */
 	public Lineage getGiLineage( int giNumber ) throws DatabaseException {
+		Lineage lineage = getGiLineages( new int[]{ giNumber } )[0];
+		if( lineage == null ){
+			throw new DatabaseException("unable to obtain lineage for " + giNumber + " from TaxDB: no result for gi number or no complete lineage" );
+		}
+		return lineage;
+	}
+	
+	/* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineage(java.lang.String)
+	 */
+	@Override
+	public Lineage getAccessionLineage( String accession ) throws DatabaseException {
+		Lineage lineage = getAccessionLineages( new String[]{ accession } )[0];
+		if( lineage == null ){
+			throw new DatabaseException("no lineage for accession " + accession );
+		}
+		return lineage;
+	}
+	
+	/* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineages(int[])
+	 */
+	@Override
+	public Lineage[] getLineages( int[] taxIDs ) throws DatabaseException {
+		SqlLineageBatchFetcher batchFetcher = fetcherPool.acquire();
 		try {
-			//ls = connection.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
-			//ls.setFetchSize(50); 
-			
-			gi_ps.setInt(1, giNumber);
-			
-			rs = gi_ps.executeQuery();
-			//ResultSet grs = s.getResultSet();
-			if(! rs.next() ){
-				throw new DatabaseException("no result for gi number " + giNumber );
-			}
-			else{
-				//System.out.println( "tax_id=" + grs.getInt("tax_id")  );
-				int taxId = rs.getInt("tax_id");
-				return getLineage( taxId );
-			}
-		} catch (Exception e) {
-			//e.printStackTrace();
-        	throw new DatabaseException("unable to obtain lineage for " + giNumber + " from TaxDB at this time. Extra info: " + e.getMessage() );
+			return batchFetcher.getLineages( taxIDs, lineageCache );
+		} catch (SQLException e) {
+        	throw new DatabaseException("unable to obtain " + taxIDs.length + " lineages from TaxDB at this time. Extra info: " + e.getMessage() );
+		} finally {
+			fetcherPool.release( batchFetcher );
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineages(int[])
+	 */
+	@Override
+	public Lineage[] getGiLineages( int[] giNumbers ) throws DatabaseException {
+		SqlLineageBatchFetcher batchFetcher = fetcherPool.acquire();
+		try {
+			return batchFetcher.getGiLineages( giNumbers, lineageCache );
+		} catch (SQLException e) {
+        	throw new DatabaseException("unable to obtain " + giNumbers.length + " gi lineages from TaxDB at this time. Extra info: " + e.getMessage() );
+		} finally {
+			fetcherPool.release( batchFetcher );
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineages(java.lang.String[])
+	 */
+	@Override
+	public Lineage[] getAccessionLineages( String[] accessions ) throws DatabaseException {
+		SqlLineageBatchFetcher batchFetcher = fetcherPool.acquire();
+		try {
+			return batchFetcher.getAccessionLineages( accessions, lineageCache );
+		} catch (SQLException e) {
+        	throw new DatabaseException("unable to obtain " + accessions.length + " accession lineages from TaxDB at this time. Extra info: " + e.getMessage() );
+		} finally {
+			fetcherPool.release( batchFetcher );
 		}
 	}
 	
@@ -220,7 +329,7 @@ public class TaxonomyDaoDerby implements TaxonomyDao {
 		Statement s = null;
 		ResultSet rs = null;
 		try {
-			s = connection.createStatement ();
+			s = fetcherPool.getConnection().createStatement ();
 			//s.executeQuery("DROP PROCEDURE gi_lineage IF EXISTS");
 			//s.executeQuery(" DELIMITER //" +
 			s.executeQuery(" CREATE PROCEDURE gi_lineage( IN q_gi_number INT )" +
@@ -299,7 +408,7 @@ public class TaxonomyDaoDerby implements TaxonomyDao {
 	 */
 	private void test(){
 		try {
-			Statement s = connection.createStatement();
+			Statement s = fetcherPool.getConnection().createStatement();
 			s.executeQuery("select * from nodes where tax_id<10");
 			ResultSet rs = s.getResultSet ();
 			if(! rs.next() ){
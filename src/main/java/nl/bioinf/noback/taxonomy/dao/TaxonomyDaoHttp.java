@@ -0,0 +1,267 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.Lineage;
+
+/**
+ * Client implementation of TaxDB interaction: the lookups are delegated to a
+ * TaxonomyDaoServer, so that concurrent jobs share one loaded TaxDB. The batch
+ * methods send all identifiers in one request; lineages by tax_id are cached
+ * locally, and only the tax_ids that are not cached are sent. Failed lookups are
+ * reported with the message of the server. Instances can be shared between threads.
+ *
+ * @author michiel
+ */
+public class TaxonomyDaoHttp implements TaxonomyDao {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private final String baseUrl;
+    /**
+     * for heap space safety reasons, a maximum cache size is set
+     */
+    private int cacheSize = 20000;
+    private LineageCache<Integer> lineageCache;
+
+    /**
+     * constructs with the host and port of the server; checks that the server is up
+     *
+     * @param host
+     * @param port
+     * @throws DatabaseException when the server can not be reached
+     */
+    public TaxonomyDaoHttp(String host, int port) throws DatabaseException {
+        this.baseUrl = "http://" + host + ":" + port;
+        this.lineageCache = new LineageCache<Integer>(cacheSize);
+        try {
+            HttpURLConnection connection = open("/status");
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new DatabaseException("taxonomy server at " + baseUrl + " is not available: status "
+                            + connection.getResponseCode());
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("taxonomy server at " + baseUrl + " can not be reached: " + e.getMessage());
+        }
+    }
+
+    /**
+     * constructs with the address of the server as host:port; the port defaults to
+     * TaxonomyDaoServer.DEFAULT_PORT
+     *
+     * @param address
+     * @return the client
+     * @throws DatabaseException when the server can not be reached
+     */
+    public static TaxonomyDaoHttp connect(String address) throws DatabaseException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new TaxonomyDaoHttp(address, TaxonomyDaoServer.DEFAULT_PORT);
+        }
+        try {
+            return new TaxonomyDaoHttp(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new DatabaseException("taxonomy server address is not host:port: " + address);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineage(int)
+     */
+    @Override
+    public Lineage getLineage(int taxID) throws DatabaseException {
+        Lineage lineage = lineageCache.get(taxID);
+        if (lineage == null) {
+            lineage = post("/lineage", String.valueOf(taxID), 1)[0];
+            lineageCache.put(taxID, lineage);
+        }
+        return lineage;
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineage(int)
+     */
+    @Override
+    public Lineage getGiLineage(int giNumber) throws DatabaseException {
+        return post("/gi_lineage", String.valueOf(giNumber), 1)[0];
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineage(java.lang.String)
+     */
+    @Override
+    public Lineage getAccessionLineage(String accession) throws DatabaseException {
+        return post("/accession_lineage", accession, 1)[0];
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineage(java.lang.String)
+     */
+    @Override
+    public Lineage getLineage(String organismName) throws DatabaseException {
+        return post("/name_lineage", organismName, 1)[0];
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineages(int[])
+     */
+    @Override
+    public Lineage[] getLineages(int[] taxIDs) throws DatabaseException {
+        Lineage[] lineages = new Lineage[taxIDs.length];
+        /*only the tax_ids that are not cached are requested*/
+        List<Integer> missing = new ArrayList<Integer>();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < taxIDs.length; i++) {
+            lineages[i] = lineageCache.get(taxIDs[i]);
+            if (lineages[i] == null) {
+                missing.add(i);
+                body.append(taxIDs[i]).append('\n');
+            }
+        }
+        if (missing.isEmpty()) {
+            return lineages;
+        }
+        Lineage[] fetched = post("/lineages", body.toString(), missing.size());
+        for (int m = 0; m < fetched.length; m++) {
+            int i = missing.get(m);
+            lineages[i] = fetched[m];
+            if (fetched[m] != null) {
+                lineageCache.put(taxIDs[i], fetched[m]);
+            }
+        }
+        return lineages;
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineages(int[])
+     */
+    @Override
+    public Lineage[] getGiLineages(int[] giNumbers) throws DatabaseException {
+        StringBuilder body = new StringBuilder();
+        for (int giNumber : giNumbers) {
+            body.append(giNumber).append('\n');
+        }
+        return post("/gi_lineages", body.toString(), giNumbers.length);
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineages(java.lang.String[])
+     */
+    @Override
+    public Lineage[] getAccessionLineages(String[] accessions) throws DatabaseException {
+        StringBuilder body = new StringBuilder();
+        for (String accession : accessions) {
+            body.append(accession).append('\n');
+        }
+        return post("/accession_lineages", body.toString(), accessions.length);
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getCommonLineage(int[])
+     */
+    @Override
+    public Lineage getCommonLineage(int[] taxIDs) throws DatabaseException {
+        StringBuilder body = new StringBuilder();
+        for (int taxID : taxIDs) {
+            body.append(taxID).append('\n');
+        }
+        return post("/common_lineage", body.toString(), 1)[0];
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#disconnect()
+     */
+    @Override
+    public void disconnect() throws DatabaseException {
+        /*the server keeps running for the other clients*/
+        lineageCache.clear();
+    }
+
+    /**
+     * @return the local lineage cache
+     */
+    public LineageCache<Integer> getLineageCache() {
+        return lineageCache;
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        return connection;
+    }
+
+    /*sends the body and decodes the expected number of lineages from the response*/
+    private Lineage[] post(String path, String body, int expected) throws DatabaseException {
+        try {
+            HttpURLConnection connection = open(path);
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+                byte[] bytes = body.getBytes(TaxonomyDaoServer.UTF_8);
+                connection.setFixedLengthStreamingMode(bytes.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+                int status = connection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new DatabaseException(readMessage(connection.getErrorStream(), status));
+                }
+                Lineage[] lineages = new Lineage[expected];
+                BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), TaxonomyDaoServer.UTF_8));
+                try {
+                    for (int i = 0; i < expected; i++) {
+                        String line = br.readLine();
+                        if (line == null) {
+                            throw new DatabaseException("taxonomy server returned " + i + " lineages; expected " + expected);
+                        }
+                        lineages[i] = LineageTextCodec.decode(line);
+                    }
+                } finally {
+                    br.close();
+                }
+                return lineages;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("taxonomy server at " + baseUrl + " can not be reached: " + e.getMessage());
+        } catch (CorruptedLineageException e) {
+            throw new DatabaseException("taxonomy server returned a corrupted lineage: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new DatabaseException("taxonomy server response does not have correct format: " + e.getMessage());
+        }
+    }
+
+    private static String readMessage(InputStream errorStream, int status) throws IOException {
+        if (errorStream == null) {
+            return "taxonomy server returned status " + status;
+        }
+        BufferedReader br = new BufferedReader(new InputStreamReader(errorStream, TaxonomyDaoServer.UTF_8));
+        try {
+            String message = br.readLine();
+            return message == null ? "taxonomy server returned status " + status : message;
+        } finally {
+            br.close();
+        }
+    }
+}
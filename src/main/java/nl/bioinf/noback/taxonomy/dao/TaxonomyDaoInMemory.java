@@ -7,11 +7,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
@@ -20,11 +16,26 @@ import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
 import nl.bioinf.noback.taxonomy.model.TaxTree;
 import nl.bioinf.noback.taxonomy.io.ParseException;
-import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 
 /**
  * This class implements the taxonomy database as in-memory loaded variant. It
- * also uses a lineage cache for efficiency
+ * also uses a lineage cache for efficiency. The nodes file may be either the simple
+ * tab-separated nodes file or a binary snapshot created with TaxDbSnapshotCreator;
+ * the latter is memory-mapped and needs no parsing.
+ * <p>
+ * When constructed with a RequiredTaxa selection (typically collected by a first
+ * pass over the BLAST input) only the gi number and accession entries of the
+ * selection and the ancestor closure of the taxa they resolve to are loaded. Any
+ * other identifier is then reported as not represented in the database, and name
+ * lookups only find taxa of the closure.
+ * <p>
+ * With a TaxIdRemapTable, merged tax_ids are redirected to the tax_id they were
+ * merged into, and deleted tax_ids are recognized without searching the store.
+ * <p>
+ * After construction all state used by the lookup methods is either immutable
+ * (the node store and the gi, accession, name and LCA indices) or concurrent
+ * (the lineage cache), so a single instance can be shared by any number of
+ * threads without locking.
  *
  * @author michiel
  *
@@ -40,37 +51,46 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
      */
     private File giNumbersFile;
     /**
-     * map that stores the gi numbers from the sequences file and later adds the
-     * tax_ids from the gi_numbers file
+     * memory-mapped index of the gi numbers and their tax_ids
      */
-    private HashMap<Integer, Integer> giNumbersTaxIds;
+    private GiTaxIdIndex giTaxIdIndex;
     /**
-     * map that stores the relevant taxnodes with key of tax_id
+     * the NCBI accession2taxid file, or an index built from it
      */
-    private HashMap<Integer, TaxNode> taxNodes;
+    private File accessionFile;
     /**
-     * for performance, the retrieved lineages are cache in memory
+     * memory-mapped index of the accession.versions and their tax_ids
+     */
+    private AccessionTaxIdIndex accessionIndex;
+    /**
+     * the identifiers to load the taxonomy for; null to load everything
      */
-    private HashMap<Integer, Lineage> lineageCache;
+    private RequiredTaxa requiredTaxa;
     /**
-     * a cache for when lineages are retrieved based on organism name
+     * redirects merged and deleted tax_ids
      */
-    private HashMap<String, Lineage> lineageNameCache;
+    private TaxIdRemapTable remapTable = TaxIdRemapTable.EMPTY;
+    /**
+     * compact store of all TaxDB nodes; TaxNode objects are only created when
+     * lineages are requested
+     */
+    private TaxonomyStore taxonomyStore;
     /**
      * for heap space safety reasons, a maximum cache size is set
      */
     private int cacheSize = 10000;
     /**
-     * the number of cached lineages
+     * for performance, the retrieved lineages are cache in memory
      */
-    private int cachedLineages = 0;
-    private int cachedReturns = 0;//TODO remove after development
-    private int lineageRequests = 0;//TODO remove after development
-    public static int queryCount = 0;
-    private boolean analyseInformationGain;
-    private double stronglySupportedCutoffCount = 0.0001;
-    private PrintWriter pw;
-    private TaxNode root;
+    private LineageCache<Integer> lineageCache;
+    /**
+     * index for retrieving lineages based on organism name; built on first use
+     */
+    private volatile TaxonNameIndex nameIndex;
+    /**
+     * index for lowest common ancestor queries; built on first use
+     */
+    private volatile LcaIndex lcaIndex;
 
     /**
      * load with a nodes and gi numbers file
@@ -80,8 +100,61 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
      * @throws CorruptedLineageException
      */
     public TaxonomyDaoInMemory(File nodesFile, File giNumbersFile) throws IOException, ParseException, CorruptedLineageException {
+        this(nodesFile, giNumbersFile, null, null, null);
+    }
+
+    /**
+     * load with a nodes file, a gi numbers file and an accession2taxid file; the
+     * gi numbers file may be null
+     *
+     * @param nodesFile
+     * @param giNumbersFile
+     * @param accessionFile
+     * @throws ParseException
+     * @throws CorruptedLineageException
+     */
+    public TaxonomyDaoInMemory(File nodesFile, File giNumbersFile, File accessionFile) throws IOException, ParseException, CorruptedLineageException {
+        this(nodesFile, giNumbersFile, accessionFile, null, null);
+    }
+
+    /**
+     * load only what is needed for the lineages of the given identifiers, from a
+     * nodes file, a gi numbers file and an accession2taxid file; the gi numbers and
+     * accession files may be null
+     *
+     * @param nodesFile
+     * @param giNumbersFile
+     * @param accessionFile
+     * @param requiredTaxa
+     * @throws ParseException
+     * @throws CorruptedLineageException
+     */
+    public TaxonomyDaoInMemory(File nodesFile, File giNumbersFile, File accessionFile, RequiredTaxa requiredTaxa) throws IOException, ParseException, CorruptedLineageException {
+        this(nodesFile, giNumbersFile, accessionFile, null, requiredTaxa);
+    }
+
+    /**
+     * load with a nodes file, a gi numbers file, an accession2taxid file and a table
+     * of merged and deleted tax_ids, optionally only what is needed for the lineages
+     * of the given identifiers. All but the nodes file may be null
+     *
+     * @param nodesFile
+     * @param giNumbersFile
+     * @param accessionFile
+     * @param remapTable
+     * @param requiredTaxa null to load everything
+     * @throws ParseException
+     * @throws CorruptedLineageException
+     */
+    public TaxonomyDaoInMemory(File nodesFile, File giNumbersFile, File accessionFile, TaxIdRemapTable remapTable,
+            RequiredTaxa requiredTaxa) throws IOException, ParseException, CorruptedLineageException {
         this.nodesFile = nodesFile;
         this.giNumbersFile = giNumbersFile;
+        this.accessionFile = accessionFile;
+        if (remapTable != null) {
+            this.remapTable = remapTable;
+        }
+        this.requiredTaxa = requiredTaxa;
         load();
     }
 
@@ -93,17 +166,66 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
      * @throws CorruptedLineageException
      */
     public TaxonomyDaoInMemory(File nodesFile) throws IOException, ParseException, CorruptedLineageException {
-        this.nodesFile = nodesFile;
+        this(nodesFile, null, null, null, null);
+    }
 
-        load();
+    /**
+     * @return the lineage cache
+     */
+    public LineageCache<Integer> getLineageCache() {
+        return lineageCache;
+    }
+
+    /**
+     * @return the compact store holding all (or, with a RequiredTaxa selection, the required) nodes
+     */
+    public TaxonomyStore getTaxonomyStore() {
+        return taxonomyStore;
+    }
+
+    /**
+     * @return the table that merged and deleted tax_ids are redirected with
+     */
+    public TaxIdRemapTable getRemapTable() {
+        return remapTable;
+    }
 
+    /**
+     * returns the scientific name index, building it when it is first requested
+     *
+     * @return the name index
+     */
+    public TaxonNameIndex getNameIndex() {
+        TaxonNameIndex index = nameIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = nameIndex;
+                if (index == null) {
+                    index = new TaxonNameIndex(taxonomyStore);
+                    nameIndex = index;
+                }
+            }
+        }
+        return index;
     }
 
     /**
-     * @return the taxNodes
+     * returns the lowest common ancestor index, building it when it is first requested
+     *
+     * @return the LCA index
      */
-    public HashMap<Integer, TaxNode> getTaxNodes() {
-        return taxNodes;
+    public LcaIndex getLcaIndex() {
+        LcaIndex index = lcaIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = lcaIndex;
+                if (index == null) {
+                    index = new LcaIndex(taxonomyStore);
+                    lcaIndex = index;
+                }
+            }
+        }
+        return index;
     }
 
     /**
@@ -113,34 +235,19 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
      * @throws CorruptedLineageException
      */
     private void load() throws IOException, ParseException, CorruptedLineageException {
-        this.taxNodes = new HashMap<Integer, TaxNode>();
-        this.lineageCache = new HashMap<Integer, Lineage>();
+        this.lineageCache = new LineageCache<Integer>(cacheSize);
         if (giNumbersFile != null) {
-            this.giNumbersTaxIds = new HashMap<Integer, Integer>();
-            loadGiNumbers();
-        }
-        loadNodes();
-        /*link the node*/
-        linkNodes();
-
-        /*for testing purposes: TODO remove this call*/
-        //countNodes();
-        analyseInformationGain = false;
-        if (analyseInformationGain) {
-
-            try {//TODO remove this block
-                File testFile = new File("/share/home/michiel/projects/metagenomics/BGA_reads/information_gain/"
-                        + "information_gain_bacref_filtered_000p1_IsStrong.csv");
-                pw = new PrintWriter(testFile);
-                pw.println("queries\tlineage requests\tcached lineages\tstrongly supported nodes\tcached returns");
-                //System.out.println( "lineageRequests\tcachedLineages\tcachedReturns" );
-                System.out.println(this.getClass().getSimpleName() + " number of nodes in taxDB: " + taxNodes.size());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            this.giTaxIdIndex = loadGiNumbers();
+        }
+        if (accessionFile != null) {
+            this.accessionIndex = loadAccessions();
+        }
+        /*parent links are resolved when the store is built*/
+        if (requiredTaxa == null) {
+            this.taxonomyStore = loadNodes();
+        } else {
+            this.taxonomyStore = loadRequiredNodes();
         }
-
-        //System.out.println( this.getClass().getSimpleName() + ".load() TaxDB loaded with " + taxNodes.size() + " nodes" );
     }
 
     /**
@@ -149,13 +256,12 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
     public void countNodes() {
         Set<Integer> taxids = new HashSet<Integer>(1000);
 
-        if (giNumbersTaxIds != null) {
-            //int c = (giNumbersTaxIds==null ? 0 : giNumbersTaxIds.size() );
-            System.out.println("[ " + this.getClass().getSimpleName() + " ] gi numbers present in collection: " + giNumbersTaxIds.size());
+        if (giTaxIdIndex != null) {
+            System.out.println("[ " + this.getClass().getSimpleName() + " ] gi numbers present in collection: " + giTaxIdIndex.size());
 
             /*create a set of unique tax_ids*/
-            for (int taxid : giNumbersTaxIds.values()) {
-                taxids.add(taxid);
+            for (long i = 0; i < giTaxIdIndex.size(); i++) {
+                taxids.add(giTaxIdIndex.getValue(i));
             }
 
             System.out.println("[ " + this.getClass().getSimpleName() + " ] there are " + taxids.size() + " unique tax_ids found ");
@@ -176,177 +282,202 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
             System.out.println("[ " + this.getClass().getSimpleName() + " ] the size of the tree loaded from gi_taxid information is " + tree.size());
         }
 
-        /*count the nodes that have been added to the tree*/
+        /*count the nodes that are parent to at least one other node*/
+        int size = taxonomyStore.size();
+        boolean[] hasChildren = new boolean[size];
+        int rootCount = 0;
+        for (int i = 0; i < size; i++) {
+            int parent = taxonomyStore.getParentIndex(i);
+            if (parent == TaxonomyStore.NO_INDEX) {
+                rootCount++;
+            } else {
+                hasChildren[parent] = true;
+            }
+        }
         int treeNodesCount = 0;
-        int singleNodesCount = 0;
-        for (TaxNode n : taxNodes.values()) {
-            if (n.getCumulativeChildNumber() > 0) {
+        for (int i = 0; i < size; i++) {
+            if (hasChildren[i]) {
                 treeNodesCount++;
-            } else {
-                singleNodesCount++;
             }
         }
 
         System.out.println("[ " + this.getClass().getSimpleName() + " ] there are " + treeNodesCount
-                + " nodes with > 0 children; there are " + singleNodesCount + " nodes with 0 children");
-
-        int linkedCount = 0;
-        int unlinkedCount = 0;
-        int total = 0;
-        /*iterate taxnodes and creates links of this node up to the root, or higher in the tree if links already exist*/
-        for (TaxNode tn : taxNodes.values()) {
-            total++;
-            if (tn.getParentNode() == null) {
-                unlinkedCount++;
-            } else {
-                linkedCount++;
-            }
-        }
-        System.out.println("[ " + this.getClass().getSimpleName() + " ] Total number of nodes in loaded TaxDB: " + total
-                + "; unlinkedCount=" + unlinkedCount
-                + "; linkedCount=" + linkedCount
-                + "; taxnodes.size()=" + taxNodes.size());
+                + " nodes with > 0 children; there are " + (size - treeNodesCount) + " nodes with 0 children");
+
+        System.out.println("[ " + this.getClass().getSimpleName() + " ] Total number of nodes in loaded TaxDB: " + size
+                + "; unlinkedCount=" + rootCount
+                + "; linkedCount=" + (size - rootCount));
     }
 
     /**
-     * processes the dump file that holds the link between gi numbers and
-     * tax_ids
+     * opens the index of the gi numbers file. The gi numbers file is either an index
+     * itself or a tab-separated gi_number/tax_id file with a header line; in the
+     * latter case the index is read from (or first built into) the file with the
+     * same name plus the extension ".idx". When only the required taxa are loaded and there is no
+     * up-to-date index, a temporary index of just the required entries is built instead
      *
-     * @return giNumbersProcessed
+     * @return the index
      * @throws IOException
      * @throws ParseException
      */
-    private void loadGiNumbers() throws IOException, ParseException {
-        int lineNumber = 0;
-        //int matched = 0;
-        BufferedReader br = null;
-        try {
-
-            /*read from file*/
-            if ((!giNumbersFile.exists()) || (!giNumbersFile.canRead())) {
-                throw new IOException("can not read from input file " + giNumbersFile.getName());
-            }
-
-            br = new BufferedReader(new FileReader(giNumbersFile));
-            /*gi_number	tax_id*/
-            String line;
-            String[] elements;
-
-            /*skip first line*/
-            line = br.readLine();
-
-            while ((line = br.readLine()) != null) {
-                lineNumber++;
-
-                elements = line.split("\t");
-                try {
-                    int gi = Integer.parseInt(elements[0]);
-                    int taxId = Integer.parseInt(elements[1]);
-                    giNumbersTaxIds.put(gi, taxId);
-
-                } catch (Exception e) {
-                    throw new ParseException("error parsing file " + giNumbersFile.getName()
-                            + ": line does not have correct format: " + line + " at line " + lineNumber);
-                }
-            }
-        } catch (IOException e) {
-            throw new IOException("file processing failed at line " + lineNumber + ": " + e.getMessage());
-        } finally {
-            if (br != null) {
-                br.close();
+    private GiTaxIdIndex loadGiNumbers() throws IOException, ParseException {
+        if ((!giNumbersFile.exists()) || (!giNumbersFile.canRead())) {
+            throw new IOException("can not read from input file " + giNumbersFile.getName());
+        }
+        if (GiTaxIdIndex.isIndex(giNumbersFile)) {
+            return GiTaxIdIndex.open(giNumbersFile);
+        }
+        File indexFile = new File(giNumbersFile.getPath() + ".idx");
+        boolean upToDate = indexFile.exists() && indexFile.lastModified() >= giNumbersFile.lastModified();
+        if (!upToDate && requiredTaxa != null) {
+            /*only the required entries, in a throwaway index*/
+            indexFile = File.createTempFile(giNumbersFile.getName(), ".subset.idx");
+            indexFile.deleteOnExit();
+            System.out.println("[ " + this.getClass().getSimpleName() + " ] building gi numbers subset index " + indexFile.getPath());
+            GiTaxIdIndex.buildSubset(giNumbersFile, indexFile, true, requiredTaxa.getGiNumbers());
+        } else if (!upToDate) {
+            File dir = giNumbersFile.getAbsoluteFile().getParentFile();
+            if (!dir.canWrite()) {
+                /*not allowed to place the index beside the gi numbers file*/
+                indexFile = File.createTempFile(giNumbersFile.getName(), ".idx");
+                indexFile.deleteOnExit();
             }
+            System.out.println("[ " + this.getClass().getSimpleName() + " ] building gi numbers index " + indexFile.getPath());
+            GiTaxIdIndex.build(giNumbersFile, indexFile, true);
         }
+        return GiTaxIdIndex.open(indexFile);
     }
 
     /**
-     * loads node data
+     * opens the index of the accession file. The accession file is either an index
+     * itself or an NCBI accession2taxid file (optionally gzipped); in the latter case
+     * the index is read from (or first built into) the file with the same name plus
+     * the extension ".idx". When only the required taxa are loaded and there is no
+     * up-to-date index, a temporary index of just the required entries is built instead
      *
+     * @return the index
      * @throws IOException
+     * @throws ParseException
      */
-    private void loadNodes() throws IOException, ParseException, CorruptedLineageException {
-        int lineNumber = 0;
-        BufferedReader br = null;
-        try {
-            /*read from file*/
-            if ((!nodesFile.exists()) || (!nodesFile.canRead())) {
-                throw new IOException("can not read from input file " + nodesFile.getName());
+    private AccessionTaxIdIndex loadAccessions() throws IOException, ParseException {
+        if ((!accessionFile.exists()) || (!accessionFile.canRead())) {
+            throw new IOException("can not read from input file " + accessionFile.getName());
+        }
+        if (AccessionTaxIdIndex.isIndex(accessionFile)) {
+            return AccessionTaxIdIndex.open(accessionFile);
+        }
+        File indexFile = new File(accessionFile.getPath() + ".idx");
+        boolean upToDate = indexFile.exists() && indexFile.lastModified() >= accessionFile.lastModified();
+        if (!upToDate && requiredTaxa != null) {
+            /*only the required entries, in a throwaway index*/
+            indexFile = File.createTempFile(accessionFile.getName(), ".subset.idx");
+            indexFile.deleteOnExit();
+            System.out.println("[ " + this.getClass().getSimpleName() + " ] building accession subset index " + indexFile.getPath());
+            AccessionTaxIdIndex.buildSubset(new File[]{accessionFile}, indexFile, requiredTaxa.getAccessions());
+        } else if (!upToDate) {
+            File dir = accessionFile.getAbsoluteFile().getParentFile();
+            if (!dir.canWrite()) {
+                /*not allowed to place the index beside the accession file*/
+                indexFile = File.createTempFile(accessionFile.getName(), ".idx");
+                indexFile.deleteOnExit();
             }
+            System.out.println("[ " + this.getClass().getSimpleName() + " ] building accession index " + indexFile.getPath());
+            AccessionTaxIdIndex.build(new File[]{accessionFile}, indexFile);
+        }
+        return AccessionTaxIdIndex.open(indexFile);
+    }
 
-            br = new BufferedReader(new FileReader(nodesFile));
-            String line;
-            String[] elements;
-
-            while ((line = br.readLine()) != null) {
-                lineNumber++;
-
-                /*tax_id \t parent tax_id \t rank \t name*/
-                /*2	131567	superkingdom	Bacteria*/
-                elements = line.split("\t");
-                try {
-                    int taxId = Integer.parseInt(elements[0]);
-                    int pTaxId = Integer.parseInt(elements[1]);
-                    String rank = elements[2];
-                    String name = elements[3];
-
-                    //System.out.println("tax_id=" + taxId + " p_tax_id=" + pTaxId + " rank=" +rank);
-
-                    TaxNode tn = new TaxNode(taxId, pTaxId);
-                    tn.setRank(TaxonomyRank.getTaxonomyRank(rank));
-                    tn.setScientificName(name);
-
-                    taxNodes.put(taxId, tn);
-
-                    //TODO remove after development
-                    if (taxId == 1) {
-                        this.root = tn;
-                    }
-                    //System.out.println( taxNodes.get(taxId) );
+    /**
+     * loads node data into a compact store and links the nodes. When the nodes
+     * file is a binary TaxDB snapshot it is mapped instead of parsed
+     *
+     * @return the store
+     * @throws IOException
+     * @throws CorruptedLineageException when a node has no parent in the file
+     */
+    private TaxonomyStore loadNodes() throws IOException, ParseException, CorruptedLineageException {
+        if (MappedTaxonomyStore.isSnapshot(nodesFile)) {
+            return MappedTaxonomyStore.open(nodesFile);
+        }
+        /*tax_id \t parent tax_id \t rank \t name, parsed on all cores*/
+        return ParallelNodesFileLoader.load(nodesFile);
+    }
 
-                } catch (NumberFormatException e) {
-                    throw new ParseException("error parsing file " + nodesFile.getName()
-                            + ": line does not have correct format: " + line + " at line " + lineNumber);
+    /**
+     * loads the ancestor closure of the required taxa: the required tax_ids and
+     * those that the required gi numbers and accessions map to. A binary snapshot
+     * is mapped as a whole, since only the pages that are used are read anyway
+     *
+     * @return the store
+     * @throws IOException
+     * @throws CorruptedLineageException when a node has no parent in the file
+     */
+    private TaxonomyStore loadRequiredNodes() throws IOException, ParseException, CorruptedLineageException {
+        if (MappedTaxonomyStore.isSnapshot(nodesFile)) {
+            return MappedTaxonomyStore.open(nodesFile);
+        }
+        Set<Integer> taxIDs = new HashSet<Integer>();
+        for (int taxID : requiredTaxa.getTaxIDs()) {
+            taxIDs.add(remapTable.remap(taxID));
+        }
+        if (giTaxIdIndex != null) {
+            for (long giNumber : requiredTaxa.getGiNumbers()) {
+                int taxID = giTaxIdIndex.lookup(giNumber);
+                if (taxID != GiTaxIdIndex.NO_TAX_ID) {
+                    taxIDs.add(remapTable.remap(taxID));
                 }
             }
-        } catch (IOException e) {
-            throw new IOException("file processing failed at line " + lineNumber + ": " + e.getMessage());
-        } finally {
-            if (br != null) {
-                br.close();
+        }
+        if (accessionIndex != null) {
+            for (String accession : requiredTaxa.getAccessions()) {
+                int taxID = accessionIndex.lookup(accession);
+                if (taxID != AccessionTaxIdIndex.NO_TAX_ID) {
+                    taxIDs.add(remapTable.remap(taxID));
+                }
             }
         }
+        taxIDs.remove(TaxIdRemapTable.DELETED);
+        int[] closureRoots = new int[taxIDs.size()];
+        int i = 0;
+        for (int taxID : taxIDs) {
+            closureRoots[i++] = taxID;
+        }
+        TaxonomyStore store = PartialNodesFileLoader.load(nodesFile, closureRoots);
+        System.out.println("[ " + this.getClass().getSimpleName() + " ] loaded " + store.size() + " nodes for "
+                + taxIDs.size() + " required taxa");
+        return store;
     }
 
     /**
-     * creates lineage links between all nodes
+     * creates the lineage of the node at the given store index, creating TaxNode
+     * objects on the way up to the root
      *
-     * @param node
+     * @param index
+     * @return lineage
+     * @throws CorruptedLineageException
      */
-    private void linkNodes() throws CorruptedLineageException {
-        /*iterate taxnodes and creates links of this node up to the root, or higher in the tree if links already exist*/
-        for (TaxNode tn : taxNodes.values()) {
-            TaxNode parent = null;
-
-            //System.out.println(this.getClass().getSimpleName() + " creating links for TaxNode=" + tn);
-
-            while (tn.getParentNode() == null && tn.getTaxID() != 1) {
-
-                if (taxNodes.containsKey(tn.getParentTaxID())) {
-                    parent = taxNodes.get(tn.getParentTaxID());
-
-                    //System.out.println(this.getClass().getSimpleName() + " tax_id=" + tn.getTaxID() + " parent=" + parent.getTaxID() );
-
-                    try {
-                        tn.setParentNode(parent);
-                        tn = parent;
-                    } catch (CorruptedLineageException e) {
-                        throw new CorruptedLineageException("a CorruptedLineageException occurred with node "
-                                + tn + " when attempting to set parent " + parent);
-                    }
-                } else {
-                    throw new CorruptedLineageException("TaxNode without parent =" + tn);
-                }
+    private Lineage createLineage(int index) throws CorruptedLineageException {
+        int length = 0;
+        for (int i = index; i != TaxonomyStore.NO_INDEX; i = taxonomyStore.getParentIndex(i)) {
+            length++;
+        }
+        TaxNode[] nodes = new TaxNode[length];
+        TaxNode child = null;
+        for (int n = 0; n < length; n++) {
+            int parentIndex = taxonomyStore.getParentIndex(index);
+            int taxId = taxonomyStore.getTaxID(index);
+            /*the root is its own parent, as in the NCBI dump*/
+            TaxNode tn = new TaxNode(taxId, parentIndex == TaxonomyStore.NO_INDEX ? taxId : taxonomyStore.getTaxID(parentIndex));
+            tn.setRank(taxonomyStore.getRank(index));
+            tn.setScientificName(taxonomyStore.getScientificName(index));
+            if (child != null) {
+                child.setParentNode(tn);
             }
+            nodes[n] = tn;
+            child = tn;
+            index = parentIndex;
         }
+        return new Lineage(nodes);
     }
 
     /* (non-Javadoc)
@@ -354,10 +485,6 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
      */
     @Override
     public void disconnect() throws DatabaseException {
-        //System.out.println( "lineageRequests\tcachedLineages\tcachedReturns" );
-        if (pw != null) {
-            pw.close();
-        }
         /*void method*/
     }
 
@@ -369,24 +496,28 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
         if (giNumbersFile == null) {
             throw new DatabaseException("giNumbers file is not loaded: check your configuration file");
         }
-        if (giNumbersTaxIds.containsKey(giNumber)) {
-            int taxId = giNumbersTaxIds.get(giNumber);
+        int taxId = giTaxIdIndex.lookup(giNumber);
+        if (taxId != GiTaxIdIndex.NO_TAX_ID) {
             return getLineage(taxId);
         } else {
             throw new DatabaseException("giNumber is not represented in database: " + giNumber);
         }
     }
 
-    private int countStronglySupportedLineages(double cutoffCount) {
-        int count = 0;
-        int rootTotal = root.getCumulativeChildNumber();
-        for (TaxNode n : taxNodes.values()) {
-            if (((double) n.getCumulativeChildNumber() / rootTotal) > cutoffCount) {
-                count++;
-            }
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineage(java.lang.String)
+     */
+    @Override
+    public Lineage getAccessionLineage(String accession) throws DatabaseException {
+        if (accessionIndex == null) {
+            throw new DatabaseException("accession file is not loaded: check your configuration file");
+        }
+        int taxId = accessionIndex.lookup(accession);
+        if (taxId != AccessionTaxIdIndex.NO_TAX_ID) {
+            return getLineage(taxId);
+        } else {
+            throw new DatabaseException("accession is not represented in database: " + accession);
         }
-        return count;
-
     }
 
     /* (non-Javadoc)
@@ -394,88 +525,147 @@ public class TaxonomyDaoInMemory implements TaxonomyDao {
      */
     @Override
     public Lineage getLineage(int taxID) throws DatabaseException {
-
-        //TODO remove this after testing
-
-        if (analyseInformationGain) {
-            lineageRequests++;
-
-            if (lineageRequests <= 1000 && lineageRequests % 100 == 0) {
-                int stronglySupportedCount = countStronglySupportedLineages(stronglySupportedCutoffCount);
-                //System.out.println( lineageRequests	+ "\t" + cachedLineages	+ "\t" + cachedReturns + "\t" + stronglySupportedCount);
-                pw.println(queryCount
-                        + "\t" + lineageRequests
-                        + "\t" + cachedLineages
-                        + "\t" + stronglySupportedCount
-                        + "\t" + cachedReturns);
-            } else if (lineageRequests <= 500000 && lineageRequests % 1000 == 0) {
-                int stronglySupportedCount = countStronglySupportedLineages(stronglySupportedCutoffCount);
-                //System.out.println( this.getClass().getSimpleName() + " returned " + cachedReturns + " cached lineages"  );
-                pw.println(queryCount + "\t" + lineageRequests + "\t" + cachedLineages + "\t" + stronglySupportedCount + "\t" + cachedReturns);
-            } else if (lineageRequests % 500000 == 0) {
-                int stronglySupportedCount = countStronglySupportedLineages(stronglySupportedCutoffCount);
-                //System.out.println( this.getClass().getSimpleName() + " returned " + cachedReturns + " cached lineages"  );
-                pw.println(queryCount + "\t" + lineageRequests + "\t" + cachedLineages + "\t" + stronglySupportedCount + "\t" + cachedReturns);
+        Lineage lineage;
+        try {
+            lineage = findLineage(taxID);
+        } catch (CorruptedLineageException e) {
+            throw new DatabaseException("corrupted lineage for taxID " + taxID + ": " + e.getMessage());
+        }
+        if (lineage == null) {
+            if (remapTable.isDeleted(taxID)) {
+                throw new DatabaseException("taxID has been deleted from the taxonomy: " + taxID);
             }
+            throw new DatabaseException("taxID is not represented in database: " + taxID);
         }
+        return lineage;
+    }
 
+    /**
+     * returns the (cached) lineage of the current tax_id of the given tax_id
+     *
+     * @param taxID
+     * @return lineage; null when the tax_id is deleted or not represented
+     * @throws CorruptedLineageException
+     */
+    private Lineage findLineage(int taxID) throws CorruptedLineageException {
+        taxID = remapTable.remap(taxID);
+        if (taxID == TaxIdRemapTable.DELETED) {
+            return null;
+        }
+        Lineage cached = lineageCache.get(taxID);
+        if (cached != null) {
+            return cached;
+        }
+        int index = taxonomyStore.indexOf(taxID);
+        if (index == TaxonomyStore.NO_INDEX) {
+            return null;
+        }
+        Lineage lineage = createLineage(index);
+        lineageCache.put(taxID, lineage);
+        return lineage;
+    }
 
-        if (lineageCache.containsKey(taxID)) {
-            cachedReturns++;
-            return lineageCache.get(taxID);
-        } else {
-            List<TaxNode> nodesList = new ArrayList<TaxNode>();
-            Lineage lineage = null;
-            try {
-                if (taxNodes.containsKey(taxID)) {
-                    TaxNode tn = taxNodes.get(taxID);
-                    nodesList.add(tn);
-                    while (tn.getParentNode() != null) {//only the root should have a null parent
-                        tn = tn.getParentNode();
-                        nodesList.add(tn);
-                    }
-                } else {
-                    throw new DatabaseException("taxID is not represented in database: " + taxID);
-                }
-                //System.out.println( this.getClass().getSimpleName() + " lineage list: " + nodesList.toString() );
+    /*for the batch methods: failures give null without creating an exception*/
+    private Lineage findLineageOrNull(int taxID) {
+        try {
+            return findLineage(taxID);
+        } catch (CorruptedLineageException e) {
+            return null;
+        }
+    }
 
-                lineage = new Lineage(nodesList);
-            } catch (CorruptedLineageException e) {
-                e.printStackTrace();
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineages(int[])
+     */
+    @Override
+    public Lineage[] getLineages(int[] taxIDs) throws DatabaseException {
+        Lineage[] lineages = new Lineage[taxIDs.length];
+        for (int i = 0; i < taxIDs.length; i++) {
+            lineages[i] = findLineageOrNull(taxIDs[i]);
+        }
+        return lineages;
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineages(int[])
+     */
+    @Override
+    public Lineage[] getGiLineages(int[] giNumbers) throws DatabaseException {
+        if (giNumbersFile == null) {
+            throw new DatabaseException("giNumbers file is not loaded: check your configuration file");
+        }
+        Lineage[] lineages = new Lineage[giNumbers.length];
+        for (int i = 0; i < giNumbers.length; i++) {
+            int taxId = giTaxIdIndex.lookup(giNumbers[i]);
+            if (taxId != GiTaxIdIndex.NO_TAX_ID) {
+                lineages[i] = findLineageOrNull(taxId);
             }
-            if (cachedLineages < cacheSize) {
-                //System.out.println( "caching lineage for tax_id=" + taxID );
-                lineageCache.put(lineage.getExternalNode().getTaxID(), lineage);
-                cachedLineages++;
-
-//				if( cachedLineages % 20 == 0 ){
-//					System.out.println( this.getClass().getSimpleName() + " lineage cache size=" + cachedLineages );
-//				}
-            } else {
-                System.out.println(this.getClass().getSimpleName() + " exceeding cache size at " + cacheSize);
+        }
+        return lineages;
+    }
+
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineages(java.lang.String[])
+     */
+    @Override
+    public Lineage[] getAccessionLineages(String[] accessions) throws DatabaseException {
+        if (accessionIndex == null) {
+            throw new DatabaseException("accession file is not loaded: check your configuration file");
+        }
+        Lineage[] lineages = new Lineage[accessions.length];
+        for (int i = 0; i < accessions.length; i++) {
+            int taxId = accessionIndex.lookup(accessions[i]);
+            if (taxId != AccessionTaxIdIndex.NO_TAX_ID) {
+                lineages[i] = findLineageOrNull(taxId);
             }
-            return lineage;
         }
+        return lineages;
     }
 
+    /* (non-Javadoc)
+     * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getCommonLineage(int[])
+     */
     @Override
-    public Lineage getLineage(String organismName) throws DatabaseException {
-        if (lineageNameCache != null && lineageNameCache.containsKey(organismName)) {
-            return lineageNameCache.get(organismName);
-        } else {
-            for (TaxNode tn : taxNodes.values()) {
-                if (tn.getScientificName().equals(organismName)) {
-                    Lineage l = getLineage(tn.getTaxID());
-                    if (lineageNameCache == null) {
-                        lineageNameCache = new HashMap<String, Lineage>();
-                    }
-                    lineageNameCache.put(organismName, l);
-                    cachedLineages++;
-                    return l;
-                }
+    public Lineage getCommonLineage(int[] taxIDs) throws DatabaseException {
+        int[] currentTaxIDs = new int[taxIDs.length];
+        for (int i = 0; i < taxIDs.length; i++) {
+            currentTaxIDs[i] = remapTable.remap(taxIDs[i]);
+            if (currentTaxIDs[i] == TaxIdRemapTable.DELETED) {
+                throw new DatabaseException("taxID has been deleted from the taxonomy: " + taxIDs[i]);
             }
+        }
+        int lca;
+        try {
+            lca = getLcaIndex().lcaOfTaxIDs(currentTaxIDs);
+        } catch (IllegalArgumentException e) {
+            throw new DatabaseException(e.getMessage());
+        }
+        return getLineage(lca);
+    }
+
+    @Override
+    public Lineage getLineage(String organismName) throws DatabaseException {
+        int index = getNameIndex().indexOf(organismName);
+        if (index == TaxonomyStore.NO_INDEX) {
             throw new DatabaseException("no TaxNode found with scientific name " + organismName);
         }
+        return getLineage(taxonomyStore.getTaxID(index));
+    }
+
+    /**
+     * returns the tax_ids of all nodes whose scientific name starts with the given
+     * prefix, ignoring case
+     *
+     * @param prefix
+     * @return taxIDs
+     */
+    public int[] getTaxIDsForNamePrefix(String prefix) {
+        int[] indices = getNameIndex().indicesForPrefix(prefix);
+        int[] taxIDs = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            taxIDs[i] = taxonomyStore.getTaxID(indices[i]);
+        }
+        return taxIDs;
     }
 
     /**
@@ -3,49 +3,56 @@
  */
 package nl.bioinf.noback.taxonomy.dao;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
 
-import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
-import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
 import nl.bioinf.noback.taxonomy.model.Lineage;
-import nl.bioinf.noback.taxonomy.model.TaxNode;
 
 /**
+ * MySQL implementation of TaxDB interaction. The instance can be shared between
+ * threads: cached lineages are served without locking, lookups run on a pool of
+ * connections, so that as many threads as there are connections query concurrently.
+ * Lineages, also single ones, are resolved set-based: on MySQL 8 a single recursive
+ * query returns all nodes of the lineages of up to IN_LIST_SIZE tax_ids, streamed
+ * row by row; older servers fall back to one IN-list query per taxonomy level.
  * @author MA Noback (m.a.noback@pl.hanze.nl)
  * @version 0.1
  */
 public class TaxonomyDaoMysql implements TaxonomyDao {
 
     private static TaxonomyDaoMysql uniqueInstance;
-    private Connection connection = null;
     private String dbUsername;
     private String database;
     private String host;
     private String password;
 
-    private PreparedStatement taxIdPreparedStatement;
+    /**
+     * for heap space safety reasons, a maximum cache size is set
+     */
+    private int cacheSize = 20000;
     /**
      * for performance, the retrieved lineages are cache in memory
      */
-    private HashMap<Integer, Lineage> lineageCache;
+    private LineageCache<Integer> lineageCache;
     /**
-     * for heap space safety reasons, a maximum cache size is set
+     * the connections, each with its set-based lineage retrieval
      */
-    private int cacheSize = 20000;
-    private int cachedLineages = 0;
-    private PreparedStatement callLineagePreparedStatement;
+    private SqlFetcherPool fetcherPool;
     /**
      * the gi_numbers table to get gi numbers from (protein / RNA gi numbers)
      */
     private String giTable;
-
-    @SuppressWarnings("unused")
-    private int cachedReturns;
+    /**
+     * the number of connections
+     */
+    private int connections;
+    /**
+     * the lineages of earlier runs; null when not opened
+     */
+    private PersistentLineageCache persistentCache;
 
     /**
      * private constructor can only be called from within this class: getINstance()
@@ -54,66 +61,185 @@ public class TaxonomyDaoMysql implements TaxonomyDao {
      * @param host
      * @param username
      * @param password
+     * @param giTable
+     * @param connections
      * @throws DatabaseException
      */
-    private TaxonomyDaoMysql(String database, String host, String username, String password, String giTable)
-            throws DatabaseException {
-        this.lineageCache = new HashMap<Integer, Lineage>();
+    private TaxonomyDaoMysql(String database, String host, String username, String password, String giTable,
+            int connections) throws DatabaseException {
+        this.lineageCache = new LineageCache<Integer>(cacheSize);
         this.database = database;
         this.host = host;
         this.dbUsername = username;
         this.password = password;
         this.giTable = giTable;
+        this.connections = connections;
 
         connect();
     }
 
     private void connect() throws DatabaseException {
         try {
-            String url = "jdbc:mysql://" + this.host + "/" + this.database;
             Class.forName("com.mysql.jdbc.Driver").newInstance();
-            connection = DriverManager.getConnection(url, dbUsername, password);
+            fetcherPool = new SqlFetcherPool(connections, new SqlFetcherPool.FetcherFactory() {
+                @Override
+                public Connection connect() throws Exception {
+                    return DriverManager.getConnection("jdbc:mysql://" + host + "/" + database, dbUsername, password);
+                }
 
-            String ps = "SELECT tax_id FROM " + giTable + " WHERE gi_number = ?;";
-            //System.out.println(this.getClass().getSimpleName() + " prepared stament:" + ps);
-            taxIdPreparedStatement = connection.prepareStatement(ps);
-            callLineagePreparedStatement = connection.prepareStatement("CALL lineage( ? );");
+                @Override
+                public SqlLineageBatchFetcher createFetcher(Connection connection) throws SQLException {
+                    return createBatchFetcher(connection);
+                }
+            });
+            fetcherPool.loadRemapTable("SELECT old_tax_id, new_tax_id FROM merged_nodes;", "SELECT tax_id FROM deleted_nodes;");
 
         } catch (Exception e) {
             throw new DatabaseException("unable to connect to TaxDB at this time");
         }
     }
 
+    private SqlLineageBatchFetcher createBatchFetcher(Connection connection) {
+        SqlLineageBatchFetcher batchFetcher = new SqlLineageBatchFetcher(connection,
+                "SELECT nodes.tax_id, nodes.parent_tax_id, nodes.rank, names.name AS scientific_name FROM nodes"
+                + " LEFT JOIN names ON nodes.tax_id = names.tax_id AND names.name_class = 'scientific name'"
+                + " WHERE nodes.tax_id IN ({ids});",
+                "SELECT gi_number, tax_id FROM " + giTable + " WHERE gi_number IN ({ids});",
+                "SELECT accession_version, tax_id FROM accession2taxid WHERE accession_version IN ({ids});");
+        /*qualified column names: rank is a reserved word as of MySQL 8*/
+        batchFetcher.setAncestorsQuery(
+                "WITH RECURSIVE ancestors (tax_id, parent_tax_id) AS ("
+                + " SELECT nodes.tax_id, nodes.parent_tax_id FROM nodes WHERE nodes.tax_id IN ({ids})"
+                + " UNION"
+                + " SELECT nodes.tax_id, nodes.parent_tax_id FROM nodes"
+                + " JOIN ancestors ON nodes.tax_id = ancestors.parent_tax_id WHERE ancestors.tax_id <> 1)"
+                + " SELECT nodes.tax_id, nodes.parent_tax_id, nodes.rank, names.name AS scientific_name FROM ancestors"
+                + " JOIN nodes ON nodes.tax_id = ancestors.tax_id"
+                + " LEFT JOIN names ON nodes.tax_id = names.tax_id AND names.name_class = 'scientific name';",
+                Integer.MIN_VALUE);
+        return batchFetcher;
+    }
+
     /**
-     * Eagerly created Singleton pattern. Get the single instance of this class
+     * Eagerly created Singleton pattern. Get the single instance of this class, with a
+     * single connection
      *
      * @return SequenceToolsWebDaoMySQLImpl instance
+     * @throws DatabaseException when the instance exists with other settings
      */
     public static TaxonomyDaoMysql getInstance(String database, String host, String username, String password, String giTable) throws DatabaseException {
+        return getInstance(database, host, username, password, giTable, 1);
+    }
+
+    /**
+     * Get the single instance of this class, with a pool of connections so that the
+     * given number of threads can query concurrently. Once created, the instance can
+     * only be obtained with the same settings until it is disconnected
+     *
+     * @param database
+     * @param host
+     * @param username
+     * @param password
+     * @param giTable
+     * @param connections the number of connections; at least 1
+     * @return the instance
+     * @throws DatabaseException when the instance exists with other settings, or the
+     * connections can not be made
+     */
+    public static synchronized TaxonomyDaoMysql getInstance(String database, String host, String username, String password,
+            String giTable, int connections) throws DatabaseException {
+        if (connections < 1) {
+            throw new DatabaseException("number of TaxDB connections should be at least 1: " + connections);
+        }
         if (uniqueInstance == null) {
-            uniqueInstance = new TaxonomyDaoMysql(database, host, username, password, giTable);
+            uniqueInstance = new TaxonomyDaoMysql(database, host, username, password, giTable, connections);
+        } else if (!(equal(uniqueInstance.database, database) && equal(uniqueInstance.host, host)
+                && equal(uniqueInstance.dbUsername, username) && equal(uniqueInstance.password, password)
+                && equal(uniqueInstance.giTable, giTable) && uniqueInstance.connections == connections)) {
+            throw new DatabaseException("TaxDB connection already exists with other settings: "
+                    + uniqueInstance.dbUsername + "@" + uniqueInstance.host + "/" + uniqueInstance.database
+                    + " (gi table " + uniqueInstance.giTable + ", " + uniqueInstance.connections + " connections);"
+                    + " disconnect it first");
         }
         return uniqueInstance;
     }
 
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return the lineage cache
+     */
+    public LineageCache<Integer> getLineageCache() {
+        return lineageCache;
+    }
+
+    /**
+     * @return the table that merged and deleted tax_ids are redirected with; empty
+     * when the merged_nodes and deleted_nodes tables could not be read
+     */
+    public TaxIdRemapTable getRemapTable() {
+        return fetcherPool.getRemapTable();
+    }
+
+    /**
+     * adds a persistent tier behind the lineage cache: lineages resolved in earlier
+     * runs are read from the file instead of the database, and newly resolved ones are
+     * appended to it. The file is started anew when the nodes, merged_nodes or
+     * deleted_nodes table has changed since it was written. It is closed by disconnect()
+     *
+     * @param file
+     * @return the persistent cache
+     * @throws DatabaseException when the file can not be read or written
+     */
+    public synchronized PersistentLineageCache openPersistentCache(File file) throws DatabaseException {
+        closePersistentCache();
+        String version = fetcherPool.getTaxDbVersion(
+                "SELECT COUNT(*), SUM(tax_id), SUM(parent_tax_id) FROM nodes;",
+                "SELECT COUNT(*), SUM(old_tax_id), SUM(new_tax_id) FROM merged_nodes;",
+                "SELECT COUNT(*), SUM(tax_id) FROM deleted_nodes;");
+        try {
+            persistentCache = PersistentLineageCache.open(file, "mysql:" + version);
+        } catch (IOException e) {
+            throw new DatabaseException("unable to open lineage cache file " + file + ": " + e.getMessage());
+        }
+        fetcherPool.setPersistentCache(persistentCache);
+        return persistentCache;
+    }
+
+    private synchronized void closePersistentCache() throws DatabaseException {
+        if (persistentCache == null) {
+            return;
+        }
+        fetcherPool.setPersistentCache(null);
+        try {
+            persistentCache.close();
+        } catch (IOException e) {
+            throw new DatabaseException("unable to write lineage cache file: " + e.getMessage());
+        } finally {
+            persistentCache = null;
+        }
+    }
+
     /* (non-Javadoc)
 	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#disconnect()
      */
     public void disconnect() throws DatabaseException {
-        try {
-            connection.close();
-            if (taxIdPreparedStatement != null) {
-                taxIdPreparedStatement.close();
-                taxIdPreparedStatement = null;
+        synchronized (TaxonomyDaoMysql.class) {
+            if (uniqueInstance == this) {
+                uniqueInstance = null;
             }
-            if (callLineagePreparedStatement != null) {
-                callLineagePreparedStatement.close();
-                callLineagePreparedStatement = null;
+        }
+        try {
+            closePersistentCache();
+        } finally {
+            try {
+                fetcherPool.close();
+            } catch (SQLException e) {
+                //e.printStackTrace();
+                throw new DatabaseException("closing the TaxDB connection encountered an Exception: " + e.getMessage());
             }
-
-        } catch (SQLException e) {
-            //e.printStackTrace();
-            throw new DatabaseException("closing the TaxDB connection encountered an Exception: " + e.getMessage());
         }
     }
 
@@ -121,86 +247,90 @@ public class TaxonomyDaoMysql implements TaxonomyDao {
 	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineage(int)
      */
     public Lineage getLineage(int taxID) throws DatabaseException {
-
-        try {
-            if (lineageCache.containsKey(taxID)) {
-                cachedReturns++;
-//				if( cachedReturns % 1000 == 0 ){
-//					System.out.println( this.getClass().getSimpleName() + " returned " + cachedReturns + " cached lineages"  );
-//				}
-                return lineageCache.get(taxID);
-            } else {
-                //System.out.println(  this.getClass().getSimpleName() + "retrieving lineage from TaxDB for tax_id=" + taxID );
-                callLineagePreparedStatement.setInt(1, taxID);
-                ResultSet lrs = callLineagePreparedStatement.executeQuery();
-                //ResultSet lrs = ls.getResultSet ();
-
-                //System.out.println( this.getClass().getSimpleName() +  "retrieved lineage from TaxDB for tax_id=" + taxID );
-                Lineage lineage = processTaxDbLineage(lrs, taxID);
-
-                //System.out.println( "processed lineage from TaxDB for tax_id=" + taxID + " end node=" + lineage.getExternalNode());
-                callLineagePreparedStatement.clearParameters();
-
-                if (cachedLineages < cacheSize) {
-                    //System.out.println( "caching lineage for tax_id=" + taxID );
-                    lineageCache.put(lineage.getExternalNode().getTaxID(), lineage);
-                    cachedLineages++;
-
-//					if( cachedLineages % 20 == 0 ){
-//						System.out.println( this.getClass().getSimpleName() + " lineage cache size=" + cachedLineages );
-//					}
-                } else if (cachedLineages == cacheSize) {
-                    System.out.println("[" + this.getClass().getSimpleName() + "] exceeding cache size for stored lineages!"
-                            + "\nrevertnig to MySQL querying all requests");
-                }
-                return lineage;
-            }
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new DatabaseException("unable to obtain lineage for " + taxID + " from TaxDB at this time");
+        if (fetcherPool.getRemapTable().isDeleted(taxID)) {
+            throw new DatabaseException("taxID has been deleted from the taxonomy: " + taxID);
         }
-
+        Lineage lineage = getLineages(new int[]{taxID})[0];
+        if (lineage == null) {
+            throw new DatabaseException("taxID is not represented in database: " + taxID);
+        }
+        return lineage;
     }
 
     /* (non-Javadoc)
 	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineage(int)
      */
     public Lineage getGiLineage(int giNumber) throws DatabaseException {
-        //System.out.println(this.getClass().getSimpleName() + ".getGiLineage(): gi=" + giNumber );
-
-        Lineage lineage = null;
-        try {
-            //ls = connection.createStatement();
-            taxIdPreparedStatement.setInt(1, giNumber);
-            ResultSet tidrs = taxIdPreparedStatement.executeQuery();
-            if (!tidrs.next()) {
-                throw new DatabaseException("gi number does not exist");
-            } else {
+        Lineage lineage = getGiLineages(new int[]{giNumber})[0];
+        if (lineage == null) {
+            throw new DatabaseException("unable to obtain lineage for " + giNumber + " from TaxDB: gi number or its lineage does not exist");
+        }
+        return lineage;
+    }
 
-                int taxID = tidrs.getInt("tax_id");
+    /* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineage(java.lang.String)
+     */
+    @Override
+    public Lineage getAccessionLineage(String accession) throws DatabaseException {
+        Lineage lineage = getAccessionLineages(new String[]{accession})[0];
+        if (lineage == null) {
+            throw new DatabaseException("unable to obtain lineage for accession " + accession + " from TaxDB");
+        }
+        return lineage;
+    }
 
-                //System.out.println(this.getClass().getSimpleName() + ".getGiLineage(): tax_id=" + taxID );
-                lineage = getLineage(taxID);
+    /* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getLineages(int[])
+     */
+    @Override
+    public Lineage[] getLineages(int[] taxIDs) throws DatabaseException {
+        SqlLineageBatchFetcher batchFetcher = fetcherPool.acquire();
+        try {
+            return batchFetcher.getLineages(taxIDs, lineageCache);
+        } catch (SQLException e) {
+            throw new DatabaseException("unable to obtain " + taxIDs.length + " lineages from TaxDB at this time: " + e.getMessage());
+        } finally {
+            fetcherPool.release(batchFetcher);
+        }
+    }
 
-//				if( lineage == null ){
-//					System.out.println(this.getClass().getSimpleName() + ".getGiLineage(): null lineage" );
-//				}
-//				else{
-//					System.out.println(this.getClass().getSimpleName() + ".getGiLineage(): lineage=" + lineage );
-//				}
-//				System.exit(0);
-            }
+    /* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getGiLineages(int[])
+     */
+    @Override
+    public Lineage[] getGiLineages(int[] giNumbers) throws DatabaseException {
+        SqlLineageBatchFetcher batchFetcher = fetcherPool.acquire();
+        try {
+            return batchFetcher.getGiLineages(giNumbers, lineageCache);
+        } catch (SQLException e) {
+            throw new DatabaseException("unable to obtain " + giNumbers.length + " gi lineages from TaxDB at this time: " + e.getMessage());
+        } finally {
+            fetcherPool.release(batchFetcher);
+        }
+    }
 
-            //ls = connection.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
-            //ls.setFetchSize(50); 
-        } catch (Exception e) {
-            //System.out.println( e.getMessage() );
-            //e.printStackTrace();
-            throw new DatabaseException("unable to obtain lineage for " + giNumber + " from TaxDB at this time. Extra info: " + e.getMessage());
+    /* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getAccessionLineages(java.lang.String[])
+     */
+    @Override
+    public Lineage[] getAccessionLineages(String[] accessions) throws DatabaseException {
+        SqlLineageBatchFetcher batchFetcher = fetcherPool.acquire();
+        try {
+            return batchFetcher.getAccessionLineages(accessions, lineageCache);
+        } catch (SQLException e) {
+            throw new DatabaseException("unable to obtain " + accessions.length + " accession lineages from TaxDB at this time: " + e.getMessage());
+        } finally {
+            fetcherPool.release(batchFetcher);
         }
+    }
 
-        return lineage;
+    /* (non-Javadoc)
+	 * @see nl.bioinf.noback.taxonomy.dao.TaxonomyDao#getCommonLineage(int[])
+     */
+    @Override
+    public Lineage getCommonLineage(int[] taxIDs) throws DatabaseException {
+        return SqlLineageBatchFetcher.intersect(taxIDs, getLineages(taxIDs));
     }
 
     @Override
@@ -237,37 +367,5 @@ public class TaxonomyDaoMysql implements TaxonomyDao {
 			return lineage;
 	}
      */
-    private Lineage processTaxDbLineage(ResultSet lrs, int taxId) throws DatabaseException {
-        Lineage lineage = new Lineage();
-        try {
-            while (lrs.next()) {
-                /*tax_id, parent_tax_id, rank, division_id, inherited_div, scientific_name*/
-                TaxNode tn = new TaxNode();
-                if (lrs.getInt("tax_id") == 0) {
-                    throw new DatabaseException("empty lineage for tax_id " + taxId);
-                }
-
-                tn.setTaxID(lrs.getInt("tax_id"));
-                tn.setParentTaxID(lrs.getInt("parent_tax_id"));
-
-                //System.out.println( "ptax_id=" + lrs.getInt("parent_tax_id") + " tax_id=" + lrs.getInt("tax_id") + " rank=" + lrs.getString("rank") + " TaxonomyRank=" + TaxonomyRank.getTaxonomyRank( lrs.getString("rank") ) );
-                tn.setRank(TaxonomyRank.getTaxonomyRank(lrs.getString("rank")));
-                //tn.setGbDivision( GenBankDivision. lrs.getString("") )
-                //tn.setInheritedDiv( lrs.getBoolean("inherited_div") );
-                tn.setScientificName(lrs.getString("scientific_name"));
-
-                lineage.addNode(tn);
-            }
-
-        } catch (SQLException e) {
-            //System.out.println( e.getMessage() );
-            //e.printStackTrace();
-            throw new DatabaseException("unable to obtain lineage for tax_id" + taxId + " from TaxDB at this time");
-        } catch (CorruptedLineageException e) {
-            //e.printStackTrace();
-            throw new DatabaseException("unable to obtain lineage for tax_id " + taxId + " from TaxDB; a lineage data corruption occurred");
-        }
-        return lineage;
-    }
 
 }
@@ -0,0 +1,281 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.bioinf.noback.taxonomy.model.Lineage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the lookups of a TaxonomyDao over HTTP, so that many jobs can share one
+ * loaded and warmed-up TaxDB through TaxonomyDaoHttp instead of each loading its
+ * own. Requests are POSTs with one identifier per line in the body; lineages are
+ * returned one per line in the format of LineageTextCodec, parallel to the
+ * identifiers:
+ * <ul>
+ * <li>/lineage, /gi_lineage, /accession_lineage: one identifier; returns its lineage</li>
+ * <li>/lineages: tax_ids</li>
+ * <li>/gi_lineages: gi numbers</li>
+ * <li>/accession_lineages: accession.versions</li>
+ * <li>/common_lineage: tax_ids; returns the single common lineage</li>
+ * <li>/name_lineage: one organism name; returns its lineage</li>
+ * </ul>
+ * A GET of /status returns the number of requests served. A lookup that fails
+ * with a DatabaseException is answered with status 404 and the exception message;
+ * identifiers that can not be parsed give status 400. Requests are handled
+ * concurrently by a fixed pool of threads, so the TaxonomyDao should be thread-safe.
+ *
+ * @author michiel
+ */
+public class TaxonomyDaoServer {
+
+    /**
+     * the default port
+     */
+    public static final int DEFAULT_PORT = 8765;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final TaxonomyDao taxDB;
+    private final InetSocketAddress address;
+    private final int threads;
+    private final AtomicLong requestCount = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * constructs a server that listens on the loopback address only
+     *
+     * @param taxDB
+     * @param port
+     * @param threads
+     */
+    public TaxonomyDaoServer(TaxonomyDao taxDB, int port, int threads) {
+        this(taxDB, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+    }
+
+    /**
+     * constructs a server that listens on the given address
+     *
+     * @param taxDB
+     * @param address
+     * @param threads
+     */
+    public TaxonomyDaoServer(TaxonomyDao taxDB, InetSocketAddress address, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads should be at least 1: " + threads);
+        }
+        this.taxDB = taxDB;
+        this.address = address;
+        this.threads = threads;
+    }
+
+    /**
+     * starts listening
+     *
+     * @throws IOException when the address can not be bound
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("server is already started");
+        }
+        server = HttpServer.create(address, 0);
+        server.createContext("/lineage", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                LineageTextCodec.encode(taxDB.getLineage(parseInt(single(lines))), response);
+                response.append('\n');
+            }
+        });
+        server.createContext("/gi_lineage", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                LineageTextCodec.encode(taxDB.getGiLineage(parseInt(single(lines))), response);
+                response.append('\n');
+            }
+        });
+        server.createContext("/accession_lineage", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                LineageTextCodec.encode(taxDB.getAccessionLineage(single(lines)), response);
+                response.append('\n');
+            }
+        });
+        server.createContext("/lineages", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                int[] taxIDs = parseInts(lines);
+                encodeAll(taxDB.getLineages(taxIDs), response);
+            }
+        });
+        server.createContext("/gi_lineages", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                int[] giNumbers = parseInts(lines);
+                encodeAll(taxDB.getGiLineages(giNumbers), response);
+            }
+        });
+        server.createContext("/accession_lineages", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                String[] accessions = lines.toArray(new String[lines.size()]);
+                encodeAll(taxDB.getAccessionLineages(accessions), response);
+            }
+        });
+        server.createContext("/common_lineage", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                int[] taxIDs = parseInts(lines);
+                if (taxIDs.length == 0) {
+                    throw new IllegalArgumentException("no taxIDs provided");
+                }
+                LineageTextCodec.encode(taxDB.getCommonLineage(taxIDs), response);
+                response.append('\n');
+            }
+        });
+        server.createContext("/name_lineage", new LookupHandler() {
+            @Override
+            void respond(List<String> lines, StringBuilder response) throws DatabaseException {
+                LineageTextCodec.encode(taxDB.getLineage(single(lines)), response);
+                response.append('\n');
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "OK\trequests=" + requestCount.get() + "\n");
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * stops listening, allowing running requests the given number of seconds to finish
+     *
+     * @param delay seconds
+     */
+    public synchronized void stop(int delay) {
+        if (server == null) {
+            return;
+        }
+        server.stop(delay);
+        executor.shutdown();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return the address the server is bound to, or null when it is not started
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server == null ? null : server.getAddress();
+    }
+
+    /**
+     * @return the number of lookup requests served
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    private static String single(List<String> lines) {
+        if (lines.size() != 1) {
+            throw new IllegalArgumentException("one identifier expected; got " + lines.size());
+        }
+        return lines.get(0);
+    }
+
+    private static int parseInt(String line) {
+        return Integer.parseInt(line.trim());
+    }
+
+    private static int[] parseInts(List<String> lines) {
+        int[] values = new int[lines.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parseInt(lines.get(i));
+        }
+        return values;
+    }
+
+    private static void encodeAll(Lineage[] lineages, StringBuilder response) {
+        for (Lineage lineage : lineages) {
+            LineageTextCodec.encode(lineage, response);
+            response.append('\n');
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * reads the identifiers of a POST request and sends the response or the error
+     */
+    private abstract class LookupHandler implements HttpHandler {
+
+        abstract void respond(List<String> lines, StringBuilder response) throws DatabaseException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, "only POST is supported\n");
+                    return;
+                }
+                List<String> lines = new ArrayList<String>();
+                BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF_8));
+                try {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } finally {
+                    br.close();
+                }
+                StringBuilder response = new StringBuilder();
+                try {
+                    respond(lines, response);
+                } catch (DatabaseException e) {
+                    send(exchange, 404, e.getMessage() + "\n");
+                    return;
+                } catch (IllegalArgumentException e) {
+                    send(exchange, 400, e.getMessage() + "\n");
+                    return;
+                } catch (RuntimeException e) {
+                    send(exchange, 500, e.toString() + "\n");
+                    return;
+                }
+                requestCount.incrementAndGet();
+                send(exchange, 200, response.toString());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * This interface defines read access to a compact, index-based representation of
+ * the TaxDB nodes. Every node has a dense index (0 .. size()-1); parents are
+ * referenced by index as well, so lineages can be walked without object references.
+ * TaxNode objects are not part of the store; they are created on demand by the DAO.
+ *
+ * @author michiel
+ */
+public interface TaxonomyStore {
+
+    /**
+     * the index value used for absent nodes and for the parent of the root
+     */
+    public static final int NO_INDEX = -1;
+
+    /**
+     * returns the number of nodes in the store
+     *
+     * @return size
+     */
+    public int size();
+
+    /**
+     * returns the dense index of the node with the given tax_id, or NO_INDEX when
+     * it is not present
+     *
+     * @param taxID
+     * @return index
+     */
+    public int indexOf(int taxID);
+
+    /**
+     * returns the index of the first node carrying exactly the given scientific
+     * name, or NO_INDEX when there is none
+     *
+     * @param scientificName
+     * @return index
+     */
+    public int indexOfName(String scientificName);
+
+    /**
+     * returns the tax_id of the node at the given index
+     *
+     * @param index
+     * @return taxID
+     */
+    public int getTaxID(int index);
+
+    /**
+     * returns the index of the parent of the node at the given index; NO_INDEX for
+     * the root
+     *
+     * @param index
+     * @return parent index
+     */
+    public int getParentIndex(int index);
+
+    /**
+     * returns the rank of the node at the given index; may be null for ranks that
+     * are not represented in TaxonomyRank
+     *
+     * @param index
+     * @return rank
+     */
+    public TaxonomyRank getRank(int index);
+
+    /**
+     * returns the index of the ancestor at the given rank of the node at the given
+     * index (the node itself when it has that rank), or NO_INDEX when its lineage
+     * does not pass that rank. Stores keep one precomputed column per rank of the
+     * short lineage, so this is a single array read
+     *
+     * @param index
+     * @param rank a rank of the short lineage (see TaxonomyRank.isShortLineage())
+     * @return ancestor index
+     * @throws IllegalArgumentException for ranks outside the short lineage
+     */
+    public int getAncestorIndex(int index, TaxonomyRank rank);
+
+    /**
+     * returns the scientific name of the node at the given index
+     *
+     * @param index
+     * @return scientific name
+     */
+    public String getScientificName(int index);
+}
@@ -0,0 +1,414 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * The difference between an existing TaxDB and a new release of the NCBI taxonomy:
+ * the tax_ids that have to be inserted, changed (other parent, rank or scientific
+ * name) and removed to bring the existing TaxDB up to date. The existing TaxDB may
+ * be complete, or a subset such as a TaxDB created for the gi numbers of a
+ * sequence set; the tax_ids of a subset are kept, together with their ancestors
+ * in the new release, so that new ancestors of re-parented nodes and the nodes
+ * that removed tax_ids were merged into are inserted as well. The delta is found
+ * in one pass over both stores and can be applied to a store, or to a nodes table
+ * of a TaxDBlite database, without reloading the unchanged nodes.
+ * <p>
+ * Removed tax_ids may still be referred to by gi number and accession rows. With
+ * the merged and deleted nodes of the new release, the delta also holds the remap
+ * rows that redirect them: the tax_id each removed tax_id was merged into, or its
+ * deletion. Removed tax_ids that the new release does not list are deleted.
+ *
+ * @author michiel
+ */
+public final class TaxonomyStoreDelta {
+
+    private static final String NO_RANK = "no rank";
+
+    private final TaxonomyStore current;
+    private final TaxonomyStore updated;
+    private final int[] insertedTaxIDs;
+    private final int[] changedTaxIDs;
+    private final int[] removedTaxIDs;
+    /*the changed tax_ids whose parent changed*/
+    private final int[] reparentedTaxIDs;
+    /*removed tax_ids that were merged and, parallel, the tax_ids they were merged into*/
+    private final int[] mergedTaxIDs;
+    private final int[] mergedIntoTaxIDs;
+    /*removed tax_ids that were deleted*/
+    private final int[] deletedTaxIDs;
+
+    private TaxonomyStoreDelta(TaxonomyStore current, TaxonomyStore updated, int[] insertedTaxIDs,
+            int[] changedTaxIDs, int[] removedTaxIDs, TaxIdRemapTable remapTable) {
+        this.current = current;
+        this.updated = updated;
+        this.insertedTaxIDs = insertedTaxIDs;
+        this.changedTaxIDs = changedTaxIDs;
+        this.removedTaxIDs = removedTaxIDs;
+
+        IntList reparented = new IntList();
+        for (int taxID : changedTaxIDs) {
+            if (parentTaxID(current, current.indexOf(taxID)) != parentTaxID(updated, updated.indexOf(taxID))) {
+                reparented.add(taxID);
+            }
+        }
+        this.reparentedTaxIDs = reparented.toSortedArray();
+
+        IntList merged = new IntList();
+        IntList mergedInto = new IntList();
+        IntList deleted = new IntList();
+        for (int taxID : removedTaxIDs) {
+            int target = remapTable == null ? TaxIdRemapTable.DELETED : remapTable.remap(taxID);
+            if (target == TaxIdRemapTable.DELETED || target == taxID || updated.indexOf(target) == TaxonomyStore.NO_INDEX) {
+                deleted.add(taxID);
+            } else {
+                merged.add(taxID);
+                mergedInto.add(target);
+            }
+        }
+        /*removedTaxIDs is sorted, so the lists are too*/
+        this.mergedTaxIDs = merged.toArray();
+        this.mergedIntoTaxIDs = mergedInto.toArray();
+        this.deletedTaxIDs = deleted.toArray();
+    }
+
+    /**
+     * compares the existing TaxDB with the new release
+     *
+     * @param current the existing TaxDB
+     * @param updated the new release, e.g. read from taxdmp.zip
+     * @param remapTable the merged and deleted nodes of the new release; may be null,
+     * in which case all removed tax_ids count as deleted
+     * @param complete the existing TaxDB holds all nodes, so all new nodes are
+     * inserted; otherwise only the nodes needed by the existing tax_ids are
+     * @return the delta
+     */
+    public static TaxonomyStoreDelta compute(TaxonomyStore current, TaxonomyStore updated, TaxIdRemapTable remapTable,
+            boolean complete) {
+        IntList inserted = new IntList();
+        IntList changed = new IntList();
+        IntList removed = new IntList();
+        /*nodes of the new release that the subset needs; only used for subsets*/
+        boolean[] needed = complete ? null : new boolean[updated.size()];
+
+        for (int i = 0; i < current.size(); i++) {
+            int taxID = current.getTaxID(i);
+            int j = updated.indexOf(taxID);
+            if (j == TaxonomyStore.NO_INDEX) {
+                removed.add(taxID);
+                if (!complete && remapTable != null) {
+                    int mergedInto = remapTable.remap(taxID);
+                    if (mergedInto != TaxIdRemapTable.DELETED && mergedInto != taxID) {
+                        markAncestors(updated.indexOf(mergedInto), updated, current, needed, inserted);
+                    }
+                }
+                continue;
+            }
+            if (!nodeEquals(current, i, updated, j)) {
+                changed.add(taxID);
+            }
+            if (!complete) {
+                markAncestors(j, updated, current, needed, inserted);
+            }
+        }
+        if (complete) {
+            for (int j = 0; j < updated.size(); j++) {
+                if (current.indexOf(updated.getTaxID(j)) == TaxonomyStore.NO_INDEX) {
+                    inserted.add(updated.getTaxID(j));
+                }
+            }
+        }
+        return new TaxonomyStoreDelta(current, updated, inserted.toSortedArray(), changed.toSortedArray(),
+                removed.toSortedArray(), remapTable);
+    }
+
+    /*marks the node and its ancestors as needed; those absent from current are inserted*/
+    private static void markAncestors(int index, TaxonomyStore updated, TaxonomyStore current, boolean[] needed,
+            IntList inserted) {
+        while (index != TaxonomyStore.NO_INDEX && !needed[index]) {
+            needed[index] = true;
+            int taxID = updated.getTaxID(index);
+            if (current.indexOf(taxID) == TaxonomyStore.NO_INDEX) {
+                inserted.add(taxID);
+            }
+            index = updated.getParentIndex(index);
+        }
+    }
+
+    private static boolean nodeEquals(TaxonomyStore a, int i, TaxonomyStore b, int j) {
+        return parentTaxID(a, i) == parentTaxID(b, j)
+                && a.getRank(i) == b.getRank(j)
+                && a.getScientificName(i).equals(b.getScientificName(j));
+    }
+
+    /*the root is its own parent, as in the NCBI dump*/
+    private static int parentTaxID(TaxonomyStore store, int index) {
+        int parent = store.getParentIndex(index);
+        return parent == TaxonomyStore.NO_INDEX ? store.getTaxID(index) : store.getTaxID(parent);
+    }
+
+    /**
+     * @return the tax_ids to insert, sorted
+     */
+    public int[] getInsertedTaxIDs() {
+        return insertedTaxIDs.clone();
+    }
+
+    /**
+     * @return the tax_ids whose parent, rank or name changed, sorted
+     */
+    public int[] getChangedTaxIDs() {
+        return changedTaxIDs.clone();
+    }
+
+    /**
+     * @return the tax_ids to remove, sorted
+     */
+    public int[] getRemovedTaxIDs() {
+        return removedTaxIDs.clone();
+    }
+
+    /**
+     * @return the changed tax_ids whose parent changed, sorted
+     */
+    public int[] getReparentedTaxIDs() {
+        return reparentedTaxIDs.clone();
+    }
+
+    /**
+     * @return the removed tax_ids that were merged into another node, sorted
+     */
+    public int[] getMergedTaxIDs() {
+        return mergedTaxIDs.clone();
+    }
+
+    /**
+     * @return the tax_ids the merged tax_ids were merged into, parallel to getMergedTaxIDs()
+     */
+    public int[] getMergedIntoTaxIDs() {
+        return mergedIntoTaxIDs.clone();
+    }
+
+    /**
+     * @return the removed tax_ids that were deleted, sorted
+     */
+    public int[] getDeletedTaxIDs() {
+        return deletedTaxIDs.clone();
+    }
+
+    /**
+     * @return the existing TaxDB is up to date
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of nodes to insert, change and remove
+     */
+    public int size() {
+        return insertedTaxIDs.length + changedTaxIDs.length + removedTaxIDs.length;
+    }
+
+    /**
+     * creates the updated version of the existing TaxDB: its nodes minus the removed
+     * ones, plus the inserted ones, all with the data of the new release
+     *
+     * @return the store
+     * @throws CorruptedLineageException when a node refers to an absent parent
+     */
+    public ArrayTaxonomyStore apply() throws CorruptedLineageException {
+        ArrayTaxonomyStore.Builder builder = new ArrayTaxonomyStore.Builder(
+                current.size() - removedTaxIDs.length + insertedTaxIDs.length);
+        for (int i = 0; i < current.size(); i++) {
+            int taxID = current.getTaxID(i);
+            if (Arrays.binarySearch(removedTaxIDs, taxID) < 0) {
+                add(builder, updated.indexOf(taxID));
+            }
+        }
+        for (int taxID : insertedTaxIDs) {
+            add(builder, updated.indexOf(taxID));
+        }
+        return builder.build();
+    }
+
+    private void add(ArrayTaxonomyStore.Builder builder, int j) {
+        builder.add(updated.getTaxID(j), parentTaxID(updated, j), updated.getRank(j), updated.getScientificName(j));
+    }
+
+    /**
+     * applies the delta to a nodes table with the columns tax_id, parent_tax_id,
+     * rank and scientific_name, as created for TaxDBlite, in one transaction.
+     * Changed nodes are deleted and inserted again.
+     *
+     * @param connection
+     * @param nodesTable
+     * @return the number of rows deleted and inserted, as reported by the driver
+     * @throws SQLException when the table can not be updated; the transaction is rolled back
+     */
+    public int applyTo(Connection connection, String nodesTable) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement delete = null;
+        PreparedStatement insert = null;
+        try {
+            int rows = 0;
+            delete = connection.prepareStatement("delete from " + nodesTable + " where tax_id = ?");
+            rows += deleteAll(delete, removedTaxIDs);
+            rows += deleteAll(delete, changedTaxIDs);
+            insert = connection.prepareStatement("insert into " + nodesTable + " values (?, ?, ?, ?)");
+            rows += insertAll(insert, changedTaxIDs);
+            rows += insertAll(insert, insertedTaxIDs);
+            connection.commit();
+            return rows;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            if (delete != null) {
+                delete.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * applies the remap rows of the removed tax_ids to the merged and deleted nodes
+     * tables of a TaxDBlite database, with the columns (old_tax_id, new_tax_id) and
+     * (tax_id), in one transaction. Existing rows that redirect to a removed tax_id
+     * are pointed at its new tax_id, or moved to the deleted nodes when it was deleted,
+     * so every row stays a single step
+     *
+     * @param connection
+     * @param mergedTable
+     * @param deletedTable
+     * @return the number of rows inserted, updated and deleted, as reported by the driver
+     * @throws SQLException when the tables can not be updated; the transaction is rolled back
+     */
+    public int applyRemapTo(Connection connection, String mergedTable, String deletedTable) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement redirect = null;
+        PreparedStatement insertMerged = null;
+        PreparedStatement moveDeleted = null;
+        PreparedStatement deleteMerged = null;
+        PreparedStatement insertDeleted = null;
+        try {
+            int rows = 0;
+            redirect = connection.prepareStatement("update " + mergedTable + " set new_tax_id = ? where new_tax_id = ?");
+            insertMerged = connection.prepareStatement("insert into " + mergedTable + " (old_tax_id, new_tax_id) values (?, ?)");
+            for (int i = 0; i < mergedTaxIDs.length; i++) {
+                redirect.setInt(1, mergedIntoTaxIDs[i]);
+                redirect.setInt(2, mergedTaxIDs[i]);
+                redirect.addBatch();
+                insertMerged.setInt(1, mergedTaxIDs[i]);
+                insertMerged.setInt(2, mergedIntoTaxIDs[i]);
+                insertMerged.addBatch();
+            }
+            rows += sum(redirect.executeBatch());
+            rows += sum(insertMerged.executeBatch());
+
+            moveDeleted = connection.prepareStatement("insert into " + deletedTable + " (tax_id)"
+                    + " select old_tax_id from " + mergedTable + " where new_tax_id = ?");
+            deleteMerged = connection.prepareStatement("delete from " + mergedTable + " where new_tax_id = ?");
+            insertDeleted = connection.prepareStatement("insert into " + deletedTable + " (tax_id) values (?)");
+            for (int taxID : deletedTaxIDs) {
+                moveDeleted.setInt(1, taxID);
+                moveDeleted.addBatch();
+                deleteMerged.setInt(1, taxID);
+                deleteMerged.addBatch();
+                insertDeleted.setInt(1, taxID);
+                insertDeleted.addBatch();
+            }
+            rows += sum(moveDeleted.executeBatch());
+            rows += sum(deleteMerged.executeBatch());
+            rows += sum(insertDeleted.executeBatch());
+            connection.commit();
+            return rows;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            PreparedStatement[] statements = {redirect, insertMerged, moveDeleted, deleteMerged, insertDeleted};
+            for (PreparedStatement statement : statements) {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static int deleteAll(PreparedStatement delete, int[] taxIDs) throws SQLException {
+        for (int taxID : taxIDs) {
+            delete.setInt(1, taxID);
+            delete.addBatch();
+        }
+        return sum(delete.executeBatch());
+    }
+
+    private int insertAll(PreparedStatement insert, int[] taxIDs) throws SQLException {
+        for (int taxID : taxIDs) {
+            int j = updated.indexOf(taxID);
+            TaxonomyRank rank = updated.getRank(j);
+            insert.setInt(1, taxID);
+            insert.setInt(2, parentTaxID(updated, j));
+            insert.setString(3, rank == null ? NO_RANK : rank.toString());
+            insert.setString(4, updated.getScientificName(j));
+            insert.addBatch();
+        }
+        return sum(insert.executeBatch());
+    }
+
+    /*update counts; drivers may report SUCCESS_NO_INFO for batched statements*/
+    private static int sum(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count > 0 ? count : 0;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[inserted=" + insertedTaxIDs.length + "; changed=" + changedTaxIDs.length
+                + "; removed=" + removedTaxIDs.length + " (merged=" + mergedTaxIDs.length + "; deleted="
+                + deletedTaxIDs.length + ")]";
+    }
+
+    /**
+     * growable int array
+     */
+    private static final class IntList {
+        private int[] values = new int[256];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        int[] toSortedArray() {
+            int[] array = Arrays.copyOf(values, size);
+            Arrays.sort(array);
+            return array;
+        }
+    }
+}
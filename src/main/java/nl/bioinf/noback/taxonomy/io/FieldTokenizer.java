@@ -0,0 +1,442 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads delimited text (tab-separated files, NCBI dmp files) line by line
+ * directly from a byte buffer. Field boundaries are recorded as offsets into the
+ * buffer; ints, longs and doubles are parsed in place and Strings are only created
+ * when asked for with getString(). Apart from the occasional buffer growth, reading
+ * a line allocates nothing.
+ * <p>
+ * Usage:
+ * <pre>
+ * FieldTokenizer ft = new FieldTokenizer(new FileInputStream(file), "\t");
+ * while (ft.nextLine()) {
+ *     int taxId = ft.getInt(0);
+ *     ...
+ * }
+ * ft.close();
+ * </pre>
+ * Instances are not thread-safe.
+ *
+ * @author michiel
+ */
+public final class FieldTokenizer implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    /*exactly representable powers of ten, for the fast double path*/
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final InputStream in;
+    private final byte[] separator;
+    private final byte[] lineSuffix;
+    private final boolean trimFields;
+
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    /*valid bytes in the buffer*/
+    private int limit = 0;
+    /*start of the next line*/
+    private int position = 0;
+    private boolean endOfStream = false;
+
+    private int lineStart;
+    private int lineEnd;
+    private long lineNumber = 0;
+    private int fieldCount = 0;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+
+    /**
+     * constructs for fields separated by the given separator
+     *
+     * @param in
+     * @param separator e.g. "\t"
+     */
+    public FieldTokenizer(InputStream in, String separator) {
+        this(in, separator, null, false);
+    }
+
+    /**
+     * constructs for fields separated by the given separator, on lines that may end
+     * with the given suffix (which is not part of the last field), optionally trimming
+     * whitespace around fields. The NCBI dmp files are read with separator "\t|\t" and
+     * line suffix "\t|".
+     *
+     * @param in
+     * @param separator
+     * @param lineSuffix may be null
+     * @param trimFields
+     */
+    public FieldTokenizer(InputStream in, String separator, String lineSuffix, boolean trimFields) {
+        if (separator.length() == 0) {
+            throw new IllegalArgumentException("empty separator");
+        }
+        this.in = in;
+        this.separator = separator.getBytes(UTF8);
+        this.lineSuffix = lineSuffix == null ? null : lineSuffix.getBytes(UTF8);
+        this.trimFields = trimFields;
+    }
+
+    /**
+     * advances to the next line
+     *
+     * @return false when there are no more lines
+     * @throws IOException
+     */
+    public boolean nextLine() throws IOException {
+        int scan = position;
+        while (true) {
+            int newline = -1;
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline >= 0) {
+                setLine(position, newline);
+                position = newline + 1;
+                return true;
+            }
+            if (endOfStream) {
+                if (position < limit) {
+                    /*last line without line terminator*/
+                    setLine(position, limit);
+                    position = limit;
+                    return true;
+                }
+                fieldCount = 0;
+                return false;
+            }
+            scan = limit - position;
+            fill();
+        }
+    }
+
+    /*moves the unread bytes to the start of the buffer and reads more*/
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        } else if (remaining == buffer.length) {
+            /*a line longer than the buffer*/
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        position = 0;
+        limit = remaining;
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        lineNumber++;
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        if (lineSuffix != null && endsWith(start, end, lineSuffix)) {
+            end -= lineSuffix.length;
+        }
+        lineStart = start;
+        lineEnd = end;
+
+        /*record the field boundaries*/
+        fieldCount = 0;
+        int fieldStart = start;
+        int i = start;
+        byte first = separator[0];
+        while (i <= end - separator.length) {
+            if (buffer[i] == first && matches(i, separator)) {
+                addField(fieldStart, i);
+                i += separator.length;
+                fieldStart = i;
+            } else {
+                i++;
+            }
+        }
+        addField(fieldStart, end);
+    }
+
+    private void addField(int start, int end) {
+        if (trimFields) {
+            while (start < end && isWhitespace(buffer[start])) {
+                start++;
+            }
+            while (end > start && isWhitespace(buffer[end - 1])) {
+                end--;
+            }
+        }
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private boolean matches(int at, byte[] bytes) {
+        for (int j = 1; j < bytes.length; j++) {
+            if (buffer[at + j] != bytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWith(int start, int end, byte[] bytes) {
+        if (end - start < bytes.length) {
+            return false;
+        }
+        int at = end - bytes.length;
+        return buffer[at] == bytes[0] && matches(at, bytes);
+    }
+
+    /**
+     * @return the number of the current line, starting at 1
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the number of fields on the current line; an empty line has one empty field
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return the current line has no content
+     */
+    public boolean isEmptyLine() {
+        return lineEnd == lineStart;
+    }
+
+    /**
+     * @return the current line as String, e.g. for error messages
+     */
+    public String getLine() {
+        return new String(buffer, lineStart, lineEnd - lineStart, UTF8);
+    }
+
+    private void checkField(int field) throws ParseException {
+        if (field < 0 || field >= fieldCount) {
+            throw new ParseException("line " + lineNumber + " has no field " + field + ": " + getLine());
+        }
+    }
+
+    /**
+     * returns the field as String
+     *
+     * @param field index, starting at 0
+     * @return value
+     * @throws ParseException when the line does not have the field
+     */
+    public String getString(int field) throws ParseException {
+        checkField(field);
+        return new String(buffer, fieldStarts[field], fieldEnds[field] - fieldStarts[field], UTF8);
+    }
+
+    /**
+     * @param field
+     * @return the length of the field in bytes
+     * @throws ParseException when the line does not have the field
+     */
+    public int getFieldLength(int field) throws ParseException {
+        checkField(field);
+        return fieldEnds[field] - fieldStarts[field];
+    }
+
+    /**
+     * copies the (UTF-8) bytes of the field into the destination
+     *
+     * @param field
+     * @param destination
+     * @param offset
+     * @return the number of bytes copied
+     * @throws ParseException when the line does not have the field
+     */
+    public int copyField(int field, byte[] destination, int offset) throws ParseException {
+        checkField(field);
+        int length = fieldEnds[field] - fieldStarts[field];
+        System.arraycopy(buffer, fieldStarts[field], destination, offset, length);
+        return length;
+    }
+
+    /**
+     * compares the field with the given value without creating a String
+     *
+     * @param field
+     * @param value
+     * @return field equals value
+     * @throws ParseException when the line does not have the field
+     */
+    public boolean fieldEquals(int field, String value) throws ParseException {
+        checkField(field);
+        return regionMatches(field, value, true);
+    }
+
+    /**
+     * checks whether the field starts with the given prefix without creating a String
+     *
+     * @param field
+     * @param prefix
+     * @return field starts with prefix
+     * @throws ParseException when the line does not have the field
+     */
+    public boolean fieldStartsWith(int field, String prefix) throws ParseException {
+        checkField(field);
+        return regionMatches(field, prefix, false);
+    }
+
+    private boolean regionMatches(int field, String value, boolean entire) throws ParseException {
+        int start = fieldStarts[field];
+        int length = fieldEnds[field] - start;
+        if (length < value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c > 0x7F) {
+                /*not plain ASCII: compare decoded*/
+                String decoded = getString(field);
+                return entire ? decoded.equals(value) : decoded.startsWith(value);
+            }
+            if (buffer[start + i] != c) {
+                return false;
+            }
+        }
+        return !entire || length == value.length();
+    }
+
+    /**
+     * parses the field as int
+     *
+     * @param field
+     * @return value
+     * @throws ParseException when the field is absent or not an int
+     */
+    public int getInt(int field) throws ParseException {
+        long value = parseLong(field, "an int");
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw numberException(field, "an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * parses the field as long
+     *
+     * @param field
+     * @return value
+     * @throws ParseException when the field is absent or not a long
+     */
+    public long getLong(int field) throws ParseException {
+        return parseLong(field, "a long");
+    }
+
+    private long parseLong(int field, String type) throws ParseException {
+        checkField(field);
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = false;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 19) {
+            throw numberException(field, type);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberException(field, type);
+            }
+            value = value * 10 + digit;
+            if (value < 0) {
+                throw numberException(field, type);
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * parses the field as double. Plain decimals are parsed in place; other notations
+     * (exponents, very long mantissas, NaN) fall back to Double.parseDouble
+     *
+     * @param field
+     * @return value
+     * @throws ParseException when the field is absent or not a double
+     */
+    public double getDouble(int field) throws ParseException {
+        checkField(field);
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = false;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        boolean plain = i < end;
+        for (; i < end && plain; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                plain = false;
+            }
+        }
+        if (plain && digits > 0 && digits <= 15 && decimals < POWERS_OF_TEN.length) {
+            /*both operands are exact, so the division is correctly rounded*/
+            double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(getString(field));
+        } catch (NumberFormatException e) {
+            throw numberException(field, "a double");
+        }
+    }
+
+    private ParseException numberException(int field, String type) {
+        return new ParseException("field " + field + " is not " + type + ": '"
+                + new String(buffer, fieldStarts[field], fieldEnds[field] - fieldStarts[field], UTF8)
+                + "' at line " + lineNumber);
+    }
+
+    /**
+     * closes the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
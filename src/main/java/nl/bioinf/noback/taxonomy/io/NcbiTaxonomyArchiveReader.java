@@ -4,18 +4,15 @@
  */
 package nl.bioinf.noback.taxonomy.io;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import nl.bioinf.noback.taxonomy.dao.ArrayTaxonomyStore;
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
@@ -26,6 +23,9 @@ import nl.bioinf.noback.taxonomy.model.TaxTree;
  * @author Gebruiker
  */
 public class NcbiTaxonomyArchiveReader {
+    /*field separator and line terminator of the dmp files*/
+    private static final String DMP_SEPARATOR = "\t|\t";
+    private static final String DMP_LINE_END = "\t|";
 
     public static void main(String[] args) {
         if (args.length != 1) {
@@ -56,10 +56,12 @@ public class NcbiTaxonomyArchiveReader {
         } catch( CorruptedLineageException ex) {
             //ex.printStackTrace();
             Logger.getLogger(NcbiTaxonomyArchiveReader.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (ParseException ex) {
+            Logger.getLogger(NcbiTaxonomyArchiveReader.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    public TaxTree readZip(String zipFileName) throws ZipException, IOException, CorruptedLineageException {
+    public TaxTree readZip(String zipFileName) throws ZipException, IOException, CorruptedLineageException, ParseException {
         File zipFile = new File(zipFileName);
         return readZip(zipFile);
     }
@@ -70,26 +72,22 @@ public class NcbiTaxonomyArchiveReader {
      * @throws ZipException
      * @throws IOException
      * @throws CorruptedLineageException 
+     * @throws ParseException when a line is not in dmp format
      */
-    public TaxTree readZip(File zipFile) throws ZipException, IOException, CorruptedLineageException {
+    public TaxTree readZip(File zipFile) throws ZipException, IOException, CorruptedLineageException, ParseException {
         //System.out.println("start parsing");
         ZipFile archive = new ZipFile(zipFile);
         
         /*first process the nodes file*/
         ZipEntry nodesFile = archive.getEntry("nodes.dmp");
-        InputStream is = archive.getInputStream(nodesFile);
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
-        int lineCount = 0;
-        String line;
+        FieldTokenizer ft = new FieldTokenizer(archive.getInputStream(nodesFile), DMP_SEPARATOR, DMP_LINE_END, false);
         TaxTree tree = null;
         TaxNode node = null;
-        while ((line = br.readLine()) != null) {
-            lineCount++;
-            String[] elements = line.split("\\t+\\|\\t+");
-            int taxID = Integer.parseInt(elements[0]);
-            int parentTaxID = Integer.parseInt(elements[1]);
-            String rankStr = elements[2];
-            if( lineCount==1 ){
+        while (ft.nextLine()) {
+            int taxID = ft.getInt(0);
+            int parentTaxID = ft.getInt(1);
+            String rankStr = ft.getString(2);
+            if( ft.getLineNumber()==1 ){
                 assert taxID==1 : "First line of nodes file nodes.dmp should be root";
                 TaxNode root = new TaxNode(taxID, parentTaxID);
                 tree = new TaxTree(root);
@@ -104,35 +102,64 @@ public class NcbiTaxonomyArchiveReader {
         }
         //link the nodes of the tree
         tree.linkNodes();
-        br.close();
-        is.close();
+        ft.close();
 
         /*process the names file entry to get the scientifi names*/
         ZipEntry namesFile = archive.getEntry("names.dmp");
-        is = archive.getInputStream(namesFile);
-        br = new BufferedReader(new InputStreamReader(is));
-        lineCount = 0;
-        //line = null;
-        while ((line = br.readLine()) != null) {
-            lineCount++;
-            String[] elements = line.split("\\t\\|\\t");
-            
-            assert elements.length == 4: "Error parsing at line " + lineCount + ": " + Arrays.toString(elements);
-            
-            int taxID = Integer.parseInt(elements[0]);
+        ft = new FieldTokenizer(archive.getInputStream(namesFile), DMP_SEPARATOR, DMP_LINE_END, false);
+        while (ft.nextLine()) {
+            assert ft.getFieldCount() == 4: "Error parsing at line " + ft.getLineNumber() + ": " + ft.getLine();
             
-            String name = elements[1];
-            String nameCat = elements[3].substring(0, elements[3].length()-2);
-            
-            if( nameCat.equals("scientific name") ){
-                tree.getNode(taxID).setScientificName(name);
+            if( ft.fieldEquals(3, "scientific name") ){
+                tree.getNode(ft.getInt(0)).setScientificName(ft.getString(1));
             }
         }
         //link the nodes of the tree
         tree.linkNodes();
-        br.close();
-        is.close();
+        ft.close();
         
         return tree;
     }
+
+    /**
+     * reads the NCBI taxonomy archive from zipfile taxdmp.zip into a compact
+     * ArrayTaxonomyStore, without creating TaxNode objects. The store can be written
+     * as binary snapshot with MappedTaxonomyStore.write()
+     * @param zipFile
+     * @return store corresponding to NCBI taxonomy
+     * @throws ZipException
+     * @throws IOException
+     * @throws CorruptedLineageException when a node refers to an absent parent
+     * @throws ParseException when a line is not in dmp format
+     */
+    public ArrayTaxonomyStore readZipToStore(File zipFile) throws ZipException, IOException, CorruptedLineageException, ParseException {
+        ZipFile archive = new ZipFile(zipFile);
+        try {
+            /*first process the nodes file*/
+            ZipEntry nodesFile = archive.getEntry("nodes.dmp");
+            ArrayTaxonomyStore.Builder builder = new ArrayTaxonomyStore.Builder((int) Math.max(nodesFile.getSize() / 80, 1024));
+            FieldTokenizer ft = new FieldTokenizer(archive.getInputStream(nodesFile), DMP_SEPARATOR, DMP_LINE_END, false);
+            while (ft.nextLine()) {
+                builder.add(ft.getInt(0), ft.getInt(1), TaxonomyRank.getTaxonomyRank(ft.getString(2)), null);
+            }
+            ft.close();
+
+            /*process the names file entry to get the scientific names*/
+            ZipEntry namesFile = archive.getEntry("names.dmp");
+            ft = new FieldTokenizer(archive.getInputStream(namesFile), DMP_SEPARATOR, DMP_LINE_END, false);
+            while (ft.nextLine()) {
+                assert ft.getFieldCount() == 4: "Error parsing at line " + ft.getLineNumber() + ": " + ft.getLine();
+
+                if( ft.fieldEquals(3, "scientific name") ){
+                    builder.setScientificName(ft.getInt(0), ft.getString(1));
+                }
+            }
+            ft.close();
+
+            /*link the nodes*/
+            return builder.build();
+        } finally {
+            archive.close();
+        }
+    }
 }
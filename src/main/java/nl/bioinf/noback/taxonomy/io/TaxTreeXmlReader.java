@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.util.Calendar;
 
 import nl.bioinf.noback.taxonomy.dao.DatabaseException;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
 import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxonomyExperiment;
@@ -69,10 +70,10 @@ public class TaxTreeXmlReader implements ErrorHandler {
 	//private File file;
 	private Document document;
 	//private DocumentBuilder builder;
-	private TaxonomyDaoInMemory taxDB;
+	private TaxonomyDao taxDB;
 
 
-	public TaxTreeXmlReader(TaxonomyDaoInMemory taxDB) {
+	public TaxTreeXmlReader(TaxonomyDao taxDB) {
 		this.taxDB = taxDB;
 	}
 
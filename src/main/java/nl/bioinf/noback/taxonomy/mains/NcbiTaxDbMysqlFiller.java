@@ -7,12 +7,12 @@ package nl.bioinf.noback.taxonomy.mains;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Set;
@@ -20,12 +20,20 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import nl.bioinf.noback.taxonomy.dao.MysqlBulkLoader;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
 import org.apache.commons.configuration.XMLConfiguration;
 
 /**
+ * Fills a MySQL mirror of the NCBI taxonomy (see src/mysql/taxDB.sql) from taxdmp.zip,
+ * and optionally its gi numbers table from gi_taxid_prot.dmp and its accession2taxid
+ * table from the NCBI accession2taxid files. The dump files are
+ * imported in bulk with LOAD DATA LOCAL INFILE: chunks of lines are converted to
+ * tab-separated files on parallel threads (bulk_load_threads) and imported with the
+ * keys and checks of the table disabled.
  *
  * @author michiel
  */
@@ -36,6 +44,113 @@ public final class NcbiTaxDbMysqlFiller {
     public static final String DATABASE_USER = "database.user";
     public static final String DATABASE_HOST = "database.host";
     public static final String DATABASE_PASSWORD = "database.password";
+    public static final String GI_TAXID_FILE = "gi_taxid_file";
+    public static final String GI_TABLE = "gi_table";
+    public static final String ACCESSION_TAXID_FILE = "accession_taxid_file";
+    public static final String BULK_LOAD_THREADS = "bulk_load_threads";
+
+    /**
+     * rows of division.dmp: (division_id, division_code, division_name, comments)
+     */
+    static final MysqlBulkLoader.RowFormatter<String> DIVISION_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            String[] elements = line.split("\\t+\\|\\t+");
+            String comments = elements[3];
+            comments = comments.length() < 2 ? null : comments;
+            MysqlBulkLoader.appendFields(row, Integer.parseInt(elements[0]), elements[1], elements[2], comments);
+            return true;
+        }
+    };
+    /**
+     * rows of delnodes.dmp: (tax_id)
+     */
+    static final MysqlBulkLoader.RowFormatter<String> DELETED_NODE_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            String[] elements = line.split("\\t?\\|\\t?");
+            MysqlBulkLoader.appendFields(row, Integer.parseInt(elements[0]));
+            return true;
+        }
+    };
+    /**
+     * rows of nodes.dmp: (tax_id, parent_tax_id, rank, division_code, inherited_div, genetic_code_id)
+     */
+    static final MysqlBulkLoader.RowFormatter<String> NODE_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            String[] elements = line.split("\\t\\|\\t");
+            MysqlBulkLoader.appendFields(row,
+                    Integer.parseInt(elements[0]),
+                    Integer.parseInt(elements[1]),
+                    elements[2],
+                    elements[3],
+                    Integer.parseInt(elements[4]),
+                    Integer.parseInt(elements[5]));
+            return true;
+        }
+    };
+    /**
+     * rows of names.dmp: (tax_id, name, unique_name, name_class)
+     */
+    static final MysqlBulkLoader.RowFormatter<String> NAME_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            String[] elements = line.split("\\t\\|\\t");
+            String uniqueName = elements[2];
+            String nameClass = elements[3];
+            nameClass = nameClass.substring(0, nameClass.length() - 2);
+            MysqlBulkLoader.appendFields(row,
+                    Integer.parseInt(elements[0]),
+                    elements[1],
+                    uniqueName.length() > 2 ? uniqueName : null,
+                    nameClass);
+            return true;
+        }
+    };
+    /**
+     * rows of merged.dmp: (old_tax_id, new_tax_id)
+     */
+    static final MysqlBulkLoader.RowFormatter<String> MERGED_NODE_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            String[] elements = line.split("\\t\\|\\t");
+            int oldId = Integer.parseInt(elements[0]);
+            int newId = Integer.parseInt(elements[1].substring(0, elements[1].length() - 2));
+            MysqlBulkLoader.appendFields(row, oldId, newId);
+            return true;
+        }
+    };
+    /**
+     * rows of gi_taxid_prot.dmp: (gi_number, tax_id)
+     */
+    static final MysqlBulkLoader.RowFormatter<String> GI_NUMBER_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            int tab = line.indexOf('\t');
+            MysqlBulkLoader.appendFields(row,
+                    Integer.parseInt(line.substring(0, tab)),
+                    Integer.parseInt(line.substring(tab + 1).trim()));
+            return true;
+        }
+    };
+    /**
+     * rows of the NCBI accession2taxid files: (accession_version, tax_id); header
+     * lines give no row
+     */
+    static final MysqlBulkLoader.RowFormatter<String> ACCESSION_ROWS = new MysqlBulkLoader.RowFormatter<String>() {
+        @Override
+        public boolean format(String line, StringBuilder row) {
+            if (line.isEmpty() || line.startsWith("accession")) {
+                return false;
+            }
+            String[] elements = line.split("\\t");
+            /*files with only the columns accession.version and taxid are accepted as well*/
+            int keyField = elements.length >= 3 ? 1 : 0;
+            MysqlBulkLoader.appendFields(row, elements[keyField], Integer.parseInt(elements[keyField + 1].trim()));
+            return true;
+        }
+    };
 
     /**
      * The configuration settings for the database connection.
@@ -46,12 +161,11 @@ public final class NcbiTaxDbMysqlFiller {
      */
     private TaxonomyDao ncbiTaxDB;
     private Connection connection;
-    private PreparedStatement deletedNodesStmnt;
-    private PreparedStatement divisionsStmnt;
-    private PreparedStatement nodesStmnt;
-    private PreparedStatement namesStmnt;
-    private PreparedStatement mergedNodesStmnt;
     private ZipFile archive;
+    /**
+     * the number of threads formatting chunks for the bulk load
+     */
+    private int threads;
 
 
     /*TaxDBlite*/
@@ -79,17 +193,22 @@ public final class NcbiTaxDbMysqlFiller {
     private void start(String configFile) {
         try {
             loadConfiguration(configFile);
+            this.threads = configuration.getInt(BULK_LOAD_THREADS, Runtime.getRuntime().availableProcessors());
             connectNCBITaxDB();
 
             File zipFile = new File(configuration.getString("zipfile_location"));
             this.archive = new ZipFile(zipFile);
 
+            long start = System.currentTimeMillis();
             processDivisions();
             processDeletedNodes();
             processNodes();
             processNames();
             processMergedNodes();
-            
+            processGiNumbers();
+            processAccessions();
+            System.out.println("loaded in " + (System.currentTimeMillis() - start) / 1000 + " s");
+
             disconnectNCBITaxDB();
         } catch (Exception e) {
             e.printStackTrace();
@@ -101,32 +220,8 @@ public final class NcbiTaxDbMysqlFiller {
      */
     private void processDivisions() {
         System.out.print("Processing divisions...");
-        int lineCount = 0;
-        try {
-            ZipEntry nodesFile = archive.getEntry("division.dmp");
-            InputStream is = archive.getInputStream(nodesFile);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = br.readLine()) != null) {
-                lineCount++;
-                String[] elements = line.split("\\t+\\|\\t+");
-                int id = Integer.parseInt(elements[0]);
-                String code = elements[1];
-                String name = elements[2];
-                String comments = elements[3];
-                comments = comments.length() < 2 ? null : comments;
-                divisionsStmnt.setInt(1, id);
-                divisionsStmnt.setString(2, code);
-                divisionsStmnt.setString(3, name);
-                divisionsStmnt.setString(4, comments);
-                divisionsStmnt.executeUpdate();
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
-        } catch (SQLException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
-        }
-        System.out.println(lineCount + " divisions processed");
+        long rows = load("division.dmp", "divisions", "(division_id, division_code, division_name, comments)", DIVISION_ROWS);
+        System.out.println(rows + " divisions processed");
     }
 
     /**
@@ -134,26 +229,8 @@ public final class NcbiTaxDbMysqlFiller {
      */
     private void processDeletedNodes() {
         System.out.print("Processing deleted nodes...");
-        int lineCount = 0;
-        try {
-            ZipEntry nodesFile = archive.getEntry("delnodes.dmp");
-            InputStream is = archive.getInputStream(nodesFile);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = br.readLine()) != null) {
-                lineCount++;
-                String[] elements = line.split("\\t?\\|\\t?");
-                int id = Integer.parseInt(elements[0]);
-                deletedNodesStmnt.setInt(1, id);
-                deletedNodesStmnt.executeUpdate();
-                //if (lineCount == 10) break;
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
-        } catch (SQLException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
-        }
-        System.out.println(lineCount + " deleted nodes processed");
+        long rows = load("delnodes.dmp", "deleted_nodes", "(tax_id)", DELETED_NODE_ROWS);
+        System.out.println(rows + " deleted nodes processed");
     }
 
     /**
@@ -161,110 +238,123 @@ public final class NcbiTaxDbMysqlFiller {
      */
     private void processNodes() {
         System.out.print("Processing nodes...");
-        int lineCount = 0;
-        try {
-            ZipEntry nodesFile = archive.getEntry("nodes.dmp");
-            InputStream is = archive.getInputStream(nodesFile);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = br.readLine()) != null) {
-                lineCount++;
-                String[] elements = line.split("\\t\\|\\t");
-                int id = Integer.parseInt(elements[0]);
-                int parentId = Integer.parseInt(elements[1]);
-                String rank = elements[2];
-                String divisionCode = elements[3];
-                int inheritedDiv = Integer.parseInt(elements[4]);
-                int genCodeId = Integer.parseInt(elements[5]);
+        long rows = load("nodes.dmp", "nodes", "(tax_id, parent_tax_id, rank, division_code, inherited_div, genetic_code_id)",
+                NODE_ROWS);
+        System.out.println(rows + " nodes processed");
+    }
+
+    /**
+     * processes names.dmp.
+     */
+    private void processNames() {
+        System.out.print("Processing names...");
+        long rows = load("names.dmp", "names", "(tax_id, name, unique_name, name_class)", NAME_ROWS);
+        System.out.println(rows + " names processed");
+    }
 
-                nodesStmnt.setInt(1, id);
-                nodesStmnt.setInt(2, parentId);
-                nodesStmnt.setString(3, rank);
-                nodesStmnt.setString(4, divisionCode);
-                nodesStmnt.setInt(5, inheritedDiv);
-                nodesStmnt.setInt(6, genCodeId);
+    /**
+     * processes merged.dmp.
+     */
+    private void processMergedNodes() {
+        System.out.print("Processing merged nodes...");
+        long rows = load("merged.dmp", "merged_nodes", "(old_tax_id, new_tax_id)", MERGED_NODE_ROWS);
+        System.out.println(rows + " merged nodes processed");
+    }
 
-                nodesStmnt.executeUpdate();
+    /**
+     * processes gi_taxid_prot.dmp (gi \t tax_id), when configured; it may be gzipped.
+     */
+    private void processGiNumbers() {
+        String giFileName = configuration.getString(GI_TAXID_FILE, "NONE");
+        if (giFileName.equals("NONE")) {
+            return;
+        }
+        String giTable = configuration.getString(GI_TABLE, "gi_numbers");
+        System.out.print("Processing gi numbers into " + giTable + "...");
+        long rows = 0;
+        try {
+            InputStream is = new FileInputStream(giFileName);
+            if (giFileName.endsWith(".gz")) {
+                is = new GZIPInputStream(is, 1 << 16);
             }
+            rows = load(is, giTable, "(gi_number, tax_id)", GI_NUMBER_ROWS);
         } catch (IOException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
-        } catch (SQLException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
+            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "can not read " + giFileName, ex);
         }
-        System.out.println(lineCount + " nodes processed");
+        System.out.println(rows + " gi numbers processed");
     }
 
     /**
-     * processes nodes.dmp.
+     * processes the NCBI accession2taxid files (accession \t accession.version \t taxid \t gi),
+     * when configured; they may be gzipped. The header lines are skipped; of an
+     * accession.version that occurs more than once the first entry is kept.
      */
-    private void processNames() {
-        //Set<String> nameClasses = new TreeSet<String>();
-        System.out.print("Processing names...");
-        int lineCount = 0;
-        try {
-            ZipEntry nodesFile = archive.getEntry("names.dmp");
-            InputStream is = archive.getInputStream(nodesFile);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = br.readLine()) != null) {
-                lineCount++;
-                String[] elements = line.split("\\t\\|\\t");
-                int id = Integer.parseInt(elements[0]);
-                String name = elements[1];
-                String uniqueName = elements[2];
-                if (uniqueName.length() > 2) {
-                    namesStmnt.setString(3, uniqueName);
-                } else {
-                    namesStmnt.setNull(3, java.sql.Types.VARCHAR);
+    private void processAccessions() {
+        String[] accessionFileNames = configuration.getStringArray(ACCESSION_TAXID_FILE);
+        for (String accessionFileName : accessionFileNames) {
+            System.out.print("Processing accessions of " + accessionFileName + "...");
+            long rows = 0;
+            try {
+                InputStream is = new FileInputStream(accessionFileName);
+                if (accessionFileName.endsWith(".gz")) {
+                    is = new GZIPInputStream(is, 1 << 16);
                 }
-
-                String nameClass = elements[3];
-                nameClass = nameClass.substring(0, nameClass.length() - 2);
-//                nameClasses.add(nameClass);
-                namesStmnt.setInt(1, id);
-                namesStmnt.setString(2, name);
-                namesStmnt.setString(4, nameClass);
-
-                namesStmnt.executeUpdate();
+                rows = load(is, "accession2taxid", "(accession_version, tax_id)", ACCESSION_ROWS);
+            } catch (IOException ex) {
+                Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "can not read " + accessionFileName, ex);
             }
+            System.out.println(rows + " accessions processed");
+        }
+    }
+
+    /**
+     * bulk-loads a file of the archive into a table.
+     *
+     * @return the number of rows loaded
+     */
+    private long load(String entry, String table, String columns, MysqlBulkLoader.RowFormatter<String> formatter) {
+        try {
+            ZipEntry dumpFile = archive.getEntry(entry);
+            return load(archive.getInputStream(dumpFile), table, columns, formatter);
         } catch (IOException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
-        } catch (SQLException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
+            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "can not read " + entry, ex);
+            return 0;
         }
-        System.out.println(lineCount + " names processed");
-        //System.out.println("nameClasses = " + nameClasses);
     }
 
     /**
-     * processes merged.dmp.
+     * bulk-loads the lines of a stream into a table; the stream is closed.
+     *
+     * @return the number of rows loaded
      */
-    private void processMergedNodes() {
-        //Set<String> nameClasses = new TreeSet<String>();
-        System.out.print("Processing merged nodes...");
+    private long load(InputStream is, String table, String columns, MysqlBulkLoader.RowFormatter<String> formatter) {
         int lineCount = 0;
+        MysqlBulkLoader<String> loader = null;
+        BufferedReader br = new BufferedReader(new InputStreamReader(is), 1 << 16);
         try {
-            ZipEntry nodesFile = archive.getEntry("merged.dmp");
-            InputStream is = archive.getInputStream(nodesFile);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
+            loader = new MysqlBulkLoader<String>(connection, table, columns, formatter, threads,
+                    MysqlBulkLoader.DEFAULT_CHUNK_SIZE);
             String line;
             while ((line = br.readLine()) != null) {
                 lineCount++;
-                String[] elements = line.split("\\t\\|\\t");
-                int oldId = Integer.parseInt(elements[0]);
-                int newId = Integer.parseInt(elements[1].substring(0, elements[1].length() - 2));
-                mergedNodesStmnt.setInt(1, oldId);
-                mergedNodesStmnt.setInt(2, newId);
-
-                mergedNodesStmnt.executeUpdate();
-                if(lineCount == 10) break;
+                loader.add(line);
             }
+            return loader.finish();
         } catch (IOException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
+            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error after line " + lineCount, ex);
         } catch (SQLException ex) {
-            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error at line " + lineCount, ex);
+            Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, "error after line " + lineCount, ex);
+        } finally {
+            try {
+                br.close();
+                if (loader != null) {
+                    loader.abort();
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, null, ex);
+            }
         }
-        System.out.println(lineCount + " merged nodes processed");
+        return loader == null ? 0 : loader.getRowCount();
     }
 
     /**
@@ -273,32 +363,15 @@ public final class NcbiTaxDbMysqlFiller {
     private void connectNCBITaxDB() {
         /*connect to TaxDB*/
         try {
+            /*LOAD DATA LOCAL INFILE has to be allowed by the driver*/
             String url = "jdbc:mysql://" + configuration.getString(DATABASE_HOST)
-                    + "/" + configuration.getString(DATABASE_NAME);
+                    + "/" + configuration.getString(DATABASE_NAME) + "?allowLoadLocalInfile=true";
             Class.forName("com.mysql.jdbc.Driver").newInstance();
             connection = DriverManager.getConnection(
                     url,
                     configuration.getString(DATABASE_USER),
                     configuration.getString(DATABASE_PASSWORD));
 
-            String query = "INSERT INTO deleted_nodes (tax_id) VALUES (?);";
-            this.deletedNodesStmnt = connection.prepareStatement(query);
-
-            query = "INSERT INTO divisions (division_id, division_code, division_name, comments) VALUES (?, ?, ?, ?);";
-            this.divisionsStmnt = connection.prepareStatement(query);
-
-            query = "INSERT INTO nodes (tax_id, parent_tax_id, rank, division_code, inherited_div, genetic_code_id)"
-                    + " VALUES (?, ?, ?, ?, ?, ?);";
-            this.nodesStmnt = connection.prepareStatement(query);
-
-            query = "INSERT INTO names (tax_id, name, unique_name, name_class)"
-                    + " VALUES (?, ?, ?, ?);";
-            this.namesStmnt = connection.prepareStatement(query);
-
-            query = "INSERT INTO merged_nodes (old_tax_id, new_tax_id)"
-                    + " VALUES (?, ?);";
-            this.mergedNodesStmnt = connection.prepareStatement(query);
-
         } catch (SQLException e) {
             Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, null, e);
         } catch (ClassNotFoundException ex) {
@@ -315,11 +388,6 @@ public final class NcbiTaxDbMysqlFiller {
      */
     private void disconnectNCBITaxDB() {
         try {
-            deletedNodesStmnt.close();
-            divisionsStmnt.close();
-            nodesStmnt.close();
-            namesStmnt.close();
-            mergedNodesStmnt.close();
             connection.close();
         } catch (SQLException ex) {
             Logger.getLogger(NcbiTaxDbMysqlFiller.class.getName()).log(Level.SEVERE, null, ex);
@@ -3,16 +3,16 @@
  */
 package nl.bioinf.noback.taxonomy.mains;
 
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
 import nl.bioinf.noback.taxonomy.io.ParseException;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
 
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
@@ -51,10 +51,13 @@ public class TaxDBfileCreator {
 	private XMLConfiguration configuration;
 	private Logger logger;
 	/**
-	 * map that stores the gi numbers from the sequences file and 
-	 * later adds the tax_ids from the gi_numbers file
+	 * sorted, unique gi numbers from the sequences file 
 	 */
-	private HashMap<Integer, Integer> giNumbersTaxIds;
+	private long[] giNumbers = new long[0];
+	/**
+	 * the tax_ids from the gi_numbers file, parallel to giNumbers; 0 when not (yet) known
+	 */
+	private int[] giTaxIds = new int[0];
     /**
      * map that stores the relevant taxnodes with key of tax_id
      */
@@ -62,7 +65,6 @@ public class TaxDBfileCreator {
     
 	public TaxDBfileCreator( String configFile ) {
 		this.configFile = configFile;
-		giNumbersTaxIds = new HashMap<Integer, Integer>();
 		taxNodes = new HashMap<Integer, TaxNode>();
 	}
 
@@ -97,7 +99,7 @@ public class TaxDBfileCreator {
 			logger.info("end of giNumbers file; " + giNumbers + " giNumbers processed");
 
 			logger.info("checking for unmatched gi_numbers");
-			List<Integer> unmatchedGiNumbers = checkUnmatchedGiNumbers();
+			List<Long> unmatchedGiNumbers = checkUnmatchedGiNumbers();
 			if(unmatchedGiNumbers.size() > 0){
 				logger.error("there are ; " + unmatchedGiNumbers.size() + " unmatched GiNumbers " +
 						"(gi number in sequence file without presence in gi_taxid file) ");
@@ -168,11 +170,11 @@ public class TaxDBfileCreator {
 			pw = new PrintWriter(outputFile);
 			
 			/*iterate over gi numbers*/
-			for( Entry<Integer, Integer> entry : giNumbersTaxIds.entrySet() ){
+			for( int i=0; i<giNumbers.length; i++ ){
 				giProcessed++;
-				if( entry.getValue() != 0 ){
+				if( giTaxIds[i] != 0 ){
 					giWritten++;
-					pw.println(entry.getKey() + "\t" + entry.getValue() );
+					pw.println(giNumbers[i] + "\t" + giTaxIds[i] );
 				}
 			}
 		}finally{
@@ -247,7 +249,7 @@ public class TaxDBfileCreator {
 		int matchedNodes = 0;
 		int lineNumber = 0;
 		
-		BufferedReader br = null;
+		FieldTokenizer ft = null;
 		try {
 			File inputFile = new File( configuration.getString( NAMES_FILE ) );
 			/*read from file*/
@@ -255,39 +257,29 @@ public class TaxDBfileCreator {
 				throw new IOException("can not read from input file " + inputFile.getName() );
 			}
 
-			br =  new BufferedReader(new FileReader(inputFile));
-			String line;
-			String[] elements;
+			/*fields separated by | and surrounded by whitespace*/
+			ft = new FieldTokenizer( new FileInputStream(inputFile), "|", null, true );
 			
-			while( (line = br.readLine()) != null ){
+			while( ft.nextLine() ){
 				lineNumber++;
 				
 				/*tax_d  | name_txt	| unique_name  | name class |*/
 				/*2	|	Bacteria	|	Bacteria <prokaryote>	|	scientific name	|*/
-				elements = line.split("\\|");
 				try{
-					int taxId = Integer.parseInt( elements[0].trim() );
-					String name = elements[1].trim();
-					String nameClass = elements[3].trim();
-					
-					//System.out.println("tax_id=" + taxId + " name=" + name + " nameClass=" +nameClass);
-					
-					if( nameClass.equals("scientific name") && taxNodes.containsKey(taxId) ){
+					/*the name is only decoded for relevant nodes*/
+					if( ft.fieldEquals(3, "scientific name") && taxNodes.containsKey(ft.getInt(0)) ){
 						//matchedNames++;
 						
-						//System.out.println("tax_id=" + taxId + " name=" + name + " nameClass=" +nameClass);
-						
-						TaxNode tn = taxNodes.get(taxId);
+						TaxNode tn = taxNodes.get(ft.getInt(0));
 						if(tn.getParentNode() != null){
-							//System.out.println("tax_id=" + taxId + " name=" + name + " nameClass=" + nameClass + " is relevant" );
-							tn.setScientificName(name);
+							tn.setScientificName(ft.getString(1));
 							matchedNodes++;
 						}
 					}
 					
 				}catch (Exception e) {
 					throw new ParseException("error parsing file " + inputFile.getName() 
-							+ ": line does not have correct format: " + line + " at line " + lineNumber);
+							+ ": line does not have correct format: " + ft.getLine() + " at line " + lineNumber);
 				}
 
 			}
@@ -295,7 +287,7 @@ public class TaxDBfileCreator {
 			throw new IOException( "file processing failed at line " + lineNumber + ": " + e.getMessage() );
 		}
 		finally{
-			if(br != null )	br.close();
+			if(ft != null )	ft.close();
 		}
 		return matchedNodes;
 	}
@@ -319,13 +311,11 @@ public class TaxDBfileCreator {
 		 * 		b) the parent is the root (tax_id == 1; parent_tax_id==1)
 		 * */
 		//int count = 0;
-		for( Entry<Integer, Integer> entry : giNumbersTaxIds.entrySet()){
-			if( entry.getValue() != 0){//there is a valid tax_id
+		for( int i=0; i<giNumbers.length; i++ ){
+			if( giTaxIds[i] != 0){//there is a valid tax_id
 				//count++;
 				
-				//System.out.println(this.getClass().getSimpleName() + " gi=" + entry.getKey() + " tax_id=" + entry.getValue());
-				
-				int taxId = entry.getValue();
+				int taxId = giTaxIds[i];
 				if( taxNodes.containsKey( taxId ) ){
 					TaxNode tn = taxNodes.get(taxId);
 					TaxNode parent = null;
@@ -357,7 +347,7 @@ public class TaxDBfileCreator {
 				}
 				else{
 					unmatchedTaxIds++;
-					logger.error("unmatched tax_id: gi_number=" + entry.getKey() + " tax_id=" + entry.getValue() );
+					logger.error("unmatched tax_id: gi_number=" + giNumbers[i] + " tax_id=" + taxId );
 				}		
 			}
 		}
@@ -375,7 +365,7 @@ public class TaxDBfileCreator {
 	 */
 	private int readNodesFile() throws IOException, ParseException{
 		int lineNumber = 0;
-		BufferedReader br = null;
+		FieldTokenizer ft = null;
 		try {
 			File inputFile = new File( configuration.getString( NODES_FILE ) );
 			/*read from file*/
@@ -383,20 +373,18 @@ public class TaxDBfileCreator {
 				throw new IOException("can not read from input file " + inputFile.getName() );
 			}
 
-			br =  new BufferedReader(new FileReader(inputFile));
-			String line;
-			String[] elements;
+			/*fields separated by | and surrounded by whitespace*/
+			ft = new FieldTokenizer( new FileInputStream(inputFile), "|", null, true );
 			
-			while( (line = br.readLine()) != null ){
+			while( ft.nextLine() ){
 				lineNumber++;
 				
 				/*tax_d  | parent tax_id  | rank | more data*/
 				/*1	|	1	|	no rank	|		|	8	|*/
-				elements = line.split("\\|");
 				try{
-					int taxId = Integer.parseInt( elements[0].trim() );
-					int pTaxId = Integer.parseInt( elements[1].trim() );
-					String rank = elements[2].trim();
+					int taxId = ft.getInt(0);
+					int pTaxId = ft.getInt(1);
+					String rank = ft.getString(2);
 					
 					//System.out.println("tax_id=" + taxId + " p_tax_id=" + pTaxId + " rank=" +rank);
 					
@@ -409,7 +397,7 @@ public class TaxDBfileCreator {
 					
 				}catch (Exception e) {
 					throw new ParseException("error parsing file " + inputFile.getName() 
-							+ ": line does not have correct format: " + line + " at line " + lineNumber);
+							+ ": line does not have correct format: " + ft.getLine() + " at line " + lineNumber);
 				}
 
 			}
@@ -417,7 +405,7 @@ public class TaxDBfileCreator {
 			throw new IOException( "file processing failed at line " + lineNumber + ": " + e.getMessage() );
 		}
 		finally{
-			if(br != null )	br.close();
+			if(ft != null )	ft.close();
 		}
 		return lineNumber;
 	}
@@ -426,12 +414,11 @@ public class TaxDBfileCreator {
 	 * checks how many gi numbers are without tax_id
 	 * @return
 	 */
-	private List<Integer> checkUnmatchedGiNumbers(){
-		List<Integer> unmatched = new ArrayList<Integer>();
-		for( Entry<Integer, Integer> entry : giNumbersTaxIds.entrySet()){
-			if( entry.getValue() == 0){
-				unmatched.add(entry.getKey());
-				
+	private List<Long> checkUnmatchedGiNumbers(){
+		List<Long> unmatched = new ArrayList<Long>();
+		for( int i=0; i<giNumbers.length; i++ ){
+			if( giTaxIds[i] == 0){
+				unmatched.add(giNumbers[i]);
 			}
 		}
 		return unmatched;
@@ -446,7 +433,7 @@ public class TaxDBfileCreator {
 	private int readTaxIdsFromGiNumbersFile() throws IOException, ParseException{
 		int lineNumber = 0;
 		//int matched = 0;
-		BufferedReader br = null;
+		FieldTokenizer ft = null;
 		try {
 			File inputFile = new File( configuration.getString( GI_NUMBERS_FILE ) );
 			/*read from file*/
@@ -454,30 +441,27 @@ public class TaxDBfileCreator {
 				throw new IOException("can not read from input file " + inputFile.getName() );
 			}
 
-			br =  new BufferedReader(new FileReader(inputFile));
+			ft = new FieldTokenizer( new FileInputStream(inputFile), "\t" );
 			/*gi_number	tax_id*/
-			String line;
-			String[] elements;
 			
 			/*skip first line*/
-			line = br.readLine();
+			ft.nextLine();
 			
-			while( (line = br.readLine()) != null ){
+			while( ft.nextLine() ){
 				lineNumber++;
 				
-				elements = line.split("\t");
 				try{
-					int gi = Integer.parseInt(elements[0]);
-					int taxId = Integer.parseInt(elements[1]);
+					long gi = ft.getLong(0);
+					int taxId = ft.getInt(1);
 					
-					if( giNumbersTaxIds.containsKey(gi) ){
+					int index = Arrays.binarySearch(giNumbers, gi);
+					if( index >= 0 ){
 						//matched++;
-						giNumbersTaxIds.put(gi, taxId);
-						//System.out.println(this.getClass().getSimpleName() + " taxId entered: " + taxId + " for gi " + gi);
+						giTaxIds[index] = taxId;
 					}
 				}catch (Exception e) {
 					throw new ParseException("error parsing file " + inputFile.getName() 
-							+ ": line does not have correct format: " + line + " at line " + lineNumber);
+							+ ": line does not have correct format: " + ft.getLine() + " at line " + lineNumber);
 				}
 				
 			}
@@ -487,7 +471,7 @@ public class TaxDBfileCreator {
 			throw new IOException( "file processing failed at line " + lineNumber + ": " + e.getMessage() );
 		}
 		finally{
-			if(br != null )	br.close();
+			if(ft != null )	ft.close();
 		}
 		return lineNumber;
 	}
@@ -501,7 +485,8 @@ public class TaxDBfileCreator {
 	private int readGiNumbersFromSequenceFile() throws IOException, ParseException{
 		int lineNumber = 0;
 		int sequenceNumber = 0;
-		BufferedReader br = null;
+		long[] numbers = new long[1024];
+		FieldTokenizer ft = null;
 		try {
 			File inputFile = new File( configuration.getString( SEQUENCES_FILE ) );
 			/*read from file*/
@@ -509,33 +494,42 @@ public class TaxDBfileCreator {
 				throw new IOException("can not read from input file " + inputFile.getName() );
 			}
 
-			br = new BufferedReader(new FileReader(inputFile));
+			ft = new FieldTokenizer( new FileInputStream(inputFile), "|" );
 			/*>gi|158333249|ref|YP_001514421.1| response regulator [Acaryochloris marina MBIC11017]*/
-			String line;
-			String[] elements;
 			
-			while( (line = br.readLine()) != null ){
+			while( ft.nextLine() ){
 				lineNumber++;
 				
-				if( line.startsWith(">" ) ){
+				if( ft.fieldStartsWith(0, ">") ){
 					sequenceNumber++;
 					
-					elements = line.split("\\|");
-					
-					if(! elements[0].equals(">gi")){
+					if(! ( ft.fieldEquals(0, ">gi") && ft.getFieldCount() > 1 ) ){
 						throw new ParseException("error parsing file " + inputFile.getName() 
-								+ ": description line does not have correct format: " + line + " at line " + lineNumber);
+								+ ": description line does not have correct format: " + ft.getLine() + " at line " + lineNumber);
 					}
 					
-					int gi_number = Integer.parseInt( elements[1] );
-					giNumbersTaxIds.put(gi_number, 0);
+					if( sequenceNumber > numbers.length ){
+						numbers = Arrays.copyOf(numbers, numbers.length * 2);
+					}
+					numbers[sequenceNumber-1] = ft.getLong(1);
+				}
+			}
+			
+			/*sort and remove duplicates*/
+			Arrays.sort(numbers, 0, sequenceNumber);
+			int unique = 0;
+			for( int i=0; i<sequenceNumber; i++ ){
+				if( unique == 0 || numbers[i] != numbers[unique-1] ){
+					numbers[unique++] = numbers[i];
 				}
 			}
+			giNumbers = Arrays.copyOf(numbers, unique);
+			giTaxIds = new int[unique];
 		}catch (IOException e) {
 			throw new IOException( "file processing failed at line " + lineNumber + ": " + e.getMessage() );
 		}
 		finally{
-			if(br != null )	br.close();
+			if(ft != null )	ft.close();
 		}
 		return sequenceNumber;
 	}
@@ -5,12 +5,12 @@ import java.util.HashMap;
 
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
-import nl.bioinf.noback.taxonomy.model.TaxNode;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyStore;
 
 public class TaxDBstatsAnalyser {
     public boolean VERBOSE = true;
 	private TaxonomyDaoInMemory taxDB;
-	private HashMap<Integer, TaxNode> taxNodes; 
+	private TaxonomyStore taxonomyStore;
 
 	/**
 	 * @param args
@@ -47,7 +47,7 @@ public class TaxDBstatsAnalyser {
 			taxDB.countNodes();
 		}
 		
-		this.taxNodes = taxDB.getTaxNodes();
+		this.taxonomyStore = taxDB.getTaxonomyStore();
 	}
 	
 	
@@ -59,9 +59,14 @@ public class TaxDBstatsAnalyser {
 		}
 		/*iterate the taxDB*/
 		//int count = 0;
-		for( TaxNode tn : this.taxNodes.values()){
+		int unknownRankCount = 0;
+		for( int i=0; i<taxonomyStore.size(); i++ ){
 			//count++;
-			TaxonomyRank tr = tn.getRank();
+			TaxonomyRank tr = taxonomyStore.getRank(i);
+			if( tr == null ){
+				unknownRankCount++;
+				continue;
+			}
 			levelCounts.put( tr, levelCounts.get(tr)+1 );
 			
 			//if(count==10) break;
@@ -72,6 +77,10 @@ public class TaxDBstatsAnalyser {
 			total += levelCounts.get(tr);
 			System.out.println(tr + "\t" + levelCounts.get(tr));
 		}
+		if( unknownRankCount > 0 ){
+			total += unknownRankCount;
+			System.out.println("UNKNOWN\t" + unknownRankCount);
+		}
 		System.out.println("Total number of nodes: " + total);
 	}
 
@@ -4,22 +4,34 @@
 package nl.bioinf.noback.taxonomy.mains;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
-import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.dao.DatabaseException;
+import nl.bioinf.noback.taxonomy.dao.LineageClosureTable;
+import nl.bioinf.noback.taxonomy.dao.TaxIdRemapTable;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoMysql;
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
 import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
 
@@ -33,6 +45,16 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 /**
+ * This class creates a Derby TaxDBlite database holding the gi numbers of the input
+ * file, optionally the accession.versions of the accession file, and the lineages of
+ * their tax_ids. The database is bulk-loaded: the gi numbers and accessions are
+ * imported with SYSCS_IMPORT_TABLE, the lineages are looked up in batches and
+ * their nodes, deduplicated in memory, are inserted with JDBC batches in large
+ * transactions. Keys and indexes are created after the load.
+ * The gi numbers and accessions keep the tax_ids of the input; the tax_ids among them 
+ * that NCBI has merged or deleted are copied into merged_nodes and deleted_nodes, so 
+ * that TaxonomyDaoDerby redirects them as the NCBI TaxDB does. Deleted tax_ids have no 
+ * lineage and are skipped.
  * @author michiel
  *
  */
@@ -45,6 +67,7 @@ public class TaxDbLiteDerbyCreator {
     public static final String LOG_FILE = "log.file";
 
     public static final String INPUT_FILE = "input_file";
+    public static final String ACCESSION_FILE = "accession_file";
     /*NCBI TaxDB*/
     public static final String DATABASE_NAME = "database.database_name";
     public static final String GI_TABLE = "gi_table";
@@ -57,6 +80,15 @@ public class TaxDbLiteDerbyCreator {
     public static final String TDB_LITE_USER = "tax_db_lite.user";
     public static final String TDB_LITE_PASSWORD = "tax_db_lite.password";
     
+    /**
+     * the number of tax_ids whose lineages are looked up in one batch
+     */
+    private static final int LOOKUP_BATCH_SIZE = 500;
+    /**
+     * the number of node inserts per JDBC batch and per transaction
+     */
+    private static final int COMMIT_INTERVAL = 10000;
+    
 	/**
 	 * the log4j logger object
 	 */
@@ -73,18 +105,34 @@ public class TaxDbLiteDerbyCreator {
      * the object used to query the taxonomy database TaxDB
      */
     private TaxonomyDao ncbiTaxDB;
+    /**
+     * the merged and deleted tax_ids of TaxDB
+     */
+    private TaxIdRemapTable remapTable;
     /**
      * the connection to TaxDBlite
      */
     private Connection taxDBliteConn;
     /**
-     * prepared statement for gi_number insert
+     * prepared statement for node insert
+     */
+    private PreparedStatement psNodeInsert;
+    /**
+     * the parent tax_ids of the nodes inserted so far, by tax_id
      */
-    private PreparedStatement psGiInsert;
+    private Map<Integer, Integer> insertedNodes = new HashMap<Integer, Integer>();
     /**
-     * prepared statement for gi_number insert
+     * the merged tax_ids of the input and the tax_ids they were merged into
      */
-    private PreparedStatement psNodeInsert;
+    private Map<Integer, Integer> mergedTaxIds = new LinkedHashMap<Integer, Integer>();
+    /**
+     * the deleted tax_ids of the input
+     */
+    private List<Integer> deletedTaxIds = new ArrayList<Integer>();
+    /**
+     * node inserts that have not been committed yet
+     */
+    private int pendingInserts = 0;
     /**
      * the input data file coupling gi numbers and tax_id s
      */
@@ -102,6 +150,14 @@ public class TaxDbLiteDerbyCreator {
 	 * counts the number of processed gi numbers(=protein sequences)
 	 */
 	private int processedGiNumbers = 0;
+	/**
+	 * counts the number of processed accession.versions
+	 */
+	private int processedAccessions = 0;
+	/**
+	 * counts the rows of the lineage closure table
+	 */
+	private int closureRows = 0;
 	
 	/**
 	 * @param args
@@ -145,10 +201,16 @@ public class TaxDbLiteDerbyCreator {
 			logger.info("starting processing of taxonomy data");
 			readTaxData();
 			
+			logger.info("creating keys and indexes");
+			createKeys();
+			
 			logger.info("data processing finished.\n" 
 					+ processedGiNumbers + " gi numbers, " 
+					+ processedAccessions + " accessions, " 
 					+ processedTaxIds + " tax id's and " 
-					+ processedTaxNodes + " taxonomy nodes were entered into taxDBlite" );
+					+ processedTaxNodes + " taxonomy nodes were entered into taxDBlite; "
+					+ closureRows + " rows into the lineage closure table; "
+					+ mergedTaxIds.size() + " merged and " + deletedTaxIds.size() + " deleted tax_ids are redirected" );
 			
 			
 		}catch (Exception e) {
@@ -158,13 +220,11 @@ public class TaxDbLiteDerbyCreator {
 			try {
 				ncbiTaxDB.disconnect();
                 if (taxDBliteConn != null) {
+                	/*Derby does not close a connection with an active transaction, e.g. after a failed load*/
+                	if( ! taxDBliteConn.getAutoCommit() ) taxDBliteConn.rollback();
                 	taxDBliteConn.close();
                 	taxDBliteConn = null;
                 }
-                if (psGiInsert != null) {
-                	psGiInsert.close();
-                	psGiInsert = null;
-                }
                 if (psNodeInsert != null) {
                 	psNodeInsert.close();
                 	psNodeInsert = null;
@@ -176,182 +236,310 @@ public class TaxDbLiteDerbyCreator {
 	}
 
 	/**
-	 * inserts a gi_number and tax_id combination into TaxDBlite.gi_numbers
-	 * @param giNumber
-	 * @param taxId
+	 * reads the input file; the gi numbers are imported into TaxDBlite.gi_numbers in bulk,
+	 * after which the lineages of all distinct tax_ids are inserted. A gi number listed 
+	 * twice with the same tax_id is imported once; when its tax_ids differ, the offending 
+	 * gi numbers are reported and nothing is imported
 	 * @throws Exception
 	 */
-	private void processGiNumber( int giNumber, int taxId ) throws Exception{
-		logger.debug( "processing gi=" + giNumber );
-        psGiInsert.setInt(1, giNumber);
-        psGiInsert.setInt(2, taxId);
-        psGiInsert.executeUpdate();
-        
-        processedGiNumbers++;
-/*        ResultSet rs = null;
-        Statement s = taxDBliteConn.createStatement();
-        rs = s.executeQuery( "SELECT gi_number, tax_id FROM gi_numbers WHERE gi_number=" + giNumber );
-        if (!rs.next()){
-        	System.out.println("No rows in ResultSet");
-        }
-    	System.out.println("inserted: gi=" + rs.getInt("gi_number") + " tax_id=" + rs.getInt("tax_id"));
-        
-    	psGiInsert.clearParameters();
-    	rs.close();
-    	rs = null;
-        s.close();
-        s = null;
-*/        
+	private void readTaxData() throws Exception{
+		FieldTokenizer ft = null;
+		File giFile = File.createTempFile( "gi_numbers", ".csv" );
+		giFile.deleteOnExit();
+		Set<Integer> taxIds = new LinkedHashSet<Integer>();
+		/*gi number in the high, tax_id in the low int; sorted to find the duplicates*/
+		long[] entries = new long[ 1 << 16 ];
+		int entryCount = 0;
+		try {
+			this.inputFile = new File( configuration.getString( INPUT_FILE ) );
+			/*read from file*/
+			if( (! inputFile.exists() ) || (! inputFile.canRead() ) ){
+				throw new Exception("can not read from input file " + inputFile.getName() );
+			}
+
+			ft = new FieldTokenizer( new FileInputStream(inputFile), "\t" );
+			//read header line: gi_number	tax_id
+			if( ! ( ft.nextLine() && ft.getFieldCount() > 1 && ft.fieldEquals(0, "gi_number") && ft.fieldEquals(1, "tax_id") ) ){
+				ft.close();
+				throw new Exception("file does not have the right format: [gi_number]\t[tax_id]\n");
+			}
+			
+			while( ft.nextLine() ){
+				int gi_number = ft.getInt( 0 );
+				int tax_id = ft.getInt( 1 );
+				if( entryCount == entries.length ){
+					entries = Arrays.copyOf( entries, entryCount * 2 );
+				}
+				entries[ entryCount++ ] = ( (long)gi_number << 32 ) | ( tax_id & 0xFFFFFFFFL );
+				taxIds.add( tax_id );
+			}
+			ft.close();
+		}catch (Exception e) {
+			e.printStackTrace();
+			giFile.delete();
+			throw new Exception( "file processing failed at line " + (ft == null ? 1 : ft.getLineNumber()) + ": " + e.getMessage() );
+		}
+		
+		/*the primary key is only added after the import, so duplicates are dealt with here*/
+		Arrays.sort( entries, 0, entryCount );
+		List<String> conflicts = new ArrayList<String>();
+		for( int i=1; i<entryCount; i++ ){
+			int gi_number = (int)( entries[i] >> 32 );
+			if( gi_number == (int)( entries[i-1] >> 32 ) && entries[i] != entries[i-1] ){
+				conflicts.add( gi_number + " (" + (int)entries[i-1] + ", " + (int)entries[i] + ")" );
+			}
+		}
+		if( ! conflicts.isEmpty() ){
+			giFile.delete();
+			throw new DatabaseException( conflicts.size() + " gi numbers with more than one tax_id in " + inputFile.getName() 
+					+ ": " + ( conflicts.size() < 25 ? conflicts.toString() : conflicts.subList( 0, 25 ) + " ..." ) );
+		}
+		
+		/*the gi numbers are written to an import file for SYSCS_IMPORT_TABLE, once each*/
+		BufferedWriter giWriter = new BufferedWriter( new FileWriter( giFile ), 1 << 16 );
+		try{
+			for( int i=0; i<entryCount; i++ ){
+				if( i > 0 && entries[i] == entries[i-1] ) continue;
+				giWriter.write( (int)( entries[i] >> 32 ) + "," + (int)entries[i] + "\n" );
+				processedGiNumbers++;
+			}
+		}finally{
+			giWriter.close();
+		}
+		if( processedGiNumbers < entryCount ){
+			logger.warn( (entryCount - processedGiNumbers) + " duplicate gi numbers in " + inputFile.getName() + " are imported once" );
+		}
+		
+		try{
+			logger.info( "importing " + processedGiNumbers + " gi numbers" );
+			importTable( "GI_NUMBERS", giFile );
+		}finally{
+			giFile.delete();
+		}
+		
+		String accessionFileName = configuration.getString( ACCESSION_FILE );
+		if( accessionFileName != null ){
+			readAccessions( new File( accessionFileName ), taxIds );
+		}
+		
+		logger.info( "inserting the lineages of " + taxIds.size() + " tax_ids" );
+		List<Integer> block = new ArrayList<Integer>( LOOKUP_BATCH_SIZE );
+		for( Integer taxId : taxIds ){
+			block.add( taxId );
+			if( block.size() == LOOKUP_BATCH_SIZE ){
+				processTaxIds( block );
+				block.clear();
+			}
+		}
+		processTaxIds( block );
+		commitNodes();
+		insertRemappedTaxIds();
+	}
+	
+	/**
+	 * reads the accession file (accession_version \t tax_id, with that header line) and 
+	 * imports it into TaxDBlite.accession2taxid; the tax_ids are added to the given set.
+	 * An accession listed twice with the same tax_id is imported once; when its tax_ids 
+	 * differ, the offending accessions are reported and nothing is imported
+	 * @param accessionFile
+	 * @param taxIds
+	 * @throws Exception
+	 */
+	private void readAccessions( File accessionFile, Set<Integer> taxIds ) throws Exception{
+		if( (! accessionFile.exists() ) || (! accessionFile.canRead() ) ){
+			throw new Exception("can not read from accession file " + accessionFile.getName() );
+		}
+		Map<String, Integer> accessions = new LinkedHashMap<String, Integer>();
+		List<String> conflicts = new ArrayList<String>();
+		FieldTokenizer ft = new FieldTokenizer( new FileInputStream( accessionFile ), "\t" );
+		try{
+			if( ! ( ft.nextLine() && ft.getFieldCount() > 1 && ft.fieldEquals(0, "accession_version") && ft.fieldEquals(1, "tax_id") ) ){
+				throw new Exception("accession file does not have the right format: [accession_version]\t[tax_id]\n");
+			}
+			while( ft.nextLine() ){
+				if( ft.isEmptyLine() ) continue;
+				String accession = ft.getString( 0 );
+				int tax_id = ft.getInt( 1 );
+				Integer previous = accessions.put( accession, tax_id );
+				if( previous != null && previous.intValue() != tax_id ){
+					conflicts.add( accession + " (" + previous + ", " + tax_id + ")" );
+				}
+			}
+		}catch (Exception e) {
+			throw new Exception( "accession file processing failed at line " + ft.getLineNumber() + ": " + e.getMessage() );
+		}finally{
+			ft.close();
+		}
+		if( ! conflicts.isEmpty() ){
+			throw new DatabaseException( conflicts.size() + " accessions with more than one tax_id in " + accessionFile.getName() 
+					+ ": " + ( conflicts.size() < 25 ? conflicts.toString() : conflicts.subList( 0, 25 ) + " ..." ) );
+		}
+		
+		File importFile = File.createTempFile( "accession2taxid", ".csv" );
+		importFile.deleteOnExit();
+		try{
+			BufferedWriter writer = new BufferedWriter( new FileWriter( importFile ), 1 << 16 );
+			try{
+				for( Map.Entry<String, Integer> entry : accessions.entrySet() ){
+					writer.write( entry.getKey() + "," + entry.getValue() + "\n" );
+					taxIds.add( entry.getValue() );
+				}
+			}finally{
+				writer.close();
+			}
+			processedAccessions = accessions.size();
+			logger.info( "importing " + processedAccessions + " accessions" );
+			importTable( "ACCESSION2TAXID", importFile );
+		}finally{
+			importFile.delete();
+		}
+	}
+	
+	/**
+	 * imports a comma-separated file into an empty table with SYSCS_IMPORT_TABLE,
+	 * which Derby loads in bulk insert mode
+	 * @param table the table name, in upper case
+	 * @param file
+	 * @throws SQLException
+	 */
+	private void importTable( String table, File file ) throws SQLException{
+		CallableStatement cs = taxDBliteConn.prepareCall( "CALL SYSCS_UTIL.SYSCS_IMPORT_TABLE (null, ?, ?, ',', null, null, 0)" );
+		try{
+			cs.setString( 1, table );
+			cs.setString( 2, file.getAbsolutePath() );
+			cs.execute();
+		}finally{
+			cs.close();
+		}
 	}
 	
 	/**
-	 * process a new tax_id. Insert the node belonging to the particular taxID and all nodes
-	 * that are its ancestor as long as they do not already exist in the table nodes.
-	 * @param taxId
+	 * looks up the lineages of a block of tax_ids and inserts their nodes
+	 * @param taxIds
 	 * @throws Exception
 	 */
-	private void processNewTaxId( int taxId ) throws Exception{
-		logger.debug( "processing tax_id=" + taxId );
-		TaxNode node = getTaxDBliteNode( taxId );
+	private void processTaxIds( List<Integer> taxIds ) throws Exception{
+		if( taxIds.isEmpty() ) return;
+		int[] block = new int[ taxIds.size() ];
+		for( int i=0; i<block.length; i++ ) block[i] = taxIds.get( i );
 		
-		if( node == null ){
-			logger.debug( "new tax_id is being processed" );
-			/*get the NCBI lineage belonging to this taxID*/
-			Lineage lineage = ncbiTaxDB.getLineage( taxId );
+		Lineage[] lineages = ncbiTaxDB.getLineages( block );
+		for( int i=0; i<block.length; i++ ){
+			int currentTaxId = remapTable.remap( block[i] );
+			if( currentTaxId == TaxIdRemapTable.DELETED ){
+				deletedTaxIds.add( block[i] );
+				continue;
+			}
+			if( currentTaxId != block[i] ){
+				/*the lineage is that of the tax_id it was merged into*/
+				mergedTaxIds.put( block[i], currentTaxId );
+			}
+			if( lineages[i] == null ){
+				throw new DatabaseException( "no lineage for tax_id " + block[i] + " in TaxDB" );
+			}
 			processedTaxIds++;
-			if( lineage.getLength() != 0 ){
-				logger.debug( lineage.toString() );
-				/*iterate over lineage nodes and chack their existance in taxDBlite*/
-				for( TaxNode lNode :  lineage.getListFromLeaf() ){
-					if( ! insertTaxDBliteNode(lNode) ) break;
-					processedTaxNodes++;
-				}
+			logger.debug( lineages[i].toString() );
+			/*the nodes from the leaf up, until one that was already inserted*/
+			for( TaxNode lNode : lineages[i].getListFromLeaf() ){
+				if( ! insertTaxDBliteNode( lNode ) ) break;
+				processedTaxNodes++;
 			}
 		}
 	}
 	
 	/**
-	 * Inserts a new TaxNode into taxDBlite, but only if it does not already exist.
-	 * If the node does not already exist, it is inserted and the method will return true; 
+	 * inserts the merged and deleted tax_ids of the input into merged_nodes and 
+	 * deleted_nodes, where the gi numbers and accessions that refer to them are 
+	 * redirected on lookup
+	 * @throws SQLException
+	 */
+	private void insertRemappedTaxIds() throws SQLException{
+		PreparedStatement ps = taxDBliteConn.prepareStatement( "insert into merged_nodes values (?, ?)" );
+		try{
+			for( Map.Entry<Integer, Integer> entry : mergedTaxIds.entrySet() ){
+				ps.setInt( 1, entry.getKey() );
+				ps.setInt( 2, entry.getValue() );
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}finally{
+			ps.close();
+		}
+		ps = taxDBliteConn.prepareStatement( "insert into deleted_nodes values (?)" );
+		try{
+			for( Integer taxId : deletedTaxIds ){
+				ps.setInt( 1, taxId );
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}finally{
+			ps.close();
+		}
+		taxDBliteConn.commit();
+		if( ! deletedTaxIds.isEmpty() ){
+			logger.warn( deletedTaxIds.size() + " tax_ids of the input have been deleted from TaxDB; they have no lineage"
+					+ ( deletedTaxIds.size() < 25 ? ": " + deletedTaxIds : "" ) );
+		}
+	}
+	
+	/**
+	 * Adds a new TaxNode to the insert batch, but only if it has not been inserted already.
+	 * If the node is new, it is added and the method will return true; 
 	 * Otherwise, this method will return false.
-	 * This method will get the data from the NCBI TaxDB.
-	 * @param taxId
-	 * @throws SQLException 
+	 * @param node
+	 * @throws Exception 
 	 */
 	private boolean insertTaxDBliteNode( TaxNode node ) throws Exception{
-		logger.debug( "inserting new TaxNode" );
-		
 		/*check existence*/
-		TaxNode tblNode = getTaxDBliteNode( node.getTaxID() );
-		if( tblNode != null ){
-			if( tblNode.getTaxID() == node.getTaxID() && tblNode.getParentTaxID() == node.getParentTaxID() ) return false;
+		Integer parentTaxId = insertedNodes.get( node.getTaxID() );
+		if( parentTaxId != null ){
+			if( parentTaxId.intValue() == node.getParentTaxID() ) return false;
 			else throw new DatabaseException( "data corruption error when checking NCBI taxDB node against taxDBlite node" );
 		}
-		else{
-			/*node does not yet exist; create it now*/
-			psNodeInsert.setInt( 1, node.getTaxID() );
-			psNodeInsert.setInt( 2, node.getParentTaxID() );
-			psNodeInsert.setString( 3, node.getRank().toString() );
-			psNodeInsert.setString( 4, node.getScientificName() );
-			psNodeInsert.executeUpdate();
-			
-			ResultSet rs = null;
-	        Statement s = taxDBliteConn.createStatement();
-	        rs = s.executeQuery( "SELECT * FROM nodes WHERE tax_id=" + node.getTaxID() );
-	        
-	        if( ! rs.next() ){
-	        	throw new DatabaseException( "TaxNode insert was not succesfull" );
-	        }
-	        else{
-	        	logger.debug("tax_id=" + rs.getInt("tax_id") + " is inserted with name " + rs.getString("scientific_name") );
-	        }
-	    	rs.close();
-	    	rs = null;
-	        s.close();
-	        s = null;
-	        
-			return true;
+		/*node does not yet exist; add it now*/
+		insertedNodes.put( node.getTaxID(), node.getParentTaxID() );
+		psNodeInsert.setInt( 1, node.getTaxID() );
+		psNodeInsert.setInt( 2, node.getParentTaxID() );
+		psNodeInsert.setString( 3, node.getRank().toString() );
+		psNodeInsert.setString( 4, node.getScientificName() );
+		psNodeInsert.addBatch();
+		if( ++pendingInserts == COMMIT_INTERVAL ){
+			commitNodes();
 		}
+		return true;
 	}
 	
 	/**
-	 * check whether the given tax_id exists in the database
-	 * @return tax_id exists
-	 * @throws SQLException 
+	 * executes the pending node inserts and commits them
+	 * @throws SQLException
 	 */
-	private TaxNode getTaxDBliteNode( int taxId ) throws SQLException{
-		TaxNode node = null;
-		ResultSet rs = null;
-        Statement s = taxDBliteConn.createStatement();
-        rs = s.executeQuery( "SELECT * FROM nodes WHERE tax_id=" + taxId );
-        if( rs.next() ){
-        	node = new TaxNode();
-        	
-			if( rs.getInt("tax_id") == 0 ) throw new SQLException("empty node");
-			
-			node.setTaxID(rs.getInt("tax_id"));
-			node.setParentTaxID(rs.getInt("parent_tax_id"));
-			node.setRank( TaxonomyRank.getTaxonomyRank( rs.getString("rank") ) );
-			node.setScientificName( rs.getString("scientific_name") );
-
-/*			System.out.println( "ptax_id=" + rs.getInt("parent_tax_id") 
-					+ " tax_id=" + rs.getInt("tax_id") + " rank=" + rs.getString("rank") 
-					+ " TaxonomyRank=" + TaxonomyRank.getTaxonomyRank( rs.getString("rank") ) );
-*/      }
-        else{
-        	logger.debug( "tax_id=" + taxId + " does not exist " );
-        }
-    	rs.close();
-    	rs = null;
-        s.close();
-        s = null;
-		
-        return node;
+	private void commitNodes() throws SQLException{
+		if( pendingInserts == 0 ) return;
+		psNodeInsert.executeBatch();
+		taxDBliteConn.commit();
+		logger.debug( pendingInserts + " nodes committed" );
+		pendingInserts = 0;
 	}
-
+	
 	/**
-	 * reads the input file and processes it
-	 * @throws Exception
+	 * creates the primary keys, after the load so that the indexes are built once,
+	 * and the lineage closure table
+	 * @throws SQLException
 	 */
-	private void readTaxData() throws Exception{
-		int lineNumber = 1;
-		BufferedReader br;
-		try {
-			this.inputFile = new File( configuration.getString( INPUT_FILE ) );
-			/*read from file*/
-			if( (! inputFile.exists() ) || (! inputFile.canRead() ) ){
-				throw new Exception("can not read from input file " + inputFile.getName() );
-			}
-
-			br =  new BufferedReader(new FileReader(inputFile));
-			//read header line: gi_number	tax_id
-			String line;
-			line = br.readLine();
-			String[] elements = line.split("\t");
-			if( ! ( elements[0].equals("gi_number")  && ( elements[1].equals("tax_id") ) ) ){
-				br.close();
-				throw new Exception("file does not have the right format: [gi_number]\t[tax_id]\n");
-			}
-			
-			int previousTaxId = -1;
-			
-			while( (line = br.readLine()) != null ){
-				lineNumber++;
-				elements = line.split("\t");
-				int gi_number = Integer.parseInt( elements[0] );
-				int tax_id = Integer.parseInt( elements[1] );
-				
-				if( tax_id != previousTaxId ){//new organism
-					previousTaxId = tax_id;
-					processNewTaxId( tax_id );
-				}
-				processGiNumber( gi_number, tax_id );
-			}
-			br.close();
-		}catch (Exception e) {
-			e.printStackTrace();
-			throw new Exception( "file processing failed at line " + lineNumber + ": " + e.getMessage() );
+	private void createKeys() throws SQLException{
+		taxDBliteConn.setAutoCommit( true );
+		Statement s = taxDBliteConn.createStatement();
+		try{
+			s.execute( "alter table gi_numbers add constraint gi_numbers_pk primary key (gi_number)" );
+			s.execute( "alter table accession2taxid add constraint accession2taxid_pk primary key (accession_version)" );
+			s.execute( "alter table nodes add constraint nodes_pk primary key (tax_id)" );
+			s.execute( "alter table merged_nodes add constraint merged_nodes_pk primary key (old_tax_id)" );
+			s.execute( "alter table deleted_nodes add constraint deleted_nodes_pk primary key (tax_id)" );
+		}finally{
+			s.close();
 		}
+		logger.info("creating lineage closure table");
+		closureRows = LineageClosureTable.create( taxDBliteConn );
 	}
 	
 	/**
@@ -360,12 +548,14 @@ public class TaxDbLiteDerbyCreator {
 	private void connectTaxDB() throws Exception{
 		/*connect to TaxDB*/
 		try {
-			this.ncbiTaxDB = TaxonomyDaoMysql.getInstance( 
+			TaxonomyDaoMysql ncbiTaxDBMysql = TaxonomyDaoMysql.getInstance( 
 					configuration.getString( DATABASE_NAME ),
 					configuration.getString( DATABASE_HOST ),
 					configuration.getString( DATABASE_USER ),
 					configuration.getString( DATABASE_PASSWORD ),
 					"gi_numbers");
+			this.ncbiTaxDB = ncbiTaxDBMysql;
+			this.remapTable = ncbiTaxDBMysql.getRemapTable();
 		} catch (DatabaseException e) {
 			//e.printStackTrace();
 			logger.fatal( "unable to connect to the database" );
@@ -401,24 +591,33 @@ public class TaxDbLiteDerbyCreator {
 			taxDBliteConn = DriverManager.getConnection(protocol + location + dbName + ";create=true", props);
 			
             s = taxDBliteConn.createStatement();
-            /*create database structure: only gi_numbers and tax_ids*/
+            /*create database structure: only gi_numbers and tax_ids; the primary keys are added after the load*/
             /*create gi_numbers table*/
             s.execute("create table gi_numbers( " +
             		" gi_number int NOT NULL, " +
-            		" tax_id int NOT NULL, " +
-            		" PRIMARY KEY (gi_number))");
+            		" tax_id int NOT NULL)");
+            /*create accession2taxid table*/
+            s.execute("create table accession2taxid( " +
+            		" accession_version varchar(64) NOT NULL, " +
+            		" tax_id int NOT NULL)");
             /*create table nodes*/
             s.execute("CREATE TABLE nodes " +
             		"(tax_id int NOT NULL," +
             		" parent_tax_id int NOT NULL," +
             		" rank varchar(100) NOT NULL default 'no rank'," +
-            		" scientific_name varchar(200) default NULL," +
-            		" PRIMARY KEY (tax_id)" +
+            		" scientific_name varchar(200) default NULL" +
             		//" FOREIGN KEY (parent_tax_id) REFERENCES nodes(tax_id)" +
             		" )");
+            /*the merged and deleted tax_ids among those of the gi numbers and accessions*/
+            s.execute("create table merged_nodes( " +
+            		" old_tax_id int NOT NULL, " +
+            		" new_tax_id int NOT NULL)");
+            s.execute("create table deleted_nodes( " +
+            		" tax_id int NOT NULL)");
            
             //System.exit(0);
-            psGiInsert = taxDBliteConn.prepareStatement( "insert into gi_numbers values (?, ?)" );
+            /*the node inserts are committed in batches*/
+            taxDBliteConn.setAutoCommit( false );
             psNodeInsert = taxDBliteConn.prepareStatement( "insert into nodes values (?, ?, ?, ?)" );
 		}catch (Exception e) {
 			e.printStackTrace();
@@ -17,10 +17,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
-import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.dao.DatabaseException;
+import nl.bioinf.noback.taxonomy.dao.MysqlBulkLoader;
+import nl.bioinf.noback.taxonomy.dao.TaxIdRemapTable;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoMysql;
 import nl.bioinf.noback.taxonomy.model.Lineage;
@@ -37,6 +39,13 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 /**
+ * This class fills a MySQL TaxDBlite database with the gi numbers of a sequence file
+ * and the lineages of their tax_ids. The lineages are looked up in batches; the gi
+ * numbers and the new nodes, deduplicated in memory, are imported in bulk with
+ * LOAD DATA LOCAL INFILE (see MysqlBulkLoader). The gi numbers keep the tax_ids of the
+ * gi_taxid file; the tax_ids among them that NCBI has merged or deleted are added to
+ * merged_nodes and deleted_nodes, so that TaxonomyDaoMysql redirects them as it does
+ * on the NCBI TaxDB. Deleted tax_ids have no lineage and are skipped.
  * @author michiel
  *
  */
@@ -64,6 +73,12 @@ public class TaxDbLiteMySqlFiller {
     public static final String TDB_LITE_GI_TABLE = "tax_db_lite.gi_table";
     public static final String TDB_LITE_EMPTY_GI_TABLE = "tax_db_lite.empty_gi_table";
     public static final String TDB_LITE_EMPTY_NODES_TABLE = "tax_db_lite.empty_nodes_table";
+    public static final String BULK_LOAD_THREADS = "bulk_load_threads";
+    
+    /**
+     * the number of tax_ids whose lineages are looked up in one batch
+     */
+    private static final int LOOKUP_BATCH_SIZE = 500;
     
     
     /**
@@ -82,18 +97,30 @@ public class TaxDbLiteMySqlFiller {
      * the object used to query the taxonomy database TaxDB
      */
     private TaxonomyDao ncbiTaxDB;
+    /**
+     * the merged and deleted tax_ids of TaxDB
+     */
+    private TaxIdRemapTable remapTable;
     /**
      * the connection to TaxDBlite
      */
     private Connection taxDBliteConn;
     /**
-     * prepared statement for gi_number insert
+     * the number of threads formatting chunks for the bulk load
+     */
+    private int threads;
+    /**
+     * the parent tax_ids of the nodes in taxDBlite, by tax_id
      */
-    private PreparedStatement psGiInsert;
+    private Map<Integer, Integer> taxDBliteNodes = new HashMap<Integer, Integer>();
     /**
-     * prepared statement for gi_number insert
+     * the merged tax_ids of the input and the tax_ids they were merged into
      */
-    private PreparedStatement psNodeInsert;
+    private Map<Integer, Integer> mergedTaxIds = new HashMap<Integer, Integer>();
+    /**
+     * the deleted tax_ids of the input
+     */
+    private List<Integer> deletedTaxIds = new ArrayList<Integer>();
 	/**
 	 * counts the number of processed taxIDs (=organisms)
 	 */
@@ -146,6 +173,7 @@ public class TaxDbLiteMySqlFiller {
 			loadConfiguration();
 			
 			loadLogger();
+			this.threads = configuration.getInt( BULK_LOAD_THREADS, Runtime.getRuntime().availableProcessors() );
 
 			logger.info("reading gi numbers from sequences file " + configuration.getString( SEQUENCE_FILE ));
 			int sequences = readGiNumbersFromSequenceFile();
@@ -183,8 +211,9 @@ public class TaxDbLiteMySqlFiller {
 			logger.info("data processing finished.\n" 
 					+ processedGiNumbers + " gi numbers, " 
 					+ processedTaxIds + " tax id's and " 
-					+ processedTaxNodes + " taxonomy nodes were entered into taxDBlite" 
-					+ emptyLineages + " empty lineages were returned ");
+					+ processedTaxNodes + " taxonomy nodes were entered into taxDBlite; " 
+					+ emptyLineages + " empty lineages were returned; "
+					+ mergedTaxIds.size() + " merged and " + deletedTaxIds.size() + " deleted tax_ids are redirected" );
 			
 			
 		}catch (Exception e) {
@@ -194,13 +223,9 @@ public class TaxDbLiteMySqlFiller {
 		finally{
 			try {
 				ncbiTaxDB.disconnect();
-                if (psGiInsert != null) {
-                	psGiInsert.close();
-                	psGiInsert = null;
-                }
-                if (psNodeInsert != null) {
-                	psNodeInsert.close();
-                	psNodeInsert = null;
+                if (taxDBliteConn != null) {
+                	taxDBliteConn.close();
+                	taxDBliteConn = null;
                 }
 			} catch (Exception e) {
 				logger.fatal( e.getMessage() );
@@ -209,162 +234,197 @@ public class TaxDbLiteMySqlFiller {
 	}
 
 	/**
-	 * inserts a gi_number and tax_id combination into TaxDBlite.gi_numbers
-	 * @param giNumber
-	 * @param taxId
-	 * @throws Exception
-	 */
-	private void processGiNumber( int giNumber, int taxId ) throws Exception{
-		logger.debug( "processing gi=" + giNumber );
-        psGiInsert.setInt(1, giNumber);
-        psGiInsert.setInt(2, taxId);
-        psGiInsert.executeUpdate();
-        
-        processedGiNumbers++;
-	}
-	
-	/**
-	 * process a new tax_id. Insert the node belonging to the particular taxID and all nodes
-	 * that are its ancestor as long as they do not already exist in the table nodes.
-	 * @param taxId
+	 * process a block of new tax_ids. The nodes belonging to the taxIDs and all nodes
+	 * that are their ancestor are added to the loader as long as they do not already
+	 * exist in the table nodes.
+	 * @param taxIds
+	 * @param nodeLoader
 	 * @throws Exception
 	 */
-	private void processNewTaxId( int taxId ) throws Exception{
-		logger.debug( "processing tax_id=" + taxId );
-		TaxNode node = getTaxDBliteNode( taxId );
+	private void processNewTaxIds( List<Integer> taxIds, MysqlBulkLoader<TaxNode> nodeLoader ) throws Exception{
+		if( taxIds.isEmpty() ) return;
+		int[] block = new int[ taxIds.size() ];
+		for( int i=0; i<block.length; i++ ) block[i] = taxIds.get( i );
 		
-		if( node == null ){
-			logger.debug( "new tax_id is being processed" );
-			
-			/*get the NCBI lineage belonging to this taxID*/
-			try{
-				Lineage lineage = ncbiTaxDB.getLineage( taxId );
-				processedTaxIds++;
-				if( lineage.getLength() != 0 ){
-					logger.debug( lineage.toString() );
-					/*iterate over lineage nodes and check their existence in taxDBlite*/
-					for( TaxNode lNode :  lineage.getListFromLeaf() ){
-						if( ! insertTaxDBliteNode(lNode) ){
-							/*the node already existed: all other nodes in this lineage are assumed to exist*/
-							break;
-						}
-						processedTaxNodes++;
-					}
-				}
-			}catch (Exception e) {
+		/*get the NCBI lineages belonging to these taxIDs*/
+		Lineage[] lineages = ncbiTaxDB.getLineages( block );
+		for( int i=0; i<block.length; i++ ){
+			processedTaxIds++;
+			int currentTaxId = remapTable.remap( block[i] );
+			if( currentTaxId == TaxIdRemapTable.DELETED ){
+				deletedTaxIds.add( block[i] );
+				continue;
+			}
+			if( currentTaxId != block[i] ){
+				/*the lineage is that of the tax_id it was merged into*/
+				mergedTaxIds.put( block[i], currentTaxId );
+			}
+			if( lineages[i] == null || lineages[i].getLength() == 0 ){
 				emptyLineages++;
+				continue;
+			}
+			logger.debug( lineages[i].toString() );
+			/*iterate over lineage nodes and check their existence in taxDBlite*/
+			for( TaxNode lNode :  lineages[i].getListFromLeaf() ){
+				if( ! insertTaxDBliteNode( lNode, nodeLoader ) ){
+					/*the node already existed: all other nodes in this lineage are assumed to exist*/
+					break;
+				}
+				processedTaxNodes++;
 			}
 		}
 	}
 	
 	/**
-	 * Inserts a new TaxNode into taxDBlite, but only if it does not already exist.
-	 * If the node does not already exist, it is inserted and the method will return true; 
+	 * Adds a new TaxNode to the loader, but only if it does not already exist.
+	 * If the node does not already exist, it is added and the method will return true; 
 	 * Otherwise, this method will return false.
-	 * This method will get the data from the NCBI TaxDB.
 	 * @param node
+	 * @param nodeLoader
 	 * @return a new node was inserted
-	 * @throws SQLException 
+	 * @throws Exception 
 	 */
-	private boolean insertTaxDBliteNode( TaxNode node ) throws Exception{
-		logger.debug( "inserting new TaxNode" );
-		
+	private boolean insertTaxDBliteNode( TaxNode node, MysqlBulkLoader<TaxNode> nodeLoader ) throws Exception{
 		/*check existence*/
-		TaxNode tblNode = getTaxDBliteNode( node.getTaxID() );
-		if( tblNode != null ){
+		Integer parentTaxId = taxDBliteNodes.get( node.getTaxID() );
+		if( parentTaxId != null ){
 			/*it exists in taxDBlite*/
-			if( tblNode.getTaxID() == node.getTaxID() && tblNode.getParentTaxID() == node.getParentTaxID() ){
+			if( parentTaxId.intValue() == node.getParentTaxID() ){
 				/*it exists and is identical*/
 				return false;
 			}
 			else throw new DatabaseException( "data corruption error when checking NCBI taxDB node against taxDBlite node" );
 		}
-		else{
-			/*node does not yet exist; create it now*/
-			psNodeInsert.setInt( 1, node.getTaxID() );
-			psNodeInsert.setInt( 2, node.getParentTaxID() );
-			psNodeInsert.setString( 3, node.getRank().toString() );
-			psNodeInsert.setString( 4, node.getScientificName() );
-			psNodeInsert.executeUpdate();
-			
-			ResultSet rs = null;
-	        Statement s = taxDBliteConn.createStatement();
-	        rs = s.executeQuery( "SELECT * FROM nodes WHERE tax_id=" + node.getTaxID() );
-	        
-	        if( ! rs.next() ){
-	        	throw new DatabaseException( "TaxNode insert was not succesfull" );
-	        }
-	        else{
-	        	logger.debug("tax_id=" + rs.getInt("tax_id") + " is inserted with name " + rs.getString("scientific_name") );
-	        }
-	    	rs.close();
-	    	rs = null;
-	        s.close();
-	        s = null;
-	        
-			return true;
-		}
+		/*node does not yet exist; create it now*/
+		taxDBliteNodes.put( node.getTaxID(), node.getParentTaxID() );
+		nodeLoader.add( node );
+		return true;
 	}
 	
 	/**
-	 * check whether the given tax_id exists in the database
-	 * @return tax_id exists
+	 * reads the tax_ids and parent tax_ids of the nodes already in taxDBlite
 	 * @throws SQLException 
 	 */
-	private TaxNode getTaxDBliteNode( int taxId ) throws SQLException{
-		TaxNode node = null;
-		ResultSet rs = null;
-        Statement s = taxDBliteConn.createStatement();
-        rs = s.executeQuery( "SELECT * FROM nodes WHERE tax_id=" + taxId );
-        if( rs.next() ){
-        	node = new TaxNode();
-        	
-			if( rs.getInt("tax_id") == 0 ) throw new SQLException("empty node");
-			
-			node.setTaxID(rs.getInt("tax_id"));
-			node.setParentTaxID(rs.getInt("parent_tax_id"));
-			node.setRank( TaxonomyRank.getTaxonomyRank( rs.getString("rank") ) );
-			node.setScientificName( rs.getString("scientific_name") );
-
-/*			System.out.println( "ptax_id=" + rs.getInt("parent_tax_id") 
-					+ " tax_id=" + rs.getInt("tax_id") + " rank=" + rs.getString("rank") 
-					+ " TaxonomyRank=" + TaxonomyRank.getTaxonomyRank( rs.getString("rank") ) );
-*/        }
-        else{
-        	logger.debug( "tax_id=" + taxId + " does not exist " );
-        }
-    	rs.close();
-    	rs = null;
-        s.close();
-        s = null;
-		
-        return node;
+	private void readTaxDBliteNodes() throws SQLException{
+		Statement s = taxDBliteConn.createStatement();
+		try{
+			ResultSet rs = s.executeQuery( "SELECT tax_id, parent_tax_id FROM nodes" );
+			while( rs.next() ){
+				taxDBliteNodes.put( rs.getInt("tax_id"), rs.getInt("parent_tax_id") );
+			}
+			rs.close();
+		}finally{
+			s.close();
+		}
+		logger.info( taxDBliteNodes.size() + " nodes already in taxDBlite" );
 	}
 
 	/**
-	 * goes through 
+	 * imports the gi numbers and the lineages of their tax_ids
 	 * @throws Exception
 	 */
 	private int enterDataInTaxDBlite( ) throws Exception{
-		int taxIdsProcessed = 0;
-		for( Entry<Integer, Integer> entry : giNumbersTaxIds.entrySet()){
-			if( entry.getValue() != 0){//the gi number has a tax_id
-				/*enter into gi numbers table*/
-				processGiNumber( entry.getKey(), entry.getValue() );
+		MysqlBulkLoader<Entry<Integer, Integer>> giLoader = new MysqlBulkLoader<Entry<Integer, Integer>>( taxDBliteConn,
+				configuration.getString(TDB_LITE_GI_TABLE), "(gi_number, tax_id)",
+				new MysqlBulkLoader.RowFormatter<Entry<Integer, Integer>>(){
+					@Override
+					public boolean format( Entry<Integer, Integer> entry, StringBuilder row ){
+						if( entry.getValue() == 0 ) return false;//the gi number has no tax_id
+						MysqlBulkLoader.appendFields( row, entry.getKey(), entry.getValue() );
+						return true;
+					}
+				}, threads, MysqlBulkLoader.DEFAULT_CHUNK_SIZE );
+		try{
+			for( Entry<Integer, Integer> entry : giNumbersTaxIds.entrySet()){
+				giLoader.add( entry );
 			}
+			processedGiNumbers = (int)giLoader.finish();
+		}finally{
+			giLoader.abort();
 		}
+		
 		/*process all unique taxIDs*/
 		HashSet<Integer> taxIds = new HashSet<Integer>();
 		taxIds.addAll( giNumbersTaxIds.values() );
+		taxIds.remove( 0 );
 		
-		/*enter al tax_ids*/
-		for( int taxId : taxIds ){
-			if(taxId != 0){
-				taxIdsProcessed++;
-				processNewTaxId( taxId );
+		readTaxDBliteNodes();
+		MysqlBulkLoader<TaxNode> nodeLoader = new MysqlBulkLoader<TaxNode>( taxDBliteConn,
+				"nodes", "(tax_id, parent_tax_id, rank, scientific_name)",
+				new MysqlBulkLoader.RowFormatter<TaxNode>(){
+					@Override
+					public boolean format( TaxNode node, StringBuilder row ){
+						MysqlBulkLoader.appendFields( row, node.getTaxID(), node.getParentTaxID(), 
+								node.getRank().toString(), node.getScientificName() );
+						return true;
+					}
+				}, threads, MysqlBulkLoader.DEFAULT_CHUNK_SIZE );
+		try{
+			/*enter al tax_ids*/
+			List<Integer> block = new ArrayList<Integer>( LOOKUP_BATCH_SIZE );
+			for( int taxId : taxIds ){
+				block.add( taxId );
+				if( block.size() == LOOKUP_BATCH_SIZE ){
+					processNewTaxIds( block, nodeLoader );
+					block.clear();
+				}
 			}
+			processNewTaxIds( block, nodeLoader );
+			nodeLoader.finish();
+		}finally{
+			nodeLoader.abort();
+		}
+		loadRemappedTaxIds();
+		return taxIds.size();
+	}
+	
+	/**
+	 * adds the merged and deleted tax_ids of the input to merged_nodes and deleted_nodes,
+	 * where the gi numbers that refer to them are redirected on lookup; tax_ids that
+	 * taxDBlite already redirects are skipped
+	 * @throws Exception
+	 */
+	private void loadRemappedTaxIds() throws Exception{
+		TaxIdRemapTable present = TaxIdRemapTable.read( taxDBliteConn, 
+				"SELECT old_tax_id, new_tax_id FROM merged_nodes;", "SELECT tax_id FROM deleted_nodes;" );
+		MysqlBulkLoader<Entry<Integer, Integer>> mergedLoader = new MysqlBulkLoader<Entry<Integer, Integer>>( taxDBliteConn,
+				"merged_nodes", "(old_tax_id, new_tax_id)",
+				new MysqlBulkLoader.RowFormatter<Entry<Integer, Integer>>(){
+					@Override
+					public boolean format( Entry<Integer, Integer> entry, StringBuilder row ){
+						MysqlBulkLoader.appendFields( row, entry.getKey(), entry.getValue() );
+						return true;
+					}
+				}, threads, MysqlBulkLoader.DEFAULT_CHUNK_SIZE );
+		try{
+			for( Entry<Integer, Integer> entry : mergedTaxIds.entrySet() ){
+				if( present.remap( entry.getKey() ) == entry.getKey() ) mergedLoader.add( entry );
+			}
+			mergedLoader.finish();
+		}finally{
+			mergedLoader.abort();
+		}
+		MysqlBulkLoader<Integer> deletedLoader = new MysqlBulkLoader<Integer>( taxDBliteConn,
+				"deleted_nodes", "(tax_id)",
+				new MysqlBulkLoader.RowFormatter<Integer>(){
+					@Override
+					public boolean format( Integer taxId, StringBuilder row ){
+						MysqlBulkLoader.appendFields( row, taxId );
+						return true;
+					}
+				}, threads, MysqlBulkLoader.DEFAULT_CHUNK_SIZE );
+		try{
+			for( Integer taxId : deletedTaxIds ){
+				if( present.remap( taxId ) == taxId ) deletedLoader.add( taxId );
+			}
+			deletedLoader.finish();
+		}finally{
+			deletedLoader.abort();
+		}
+		if( ! deletedTaxIds.isEmpty() ){
+			logger.warn( deletedTaxIds.size() + " tax_ids of the gi numbers have been deleted from TaxDB; they have no lineage"
+					+ ( deletedTaxIds.size() < 25 ? ": " + deletedTaxIds : "" ) );
 		}
-		return taxIdsProcessed;
 	}
 	
 	
@@ -417,12 +477,14 @@ public class TaxDbLiteMySqlFiller {
 	private void connectNCBITaxDB() throws Exception{
 		/*connect to TaxDB*/
 		try {
-			this.ncbiTaxDB = TaxonomyDaoMysql.getInstance( 
+			TaxonomyDaoMysql ncbiTaxDBMysql = TaxonomyDaoMysql.getInstance( 
 					configuration.getString( DATABASE_NAME ),
 					configuration.getString( DATABASE_HOST ),
 					configuration.getString( DATABASE_USER ),
 					configuration.getString( DATABASE_PASSWORD ),
 					"gi_numbers");
+			this.ncbiTaxDB = ncbiTaxDBMysql;
+			this.remapTable = ncbiTaxDBMysql.getRemapTable();
             logger.info("connected to NCBI TaxDB database");
 		} catch (DatabaseException e) {
 			//e.printStackTrace();
@@ -437,7 +499,9 @@ public class TaxDbLiteMySqlFiller {
 	private void connectTaxDBlite() throws Exception{
 		/*connect to TaxDB*/
 		try{
-	        	String url = "jdbc:mysql://" + configuration.getString( TDB_LITE_HOST ) + "/" + configuration.getString( TDB_LITE_NAME );
+	        	/*LOAD DATA LOCAL INFILE has to be allowed by the driver*/
+	        	String url = "jdbc:mysql://" + configuration.getString( TDB_LITE_HOST ) + "/" + configuration.getString( TDB_LITE_NAME )
+	        			+ "?allowLoadLocalInfile=true";
 	        	Class.forName ("com.mysql.jdbc.Driver").newInstance ();
 	        	this.taxDBliteConn = DriverManager.getConnection
 	        			(url,
@@ -457,13 +521,16 @@ public class TaxDbLiteMySqlFiller {
 	            	PreparedStatement delete = taxDBliteConn.prepareStatement( "truncate nodes;" );
 	            	delete.execute();
 	            	delete.close();
-	            	logger.info("TaxDBlite database nodes table deleted " );
+	            	/*the merged and deleted tax_ids go with the nodes*/
+	            	delete = taxDBliteConn.prepareStatement( "truncate merged_nodes;" );
+	            	delete.execute();
+	            	delete.close();
+	            	delete = taxDBliteConn.prepareStatement( "truncate deleted_nodes;" );
+	            	delete.execute();
+	            	delete.close();
+	            	logger.info("TaxDBlite database nodes, merged_nodes and deleted_nodes tables deleted " );
 	            }
 
-	            psGiInsert = taxDBliteConn.prepareStatement( "insert into " 
-	            		+ configuration.getString(TDB_LITE_GI_TABLE) + " values (?, ?)" );
-	            psNodeInsert = taxDBliteConn.prepareStatement( "insert into nodes values (?, ?, ?, ?)" );
-	            
 	        }catch (Exception e){
 	        	//e.printStackTrace();
 				logger.fatal( "unable to connect to database " + configuration.getString( TDB_LITE_NAME ) );
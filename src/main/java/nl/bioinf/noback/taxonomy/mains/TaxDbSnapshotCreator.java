@@ -0,0 +1,65 @@
+/**
+ * 
+ */
+package nl.bioinf.noback.taxonomy.mains;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.bioinf.noback.taxonomy.dao.MappedTaxonomyStore;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyStore;
+import nl.bioinf.noback.taxonomy.io.NcbiTaxonomyArchiveReader;
+
+/**
+ * This class creates a binary TaxDB snapshot that can be used as nodes file by
+ * TaxonomyDaoInMemory (and thus all mains that use it). It takes two arguments: the
+ * first is either the NCBI taxonomy archive taxdmp.zip or a simple nodes file of the form
+ * 			tax_id \t parent tax_id \t rank \t name
+ * The second is the snapshot file name 
+ * @author michiel
+ */
+public class TaxDbSnapshotCreator {
+
+	/**
+	 * @param args (taxdmp.zip or nodes file) (snapshot file)
+	 */
+	public static void main(String[] args) {
+		if(args.length != 2 ){
+			System.err.println("Usage: " + TaxDbSnapshotCreator.class.getSimpleName() + " <taxdmp.zip | nodes file> <snapshot file>");
+			System.exit(0);
+		}
+		
+		TaxDbSnapshotCreator tdsc = new TaxDbSnapshotCreator();
+		try {
+			tdsc.create( new File(args[0]), new File(args[1]) );
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * reads the input and writes the snapshot
+	 * @param inputFile
+	 * @param snapshotFile
+	 * @throws Exception
+	 */
+	public void create( File inputFile, File snapshotFile ) throws Exception{
+		if( ! inputFile.exists() ) throw new IOException( "input file does not exist: " + inputFile.getName() );
+		
+		long start = System.currentTimeMillis();
+		TaxonomyStore store;
+		if( inputFile.getName().endsWith(".zip") ){
+			System.out.println( "reading NCBI taxonomy archive " + inputFile.getAbsolutePath() );
+			store = new NcbiTaxonomyArchiveReader().readZipToStore( inputFile );
+		}else{
+			System.out.println( "reading nodes file " + inputFile.getAbsolutePath() );
+			store = new TaxonomyDaoInMemory( inputFile ).getTaxonomyStore();
+		}
+		System.out.println( store.size() + " nodes read in " + (System.currentTimeMillis() - start) + " ms" );
+		
+		System.out.println( "writing snapshot file " + snapshotFile.getAbsolutePath() );
+		MappedTaxonomyStore.write( store, snapshotFile );
+		System.out.println( "finished." );
+	}
+}
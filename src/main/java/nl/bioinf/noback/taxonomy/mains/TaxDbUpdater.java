@@ -0,0 +1,254 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.mains;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import nl.bioinf.noback.taxonomy.dao.ArrayTaxonomyStore;
+import nl.bioinf.noback.taxonomy.dao.LineageClosureTable;
+import nl.bioinf.noback.taxonomy.dao.MappedTaxonomyStore;
+import nl.bioinf.noback.taxonomy.dao.TaxIdRemapTable;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyStore;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyStoreDelta;
+import nl.bioinf.noback.taxonomy.io.NcbiTaxonomyArchiveReader;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+
+/**
+ * This class brings an existing TaxDB up to date with a new release of the NCBI
+ * taxonomy archive taxdmp.zip, by applying only the inserted, changed and removed
+ * nodes (see TaxonomyStoreDelta). It takes two or three arguments: the new taxdmp.zip,
+ * the TaxDB to update, and optionally "subset" when the TaxDB holds only part of the
+ * taxonomy (e.g. created by TaxDBfileCreator or TaxDbLiteMySqlFiller); its tax_ids are
+ * then kept up to date without adding all new nodes. The TaxDB is one of
+ * <ul>
+ * <li>a binary snapshot, as created by TaxDbSnapshotCreator</li>
+ * <li>a simple nodes file of the form tax_id \t parent tax_id \t rank \t name</li>
+ * <li>the JDBC URL of a TaxDBlite database, including credentials; its nodes table is updated,
+ * and of its merged_nodes, deleted_nodes and lineage closure tables, when present, only the
+ * rows of the removed tax_ids and the changed subtrees</li>
+ * </ul>
+ * A TaxDB that is up to date is left untouched. The gi number and accession
+ * files and their indexes map onto tax_ids and are not rewritten; they remain valid
+ * because every removed tax_id gets a remap row from the merged.dmp and delnodes.dmp
+ * of the archive. For a TaxDBlite database these go into merged_nodes and deleted_nodes;
+ * for a file-based TaxDB they are appended to the files merged.dmp and delnodes.dmp in
+ * the directory of the TaxDB, which are created when absent. Configure these files as
+ * merged and delnodes file of the analysis to have the old tax_ids redirected.
+ * @author michiel
+ */
+public class TaxDbUpdater {
+	private static final String NODES_TABLE = "nodes";
+	private static final String MERGED_TABLE = "merged_nodes";
+	private static final String DELETED_TABLE = "deleted_nodes";
+	private static final String MERGED_FILE = "merged.dmp";
+	private static final String DELETED_FILE = "delnodes.dmp";
+
+	/**
+	 * @param args (taxdmp.zip) (snapshot file | nodes file | JDBC URL) [subset]
+	 */
+	public static void main(String[] args) {
+		if( args.length < 2 || args.length > 3 || (args.length == 3 && ! args[2].equals("subset")) ){
+			System.err.println("Usage: " + TaxDbUpdater.class.getSimpleName() + " <taxdmp.zip> <snapshot file | nodes file | JDBC URL> [subset]");
+			System.exit(0);
+		}
+
+		TaxDbUpdater tdu = new TaxDbUpdater();
+		try {
+			tdu.update( new File(args[0]), args[1], args.length == 2 );
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * updates the TaxDB
+	 * @param archive the new taxdmp.zip
+	 * @param taxDB snapshot file, nodes file or JDBC URL
+	 * @param complete the TaxDB holds all nodes of the taxonomy
+	 * @return the applied delta
+	 * @throws Exception
+	 */
+	public TaxonomyStoreDelta update( File archive, String taxDB, boolean complete ) throws Exception{
+		if( ! archive.exists() ) throw new IOException( "archive does not exist: " + archive.getName() );
+
+		long start = System.currentTimeMillis();
+		System.out.println( "reading NCBI taxonomy archive " + archive.getAbsolutePath() );
+		ArrayTaxonomyStore updated = new NcbiTaxonomyArchiveReader().readZipToStore( archive );
+		TaxIdRemapTable remapTable = readRemapTable( archive );
+		System.out.println( updated.size() + " nodes read in " + (System.currentTimeMillis() - start) + " ms" );
+
+		start = System.currentTimeMillis();
+		TaxonomyStoreDelta delta;
+		if( taxDB.startsWith("jdbc:") ){
+			Connection connection = DriverManager.getConnection( taxDB );
+			try{
+				delta = TaxonomyStoreDelta.compute( readNodesTable( connection ), updated, remapTable, complete );
+				System.out.println( delta + " found in " + (System.currentTimeMillis() - start) + " ms" );
+				if( ! delta.isEmpty() ){
+					int rows = delta.applyTo( connection, NODES_TABLE );
+					System.out.println( rows + " rows of table " + NODES_TABLE + " deleted or inserted" );
+					if( hasTable( connection, MERGED_TABLE ) && hasTable( connection, DELETED_TABLE ) ){
+						rows = delta.applyRemapTo( connection, MERGED_TABLE, DELETED_TABLE );
+						System.out.println( rows + " rows of tables " + MERGED_TABLE + " and " + DELETED_TABLE + " written" );
+					}else if( delta.getRemovedTaxIDs().length > 0 ){
+						System.err.println( "no tables " + MERGED_TABLE + " and " + DELETED_TABLE + "; the "
+								+ delta.getRemovedTaxIDs().length + " removed tax_ids are not redirected" );
+					}
+					if( LineageClosureTable.exists( connection ) ){
+						rows = LineageClosureTable.update( connection, getChangedSubtrees( delta ), updated );
+						System.out.println( rows + " rows of " + LineageClosureTable.TABLE + " deleted or inserted" );
+					}
+				}
+			}finally{
+				connection.close();
+			}
+		}else{
+			File taxDBfile = new File( taxDB );
+			if( ! taxDBfile.exists() ) throw new IOException( "TaxDB does not exist: " + taxDBfile.getName() );
+			boolean snapshot = MappedTaxonomyStore.isSnapshot( taxDBfile );
+			TaxonomyStore current = snapshot
+					? MappedTaxonomyStore.open( taxDBfile )
+					: new TaxonomyDaoInMemory( taxDBfile ).getTaxonomyStore();
+			delta = TaxonomyStoreDelta.compute( current, updated, remapTable, complete );
+			System.out.println( delta + " found in " + (System.currentTimeMillis() - start) + " ms" );
+			if( ! delta.isEmpty() ){
+				ArrayTaxonomyStore patched = delta.apply();
+				if( snapshot ) MappedTaxonomyStore.write( patched, taxDBfile );
+				else writeNodesFile( patched, taxDBfile );
+				System.out.println( "written " + patched.size() + " nodes to " + taxDBfile.getAbsolutePath() );
+				File directory = taxDBfile.getAbsoluteFile().getParentFile();
+				appendRemapFiles( delta, new File( directory, MERGED_FILE ), new File( directory, DELETED_FILE ) );
+			}
+		}
+		if( delta.isEmpty() ) System.out.println( "TaxDB is up to date; nothing changed." );
+		System.out.println( "finished." );
+		return delta;
+	}
+
+	/*the tax_ids whose closure rows are replaced: those of the inserted, re-parented and removed nodes*/
+	private int[] getChangedSubtrees( TaxonomyStoreDelta delta ){
+		int[] inserted = delta.getInsertedTaxIDs();
+		int[] reparented = delta.getReparentedTaxIDs();
+		int[] removed = delta.getRemovedTaxIDs();
+		int[] subtrees = new int[inserted.length + reparented.length + removed.length];
+		System.arraycopy( inserted, 0, subtrees, 0, inserted.length );
+		System.arraycopy( reparented, 0, subtrees, inserted.length, reparented.length );
+		System.arraycopy( removed, 0, subtrees, inserted.length + reparented.length, removed.length );
+		return subtrees;
+	}
+
+	/**
+	 * appends the remap rows of the removed tax_ids to the merged.dmp and delnodes.dmp
+	 * files beside a file-based TaxDB. Rows that redirect to a now removed tax_id need
+	 * no rewrite: TaxIdRemapTable follows the chain to the new row
+	 */
+	private void appendRemapFiles( TaxonomyStoreDelta delta, File mergedFile, File deletedFile ) throws IOException{
+		int[] merged = delta.getMergedTaxIDs();
+		int[] mergedInto = delta.getMergedIntoTaxIDs();
+		int[] deleted = delta.getDeletedTaxIDs();
+		if( merged.length > 0 ){
+			BufferedWriter bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( mergedFile, true ), ArrayTaxonomyStore.UTF8 ) );
+			try{
+				for( int i=0; i<merged.length; i++ ){
+					bw.write( merged[i] + "\t|\t" + mergedInto[i] + "\t|\n" );
+				}
+			}finally{
+				bw.close();
+			}
+		}
+		if( deleted.length > 0 ){
+			BufferedWriter bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( deletedFile, true ), ArrayTaxonomyStore.UTF8 ) );
+			try{
+				for( int taxID : deleted ){
+					bw.write( taxID + "\t|\n" );
+				}
+			}finally{
+				bw.close();
+			}
+		}
+		System.out.println( merged.length + " merged and " + deleted.length + " deleted tax_ids appended to "
+				+ mergedFile.getName() + " and " + deletedFile.getName() );
+	}
+
+	/*Derby stores unquoted names in upper case, MySQL as given*/
+	private boolean hasTable( Connection connection, String table ) throws Exception{
+		DatabaseMetaData metaData = connection.getMetaData();
+		String[] names = { table.toUpperCase(), table };
+		for( String name : names ){
+			ResultSet rs = metaData.getTables( null, null, name, new String[]{ "TABLE" } );
+			try{
+				if( rs.next() ) return true;
+			}finally{
+				rs.close();
+			}
+		}
+		return false;
+	}
+
+	/*merged.dmp and delnodes.dmp of the archive; redirect the removed tax_ids and follow merged tax_ids of a subset*/
+	private TaxIdRemapTable readRemapTable( File archive ) throws Exception{
+		ZipFile zip = new ZipFile( archive );
+		try{
+			ZipEntry merged = zip.getEntry( "merged.dmp" );
+			ZipEntry delnodes = zip.getEntry( "delnodes.dmp" );
+			InputStream mergedIn = merged == null ? null : zip.getInputStream( merged );
+			InputStream delnodesIn = delnodes == null ? null : zip.getInputStream( delnodes );
+			return TaxIdRemapTable.read( mergedIn, delnodesIn );
+		}finally{
+			zip.close();
+		}
+	}
+
+	private TaxonomyStore readNodesTable( Connection connection ) throws Exception{
+		ArrayTaxonomyStore.Builder builder = new ArrayTaxonomyStore.Builder();
+		Statement s = connection.createStatement();
+		try{
+			ResultSet rs = s.executeQuery( "select * from " + NODES_TABLE );
+			while( rs.next() ){
+				builder.add( rs.getInt("tax_id"), rs.getInt("parent_tax_id"),
+						TaxonomyRank.getTaxonomyRank( rs.getString("rank") ), rs.getString("scientific_name") );
+			}
+			rs.close();
+		}finally{
+			s.close();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * writes the store as nodes file; the file is first written to a temporary
+	 * file and then renamed
+	 */
+	private void writeNodesFile( TaxonomyStore store, File nodesFile ) throws IOException{
+		File tmpFile = new File( nodesFile.getPath() + ".tmp" );
+		BufferedWriter bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tmpFile ), ArrayTaxonomyStore.UTF8 ), 1 << 16 );
+		try{
+			for( int i=0; i<store.size(); i++ ){
+				int parent = store.getParentIndex( i );
+				TaxonomyRank rank = store.getRank( i );
+				bw.write( store.getTaxID( i ) + "\t"
+						+ ( parent == TaxonomyStore.NO_INDEX ? store.getTaxID( i ) : store.getTaxID( parent ) ) + "\t"
+						+ ( rank == null ? TaxonomyRank.NO_RANK : rank ) + "\t"
+						+ store.getScientificName( i ) + "\n" );
+			}
+		}finally{
+			bw.close();
+		}
+		if( nodesFile.exists() && ! nodesFile.delete() ) throw new IOException( "could not replace existing nodes file " + nodesFile.getName() );
+		if( ! tmpFile.renameTo( nodesFile ) ) throw new IOException( "could not rename " + tmpFile.getName() + " to " + nodesFile.getName() );
+	}
+}
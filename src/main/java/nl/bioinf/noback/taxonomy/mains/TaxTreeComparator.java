@@ -7,6 +7,8 @@ import java.util.List;
 import java.util.Properties;
 
 
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoHttp;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
 import nl.bioinf.noback.taxonomy.io.TaxTreeXmlReader;
 import nl.bioinf.noback.taxonomy.model.TaxonomyExperiment;
@@ -29,6 +31,7 @@ public class TaxTreeComparator {
     public static final String ANALYSIS_TYPE = "analysis_type";
     public static final String ANALYSIS_ATTRIBUTES = "analysis_attributes";
     public static final String TAXNODES_FILE = "taxnodes_file";
+    public static final String TAXONOMY_SERVER = "taxonomy_server";
     
     
 	/*the config file*/
@@ -50,7 +53,8 @@ public class TaxTreeComparator {
 	private File reportFile;
 	private Properties defaultAnalysisProperties;
 	private File taxnodesFile;
-	private TaxonomyDaoInMemory taxDB;
+	private String taxonomyServer;
+	private TaxonomyDao taxDB;
     
 	public TaxTreeComparator(String configFile) {
 		this.configFile = configFile;
@@ -85,7 +89,8 @@ public class TaxTreeComparator {
 		processSettings();
 		
 		/*load taxDB*/
-		this.taxDB = new TaxonomyDaoInMemory( taxnodesFile, null);
+		if( taxonomyServer != null ) this.taxDB = TaxonomyDaoHttp.connect( taxonomyServer );
+		else this.taxDB = new TaxonomyDaoInMemory( taxnodesFile, null);
 		
 		/*get experiment filenames*/
 		List<String[]> expFiles = getExperimentFileNames();
@@ -156,11 +161,14 @@ public class TaxTreeComparator {
 	 * @throws IOException 
 	 */
 	private void processSettings() throws IOException{
-		/*create taxonomy database*/
-		String taxnodesFileName = configuration.getString( TAXNODES_FILE );
-		if( taxnodesFileName == null || taxnodesFileName.length() == 0 ) throw new IOException("please provide a taxnodes file in tag <taxnodes_file>");
-		this.taxnodesFile = new File( taxnodesFileName );
-		if( ! taxnodesFile.exists() || ! taxnodesFile.canRead() ) throw new IOException("can not read from taxnodes file: " + taxnodesFileName);
+		/*create taxonomy database, or use a running TaxonomyServer (host:port)*/
+		this.taxonomyServer = configuration.getString( TAXONOMY_SERVER );
+		if( taxonomyServer == null ){
+			String taxnodesFileName = configuration.getString( TAXNODES_FILE );
+			if( taxnodesFileName == null || taxnodesFileName.length() == 0 ) throw new IOException("please provide a taxnodes file in tag <taxnodes_file> or a server in tag <taxonomy_server>");
+			this.taxnodesFile = new File( taxnodesFileName );
+			if( ! taxnodesFile.exists() || ! taxnodesFile.canRead() ) throw new IOException("can not read from taxnodes file: " + taxnodesFileName);
+		}
 		
 		/*create the output report file*/
 		reportFile = new File( configuration.getString( REPORT_FILE ) );
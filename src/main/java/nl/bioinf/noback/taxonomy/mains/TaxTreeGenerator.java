@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.text.ParseException;
 
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoHttp;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
 import nl.bioinf.noback.taxonomy.mains.BlastrunnerHitlineTaxIdExtractor;
 import nl.bioinf.noback.taxonomy.model.Lineage;
@@ -32,6 +34,7 @@ public class TaxTreeGenerator {
     public static final String INPUT_FILE = "input_file";
     public static final String TREE_FILE = "tree_file";
     public static final String TAXNODES_FILE = "taxnodes_file";
+    public static final String TAXONOMY_SERVER = "taxonomy_server";
 
     public boolean VERBOSE = true; 
 	private String configFile;
@@ -40,9 +43,10 @@ public class TaxTreeGenerator {
 	private File treeFile;
 	private String inputType;
 	private TaxIdExtractor taxIdExtractor;
-	private TaxonomyDaoInMemory taxDB;
+	private TaxonomyDao taxDB;
 	private TaxTree tree;
 	private File nodesFile;
+	private String taxonomyServer;
 
 	/**
 	 * @param args
@@ -128,10 +132,18 @@ public class TaxTreeGenerator {
 	}
 	
 	private void loadTaxDB() throws Exception{
-		this.taxDB = new TaxonomyDaoInMemory( nodesFile, null);
+		if( taxonomyServer != null ){
+			this.taxDB = TaxonomyDaoHttp.connect( taxonomyServer );
+			if( VERBOSE ){
+				System.out.println("[ " + this.getClass().getSimpleName() + " ] using taxonomy server at " + taxonomyServer);
+			}
+			return;
+		}
+		TaxonomyDaoInMemory inMemoryDB = new TaxonomyDaoInMemory( nodesFile, null);
+		this.taxDB = inMemoryDB;
 		if( VERBOSE ){
 			System.out.println("[ " + this.getClass().getSimpleName() + " ] taxDB loaded: ");
-			taxDB.countNodes();
+			inMemoryDB.countNodes();
 		}
 	}
 	
@@ -197,13 +209,17 @@ public class TaxTreeGenerator {
 			System.out.println("[ " + this.getClass().getSimpleName() + " ] input file: " + inputFile);
 		}
 
-		this.nodesFile = new File( configuration.getString( TAXNODES_FILE ) );
-		/*read from file*/
-		if( (! nodesFile.exists() ) || (! nodesFile.canRead() ) ){
-			throw new Exception("[TaxTreeGenerator] can not read from nodes file " + nodesFile.getName() );
-		}
-		if( VERBOSE ){
-			System.out.println("[ " + this.getClass().getSimpleName() + " ] nodes file: " + nodesFile);
+		/*a running TaxonomyServer (host:port) replaces loading the nodes file*/
+		this.taxonomyServer = configuration.getString( TAXONOMY_SERVER );
+		if( taxonomyServer == null ){
+			this.nodesFile = new File( configuration.getString( TAXNODES_FILE ) );
+			/*read from file*/
+			if( (! nodesFile.exists() ) || (! nodesFile.canRead() ) ){
+				throw new Exception("[TaxTreeGenerator] can not read from nodes file " + nodesFile.getName() );
+			}
+			if( VERBOSE ){
+				System.out.println("[ " + this.getClass().getSimpleName() + " ] nodes file: " + nodesFile);
+			}
 		}
 
 		/*set the output file*/
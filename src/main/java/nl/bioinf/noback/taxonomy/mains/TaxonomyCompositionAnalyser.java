@@ -8,15 +8,28 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.cellingo.sequence_tools.blast.BlastQuery;
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.dao.DatabaseException;
+import nl.bioinf.noback.taxonomy.dao.PersistentLineageCache;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoDerby;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoHttp;
+import nl.bioinf.noback.taxonomy.dao.RequiredTaxa;
+import nl.bioinf.noback.taxonomy.dao.TaxIdRemapTable;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoMysql;
 import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
@@ -25,6 +38,8 @@ import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
 import nl.bioinf.noback.taxonomy.model.TaxTree;
 import nl.bioinf.noback.taxonomy.tax_composition.BlastCategory;
+import nl.bioinf.noback.taxonomy.tax_composition.BlastInputPrescanner;
+import nl.bioinf.noback.taxonomy.tax_composition.BlastInputPrescanner.HitIdentifier;
 import nl.bioinf.noback.taxonomy.tax_composition.BlastResultTaxonomyAnalyser;
 import nl.bioinf.noback.taxonomy.tax_composition.BlastResultsReader;
 import nl.bioinf.noback.taxonomy.tax_composition.BlastResultsReaderListener;
@@ -54,8 +69,12 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 
     public static final String INPUT_FILE = "input_file";
     public static final String INPUT_FILE_HAS_TAXIDS = "input_has_tax_id_field";
+    public static final String INPUT_FILE_HAS_ACCESSIONS = "input_has_accessions";
+    public static final String PRESCAN_INPUT = "prescan_input";
     public static final String REPORT_FILE = "report_file";
     public static final String TREE_FILE = "tree_file";
+    public static final String QUERY_BLOCK_SIZE = "query_block_size";
+    public static final String ANALYSIS_THREADS = "analysis_threads";
 
     public static final String DATABASE_TYPE = "database.type";
     public static final String DATABASE_NAME = "database.database_name";
@@ -63,9 +82,14 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
     public static final String DATABASE_USER = "database.user";
     public static final String DATABASE_HOST = "database.host";
     public static final String DATABASE_PASSWORD = "database.password";
+    public static final String DATABASE_CONNECTIONS = "database.connections";
+    public static final String DATABASE_LINEAGE_CACHE_FILE = "database.lineage_cache_file";
     
     public static final String TAXNODES_FILE = "database.taxnodes_file";
     public static final String GI_NUMBERS_FILE = "database.gi_numbers_file";
+    public static final String ACCESSION_FILE = "database.accession_file";
+    public static final String MERGED_FILE = "database.merged_file";
+    public static final String DELNODES_FILE = "database.delnodes_file";
          
 	/**
 	 * the log4j logger object
@@ -92,6 +116,10 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
      * the object used to query the taxonomy database TaxDB
      */
     private TaxonomyDao taxDB;
+    /**
+     * the lineages of earlier runs against a mysql or derby TaxDB; null when not configured
+     */
+    private PersistentLineageCache persistentCache;
     /**
      * the tree that merges all lineages
      */
@@ -100,6 +128,26 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
      * the number of queries for which a null lineage was returned
      */
     private int nullLineages = 0;
+    /**
+     * queries waiting to be analysed as one block
+     */
+    private List<BlastQuery> queryBlock = new ArrayList<BlastQuery>();
+    /**
+     * marks the end of the input in the queue of query blocks
+     */
+    private static final List<BlastQuery> END_OF_INPUT = new ArrayList<BlastQuery>();
+    /**
+     * the threads that analyse the query blocks; null when they are analysed on the reader thread
+     */
+    private ExecutorService workerPool;
+    /**
+     * the query blocks handed over by the reader thread to the workers
+     */
+    private BlockingQueue<List<BlastQuery>> blockQueue;
+    /**
+     * the results of the workers: their partial trees and counts
+     */
+    private List<Future<AnalysisWorker>> workers;
     
 	/**
 	 */
@@ -122,6 +170,18 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 	public TaxonomyCompositionAnalyser( String configFile ){
 		this.configFile = configFile;
 	}
+	
+	/**
+	 * construct with processed settings and a connected TaxDB, without a config file; 
+	 * analyse() then processes the input file of the settings
+	 * @param settings
+	 * @param taxDB
+	 */
+	TaxonomyCompositionAnalyser( TaxonomyCompositionAnalyserSettings settings, TaxonomyDao taxDB ){
+		this.settings = settings;
+		this.taxDB = taxDB;
+		if( logger == null ) logger = Logger.getLogger( TaxonomyCompositionAnalyser.class );
+	}
 
 	
 	public void start(){
@@ -138,16 +198,7 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 			logger.info("connecting to TaxDB");
 			connectTaxDB();
 			
-			logger.info("instantiating blast result taxonomy analyser and taxonomic tree objects");
-			boolean useGiNumbersFile = true;
-			if(settings.getGiNumbersFile() == null) useGiNumbersFile = false;
-			
-			blastResultsAnalyser = new BlastResultTaxonomyAnalyser( taxDB, settings.isInputHasTaxIdField(), useGiNumbersFile, logger );
-			//blastResultsAnalyser.setLogger( logger );
-			taxTree = new TaxTree();
-			
-			logger.info("starting blast results processing");
-			processBlastResults();
+			analyse();
 			
 			logger.debug("generating report file");
 			createReportFile();
@@ -161,6 +212,7 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 			
 			//blastResultsAnalyser.printTruncHistoGram();
 			
+			if( persistentCache != null ) logger.info( persistentCache.toString() );
 			taxDB.disconnect();
 			logger.fatal("Analysis finished. Exiting.");
 			
@@ -173,6 +225,41 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 		}
 	}
 	
+	/**
+	 * creates the analyser and the tree, and adds the lineages of the queries in the input file
+	 * @throws Exception
+	 */
+	void analyse() throws Exception{
+		logger.info("instantiating blast result taxonomy analyser and taxonomic tree objects");
+		blastResultsAnalyser = createBlastResultsAnalyser();
+		//blastResultsAnalyser.setLogger( logger );
+		taxTree = new TaxTree();
+		
+		logger.info("starting blast results processing");
+		processBlastResults();
+	}
+	
+	/**
+	 * @return the tree of the analysed queries
+	 */
+	TaxTree getTaxTree(){
+		return taxTree;
+	}
+	
+	/**
+	 * @return the analyser holding the query, hit, failure and category counts
+	 */
+	BlastResultTaxonomyAnalyser getBlastResultsAnalyser(){
+		return blastResultsAnalyser;
+	}
+	
+	/**
+	 * @return the number of queries for which a null lineage was returned
+	 */
+	int getNullLineages(){
+		return nullLineages;
+	}
+	
 	/**
 	 * process the found taxonomic tree of blast results
 	 * @throws Exception
@@ -230,6 +317,8 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 			bw.newLine();
 			bw.write( "NUMBER OF FAILED LINEAGES FOR HITS (NO KNOWN GI/TAXID/ORGANISM) = " + blastResultsAnalyser.getFailedLineageCount() );
 			bw.newLine();
+			bw.write( "NUMBER OF FAILED COMMON LINEAGES FOR MULTIPLE PERFECT HITS (DATABASE ERROR) = " + blastResultsAnalyser.getFailedCommonLineageCount() );
+			bw.newLine();
 			bw.write( "NUMBER OF FAILED LINEAGES FOR QUERIES (UNKNOWN ERROR) = " + nullLineages );
 			bw.newLine();
 			bw.newLine();
@@ -331,43 +420,185 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 	 * @throws Exception
 	 */
 	private void processBlastResults() throws Exception{
-		
-		BlastResultsReader reader = new BlastResultsReader( settings.getInputFile(), this );
-		//ArrayList<HspProperty> hspProperties = reader.getDataFields();
-		reader.readFile();
+		if( settings.getAnalysisThreads() > 1 ){
+			startWorkers( settings.getAnalysisThreads() );
+		}
+		try{
+			BlastResultsReader reader = new BlastResultsReader( settings.getInputFile(), this );
+			//ArrayList<HspProperty> hspProperties = reader.getDataFields();
+			reader.readFile();
+			/*the last, incomplete block*/
+			processQueryBlock();
+			if( workerPool != null ){
+				mergeWorkers();
+			}
+		}finally{
+			/*stops the workers when the input could not be read*/
+			if( workerPool != null ) workerPool.shutdownNow();
+		}
+	}
+	
+	private BlastResultTaxonomyAnalyser createBlastResultsAnalyser(){
+		boolean useGiNumbersFile = true;
+		if(settings.getGiNumbersFile() == null) useGiNumbersFile = false;
+		return new BlastResultTaxonomyAnalyser( taxDB, settings.isInputHasTaxIdField(), useGiNumbersFile, settings.isInputHasAccessions(), logger );
+	}
+	
+	/**
+	 * starts the threads that analyse the query blocks, each with its own analyser and 
+	 * partial tree. The queue holds at most two blocks per thread, so the reader waits 
+	 * when the workers fall behind
+	 * @param threads
+	 */
+	private void startWorkers( int threads ){
+		logger.info( "analysing query blocks on " + threads + " threads" );
+		blockQueue = new ArrayBlockingQueue<List<BlastQuery>>( 2 * threads );
+		workerPool = Executors.newFixedThreadPool( threads );
+		workers = new ArrayList<Future<AnalysisWorker>>( threads );
+		for( int i=0; i<threads; i++ ){
+			workers.add( workerPool.submit( new AnalysisWorker() ) );
+		}
+	}
+	
+	/**
+	 * signals the end of the input to the workers and merges their trees and counts 
+	 * into those of the reader thread
+	 * @throws Exception when a worker failed
+	 */
+	private void mergeWorkers() throws Exception{
+		for( int i=0; i<workers.size(); i++ ){
+			handOver( END_OF_INPUT );
+		}
+		for( Future<AnalysisWorker> future : workers ){
+			AnalysisWorker worker;
+			try {
+				worker = future.get();
+			} catch (ExecutionException e) {
+				throw new Exception( "analysis of query blocks failed: " + e.getCause().getMessage(), e.getCause() );
+			}
+			taxTree.merge( worker.tree );
+			blastResultsAnalyser.addCounts( worker.analyser );
+			nullLineages += worker.nullLineages;
+		}
+	}
+	
+	/**
+	 * puts the block in the queue, waiting for room; fails when a worker has stopped 
+	 * before the end of the input, which only happens after an error
+	 * @param block
+	 */
+	private void handOver( List<BlastQuery> block ){
+		try {
+			while( ! blockQueue.offer( block, 100, TimeUnit.MILLISECONDS ) ){
+				for( Future<AnalysisWorker> future : workers ){
+					if( future.isDone() ){
+						throw new IllegalStateException( "a query block analysis thread stopped: " + getFailure( future ) );
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException( "interrupted while handing over a query block" );
+		}
+	}
+	
+	private static String getFailure( Future<AnalysisWorker> future ){
+		try {
+			future.get();
+			return "no error";
+		} catch (ExecutionException e) {
+			return String.valueOf( e.getCause() );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "interrupted";
+		}
+	}
+	
+	/**
+	 * takes query blocks from the queue until the end of the input, and adds their 
+	 * lineages to a partial tree of its own
+	 */
+	private class AnalysisWorker implements Callable<AnalysisWorker>{
+		private final BlastResultTaxonomyAnalyser analyser = createBlastResultsAnalyser();
+		private final TaxTree tree = new TaxTree();
+		private int nullLineages = 0;
+
+		@Override
+		public AnalysisWorker call() throws Exception {
+			while( true ){
+				List<BlastQuery> block = blockQueue.take();
+				if( block == END_OF_INPUT ) return this;
+				nullLineages += analyseQueryBlock( block, analyser, tree );
+			}
+		}
 	}
 
     /**
      * Listener method to BlastResultsReader, implements the single method of 
      * BlastResultsReaderListener that will be called when the data of a single 
-     * query has been processed. This allows for streaming processing of large files
+     * query has been processed. This allows for streaming processing of large files.
+     * Queries are collected in blocks so their lineages can be resolved in one batch.
      */
         @Override
 	public void queryDataProcessed( BlastQuery query ) {
 		logger.debug( "QUERY     " + query.getQueryId() + " #hits=" + query.getHitNumber() );
 		
-		Lineage lineage = blastResultsAnalyser.analyseBlastResult( query );
-		
+		queryBlock.add( query );
+		if( queryBlock.size() >= settings.getQueryBlockSize() ){
+			processQueryBlock();
+		}
+	}
+	
+	/**
+	 * analyses the collected queries and adds their lineages to the tree, or hands 
+	 * them over to the workers
+	 */
+	private void processQueryBlock(){
+		if( queryBlock.isEmpty() ) return;
+		if( workerPool != null ){
+			handOver( queryBlock );
+			queryBlock = new ArrayList<BlastQuery>( settings.getQueryBlockSize() );
+			return;
+		}
+		nullLineages += analyseQueryBlock( queryBlock, blastResultsAnalyser, taxTree );
+		/*trying to prevent heap space errors*/
+		queryBlock.clear();
+	}
+	
+	/**
+	 * analyses the queries and adds their lineages to the tree
+	 * @return the number of queries without a lineage
+	 */
+	private int analyseQueryBlock( List<BlastQuery> block, BlastResultTaxonomyAnalyser analyser, TaxTree tree ){
+		List<Lineage> lineages = analyser.analyseBlastResults( block );
+		int failed = 0;
+		for( int i=0; i<block.size(); i++ ){
+			if( ! addLineage( tree, block.get( i ), lineages.get( i ) ) ) failed++;
+		}
+		return failed;
+	}
+	
+	/*false for a null or empty lineage*/
+	private boolean addLineage( TaxTree tree, BlastQuery query, Lineage lineage ){
 		if( lineage == null ){
-			nullLineages++;
 			logger.warn( "query " + query.getQueryId() + " returned a null lineage" );
+			return false;
 		}
 		else if( lineage.getLength() == 0 ){
-			nullLineages++;
 			logger.warn( "query " + query.getQueryId() + " returned an empty lineage" );
+			return false;
 		}
 		else{
 			/*add the lineage to the tree*/
 			try {
 				logger.debug( "LINEAGE LEAF  " + lineage.getExternalNode().toString());
-				taxTree.addLineage(lineage);
+				tree.addLineage(lineage);
 			} catch (CorruptedLineageException e) {
 				//e.printStackTrace();
 				/*this is not a fatal exception*/
 				logger.error( "lineage of query " + query.getQueryId() + " returned a CorruptedLineageExcetion:\n" + e.getMessage() );
 			}
-			/*trying to prevent heap space errors*/
-			lineage = null;
+			return true;
 		}
 	}
 
@@ -383,23 +614,49 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 			}
 			else if( settings.getDbType().equalsIgnoreCase("file") ){
 				//System.out.println( "loading TaxDB from file; using ginumbers file=" + settings.isInputHasTaxIdField() );
+				RequiredTaxa requiredTaxa = prescanInput();
+				TaxIdRemapTable remapTable = null;
+				if( settings.getMergedFile() != null || settings.getDelnodesFile() != null ){
+					remapTable = TaxIdRemapTable.read( settings.getMergedFile(), settings.getDelnodesFile() );
+					logger.info("redirecting " + remapTable.size() + " merged and deleted taxIDs");
+				}
 				if(settings.isInputHasTaxIdField()){
-					taxDB = new TaxonomyDaoInMemory(settings.getNodesFile(), null);//settings.getGiNumbersFile()
+					taxDB = new TaxonomyDaoInMemory(settings.getNodesFile(), null, null, remapTable, requiredTaxa);//settings.getGiNumbersFile()
 					logger.info("connected to file-type database using file " + settings.getNodesFile().getName() );
 				}
+				else if(settings.isInputHasAccessions()){
+					taxDB = new TaxonomyDaoInMemory(settings.getNodesFile(), null, settings.getAccessionFile(), remapTable, requiredTaxa);
+					logger.info("connected to file-type database using nodes file " + settings.getNodesFile().getName() 
+							+ " and accession file " + settings.getAccessionFile() );
+				}
 				else{
-					taxDB = new TaxonomyDaoInMemory(settings.getNodesFile(), settings.getGiNumbersFile());
+					taxDB = new TaxonomyDaoInMemory(settings.getNodesFile(), settings.getGiNumbersFile(), null, remapTable, requiredTaxa);
 					logger.info("connected to file-type database using nodes file " + settings.getNodesFile().getName() 
 							+ " and gi-numbers file " + settings.getGiNumbersFile() );
 				}
 			}
 			else if( settings.getDbType().equalsIgnoreCase("mysql") ){
-				taxDB = TaxonomyDaoMysql.getInstance( settings.getDbName(), settings.getDbHost(), settings.getDbUser(), settings.getDbPassword(), settings.getDbGiTable() );
+				TaxonomyDaoMysql mysqlDB = TaxonomyDaoMysql.getInstance( settings.getDbName(), settings.getDbHost(), settings.getDbUser(), settings.getDbPassword(), settings.getDbGiTable(), settings.getDbConnections() );
+				taxDB = mysqlDB;
 				logger.info("connected to mysql type database");
+				if( settings.getLineageCacheFile() != null ){
+					persistentCache = mysqlDB.openPersistentCache( settings.getLineageCacheFile() );
+					logger.info( "lineage cache file " + settings.getLineageCacheFile() + " has " + persistentCache.getLoadedCount() + " lineages" );
+				}
 			}
 			else if( settings.getDbType().equalsIgnoreCase("derby") ){
-				taxDB = TaxonomyDaoDerby.getInstance( settings.getDbName(), settings.getDbUser(), settings.getDbPassword() );
+				TaxonomyDaoDerby derbyDB = TaxonomyDaoDerby.getInstance( settings.getDbName(), settings.getDbUser(), settings.getDbPassword(), settings.getDbConnections() );
+				taxDB = derbyDB;
 				logger.info("connected to derby type database");
+				if( settings.getLineageCacheFile() != null ){
+					persistentCache = derbyDB.openPersistentCache( settings.getLineageCacheFile() );
+					logger.info( "lineage cache file " + settings.getLineageCacheFile() + " has " + persistentCache.getLoadedCount() + " lineages" );
+				}
+			}
+			else if( settings.getDbType().equalsIgnoreCase("http") ){
+				/*a TaxonomyServer that has the TaxDB loaded; the host is given as host:port*/
+				taxDB = TaxonomyDaoHttp.connect( settings.getDbHost() );
+				logger.info("connected to taxonomy server at " + settings.getDbHost() );
 			}
 			else{
 				throw new Exception( "unknown database connection type was requested" );
@@ -412,6 +669,29 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 		}
 	}
 	
+	/**
+	 * when configured, makes a first pass over the input file to collect the identifiers 
+	 * that the lineages will be looked up with, so that only the part of the file-type 
+	 * TaxDB they refer to has to be loaded
+	 * @return the identifiers, or null when the complete TaxDB should be loaded
+	 */
+	private RequiredTaxa prescanInput() throws Exception{
+		if( ! settings.isPrescanInput() ) return null;
+		/*the same precedence as the lineage fetchers of BlastResultTaxonomyAnalyser*/
+		HitIdentifier hitIdentifier;
+		if( settings.isInputHasTaxIdField() ) hitIdentifier = HitIdentifier.TAX_ID;
+		else if( settings.isInputHasAccessions() ) hitIdentifier = HitIdentifier.ACCESSION;
+		else if( settings.getGiNumbersFile() == null ) hitIdentifier = HitIdentifier.GI_NUMBER;
+		else{
+			logger.warn("lineages are looked up by organism name; the complete TaxDB is loaded");
+			return null;
+		}
+		logger.info("prescanning input file for " + hitIdentifier + " identifiers");
+		RequiredTaxa requiredTaxa = new BlastInputPrescanner( settings.getInputFile() ).prescan( hitIdentifier );
+		logger.info("input file refers to " + requiredTaxa );
+		return requiredTaxa;
+	}
+	
 	/**
 	 * processes the settings and generates a BlastFilter object
 	 */
@@ -430,6 +710,14 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 		logger.info("parsing TaxIDs from defline of blast database hits as TAXID=12345");
 		settings.setInputHasTaxIdField( inputHasTaxIdField );
 		
+		boolean inputHasAccessions = configuration.getBoolean(INPUT_FILE_HAS_ACCESSIONS, false);
+		if( inputHasAccessions ) logger.info("resolving lineages of blast database hits by accession.version");
+		settings.setInputHasAccessions( inputHasAccessions );
+		
+		boolean prescanInput = configuration.getBoolean(PRESCAN_INPUT, false);
+		if( prescanInput ) logger.info("loading only the part of the TaxDB that the input file refers to");
+		settings.setPrescanInput( prescanInput );
+		
 		/*set the output file*/
 		File reportFile = new File( configuration.getString( REPORT_FILE ) );
 		settings.setReportFile( reportFile );
@@ -439,6 +727,16 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 		if( ! treeFile.getName().endsWith("xml") ) logger.warn( "the tree file does not have an .xml extension " + treeFile.getName() );
 		settings.setTreeFile( treeFile );
 		
+		/*number of queries whose lineages are resolved in one batch*/
+		int queryBlockSize = configuration.getInt( QUERY_BLOCK_SIZE, 100 );
+		if( queryBlockSize < 1 ) throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] query block size should be at least 1: " + queryBlockSize );
+		settings.setQueryBlockSize( queryBlockSize );
+		
+		/*number of threads analysing query blocks, each with a partial tree; 1 analyses on the reader thread*/
+		int analysisThreads = configuration.getInt( ANALYSIS_THREADS, 1 );
+		if( analysisThreads < 1 ) throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] number of analysis threads should be at least 1: " + analysisThreads );
+		settings.setAnalysisThreads( analysisThreads );
+		
 		/*database settings*/
 		String dbType = configuration.getString( DATABASE_TYPE );
 		settings.setDbType( dbType );
@@ -461,6 +759,36 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 				settings.setGiNumbersFile( giNumbersFile );
 			}
 			
+			String accessionFileName = configuration.getString( ACCESSION_FILE, "NONE" );
+			if( ! accessionFileName.equals("NONE") ){
+				File accessionFile = new File( accessionFileName );
+				if( (! accessionFile.exists() ) || (! accessionFile.canRead() ) ){
+					throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] can not read from accession file " + accessionFile.getName() );
+				}
+				settings.setAccessionFile( accessionFile );
+			}
+			else if( inputHasAccessions && ! inputHasTaxIdField ){
+				throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] no accession file configured for input with accessions" );
+			}
+			
+			/*NCBI merged.dmp and delnodes.dmp, for redirecting outdated taxIDs*/
+			String mergedFileName = configuration.getString( MERGED_FILE, "NONE" );
+			if( ! mergedFileName.equals("NONE") ){
+				File mergedFile = new File( mergedFileName );
+				if( (! mergedFile.exists() ) || (! mergedFile.canRead() ) ){
+					throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] can not read from merged nodes file " + mergedFile.getName() );
+				}
+				settings.setMergedFile( mergedFile );
+			}
+			String delnodesFileName = configuration.getString( DELNODES_FILE, "NONE" );
+			if( ! delnodesFileName.equals("NONE") ){
+				File delnodesFile = new File( delnodesFileName );
+				if( (! delnodesFile.exists() ) || (! delnodesFile.canRead() ) ){
+					throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] can not read from deleted nodes file " + delnodesFile.getName() );
+				}
+				settings.setDelnodesFile( delnodesFile );
+			}
+			
 		}else{
 			String giTable = configuration.getString( DATABASE_GI_TABLE );
 			//System.out.println(configuration.getString( "blabla" ));
@@ -491,6 +819,17 @@ public class TaxonomyCompositionAnalyser implements BlastResultsReaderListener{
 			
 			String dbPassword = configuration.getString( DATABASE_PASSWORD );
 			settings.setDbPassword(dbPassword);	
+			
+			/*concurrent lookups; by default one for each analysis thread*/
+			int dbConnections = configuration.getInt( DATABASE_CONNECTIONS, analysisThreads );
+			if( dbConnections < 1 ) throw new Exception("[TaxonomyCompositionAnalyser.processSettings()] number of database connections should be at least 1: " + dbConnections );
+			settings.setDbConnections( dbConnections );
+			
+			/*lineages resolved in earlier runs; the file is created when it does not exist*/
+			String lineageCacheFile = configuration.getString( DATABASE_LINEAGE_CACHE_FILE );
+			if( lineageCacheFile != null && lineageCacheFile.length() > 0 ){
+				settings.setLineageCacheFile( new File( lineageCacheFile ) );
+			}
 		}
 		
 	}
@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.mains;
+
+import java.io.File;
+
+import nl.bioinf.noback.taxonomy.dao.TaxIdRemapTable;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoServer;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+/**
+ * This class is the main of a daemon that loads a file-type TaxDB once and serves
+ * its lineages to other jobs (database type "http" of TaxonomyCompositionAnalyser,
+ * or the taxonomy_server setting of TaxTreeGenerator), so that these do not each
+ * load their own copy. The server listens on the loopback address until the
+ * process is stopped.
+ * @author michiel
+ *
+ */
+public class TaxonomyServer {
+    /**
+     * XPaths to the configuration file settings defined
+     */
+	public static final String VERBOSITY = "verbose";
+    public static final String TAXNODES_FILE = "taxnodes_file";
+    public static final String GI_NUMBERS_FILE = "gi_numbers_file";
+    public static final String ACCESSION_FILE = "accession_file";
+    public static final String MERGED_FILE = "merged_file";
+    public static final String DELNODES_FILE = "delnodes_file";
+    public static final String PORT = "port";
+    public static final String THREADS = "threads";
+
+    public boolean VERBOSE = true;
+	private String configFile;
+	private XMLConfiguration configuration;
+	private File nodesFile;
+	private File giNumbersFile;
+	private File accessionFile;
+	private File mergedFile;
+	private File delnodesFile;
+	private int port;
+	private int threads;
+	private TaxonomyDaoServer server;
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if( args.length != 1){
+			System.out.println("no configuration file provided!");
+			System.out.println("usage: java -jar taxonomy_server_<version>.jar <configuration file>");
+			System.out.println("aborting");
+			System.exit( 1 );
+		}
+		TaxonomyServer ts = new TaxonomyServer( args[0] );
+		ts.start();
+	}
+
+	/**
+	 * construct with the name of the config file
+	 * @param configFile
+	 */
+	public TaxonomyServer( String configFile ){
+		this.configFile = configFile;
+	}
+
+	public void start(){
+		try {
+			loadConfiguration();
+			processSettings();
+			startServer();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+
+	private void startServer() throws Exception{
+		long start = System.currentTimeMillis();
+		TaxIdRemapTable remapTable = null;
+		if( mergedFile != null || delnodesFile != null ){
+			remapTable = TaxIdRemapTable.read( mergedFile, delnodesFile );
+		}
+		final TaxonomyDaoInMemory taxDB = new TaxonomyDaoInMemory( nodesFile, giNumbersFile, accessionFile, remapTable, null );
+		if( VERBOSE ){
+			System.out.println("[ " + this.getClass().getSimpleName() + " ] taxDB loaded in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		this.server = new TaxonomyDaoServer( taxDB, port, threads );
+		server.start();
+		Runtime.getRuntime().addShutdownHook( new Thread(){
+			@Override
+			public void run(){
+				server.stop( 1 );
+				if( VERBOSE ){
+					System.out.println("[ " + TaxonomyServer.class.getSimpleName() + " ] stopped after " + server.getRequestCount() + " requests");
+				}
+			}
+		});
+		if( VERBOSE ){
+			System.out.println("[ " + this.getClass().getSimpleName() + " ] serving lineages at " + server.getAddress() + " with " + threads + " threads");
+		}
+	}
+
+	/**
+	 * processes the settings
+	 */
+	private void processSettings() throws Exception{
+		this.VERBOSE = configuration.getBoolean(VERBOSITY, true);
+
+		this.nodesFile = readableFile( TAXNODES_FILE, "nodes file" );
+		if( nodesFile == null ){
+			throw new Exception("[TaxonomyServer] no nodes file configured" );
+		}
+		this.giNumbersFile = readableFile( GI_NUMBERS_FILE, "gi numbers file" );
+		this.accessionFile = readableFile( ACCESSION_FILE, "accession file" );
+		this.mergedFile = readableFile( MERGED_FILE, "merged nodes file" );
+		this.delnodesFile = readableFile( DELNODES_FILE, "deleted nodes file" );
+
+		this.port = configuration.getInt( PORT, TaxonomyDaoServer.DEFAULT_PORT );
+		this.threads = configuration.getInt( THREADS, Runtime.getRuntime().availableProcessors() );
+		if( threads < 1 ) throw new Exception("[TaxonomyServer] number of threads should be at least 1: " + threads );
+	}
+
+	/*the configured file, or null when it is not configured*/
+	private File readableFile( String key, String description ) throws Exception{
+		String fileName = configuration.getString( key, "NONE" );
+		if( fileName.equals("NONE") ) return null;
+		File file = new File( fileName );
+		if( (! file.exists() ) || (! file.canRead() ) ){
+			throw new Exception("[TaxonomyServer] can not read from " + description + " " + file.getName() );
+		}
+		if( VERBOSE ){
+			System.out.println("[ " + this.getClass().getSimpleName() + " ] " + description + ": " + file);
+		}
+		return file;
+	}
+
+	/**
+     * The loadConfiguration method loads the configuration for the application from file.
+     * If this configuration cannot be loaded, a ConfigurationException
+     * will be thrown.
+     * @throws Exception
+     */
+    private void loadConfiguration( ) throws Exception {
+        try {
+            File xmlConfigFile = new File( configFile );
+            if ( ! xmlConfigFile.exists() || ! xmlConfigFile.canRead() ) {
+            	System.out.println( "unable to read configuration file: " + configFile );
+                throw new Exception( "[TaxonomyServer.loadConfiguration()] unable to read configuration file: " + configFile);
+            }
+            configuration = new XMLConfiguration( xmlConfigFile );
+        } catch (Exception e) { // configuration could not be loaded
+			throw new Exception("[TaxonomyServer.loadConfiguration()] unable to load configuration file: " + configFile + "; cause of exception:" + e.getCause() );
+        }
+    }
+
+}
@@ -3,43 +3,72 @@
  */
 package nl.bioinf.noback.taxonomy.model;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 
 /**
- * This class encapsulates the properties and methods of a Taxonomy Lineage
+ * This class encapsulates the properties and methods of a Taxonomy Lineage.
+ * The nodes are held leaf first in an array. Truncated lineages and intersections 
+ * are views on the array of the original lineage, so they are created in O(1) 
+ * without copying; the list and iterator accessors are views as well. 
+ * Views are copied before nodes are added to them.
  * @author MA Noback (m.a.noback@pl.hanze.nl)
- * @version 0.1
+ * @version 0.2
  */
 public class Lineage {
 	
-	/*the actual lineage nodes*/
-	private List<TaxNode> lineage;
+	/*the actual lineage nodes, leaf first; the lineage spans nodes[start] .. nodes[end-1]*/
+	private TaxNode[] nodes;
+	private int start;
+	private int end;
+	/*for a view: the array of the lineage it was taken from, which the view does not write to.
+	  That lineage only writes beyond the end of the view, so it needs no copy itself*/
+	private final TaxNode[] borrowed;
 	
 	/**
 	 * default constructor
 	 */
 	public Lineage(){
-		lineage = new ArrayList<TaxNode>();
+		nodes = new TaxNode[16];
+		borrowed = null;
 	}
 	
 	/**
 	 * constructs with a linked list of TaxNodes
 	 */
 	public Lineage( List<TaxNode> lineageList ) throws CorruptedLineageException{
-		lineage = lineageList;
+		this( lineageList.toArray( new TaxNode[ lineageList.size() ] ) );
+	}
+	
+	/**
+	 * constructs with an array of linked TaxNodes, leaf first. The array is taken over, not copied
+	 */
+	public Lineage( TaxNode[] leafFirstNodes ) throws CorruptedLineageException{
+		nodes = leafFirstNodes;
+		end = leafFirstNodes.length;
+		borrowed = null;
 		checkLineage();
 	}
 	
+	/*view constructor*/
+	private Lineage( TaxNode[] nodes, int start, int end ){
+		this.nodes = nodes;
+		this.start = start;
+		this.end = end;
+		this.borrowed = nodes;
+	}
+	
 	/**
 	 * checks the lineage list and throws CorruptedLineageException when it is not OK
 	 * @throws CorruptedLineageException
 	 */
 	private void checkLineage()throws CorruptedLineageException{
 		int taxIdCheck = 0;
-		for( TaxNode node : lineage ){
+		for( int i=start; i<end; i++ ){
+			TaxNode node = nodes[i];
 			if( node.getTaxID() == 1 ) return; //root reached: all is well
 			else if( node.getParentNode() == null ) throw new CorruptedLineageException("node has no parent: " + node);
 			else{
@@ -59,20 +88,24 @@ public class Lineage {
 	 * @throws CorruptedLineageException
 	 */
 	public void addNode( TaxNode taxNode ) throws CorruptedLineageException {
-		if( lineage.size() == 0 ){//first node
-			lineage.add( taxNode );
+		if( end > start && ! taxNode.isParent( nodes[end-1] ) ){
+			throw new CorruptedLineageException( "added node " + taxNode.getTaxID()
+					+ " is not parent to previously added node; taxID=" + nodes[end-1].getTaxID() 
+					+ " parentTaxID=" + nodes[end-1].getParentTaxID() );
 		}
-		else{
-			if( taxNode.isParent( lineage.get( lineage.size()-1 ) ) ){
-				lineage.get( lineage.size()-1 ).setParentNode( taxNode );
-				lineage.add( taxNode );
-			}
-			else{
-				throw new CorruptedLineageException( "added node " + taxNode.getTaxID()
-						+ " is not parent to previously added node; taxID=" + lineage.get( lineage.size()-1 ).getTaxID() 
-						+ " parentTaxID=" + lineage.get( lineage.size()-1 ).getParentTaxID() );
-			}
+		if( nodes == borrowed || end == nodes.length ){
+			/*copy on write, or grow*/
+			int length = end - start;
+			TaxNode[] copy = new TaxNode[ Math.max( 16, length * 2 ) ];
+			System.arraycopy( nodes, start, copy, 0, length );
+			nodes = copy;
+			start = 0;
+			end = length;
+		}
+		if( end > start ){
+			nodes[end-1].setParentNode( taxNode );
 		}
+		nodes[end++] = taxNode;
 	}
 
 	/**
@@ -80,29 +113,49 @@ public class Lineage {
 	 * @return root
 	 */
 	public TaxNode getRoot() {
-		if( lineage.size() == 0 ) return null;
-		return lineage.get( lineage.size() - 1 );
+		if( end == start ) return null;
+		return nodes[end-1];
 	}
 
 	/**
 	 * returns the outermost node of the lineage 
 	 * @return external node
+	 * @throws IndexOutOfBoundsException when the lineage is empty
 	 */
 	public TaxNode getExternalNode(){
-		return lineage.get( 0 );
+		if( end == start ) throw new IndexOutOfBoundsException( "empty lineage" );
+		return nodes[start];
 	}
 	
 	/**
-	 * returns an iterator of this lineage from the root up.
-	 * @return root-up iterator 
+	 * returns the node at the given level; level 0 is the root
+	 * @param level
+	 * @return node
+	 */
+	public TaxNode getNodeFromRoot( int level ){
+		if( level < 0 || level >= end - start ) throw new IndexOutOfBoundsException( "level " + level + " of lineage with length " + (end - start) );
+		return nodes[end-1-level];
+	}
+	
+	/**
+	 * returns a read-only view of this lineage from the root up.
+	 * @return root-up list 
 	 */
 	public List<TaxNode> getListFromRoot(){
-		ArrayList<TaxNode> reversed = new ArrayList<TaxNode>();
-		int size = lineage.size();
-		for( int i=0; i<size; i++ ){
-			reversed.add( lineage.get( size-(i+1) ) ); 
-		}
-		return reversed;
+		return new AbstractList<TaxNode>(){
+			@Override
+			public TaxNode get(int index) {
+				return getNodeFromRoot( index );
+			}
+			@Override
+			public int size() {
+				return end - start;
+			}
+			@Override
+			public Iterator<TaxNode> iterator() {
+				return iterateFromRoot();
+			}
+		};
 	}
 	
 	/**
@@ -114,43 +167,43 @@ public class Lineage {
 	}
 	
 	/**
-	 * returns an iterator of this lineage from the outer leaf down.
-	 * @return leaf-down iterator 
+	 * returns a read-only view of this lineage from the outer leaf down.
+	 * @return leaf-down list 
 	 */
 	public List<TaxNode> getListFromLeaf(){
-		return lineage;
+		return new AbstractList<TaxNode>(){
+			@Override
+			public TaxNode get(int index) {
+				if( index < 0 || index >= end - start ) throw new IndexOutOfBoundsException( "index " + index + " of lineage with length " + (end - start) );
+				return nodes[start + index];
+			}
+			@Override
+			public int size() {
+				return end - start;
+			}
+		};
+	}
+	
+	/*the number of common nodes from the root up*/
+	private int commonLength( Lineage otherLineage ){
+		int smaller = Math.min( this.getLength(), otherLineage.getLength() );
+		for( int i=0; i<smaller; i++){
+			if( ! nodes[end-1-i].equals( otherLineage.nodes[otherLineage.end-1-i] ) ){
+				return i;
+			}
+		}
+		return smaller;
 	}
 	
 	/**
 	 * returns the intersection of two lineages: the common TaxNodes from the root up.
+	 * The intersection is a view on this lineage.
 	 * @param otherLineage
 	 * @return intersection
 	 * @throws CorruptedLineageException 
 	 */
 	public Lineage getIntersection( Lineage otherLineage ) throws CorruptedLineageException{
-		/*get intersection of the two lineages*/
-		Lineage intersection = new Lineage();
-		List<TaxNode> otherList = otherLineage.getListFromRoot();
-		int smaller = (this.getLength() <= otherLineage.getLength() ? this.getLength() : otherLineage.getLength());
-		int intersectLevel = 0;
-		for( int i=0; i<smaller; i++){
-			//System.out.println( "checking level: " + i + "; " + lineage.get( getLength()-(i+1) ) );
-			//System.out.println( "checking level: " + i + "; " + otherList.get( i ) );
-			if( ! lineage.get( getLength()-(i+1) ).equals( otherList.get(i) ) ){
-				//System.out.println( "equal up to level: " + i + "; " + lineage.get( getLength()-(i+1) ) );
-				intersectLevel = i;
-				break;
-			}
-			else if( i == smaller-1 ){
-				//System.out.println( "end of shortest lineage reached at level: " + i );
-				intersectLevel = i+1;
-			}
-		}
-		//System.out.println( "lineages diverge at level: " + intersectLevel + "; " + lineage.get( getLength()-(intersectLevel + 1) ) + "; " + otherList.get(intersectLevel) );
-		for( int j=intersectLevel; j>0; j-- ){
-			intersection.addNode( lineage.get( getLength()-j) );
-		}
-		return intersection;
+		return truncate( commonLength( otherLineage ) );
 	}
 	
 	/**
@@ -159,41 +212,22 @@ public class Lineage {
 	 * @return highest common node
 	 */
 	public TaxNode getDivergencePoint( Lineage otherLineage ){
-		List<TaxNode> otherList = otherLineage.getListFromRoot();
-		int smaller = (this.getLength() <= otherLineage.getLength() ? this.getLength() : otherLineage.getLength());
-		for( int i=0; i<smaller; i++){
-			if( lineage.get( getLength()-(i+1) ).equals( otherList.get(i) ) ){
-				//System.out.println( "equal at level: " + i + "; " + lineage.get( getLength()-(i+1) ) );
-			}
-			else{
-				return lineage.get( getLength()-(i) );
-			}
-		}
-		return null;
+		int common = commonLength( otherLineage );
+		if( common == 0 || common == Math.min( this.getLength(), otherLineage.getLength() ) ) return null;
+		return nodes[end - common];
 	}
 	
 	/**
-	 * Will return a truncated copy of this lineage at (but including) length nodes from the root.
+	 * Will return a truncated view of this lineage at (but including) length nodes from the root.
 	 * Thus, with a lineage of 20 nodes and this method called with truncate(10),
 	 * the first 10 nodes from the root up will be retained 
 	 * @param length
 	 * @throws IllegalArgumentException when length exceeds the number of nodes in this lineage
 	 */
 	public Lineage truncate( int length ) throws IllegalArgumentException{
-		Lineage trunLineage = new Lineage();
-		
-		int lLength = this.getLength();
-		if( length > lLength ) throw new IllegalArgumentException( "length exceeds the number of nodes in this lineage" );
-		
-		for( int i=0; i<length; i++ ){
-			try {
-				trunLineage.addNode( lineage.get( lLength - (length - i) ) );
-			} catch (CorruptedLineageException e) {
-				/*this should never happens*/
-				e.printStackTrace();
-			}
-		}
-		return trunLineage;
+		if( length > getLength() ) throw new IllegalArgumentException( "length exceeds the number of nodes in this lineage" );
+		if( length < 0 ) throw new IllegalArgumentException( "length can not be negative" );
+		return new Lineage( nodes, end - length, end );
 	}
 	
 	/**
@@ -201,7 +235,7 @@ public class Lineage {
 	 * @return lineage length
 	 */
 	public int getLength(){
-		return lineage.size();
+		return end - start;
 	}
 	
 	/**
@@ -210,9 +244,9 @@ public class Lineage {
 	public String toString(){
 		StringBuilder sb = new StringBuilder();
 		sb.append("Lineage: [");
-		for( TaxNode tn : lineage ){
+		for( int i=start; i<end; i++ ){
 			//System.out.println( tn );
-			sb.append(tn.toString());
+			sb.append(nodes[i].toString());
 			sb.append(" ");
 		}
 		sb.append("] ");
@@ -229,16 +263,17 @@ public class Lineage {
 		private int index = 0;
 		
 		public ReverseLineageIterator(){
-			index = getLength();
+			index = end;
 		}
 		
 		public boolean hasNext() {
-			return index>0;
+			return index>start;
 		}
 
 		public TaxNode next() {
+			if( index <= start ) throw new NoSuchElementException();
 			index--;
-			return lineage.get(index);
+			return nodes[index];
 		}
 
 		public void remove() {	}
@@ -6,13 +6,18 @@ package nl.bioinf.noback.taxonomy.model;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -33,9 +38,9 @@ public class TaxTree {
     private TaxNode root;
     
     /**
-     * for searching on name
+     * for searching on name; sorted on String.CASE_INSENSITIVE_ORDER of the scientific name
      */
-    private ArrayList<TaxNode> sortedByName;
+    private TaxNode[] sortedByName;
     
     /**
      * constructs an empty tree
@@ -90,27 +95,26 @@ public class TaxTree {
     }
     
     /**
-     * Will make this tree keep track of a sorted names cache used for fast searching on scientific name
-     * WARNING: is memory intensive!
+     * Will make this tree keep track of a sorted names cache used for fast searching on scientific name.
+     * The cache only holds references to the nodes of the tree; it is dropped when nodes are added.
      */
     public void createSortedNamesCache(){
         //lazy loading and only once
         if( sortedByName == null ){
-            sortedByName = new ArrayList<TaxNode>();
-            for( TaxNode node : this.tree.values()){
-                sortedByName.add(node);
-            }
-            Collections.sort(sortedByName, new Comparator<TaxNode>(){
+            TaxNode[] sorted = tree.values().toArray(new TaxNode[tree.size()]);
+            Arrays.sort(sorted, new Comparator<TaxNode>(){
                 @Override
                 public int compare(TaxNode n1, TaxNode n2) {
-                    return n1.getScientificName().compareTo(n2.getScientificName());
+                    return String.CASE_INSENSITIVE_ORDER.compare(n1.getScientificName(), n2.getScientificName());
                 }
             });
+            sortedByName = sorted;
         }
     }
 
     /**
-     * returns a lsit of taxnodes matching the search query
+     * returns a lsit of taxnodes matching the search query. Searches anchored on start 
+     * use binary search on the sorted names cache: O(log n + k)
      * @param substring
      * @param anchorOnStart
      * @param ignoreCase
@@ -121,26 +125,46 @@ public class TaxTree {
             createSortedNamesCache();
         }
         List<TaxNode> result = new ArrayList<TaxNode>();
-        if (ignoreCase) {
-            substring = substring.toUpperCase();
-            for (TaxNode n : this.sortedByName) {
-                if (anchorOnStart && n.getScientificName().toUpperCase().startsWith(substring)) {
-                    result.add(n);
-                } else if (!anchorOnStart && n.getScientificName().toUpperCase().contains(substring)) {
-                    result.add(n);
+        int length = substring.length();
+        if (anchorOnStart) {
+            /*names starting with the prefix, ignoring case, form a contiguous range*/
+            int low = 0;
+            int high = sortedByName.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (String.CASE_INSENSITIVE_ORDER.compare(sortedByName[mid].getScientificName(), substring) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < sortedByName.length
+                    && sortedByName[i].getScientificName().regionMatches(true, 0, substring, 0, length); i++) {
+                if (ignoreCase || sortedByName[i].getScientificName().startsWith(substring)) {
+                    result.add(sortedByName[i]);
                 }
             }
         } else {
             for (TaxNode n : this.sortedByName) {
-                if (anchorOnStart && n.getScientificName().startsWith(substring)) {
-                    result.add(n);
-                } else if (!anchorOnStart && n.getScientificName().contains(substring)) {
+                String name = n.getScientificName();
+                if (ignoreCase ? containsIgnoreCase(name, substring) : name.contains(substring)) {
                     result.add(n);
                 }
             }
         }
         return result;
     }
+
+    /*substring test without creating upper case copies*/
+    private static boolean containsIgnoreCase(String name, String substring) {
+        int last = name.length() - substring.length();
+        for (int i = 0; i <= last; i++) {
+            if (name.regionMatches(true, i, substring, 0, substring.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
     
     /**
      * returns the species nodes that reside under the given node 
@@ -311,6 +335,7 @@ public class TaxTree {
             /*this is the root node*/
             root = node;
             tree.put(node.getTaxID(), node);
+            sortedByName = null;
             return;
         }
         if (!tree.containsKey(node.getParentTaxID())) {
@@ -319,6 +344,7 @@ public class TaxTree {
 
         /*it is a regular node; put it in the tree and link it*/
         tree.put(node.getTaxID(), node);
+        sortedByName = null;
         TaxNode parent = tree.get(node.getParentTaxID());
         node.setParentNode(parent);
         parent.addChild(node);
@@ -342,10 +368,12 @@ public class TaxTree {
             /*this is the root node*/
             root = node;
             tree.put(node.getTaxID(), node);
+            sortedByName = null;
             return;
         }
         /*it is a regular node; put it in the tree and link it*/
         tree.put(node.getTaxID(), node);
+        sortedByName = null;
     }
 
     /**
@@ -389,6 +417,15 @@ public class TaxTree {
         return tree.containsKey(taxID);
     }
 
+    /**
+     * returns the nodes of this tree, in no particular order
+     *
+     * @return unmodifiable view of the nodes
+     */
+    public Collection<TaxNode> getNodes() {
+        return Collections.unmodifiableCollection(tree.values());
+    }
+
     /**
      * returns a node with given taxID
      *
@@ -402,49 +439,98 @@ public class TaxTree {
     }
 
     /**
-     * Merges the added lineage into the tree
+     * Merges the added lineage into the tree. The tree gets copies of the nodes it
+     * does not have yet, so the lineage itself is not modified and may be shared,
+     * e.g. by a lineage cache or by the partial trees of several threads
      *
      * @param lineage
-     * @throws CorruptedLineageException
+     * @throws CorruptedLineageException when a node is not the child of a node in the tree
      */
     public void addLineage(Lineage lineage) throws CorruptedLineageException {
-
-        if (root == null) {
-            root = lineage.getRoot();
-            //root.setCumulativeChildNumber(0);
-            //tree.put( root.getTaxID(), root );
-        }
         int length = lineage.getLength();
         int nodeNumber = 0;
         int level = 1;
         Iterator<TaxNode> tni = lineage.iterateFromRoot();
         while (tni.hasNext()) {
             TaxNode tn = tni.next();
-            tn.setLevel(level++);
             nodeNumber++;
             //System.out.println( "[TaxTree] adding node: " + tn );
 
-            int taxID = tn.getTaxID();
             /*add tax node to the tree, or increment cumulative number of existing node */
-            if (tree.containsKey(taxID)) {
-                tree.get(taxID).setCumulativeChildNumber(tree.get(taxID).getCumulativeChildNumber() + 1);
+            TaxNode node = tree.get(tn.getTaxID());
+            if (node != null) {
+                node.setCumulativeChildNumber(node.getCumulativeChildNumber() + 1);
             } else {
-                tn.setCumulativeChildNumber(1);
-                tree.put(taxID, tn);
-            }
-            /*add current node as child to its parent*/
-            if (taxID != root.getTaxID()) {
-                tree.get(tree.get(taxID).getParentTaxID()).addChild(tree.get(taxID));
+                node = insertCopy(tn);
+                node.setLevel(level);
+                node.setCumulativeChildNumber(1);
             }
+            level++;
 
             /*last node of lineage*/
             if (nodeNumber == length) {
-                tree.get(taxID).setOccurenceCount(tree.get(taxID).getOccurenceCount() + 1);
+                node.setOccurenceCount(node.getOccurenceCount() + 1);
             }
         }
         //System.out.println("tree size: " + tree.size());
     }
 
+    /**
+     * adds the counts of the other tree to this one, as if its lineages had been
+     * added to this tree; nodes this tree does not have are copied. Used to combine
+     * the partial trees that threads build from parts of the same input
+     *
+     * @param other
+     * @throws CorruptedLineageException when a node of the other tree has no parent in this tree
+     */
+    public void merge(TaxTree other) throws CorruptedLineageException {
+        if (other.root == null) {
+            return;
+        }
+        /*parents before their children*/
+        ArrayDeque<TaxNode> stack = new ArrayDeque<TaxNode>();
+        stack.push(other.root);
+        while (!stack.isEmpty()) {
+            TaxNode otherNode = stack.pop();
+            TaxNode node = tree.get(otherNode.getTaxID());
+            if (node != null) {
+                node.setCumulativeChildNumber(node.getCumulativeChildNumber() + otherNode.getCumulativeChildNumber());
+                node.setOccurenceCount(node.getOccurenceCount() + otherNode.getOccurenceCount());
+            } else {
+                node = insertCopy(otherNode);
+                node.setLevel(otherNode.getLevel());
+                node.setCumulativeChildNumber(otherNode.getCumulativeChildNumber());
+                node.setOccurenceCount(otherNode.getOccurenceCount());
+            }
+            if (otherNode.hasChildren()) {
+                Iterator<TaxNode> children = otherNode.getChildren();
+                while (children.hasNext()) {
+                    stack.push(children.next());
+                }
+            }
+        }
+    }
+
+    /*puts an unlinked copy of the node in the tree, under its parent; the first node becomes the root*/
+    private TaxNode insertCopy(TaxNode tn) throws CorruptedLineageException {
+        TaxNode node = new TaxNode(tn.getTaxID(), tn.getParentTaxID());
+        node.setRank(tn.getRank());
+        node.setScientificName(tn.getScientificName());
+        if (root == null) {
+            root = node;
+        } else {
+            TaxNode parent = tree.get(node.getParentTaxID());
+            if (parent == null) {
+                throw new CorruptedLineageException("no parent is present in tree for node " + node);
+            }
+            node.setParentNode(parent);
+            parent.addChild(node);
+        }
+        tree.put(node.getTaxID(), node);
+        sortedByName = null;
+        return node;
+    }
+
     /**
      * returns a lineage for the given taxnode
      *
@@ -795,4 +881,21 @@ public class TaxTree {
         return total;
 
     }
+
+    /**
+     * returns the total cumulative counts of all taxonomy levels, in a single pass
+     * over the nodes
+     *
+     * @return cumulativeCount by rank; ranks without nodes are absent
+     */
+    public Map<TaxonomyRank, Integer> getTaxonomyLevelOccurrenceCounts() {
+        Map<TaxonomyRank, Integer> totals = new EnumMap<TaxonomyRank, Integer>(TaxonomyRank.class);
+        for (TaxNode tn : this.tree.values()) {
+            if (tn.getRank() != null) {
+                Integer total = totals.get(tn.getRank());
+                totals.put(tn.getRank(), (total == null ? 0 : total) + tn.getCumulativeChildNumber());
+            }
+        }
+        return totals;
+    }
 }
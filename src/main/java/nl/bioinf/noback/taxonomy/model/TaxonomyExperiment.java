@@ -2,10 +2,18 @@ package nl.bioinf.noback.taxonomy.model;
 
 import java.text.DateFormat;
 import java.util.Calendar;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+
+import nl.bioinf.noback.taxonomy.dao.ArrayTaxonomyStore;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyStore;
 
 /**
- * Encapsulates TaxTree experiments: produced from TaxTree xml file 
+ * Encapsulates TaxTree experiments: produced from TaxTree xml file. Rank lookups
+ * (the ancestor of a node at a rank, the totals per rank) go through an
+ * ArrayTaxonomyStore of the tree nodes and its rank ancestor columns, which is
+ * built on first use; the tree is not expected to change after that
  * @author M.A. Noback (m.a.noback@pl.hanze.nl) 
  * @version 0.1
  */
@@ -15,6 +23,10 @@ public class TaxonomyExperiment {
 	private Calendar date;
 	private TaxTree tree;
 	private String displayName;
+	/*the tree nodes with their rank ancestor columns; built on first use*/
+	private ArrayTaxonomyStore rankStore;
+	/*the tree node of each store index*/
+	private TaxNode[] storeNodes;
 	
 	/**
 	 * @param id
@@ -100,6 +112,80 @@ public class TaxonomyExperiment {
 		return tree.getTaxonomyLevelOccurrenceCount(taxonomyRank);
 	}
 
+	/**
+	 * returns the total cumulative counts of all taxonomy levels, in a single pass.
+	 * For the ranks of the short lineage the occurrences of every node are rolled
+	 * up to its ancestor at the rank through the rank ancestor columns; other ranks
+	 * sum the cumulative counts of their nodes
+	 * @return cumulativeCount by rank; ranks without nodes are absent
+	 */
+	public Map<TaxonomyRank, Integer> getTaxonomyLevelOccurrenceCounts() {
+		ArrayTaxonomyStore store = getRankStore();
+		TaxonomyRank[] projectedRanks = ArrayTaxonomyStore.getProjectedRanks();
+		int[] projectedTotals = new int[projectedRanks.length];
+		boolean[] projectedPresent = new boolean[projectedRanks.length];
+		Map<TaxonomyRank, Integer> totals = new EnumMap<TaxonomyRank, Integer>(TaxonomyRank.class);
+		for( int i=0; i<store.size(); i++ ){
+			TaxNode tn = storeNodes[i];
+			for( int c=0; c<projectedRanks.length; c++ ){
+				int ancestor = store.getAncestorIndex(i, projectedRanks[c]);
+				if( ancestor == TaxonomyStore.NO_INDEX ) continue;
+				if( ancestor == i ) projectedPresent[c] = true;
+				projectedTotals[c] += tn.getOccurenceCount();
+			}
+			TaxonomyRank rank = tn.getRank();
+			if( rank != null && ! ArrayTaxonomyStore.isProjected(rank) ){
+				Integer total = totals.get(rank);
+				totals.put(rank, (total == null ? 0 : total) + tn.getCumulativeChildNumber());
+			}
+		}
+		for( int c=0; c<projectedRanks.length; c++ ){
+			if( projectedPresent[c] ) totals.put(projectedRanks[c], projectedTotals[c]);
+		}
+		return totals;
+	}
+
+	/**
+	 * returns the ancestor of the given node at the given rank, or the node itself
+	 * when it has that rank. For the ranks of the short lineage this is a single
+	 * read of the rank ancestor columns; other ranks walk the lineage
+	 * @param tn a node of the tree
+	 * @param rank
+	 * @return ancestor node, or null when the lineage does not pass the rank
+	 * @throws IllegalArgumentException if the node is not present in the tree
+	 */
+	public TaxNode getAncestor( TaxNode tn, TaxonomyRank rank ){
+		if( ArrayTaxonomyStore.isProjected(rank) ){
+			ArrayTaxonomyStore store = getRankStore();
+			int index = store.indexOf(tn.getTaxID());
+			if( index == TaxonomyStore.NO_INDEX ) throw new IllegalArgumentException("node " + tn + " is not present in this tree");
+			int ancestor = store.getAncestorIndex(index, rank);
+			return ancestor == TaxonomyStore.NO_INDEX ? null : storeNodes[ancestor];
+		}
+		for( TaxNode t : tree.getLineage( tn ).getListFromLeaf() ){
+			if( t.getRank() == rank ) return t;
+		}
+		return null;
+	}
+
+	/*builds the store of the tree nodes; store indices follow the order in which the nodes are added*/
+	private synchronized ArrayTaxonomyStore getRankStore(){
+		if( rankStore == null ){
+			TaxNode[] nodes = tree.getNodes().toArray(new TaxNode[tree.size()]);
+			ArrayTaxonomyStore.Builder builder = new ArrayTaxonomyStore.Builder( nodes.length );
+			for( TaxNode tn : nodes ){
+				builder.add( tn.getTaxID(), tn.getParentTaxID(), tn.getRank(), null );
+			}
+			try {
+				rankStore = builder.build();
+			} catch (CorruptedLineageException e) {
+				throw new IllegalStateException("the tree of experiment " + id + " is not rooted at tax_id 1: " + e.getMessage());
+			}
+			storeNodes = nodes;
+		}
+		return rankStore;
+	}
+
 	/**
 	 * returns a String representation of the lineage for the goven taxNode object, from the root up
 	 * @param te
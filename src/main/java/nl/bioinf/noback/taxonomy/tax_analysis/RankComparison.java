@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
-import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
 
 /**
@@ -15,14 +13,18 @@ import nl.bioinf.noback.taxonomy.model.TaxNode;
  * */
 public class RankComparison implements Comparable<RankComparison>{
 	protected static ArrayList<String> experimentIDs = new ArrayList<String>();
-	private Lineage lineage;
-	private TaxonomyRank subRank;
+	private TaxNode node;
+	private TaxNode subRankNode;
 	private HashMap<String, RankingCountPair> pairs = new HashMap<String, RankingCountPair>();
 	private boolean uninitialized = true;
 	
-	public RankComparison(Lineage lineage, TaxonomyRank subRank){
-		this.lineage = lineage;
-		this.subRank = subRank;
+	/**
+	 * @param node the node that is ranked
+	 * @param subRankNode the ancestor of the node at the subrank; null when its lineage has none
+	 */
+	public RankComparison(TaxNode node, TaxNode subRankNode){
+		this.node = node;
+		this.subRankNode = subRankNode;
 	}
 	
 	/**
@@ -38,22 +40,19 @@ public class RankComparison implements Comparable<RankComparison>{
 	}
 	
 	/**
-	 * returns the primary name of this comparison; the scientific name of the external node of the lineage
+	 * returns the primary name of this comparison; the scientific name of the ranked node
 	 * @return primary name
 	 */
 	public String getPrimaryRankName(){
-		return lineage.getExternalNode().getScientificName();
+		return node.getScientificName();
 	}
 	
 	/**
-	 * returns the subRank name of this comparison; the scientific name of the subrank node of the lineage
+	 * returns the subRank name of this comparison; the scientific name of the ancestor at the subrank
 	 * @return subRank name
 	 */
 	public String getSubRankName(){
-		for( TaxNode tn : lineage.getListFromLeaf() ){
-			if( tn.getRank() == subRank ) return tn.getScientificName();
-		}
-		return "NOT FOUND";
+		return subRankNode == null ? "NOT FOUND" : subRankNode.getScientificName();
 	}
 	
 	/**
@@ -30,7 +30,6 @@ import org.apache.poi.ss.usermodel.Workbook;
 
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
 import nl.bioinf.noback.taxonomy.model.EmptyTreeException;
-import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
 import nl.bioinf.noback.taxonomy.model.TaxonomyExperiment;
 import nl.bioinf.noback.taxonomy.tax_analysis.RankComparison.RankingCountPair;
@@ -363,6 +362,8 @@ public class TaxTreeLevelOverlapAnalyser extends TaxTreeAnalyser {
 		createExcelCell( r, 3, "100", ExcelUtils.DATA_STYLE, Cell.CELL_TYPE_STRING );
 
 		HashMap<TaxonomyRank, Integer> levelTotals = new HashMap<TaxonomyRank, Integer>();
+		/*all levels in one pass over the tree*/
+		Map<TaxonomyRank, Integer> levelCounts = te.getTaxonomyLevelOccurrenceCounts();
 		
 		for( TaxonomyRank tr : TaxonomyRank.values() ){
 			if( TaxonomyRank.isShortLineage(tr) ){
@@ -374,20 +375,20 @@ public class TaxTreeLevelOverlapAnalyser extends TaxTreeAnalyser {
 					
 					/*process for rank comparisons*/
 					if( tr==this.firstPrimaryRankingComparatorLevel ){
-						Lineage l = te.getTree().getLineage(tn);
-						firstRankingComparator.addRankCountData(l, rank, te.getDisplayName());
+						TaxNode subRankNode = te.getAncestor(tn, firstRankingComparator.getSubRank());
+						firstRankingComparator.addRankCountData(tn, subRankNode, rank, te.getDisplayName());
 					}
 					else if( tr==this.secondPrimaryRankingComparatorLevel ){
-						Lineage l = te.getTree().getLineage(tn);
-						secondRankingComparator.addRankCountData(l, rank, te.getDisplayName());
+						TaxNode subRankNode = te.getAncestor(tn, secondRankingComparator.getSubRank());
+						secondRankingComparator.addRankCountData(tn, subRankNode, rank, te.getDisplayName());
 					}
 					else if( tr==this.thirdPrimaryRankingComparatorLevel ){
-						Lineage l = te.getTree().getLineage(tn);
-						thirdRankingComparator.addRankCountData(l, rank, te.getDisplayName());
+						TaxNode subRankNode = te.getAncestor(tn, thirdRankingComparator.getSubRank());
+						thirdRankingComparator.addRankCountData(tn, subRankNode, rank, te.getDisplayName());
 					}
 					else if( tr==this.fourthPrimaryRankingComparatorLevel ){
-						Lineage l = te.getTree().getLineage(tn);
-						fourthRankingComparator.addRankCountData(l, rank, te.getDisplayName());
+						TaxNode subRankNode = te.getAncestor(tn, fourthRankingComparator.getSubRank());
+						fourthRankingComparator.addRankCountData(tn, subRankNode, rank, te.getDisplayName());
 					}
 					
 				}
@@ -397,7 +398,7 @@ public class TaxTreeLevelOverlapAnalyser extends TaxTreeAnalyser {
 
 				createExcelCell( r, 1, ""+nodes.size(), ExcelUtils.DATA_STYLE, Cell.CELL_TYPE_NUMERIC );
 				
-				int levelCount = te.getTaxonomyLevelOccurrenceCount(tr);
+				int levelCount = levelCounts.containsKey(tr) ? levelCounts.get(tr) : 0;
 				levelTotals.put(tr, levelCount);
 				createExcelCell( r, 2, ""+levelCount, ExcelUtils.DATA_STYLE, Cell.CELL_TYPE_NUMERIC );
 				
@@ -6,7 +6,6 @@ import java.util.HashMap;
 import java.util.List;
 
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
-import nl.bioinf.noback.taxonomy.model.Lineage;
 import nl.bioinf.noback.taxonomy.model.TaxNode;
 
 /**
@@ -28,24 +27,24 @@ public class TaxonomyRankingComparator {
 	
 	/**
 	 * adds ranking data for a given node and experiment
-	 * @param lineage
+	 * @param tn the ranked node
+	 * @param subRankNode the ancestor of the node at the subrank (see TaxonomyExperiment.getAncestor()); may be null
 	 * @param ranking
 	 * @param experimentId
 	 */
-	public void addRankCountData( Lineage lineage, int ranking, String experimentId ){
+	public void addRankCountData( TaxNode tn, TaxNode subRankNode, int ranking, String experimentId ){
 		/*keep a list of sequential experiments added*/
 		if( RankComparison.experimentIDs.size()==0 
 				|| (!RankComparison.experimentIDs.get(RankComparison.experimentIDs.size()-1).equals(experimentId)) ){
 			RankComparison.experimentIDs.add(experimentId);
 			
 		}
-		TaxNode tn = lineage.getExternalNode();
-		/*process the lineage*/
+		/*process the node*/
 		if( rankComparisons.containsKey(tn.getScientificName() ) ){
 			rankComparisons.get(tn.getScientificName()).addExperimentData(experimentId, ranking, tn.getCumulativeChildNumber());
 		}
 		else{
-			RankComparison rc = new RankComparison(lineage, subRank);
+			RankComparison rc = new RankComparison(tn, subRankNode);
 			rc.addExperimentData(experimentId, ranking, tn.getCumulativeChildNumber());
 			rankComparisons.put(tn.getScientificName(), rc );
 		}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package nl.bioinf.noback.taxonomy.tax_composition;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import nl.bioinf.noback.taxonomy.dao.RequiredTaxa;
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
+
+/**
+ * Makes a fast first pass over a BLAST results file to collect the distinct
+ * identifiers (tax_ids, gi numbers or accession.versions) in its HIT_ID column,
+ * so that only the part of the TaxDB that is needed for the sample has to be loaded.
+ * Only the HIT_ID field of each line is decoded. HitIDs are parsed with the same
+ * rules as in BlastResultTaxonomyAnalyser; hits that can not be parsed are skipped
+ * here and reported by the analyser in the second pass.
+ * @author michiel
+ */
+public class BlastInputPrescanner {
+
+	/**
+	 * the kind of identifier that the lineages are looked up with
+	 */
+	public enum HitIdentifier{
+		TAX_ID,
+		GI_NUMBER,
+		ACCESSION;
+	}
+
+	private File inputFile;
+
+	/**
+	 * constructs with the BLAST results file to scan
+	 * @param inputFile
+	 */
+	public BlastInputPrescanner( File inputFile ){
+		this.inputFile = inputFile;
+	}
+
+	/**
+	 * scans the file and returns the distinct identifiers of the given kind
+	 * @param hitIdentifier
+	 * @return the identifiers
+	 * @throws Exception when the file can not be read or has no HIT_ID column
+	 */
+	public RequiredTaxa prescan( HitIdentifier hitIdentifier ) throws Exception{
+		RequiredTaxa requiredTaxa = new RequiredTaxa();
+		FieldTokenizer ft = new FieldTokenizer( new BufferedInputStream( new FileInputStream(inputFile), 1 << 16 ), "\t" );
+		try{
+			int hitIdField = readHeader( ft );
+			while( ft.nextLine() ){
+				if( ft.isEmptyLine() || ft.getFieldCount() <= hitIdField ) continue;
+				String hitID = ft.getString( hitIdField );
+				try{
+					switch( hitIdentifier ){
+					case TAX_ID:
+						requiredTaxa.addTaxID( BlastResultTaxonomyAnalyser.parseTaxId( hitID ) );
+						break;
+					case GI_NUMBER:
+						requiredTaxa.addGiNumber( BlastResultTaxonomyAnalyser.parseGiNumber( hitID ) );
+						break;
+					case ACCESSION:
+						requiredTaxa.addAccession( BlastResultTaxonomyAnalyser.parseAccession( hitID ) );
+						break;
+					}
+				}catch (Exception e) {
+					/*unparseable hitID: left to the analyser*/
+				}
+			}
+		}finally{
+			ft.close();
+		}
+		return requiredTaxa;
+	}
+
+	/*skips the header lines and returns the field index of the HIT_ID column*/
+	private int readHeader( FieldTokenizer ft ) throws Exception{
+		if( ! ft.nextLine() ) throw new Exception( "input file is empty: " + inputFile.getName() );
+		if( ft.fieldStartsWith( 0, "#SOURCE=" ) ){
+			ft.nextLine();
+		}
+		if( ! ft.fieldStartsWith( 0, "QUERY_ID" ) ){
+			throw new Exception( "input file does not have a header line" );
+		}
+		for( int i=1; i<ft.getFieldCount(); i++ ){
+			if( ft.fieldEquals( i, "HIT_ID" ) ) return i;
+		}
+		throw new Exception( "input file does not have a HIT_ID column" );
+	}
+}
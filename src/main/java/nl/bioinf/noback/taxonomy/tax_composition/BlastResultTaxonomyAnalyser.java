@@ -5,8 +5,10 @@ package nl.bioinf.noback.taxonomy.tax_composition;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -14,8 +16,8 @@ import net.cellingo.sequence_tools.blast.BlastHit;
 import net.cellingo.sequence_tools.blast.BlastHsp;
 import net.cellingo.sequence_tools.blast.BlastQuery;
 import net.cellingo.sequence_tools.blast.HspProperty;
+import nl.bioinf.noback.taxonomy.dao.DatabaseException;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
-import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
 import nl.bioinf.noback.taxonomy.model.CorruptedLineageException;
 import nl.bioinf.noback.taxonomy.model.Lineage;
 
@@ -33,10 +35,6 @@ public class BlastResultTaxonomyAnalyser {
 	 * the logger object
 	 */
 	private Logger logger;
-	/**
-	 * for efficiency purposes; keep track of the perfect hits in the current
-	 */
-	private ArrayList<BlastHit> currentperfectHits;
 	/**
 	 * keep track of numbers of different blast categories
 	 */
@@ -61,6 +59,11 @@ public class BlastResultTaxonomyAnalyser {
 	 * the number of gi numbers for which a lineage could not be retrieved
 	 */
 	private int failedLineageCount = 0;
+	/**
+	 * the number of queries with multiple perfect hits whose common lineage could not be 
+	 * retrieved because the database failed; the hits themselves did have lineages
+	 */
+	private int failedCommonLineageCount = 0;
 	/**
 	 * flag to indicate whether the Tax_id is present (and should be parsed) from the Hit_ID field
 	 */
@@ -69,6 +72,10 @@ public class BlastResultTaxonomyAnalyser {
 	 * flag to indicate whether the gi number should be parsed and used for fetching the lineages
 	 */
 	private boolean useGiNumbersFile;
+	/**
+	 * flag to indicate whether the accession.version should be parsed and used for fetching the lineages
+	 */
+	private boolean parseAccessions;
 	/**
 	 * strategy pattern implementer of the fetcher method for lineages
 	 */
@@ -103,18 +110,33 @@ public class BlastResultTaxonomyAnalyser {
 	 * @param logger
 	 */
 	public BlastResultTaxonomyAnalyser( TaxonomyDao taxDB, boolean parseTaxIdFromHitId, boolean useGiNumbersFile, Logger logger ) {
+		this( taxDB, parseTaxIdFromHitId, useGiNumbersFile, false, logger );
+	}
+	
+	/**
+	 * Construct as above, and specify whether the hits are identified by accession.version (NCBI no 
+	 * longer issues gi numbers). If parseAccessions is true and parseTaxIdFromHitId is false, the 
+	 * accession.version is parsed from the Hit_id field (see extractAccession()) and its lineage is 
+	 * fetched with TaxonomyDao.getAccessionLineages(); useGiNumbers is then not considered.
+	 * @param taxDB the taxonomy data access object
+	 * @param parseTaxIdFromHitId
+	 * @param useGiNumbersFile
+	 * @param parseAccessions
+	 * @param logger
+	 */
+	public BlastResultTaxonomyAnalyser( TaxonomyDao taxDB, boolean parseTaxIdFromHitId, boolean useGiNumbersFile, boolean parseAccessions, Logger logger ) {
 		this.taxDB = taxDB;
 		this.parseTaxIdFromHitId = parseTaxIdFromHitId;
 		this.useGiNumbersFile = useGiNumbersFile;
+		this.parseAccessions = parseAccessions;
 		this.logger = logger;
 		init();
 		
-		System.out.println("parsing TaxIDs from defline: " + parseTaxIdFromHitId + "; using gi numbers file: " + useGiNumbersFile + "; using TaxDB: " + taxDB.getClass().getSimpleName());
+		System.out.println("parsing TaxIDs from defline: " + parseTaxIdFromHitId + "; parsing accessions: " + parseAccessions + "; using gi numbers file: " + useGiNumbersFile + "; using TaxDB: " + taxDB.getClass().getSimpleName());
 	}
 	
 	/*init block*/
 	private void init(){
-		currentperfectHits = new ArrayList<BlastHit>();
 		blastCategoryNumbers = new HashMap<BlastCategory, Integer>();
 		blastCategoryNumbers.put(BlastCategory.NO_MATCHES, 0);
 		blastCategoryNumbers.put(BlastCategory.SINGLE_PERFECT_MATCH, 0);
@@ -133,33 +155,52 @@ public class BlastResultTaxonomyAnalyser {
 	private void createLineageFetcher(){
 		if( parseTaxIdFromHitId ){
 			logger.info("fetching lineages using TaxId parsing");
-			lineageFetcher = new LineageFetcher(){
+			lineageFetcher = new BatchLineageFetcher<Integer>(){
 				@Override
-				public Lineage fetchLineage(BlastHit hit) {
-					try {
-						return taxDB.getLineage( extractTaxId(hit) );
-					} catch (Exception e) {
-						/*This lineage ignored*/
-						failedLineageCount++;
-						logger.warn( e.getMessage() );
-					}
-					return null;
+				Integer extractId(BlastHit hit) throws Exception {
+					return extractTaxId(hit);
+				}
+				@Override
+				Lineage[] fetchLineages(List<Integer> ids) throws Exception {
+					return taxDB.getLineages( toIntArray( ids ) );
+				}
+				@Override
+				Lineage fetchSingleLineage(Integer id) throws Exception {
+					return taxDB.getLineage( id );
+				}
+			};
+		}
+		else if( parseAccessions ){
+			logger.info("fetching lineages using accession parsing");
+			lineageFetcher = new BatchLineageFetcher<String>(){
+				@Override
+				String extractId(BlastHit hit) throws Exception {
+					return extractAccession(hit);
+				}
+				@Override
+				Lineage[] fetchLineages(List<String> ids) throws Exception {
+					return taxDB.getAccessionLineages( ids.toArray( new String[ids.size()] ) );
+				}
+				@Override
+				Lineage fetchSingleLineage(String id) throws Exception {
+					return taxDB.getAccessionLineage( id );
 				}
 			};
 		}
 		else if( ! useGiNumbersFile ){
 			logger.info("fetching lineages using gi number parsing");
-			lineageFetcher = new LineageFetcher(){
+			lineageFetcher = new BatchLineageFetcher<Integer>(){
 				@Override
-				public Lineage fetchLineage(BlastHit hit) {
-					try {
-						return taxDB.getGiLineage( extractGiNumber(hit) );
-					} catch (Exception e) {
-						/*This lineage ignored*/
-						failedLineageCount++;
-						logger.warn( e.getMessage() );
-					}
-					return null;
+				Integer extractId(BlastHit hit) throws Exception {
+					return extractGiNumber(hit);
+				}
+				@Override
+				Lineage[] fetchLineages(List<Integer> ids) throws Exception {
+					return taxDB.getGiLineages( toIntArray( ids ) );
+				}
+				@Override
+				Lineage fetchSingleLineage(Integer id) throws Exception {
+					return taxDB.getGiLineage( id );
 				}
 			};
 		}
@@ -167,6 +208,10 @@ public class BlastResultTaxonomyAnalyser {
 			logger.info( "fetching lineages using organism parsing" );
 			/*fetch lineage based on organism name*/
 			lineageFetcher = new LineageFetcher(){
+				@Override
+				public void prefetch(List<BlastHit> hits) {
+					/*organism names are resolved one at a time*/
+				}
 				@Override
 				public Lineage fetchLineage(BlastHit hit) {
 					try {
@@ -186,6 +231,69 @@ public class BlastResultTaxonomyAnalyser {
 		}
 	}
 	
+	/**
+	 * fetcher for hit identifiers (tax_id, gi number or accession) that resolves all hits 
+	 * of a block of queries with a single batch call on the TaxonomyDao. Hits that were 
+	 * not prefetched are fetched one at a time.
+	 */
+	private abstract class BatchLineageFetcher<K> implements LineageFetcher{
+		/**
+		 * the lineages of the current block, by id; null values for failed lookups
+		 */
+		private HashMap<K, Lineage> prefetched = new HashMap<K, Lineage>();
+
+		abstract K extractId( BlastHit hit ) throws Exception;
+
+		abstract Lineage[] fetchLineages( List<K> ids ) throws Exception;
+
+		abstract Lineage fetchSingleLineage( K id ) throws Exception;
+
+		@Override
+		public void prefetch(List<BlastHit> hits) {
+			prefetched.clear();
+			List<K> ids = new ArrayList<K>( hits.size() );
+			for( BlastHit hit : hits ){
+				try {
+					ids.add( extractId( hit ) );
+				} catch (Exception e) {
+					/*reported when the hit is fetched*/
+				}
+			}
+			if( ids.isEmpty() ) return;
+			try {
+				Lineage[] lineages = fetchLineages( ids );
+				for( int i=0; i<ids.size(); i++ ){
+					prefetched.put( ids.get(i), lineages[i] );
+				}
+			} catch (Exception e) {
+				/*fall back to single lookups*/
+				logger.warn( "batch lineage lookup of " + ids.size() + " hits failed: " + e.getMessage() );
+			}
+		}
+
+		@Override
+		public Lineage fetchLineage(BlastHit hit) {
+			try {
+				K id = extractId( hit );
+				if( prefetched.containsKey( id ) ){
+					Lineage lineage = prefetched.get( id );
+					if( lineage == null ){
+						/*This lineage ignored*/
+						failedLineageCount++;
+						logger.warn( "no lineage could be retrieved for id " + id + " of hit " + hit.getHitID() );
+					}
+					return lineage;
+				}
+				return fetchSingleLineage( id );
+			} catch (Exception e) {
+				/*This lineage ignored*/
+				failedLineageCount++;
+				logger.warn( e.getMessage() );
+			}
+			return null;
+		}
+	}
+	
 	/**
 	 * analyses the blast results of a query and returns the corresponding 
 	 * longest possible lineage associated with it
@@ -193,43 +301,81 @@ public class BlastResultTaxonomyAnalyser {
 	 * @return lineage
 	 */
 	public Lineage analyseBlastResult( BlastQuery blastQuery ){
-		/*count queries*/
-		queryCount++;
-		
-		//TODO remove after testing
-		TaxonomyDaoInMemory.queryCount++;
-		
-		/*clear previous data*/
-		currentperfectHits.clear();
+		return analyseBlastResults( Collections.singletonList( blastQuery ) ).get( 0 );
+	}
+	
+	/**
+	 * analyses the blast results of a block of queries and returns the corresponding 
+	 * longest possible lineages, in the order of the queries. The hits needed by all 
+	 * queries of the block are resolved with a single batch lookup on the TaxonomyDao, 
+	 * so larger blocks mean fewer database round trips.
+	 * @param blastQueries
+	 * @return lineages; null for queries that could not be analysed
+	 */
+	public List<Lineage> analyseBlastResults( List<BlastQuery> blastQueries ){
+		int size = blastQueries.size();
+		BlastCategory[] categories = new BlastCategory[size];
+		List<List<BlastHit>> perfectHits = new ArrayList<List<BlastHit>>( size );
+		List<BlastHit> neededHits = new ArrayList<BlastHit>();
 		
-		Lineage lineage = null;
-		/*determine category of hit*/
-		try{
-			BlastCategory category = determineBlastCategory( blastQuery );
-			blastCategoryNumbers.put( category, blastCategoryNumbers.get(category)+1 );
-			//System.out.println( "query = " + blastQuery.getQueryId() + "; blastCategory = " + category + " with " + blastQuery.getHspNumber() + " hits" );
-			lineage = determineLineage( blastQuery, category );
-			//if( lineage == null ){
-				//System.err.println("ERROR NULL lineage!");
-				//System.exit(1);
+		/*determine category of each query and collect the hits to resolve*/
+		for( int i=0; i<size; i++ ){
+			BlastQuery blastQuery = blastQueries.get( i );
+			/*count queries*/
+			queryCount++;
+			List<BlastHit> queryPerfectHits = new ArrayList<BlastHit>();
+			perfectHits.add( queryPerfectHits );
+			try{
+				BlastCategory category = determineBlastCategory( blastQuery, queryPerfectHits );
+				blastCategoryNumbers.put( category, blastCategoryNumbers.get(category)+1 );
+				categories[i] = category;
+				//System.out.println( "query = " + blastQuery.getQueryId() + "; blastCategory = " + category + " with " + blastQuery.getHspNumber() + " hits" );
+				if( category == BlastCategory.SINGLE_PERFECT_MATCH 
+						|| category == BlastCategory.SINGLE_PERFECT_AND_IMPERFECT_MATCHES ){
+					neededHits.add( queryPerfectHits.get( 0 ) );
+				}
+				else if( category == BlastCategory.MULTIPLE_PERFECT_MATCHES 
+						|| category == BlastCategory.MULTIPLE_PERFECT_AND_IMPERFECT_MATCHES ){
+					neededHits.addAll( queryPerfectHits );
+				}
+				else if( category == BlastCategory.SINGLE_IMPERFECT_MATCH 
+						|| category == BlastCategory.MULTIPLE_IMPERFECT_MATCHES){
+					neededHits.add( blastQuery.getBlastHits().next() );
+				}
+			}catch( NoSuchFieldException nsfe){
+				nsfe.printStackTrace();
 				
-			//}
-			if(lineage.getLength() == 0 ) logger.error( this.getClass().getSimpleName() + ": " + category + " returned an empty lineage" );
-
-		}catch( NoSuchFieldException nsfe){
-			nsfe.printStackTrace();
-			
-			logger.fatal("ERROR: " + Arrays.toString(nsfe.getStackTrace()));
-			logger.fatal("ERROR: " + nsfe.getMessage());
-			logger.fatal("ABORTING");
-			System.exit(1);
+				logger.fatal("ERROR: " + Arrays.toString(nsfe.getStackTrace()));
+				logger.fatal("ERROR: " + nsfe.getMessage());
+				logger.fatal("ABORTING");
+				System.exit(1);
+			}
+			catch (Exception e){
+				e.printStackTrace();
+				logger.warn("unable to determine blast category for query " + blastQuery.getQueryId());
+			}
 		}
-		catch (Exception e){
-			e.printStackTrace();
-			logger.warn("unable to determine blast category for query " + blastQuery.getQueryId());
-			return null;
+		
+		/*resolve all lineages of the block at once*/
+		lineageFetcher.prefetch( neededHits );
+		
+		List<Lineage> lineages = new ArrayList<Lineage>( size );
+		for( int i=0; i<size; i++ ){
+			BlastQuery blastQuery = blastQueries.get( i );
+			Lineage lineage = null;
+			if( categories[i] != null ){
+				try{
+					lineage = determineLineage( blastQuery, categories[i], perfectHits.get( i ) );
+					if(lineage.getLength() == 0 ) logger.error( this.getClass().getSimpleName() + ": " + categories[i] + " returned an empty lineage" );
+				}catch (Exception e){
+					e.printStackTrace();
+					logger.warn("unable to determine blast category for query " + blastQuery.getQueryId());
+					lineage = null;
+				}
+			}
+			lineages.add( lineage );
 		}
-		return lineage;
+		return lineages;
 	}
 	
 	/**
@@ -260,9 +406,10 @@ public class BlastResultTaxonomyAnalyser {
 	 * determines the longest possible lineage for a blastresult based on the predetermined blastcategory 
 	 * @param blastQuery
 	 * @param category
+	 * @param currentperfectHits the perfect hits of the query
 	 * @return lineage
 	 */
-	private Lineage determineLineage(BlastQuery blastQuery, BlastCategory category){
+	private Lineage determineLineage(BlastQuery blastQuery, BlastCategory category, List<BlastHit> currentperfectHits){
 		logger.debug( "determining lineage of " + category + "; Query= " + blastQuery.getQueryId() );
 		if( category == BlastCategory.SINGLE_PERFECT_MATCH 
 				|| category == BlastCategory.SINGLE_PERFECT_AND_IMPERFECT_MATCHES ){
@@ -274,32 +421,22 @@ public class BlastResultTaxonomyAnalyser {
 		else if( category == BlastCategory.MULTIPLE_PERFECT_MATCHES 
 				|| category == BlastCategory.MULTIPLE_PERFECT_AND_IMPERFECT_MATCHES ){
 			/*get lineages of each perfect hit and get the longest common lineage*/
-			Lineage commonLineage = null;
-			
-			//TODO remove hitNumber; is only a testing counter
-			int hitNumber = 0;
-			for( BlastHit hit : currentperfectHits ){
-				hitNumber++;
+			int[] taxIDs = new int[ currentperfectHits.size() ];
+			for( int i=0; i<taxIDs.length; i++ ){
 				/*get lineage linked to gi number*/
-				try{
-					Lineage lineage = lineageFetcher.fetchLineage(hit);
-
-					if( commonLineage == null ) commonLineage = lineage;
-					else{
-						commonLineage = lineage.getIntersection( commonLineage );
-					}
-					/*useless to continue if in commonLineage only the [root] node remains*/
-					if( commonLineage.getLength() < 2 ){
-						logger.debug( "return shortest possible lineage at hit number: " + hitNumber );
-						return commonLineage;
-					}
-				}catch (CorruptedLineageException e) {
-					e.printStackTrace();
-					System.exit(0);
-				}
+				Lineage lineage = lineageFetcher.fetchLineage( currentperfectHits.get( i ) );
+				if( lineage == null ) return null;
+				taxIDs[i] = lineage.getExternalNode().getTaxID();
+			}
+			/*the lineage of the lowest common ancestor is the longest common lineage*/
+			try{
+				return taxDB.getCommonLineage( taxIDs );
+			}catch (DatabaseException e) {
+				/*This lineage ignored; not a hit without lineage, so counted apart*/
+				failedCommonLineageCount++;
+				logger.warn( e.getMessage() );
+				return null;
 			}
-			/*return the longest common lineage*/
-			return commonLineage;
 		}
 //		else if( category == BlastCategory.MULTIPLE_IMPERFECT_MATCHES ){
 //			/*get lineages of each imperfect hit and get the longest common lineage*/
@@ -441,10 +578,11 @@ public class BlastResultTaxonomyAnalyser {
 	/**
 	 * determines the blast category
 	 * @param blastQuery
+	 * @param currentperfectHits the list to add the perfect hits of the query to
 	 * @return blastCategory
 	 * @throws Exception
 	 */
-	private BlastCategory determineBlastCategory(BlastQuery blastQuery) throws NoSuchFieldException, Exception {
+	private BlastCategory determineBlastCategory(BlastQuery blastQuery, List<BlastHit> currentperfectHits) throws NoSuchFieldException, Exception {
 		//int imperfectHits = 0;
 		int perfectHits = 0;
 		
@@ -505,35 +643,90 @@ public class BlastResultTaxonomyAnalyser {
 	 * @throws ParseException
 	 */
 	public int extractTaxId( BlastHit hit ) throws ParseException, NoSuchFieldException{
-		String hitID = hit.getHitID();
+		return parseTaxId( hit.getHitID() );
+	}
+	
+	/**
+	 * parses the hitID field (HIT_ID) and returns the gi number
+	 * @param hit
+	 * @return gi number
+	 * @throws NoSuchFieldException 
+	 */
+	public int extractGiNumber( BlastHit hit ) throws ParseException, NoSuchFieldException{
+		return parseGiNumber( hit.getHitID() );
+	}
+
+	/**
+	 * parses the hitID field (HIT_ID) and returns the accession.version. Recognized forms are 
+	 * gi|158333249|ref|YP_001514421.1|, ref|YP_001514421.1| and a plain YP_001514421.1
+	 * @param hit
+	 * @return accession.version
+	 * @throws NoSuchFieldException 
+	 */
+	public String extractAccession( BlastHit hit ) throws ParseException, NoSuchFieldException{
+		return parseAccession( hit.getHitID() );
+	}
+	
+	/**
+	 * extracts the taxID from a hitID of the form ref|AB087499|TAXID=200415
+	 * @param hitID
+	 * @return taxID
+	 * @throws ParseException
+	 */
+	public static int parseTaxId( String hitID ) throws ParseException{
 		if( hitID.contains("TAXID=") ){
 			//ref|AB087499|TAXID=200415
 			try{
 				return Integer.parseInt( hitID.substring( hitID.indexOf("TAXID=") + 6 ) );
 			}
 			catch (NumberFormatException e) {
-				throw new ParseException( "failed to extract taxID from hitID (" + hitID + ") from BlastHit " + hit );
+				throw new ParseException( "failed to extract taxID from hitID (" + hitID + ")" );
 			}
 		}
-		else throw new ParseException( "failed to extract taxID from hitID (" + hitID + ") from BlastHit " + hit );
-		
+		else throw new ParseException( "failed to extract taxID from hitID (" + hitID + ")" );
 	}
 	
 	/**
-	 * parses the hitID field (HIT_ID) and returns the gi number
-	 * @param hit
+	 * extracts the gi number from a hitID of the form gi|158333249|ref|YP_001514421.1|
+	 * @param hitID
 	 * @return gi number
-	 * @throws NoSuchFieldException 
+	 * @throws ParseException
 	 */
-	public int extractGiNumber( BlastHit hit ) throws ParseException, NoSuchFieldException{
-		String hitID = hit.getHitID();
-//		logger.warn( "failed to parse hit id: " + hitID + ";" + e.getMessage() );
-
+	public static int parseGiNumber( String hitID ) throws ParseException{
 		if( hitID.startsWith("gi") ){
 			String[] elements = hitID.split("\\|");
 			return Integer.parseInt( elements[1] );
 		}
-		else throw new ParseException( "failed to extract gi from hitID (" + hitID + ") from BlastHit " );
+		else throw new ParseException( "failed to extract gi from hitID (" + hitID + ")" );
+	}
+	
+	/**
+	 * extracts the accession.version from a hitID; see extractAccession()
+	 * @param hitID
+	 * @return accession.version
+	 * @throws ParseException
+	 */
+	public static String parseAccession( String hitID ) throws ParseException{
+		String[] elements = hitID.split("\\|");
+		/*skip the gi number; the accession follows the database tag*/
+		int tag = elements[0].equals("gi") ? 2 : 0;
+		String accession;
+		if( elements.length > tag + 1 ) accession = elements[tag + 1];
+		else if( elements.length == 1 ) accession = elements[0];
+		else accession = "";
+		if( accession.length() == 0 ){
+			throw new ParseException( "failed to extract accession from hitID (" + hitID + ")" );
+		}
+		return accession;
+	}
+	
+	/*unboxes the ids for the int-keyed TaxonomyDao batch methods*/
+	private static int[] toIntArray( List<Integer> ids ){
+		int[] array = new int[ids.size()];
+		for( int i=0; i<array.length; i++ ){
+			array[i] = ids.get(i);
+		}
+		return array;
 	}
 
 	/**
@@ -566,6 +759,30 @@ public class BlastResultTaxonomyAnalyser {
 		return failedLineageCount;
 	}
 	
+	/**
+	 * returns the number of queries with multiple perfect hits for which the 
+	 * common lineage could not be retrieved from the database
+	 * @return failedCommonLineageCount
+	 */
+	public int getFailedCommonLineageCount(){
+		return failedCommonLineageCount;
+	}
+	
+	/**
+	 * adds the query, hit, failure and category counts of the other analyser to those of 
+	 * this one, e.g. to total the analysers of threads that each processed part of the input
+	 * @param other
+	 */
+	public void addCounts( BlastResultTaxonomyAnalyser other ){
+		queryCount += other.queryCount;
+		hitCount += other.hitCount;
+		failedLineageCount += other.failedLineageCount;
+		failedCommonLineageCount += other.failedCommonLineageCount;
+		for( BlastCategory cat : BlastCategory.values() ){
+			blastCategoryNumbers.put( cat, blastCategoryNumbers.get( cat ) + other.blastCategoryNumbers.get( cat ) );
+		}
+	}
+	
 	/**
 	 * sets the log4j logger to write messages to
 	 * @param logger
@@ -3,9 +3,8 @@
  */
 package nl.bioinf.noback.taxonomy.tax_composition;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.util.ArrayList;
 
 import net.cellingo.sequence_tools.blast.BlastHit;
@@ -14,6 +13,7 @@ import net.cellingo.sequence_tools.blast.BlastProgram;
 import net.cellingo.sequence_tools.blast.BlastQuery;
 import net.cellingo.sequence_tools.blast.HspProperty;
 import net.cellingo.utils.conversion.ValueType;
+import nl.bioinf.noback.taxonomy.io.FieldTokenizer;
 
 /**
  * @author M.A. Noback (m.a.noback@pl.hanze.nl) 
@@ -25,8 +25,8 @@ public class BlastResultsReader {
 	private boolean headerProcessed = false;
 	/*properties as read from the header line*/
 	private ArrayList<HspProperty> properties;
-	/*the reader that accesses the file*/
-	private BufferedReader br = null;
+	/*the tokenizer that accesses the file*/
+	private FieldTokenizer ft = null;
 	/*the listener object for streaming parsing; to be called with each new query results*/
 	private BlastResultsReaderListener listener;
 
@@ -47,25 +47,29 @@ public class BlastResultsReader {
 		properties = new ArrayList<HspProperty>();
 		
 		try {
-			br =  new BufferedReader(new FileReader(inputFile));
-			String line = br.readLine();
+			ft = new FieldTokenizer( new FileInputStream(inputFile), "\t" );
+			ft.nextLine();
+			String line = ft.getLine();
 			
 			if( line.startsWith("#SOURCE=") ){
 				String bpStr = line.substring(8);
 				BlastProgram bp = BlastProgram.valueOf(bpStr);
 				BlastHsp.setBlastProgram(bp);
 				/*read next line which will be regular header*/
-				line = br.readLine();
+				ft.nextLine();
+				line = ft.getLine();
 			}
 			
 			if( ! line.startsWith("QUERY_ID")){
 				throw new Exception( "input file does not have a header line" );
 			}
 			
-			String[] elements = line.split("\t");
+			/*trailing empty fields are ignored*/
+			int fieldCount = ft.getFieldCount();
+			while( fieldCount > 1 && ft.getFieldLength(fieldCount - 1) == 0 ) fieldCount--;
 			
-			for( int i=1; i < elements.length; i++ ){
-				String element = elements[i];
+			for( int i=1; i < fieldCount; i++ ){
+				String element = ft.getString(i);
 				HspProperty property = HspProperty.valueOf( element );
 				//System.out.println( "HspProperty=" + property );
 				properties.add( property );
@@ -102,20 +106,26 @@ public class BlastResultsReader {
 		if( ! headerProcessed )	properties = readHeader();
 
 		//read the rest of the file
-		if( br == null ) throw new Exception( "could not read from input file" );
+		if( ft == null ) throw new Exception( "could not read from input file" );
+		
+		/*value types resolved once instead of per field*/
+		int propertyCount = properties.size();
+		HspProperty[] propertyArray = properties.toArray( new HspProperty[propertyCount] );
+		ValueType[] valueTypes = new ValueType[propertyCount];
+		for( int i=0; i<propertyCount; i++){
+			valueTypes[i] = HspProperty.getValueType( propertyArray[i] );
+		}
 		
 		BlastQuery blastQuery = null;
 		String previousQueryId = "";
 		int queryNumber = 0;
 		int hitNumber = 0;
-		String line;
 		
-		while( (line = br.readLine()) != null ){
-			//System.out.println( line );
-			String[] elements = line.split("\t");
-			String queryID = elements[0];
+		while( ft.nextLine() ){
+			//System.out.println( ft.getLine() );
 			
-			if( ! queryID.equals( previousQueryId ) ){ //new query being parsed
+			if( ! ft.fieldEquals( 0, previousQueryId ) ){ //new query being parsed
+				String queryID = ft.getString( 0 );
 				previousQueryId = queryID; //set the "previous" name
 				
 				if( queryNumber > 0 ) listener.queryDataProcessed( blastQuery ); //pass the old query to the listener object
@@ -134,31 +144,29 @@ public class BlastResultsReader {
 //			blastQuery.addBlastHit( hit );
 			
 			/*process the other elements of the line*/
-			for( int i=0; i<properties.size(); i++){
-				HspProperty property = properties.get(i);
-				String propValue = elements[i+1]; //first one was QUERY_ID
-				
-				//System.out.println( property + ": " + propValue );
+			for( int i=0; i<propertyCount; i++){
+				HspProperty property = propertyArray[i];
+				int field = i+1; //first one was QUERY_ID
 				
 				/*process query length*/
 				if( property == HspProperty.QUERY_LENGTH ){
-					int queryLength = Integer.parseInt( propValue );
+					int queryLength = ft.getInt( field );
 					if( hitNumber == 1 ) blastQuery.setQueryLength( queryLength );
 					hsp.setIntegerPropertyValue(HspProperty.QUERY_LENGTH, queryLength);
 				}
 				/*process hit level properties*/
-				else if( property == HspProperty.HIT_ID ) hit.setHitID( propValue );
-				else if( property == HspProperty.HIT_ACCESSION ) hit.setHitAccession( propValue );
-				else if( property == HspProperty.HIT_DEFINITION ) hit.setHitDefinition( propValue );
-				else if( property == HspProperty.HIT_LENGTH ) hit.setHitLength( Integer.parseInt(propValue) );
+				else if( property == HspProperty.HIT_ID ) hit.setHitID( ft.getString( field ) );
+				else if( property == HspProperty.HIT_ACCESSION ) hit.setHitAccession( ft.getString( field ) );
+				else if( property == HspProperty.HIT_DEFINITION ) hit.setHitDefinition( ft.getString( field ) );
+				else if( property == HspProperty.HIT_LENGTH ) hit.setHitLength( ft.getInt( field ) );
 				else{
 					/*process HSP level properties; assume one HSP per HIT*/
-					if( HspProperty.getValueType(property) == ValueType.DOUBLE ) 
-						hsp.setDoublePropertyValue(property, Double.parseDouble( propValue ) );
-					else if( HspProperty.getValueType(property) == ValueType.INTEGER ) 
-						hsp.setIntegerPropertyValue(property, Integer.parseInt( propValue ) );
-					else if( HspProperty.getValueType(property) == ValueType.STRING ) 
-						hsp.setStringPropertyValue(property, propValue );
+					if( valueTypes[i] == ValueType.DOUBLE ) 
+						hsp.setDoublePropertyValue(property, ft.getDouble( field ) );
+					else if( valueTypes[i] == ValueType.INTEGER ) 
+						hsp.setIntegerPropertyValue(property, ft.getInt( field ) );
+					else if( valueTypes[i] == ValueType.STRING ) 
+						hsp.setStringPropertyValue(property, ft.getString( field ) );
 					//else property ignored; complex types cannot be processed here
 				}
 			}
@@ -174,7 +182,7 @@ public class BlastResultsReader {
 		/*pass last query*/
 		if( blastQuery != null ) listener.queryDataProcessed( blastQuery );
 		
-		if(br != null)	br.close();
+		if(ft != null)	ft.close();
 		
 	}
 	
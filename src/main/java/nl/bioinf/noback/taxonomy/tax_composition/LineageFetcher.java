@@ -3,14 +3,23 @@
  */
 package nl.bioinf.noback.taxonomy.tax_composition;
 
+import java.util.List;
+
 import net.cellingo.sequence_tools.blast.BlastHit;
 import nl.bioinf.noback.taxonomy.model.Lineage;
 
 /**
- * simple interface specifying a sinngle method that should be implemented for fetching a 
+ * simple interface specifying the methods that should be implemented for fetching a 
  * lineage based on a BlastHit
  * @author michiel
  */
 public interface LineageFetcher {
+	/**
+	 * announces the hits that will be fetched next, so that implementations can 
+	 * resolve them in a single batch. Replaces the previously prefetched hits.
+	 * @param hits
+	 */
+	public void prefetch( List<BlastHit> hits );
+
 	public Lineage fetchLineage( BlastHit hit );
 }
@@ -13,6 +13,8 @@ public class TaxonomyCompositionAnalyserSettings {
 	
 	private File inputFile;
 	private boolean inputHasTaxIdField;
+	private boolean inputHasAccessions;
+	private boolean prescanInput;
 	private File reportFile; 
 	private File treeFile;
 	
@@ -24,6 +26,13 @@ public class TaxonomyCompositionAnalyserSettings {
 	private String dbGiTable;
 	private File nodesFile;
 	private File giNumbersFile;
+	private File accessionFile;
+	private File mergedFile;
+	private File delnodesFile;
+	private int queryBlockSize = 100;
+	private int dbConnections = 1;
+	private int analysisThreads = 1;
+	private File lineageCacheFile;
 
 	/**
 	 * sets the input file to read from
@@ -55,6 +64,34 @@ public class TaxonomyCompositionAnalyserSettings {
 		return inputHasTaxIdField;
 	}
 
+	/**
+	 * @param inputHasAccessions the hits are identified by accession.version
+	 */
+	public void setInputHasAccessions(boolean inputHasAccessions) {
+		this.inputHasAccessions = inputHasAccessions;
+	}
+
+	/**
+	 * @return the inputHasAccessions
+	 */
+	public boolean isInputHasAccessions() {
+		return inputHasAccessions;
+	}
+
+	/**
+	 * @param prescanInput only the part of the TaxDB that the input refers to is loaded
+	 */
+	public void setPrescanInput(boolean prescanInput) {
+		this.prescanInput = prescanInput;
+	}
+
+	/**
+	 * @return the prescanInput
+	 */
+	public boolean isPrescanInput() {
+		return prescanInput;
+	}
+
 	/**
 	 * sets the report file
 	 * @param reportFile
@@ -187,6 +224,14 @@ public class TaxonomyCompositionAnalyserSettings {
 		this.giNumbersFile = giNumbersFile;
 	}
 
+	/**
+	 * for file-based TaxDB, set the accession2taxid file
+	 * @param accessionFile
+	 */
+	public void setAccessionFile(File accessionFile) {
+		this.accessionFile = accessionFile;
+	}
+
 	/**
 	 * @return the nodesFile
 	 */
@@ -200,6 +245,97 @@ public class TaxonomyCompositionAnalyserSettings {
 	public File getGiNumbersFile() {
 		return giNumbersFile;
 	}
+
+	/**
+	 * @return the accessionFile
+	 */
+	public File getAccessionFile() {
+		return accessionFile;
+	}
+
+	/**
+	 * @param mergedFile the NCBI merged.dmp file
+	 */
+	public void setMergedFile(File mergedFile) {
+		this.mergedFile = mergedFile;
+	}
+
+	/**
+	 * @return the mergedFile
+	 */
+	public File getMergedFile() {
+		return mergedFile;
+	}
+
+	/**
+	 * @param delnodesFile the NCBI delnodes.dmp file
+	 */
+	public void setDelnodesFile(File delnodesFile) {
+		this.delnodesFile = delnodesFile;
+	}
+
+	/**
+	 * @return the delnodesFile
+	 */
+	public File getDelnodesFile() {
+		return delnodesFile;
+	}
+
+	/**
+	 * @return the number of queries whose lineages are resolved in a single batch
+	 */
+	public int getQueryBlockSize() {
+		return queryBlockSize;
+	}
+
+	/**
+	 * @param queryBlockSize the number of queries whose lineages are resolved in a single batch
+	 */
+	public void setQueryBlockSize(int queryBlockSize) {
+		this.queryBlockSize = queryBlockSize;
+	}
+
+	/**
+	 * @return the number of threads analysing blocks of queries
+	 */
+	public int getAnalysisThreads() {
+		return analysisThreads;
+	}
+
+	/**
+	 * @param analysisThreads the number of threads analysing blocks of queries
+	 */
+	public void setAnalysisThreads(int analysisThreads) {
+		this.analysisThreads = analysisThreads;
+	}
+
+	/**
+	 * @return the number of connections to a mysql or derby TaxDB
+	 */
+	public int getDbConnections() {
+		return dbConnections;
+	}
+
+	/**
+	 * @param dbConnections the number of connections to a mysql or derby TaxDB
+	 */
+	public void setDbConnections(int dbConnections) {
+		this.dbConnections = dbConnections;
+	}
+
+	/**
+	 * @return the file that keeps the lineages of a mysql or derby TaxDB between runs; null when not used
+	 */
+	public File getLineageCacheFile() {
+		return lineageCacheFile;
+	}
+
+	/**
+	 * @param lineageCacheFile the file that keeps the lineages of a mysql or derby TaxDB between runs
+	 */
+	public void setLineageCacheFile(File lineageCacheFile) {
+		this.lineageCacheFile = lineageCacheFile;
+	}
 	
 
 	
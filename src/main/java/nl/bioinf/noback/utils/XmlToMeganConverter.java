@@ -9,8 +9,11 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoHttp;
 import nl.bioinf.noback.taxonomy.dao.TaxonomyDaoInMemory;
 import nl.bioinf.noback.taxonomy.io.TaxTreeXmlReader;
 import nl.bioinf.noback.taxonomy.model.EmptyTreeException;
@@ -29,6 +32,7 @@ public class XmlToMeganConverter {
     public static final String XML_TREE_FILE = "input_xml_file";
     public static final String MEGAN_FORMAT_FILE = "output_megan_file";
     public static final String TAXNODES_FILE = "taxnodes_file";
+    public static final String TAXONOMY_SERVER = "taxonomy_server";
     public static final String TAXLEVELS = "taxonomy_levels";
     public static final String OCCURRENCE_CUTOFF_TYPE = "occurrence_cutoff_type";
     public static final String OCCURRENCE_CUTOFF_VALUE = "occurrence_cutoff_value";
@@ -41,7 +45,8 @@ public class XmlToMeganConverter {
     private File inputFile;
 	private File meganFile;
 	private File taxnodesFile;
-	private TaxonomyDaoInMemory taxDB;
+	private String taxonomyServer;
+	private TaxonomyDao taxDB;
 	
 	/*occurrence cutoff defaults to 1*/
 	private TaxNodeLevelFilter nodeFilter;
@@ -90,7 +95,8 @@ public class XmlToMeganConverter {
 		processSettings();
 		
 		/*load taxDB*/
-		this.taxDB = new TaxonomyDaoInMemory( taxnodesFile, null);
+		if( taxonomyServer != null ) this.taxDB = TaxonomyDaoHttp.connect( taxonomyServer );
+		else this.taxDB = new TaxonomyDaoInMemory( taxnodesFile, null);
 		
 		/*parse xml tree*/
 		TaxTreeXmlReader ttxr = new TaxTreeXmlReader(taxDB);
@@ -110,11 +116,13 @@ public class XmlToMeganConverter {
 	private void writeMeganFile() throws FileNotFoundException, EmptyTreeException {
 		PrintWriter pw = new PrintWriter(this.meganFile);
 		TaxNode root = taxonomyExperiment.getTree().getRoot();
+		/*the totals of all levels in one pass, rolled up through the rank ancestor columns*/
+		Map<TaxonomyRank, Integer> levelCounts = taxonomyExperiment.getTaxonomyLevelOccurrenceCounts();
 		for( TaxonomyRank tr : this.nodeFilter.getTaxonomyLevels().keySet() ){
 			
-			int levelCount = taxonomyExperiment.getTree().getTaxonomyLevelOccurrenceCount(tr);
+			Integer levelCount = levelCounts.get(tr);
 			//System.out.println( "RANK " + tr.toString() + " levelcount=" + levelCount );
-			nodeFilter.getTaxonomyLevels().put(tr, levelCount);
+			nodeFilter.getTaxonomyLevels().put(tr, levelCount == null ? 0 : levelCount);
 		}
 		//te.getTree().get
 		toMeganFile(pw, root);
@@ -146,11 +154,14 @@ public class XmlToMeganConverter {
 	 * @throws IOException 
 	 */
 	private void processSettings() throws IOException{
-		/*create taxonomy database*/
-		String taxnodesFileName = configuration.getString( TAXNODES_FILE );
-		if( taxnodesFileName == null || taxnodesFileName.length() == 0 ) throw new IOException("please provide a taxnodes file in tag <taxnodes_file>");
-		this.taxnodesFile = new File( taxnodesFileName );
-		if( ! taxnodesFile.exists() || ! taxnodesFile.canRead() ) throw new IOException("can not read from taxnodes file: " + taxnodesFileName);
+		/*create taxonomy database, or use a running TaxonomyServer (host:port)*/
+		this.taxonomyServer = configuration.getString( TAXONOMY_SERVER );
+		if( taxonomyServer == null ){
+			String taxnodesFileName = configuration.getString( TAXNODES_FILE );
+			if( taxnodesFileName == null || taxnodesFileName.length() == 0 ) throw new IOException("please provide a taxnodes file in tag <taxnodes_file> or a server in tag <taxonomy_server>");
+			this.taxnodesFile = new File( taxnodesFileName );
+			if( ! taxnodesFile.exists() || ! taxnodesFile.canRead() ) throw new IOException("can not read from taxnodes file: " + taxnodesFileName);
+		}
 		
 		/*input data source processing*/
 		inputFile = new File( configuration.getString( XML_TREE_FILE ) );
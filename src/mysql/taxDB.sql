@@ -1,5 +1,7 @@
 ##database to store a mirror of NCBI taxonomy database
 
+DROP TABLE IF EXISTS accession2taxid;
+DROP TABLE IF EXISTS gi_numbers;
 DROP TABLE IF EXISTS deleted_nodes;
 DROP TABLE IF EXISTS merged_nodes;
 DROP TABLE IF EXISTS names;
@@ -82,6 +84,20 @@ CREATE TABLE merged_nodes (
 #--old_tax_id-- id of node which has been merged
 #--new_tax_id-- id of node which is the result of the merge
 
+CREATE TABLE gi_numbers (
+  gi_number int NOT NULL,
+  tax_id int NOT NULL,
+  PRIMARY KEY  (gi_number)
+);
+#--gi_number-- from gi_taxid_prot.dmp; loaded by NcbiTaxDbMysqlFiller when gi_taxid_file is configured
+
+CREATE TABLE accession2taxid (
+  accession_version varchar(64) NOT NULL,
+  tax_id int NOT NULL,
+  PRIMARY KEY  (accession_version)
+);
+#--accession_version-- from the NCBI accession2taxid files (prot, nucl_gb, ...); loaded by NcbiTaxDbMysqlFiller when accession_taxid_file is configured
+
 
 
 DROP PROCEDURE IF EXISTS lineage;
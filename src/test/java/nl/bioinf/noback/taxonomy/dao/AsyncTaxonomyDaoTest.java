@@ -0,0 +1,254 @@
+package nl.bioinf.noback.taxonomy.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import nl.bioinf.noback.taxonomy.model.Lineage;
+import nl.bioinf.noback.taxonomy.model.TaxNode;
+
+/**
+ * Checks that AsyncTaxonomyDao coalesces the lookups of keys in flight, and that
+ * failed and rejected lookups complete their futures exceptionally without leaving
+ * keys in flight. The lookups run on an executor that holds them until the test
+ * releases them, so the keys are in flight for as long as a test needs.
+ */
+public class AsyncTaxonomyDaoTest extends TestCase {
+
+    private CountingTaxonomyDao taxDB;
+    private HeldExecutor executor;
+    private AsyncTaxonomyDao async;
+
+    /**
+     * @param testName
+     */
+    public AsyncTaxonomyDaoTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(AsyncTaxonomyDaoTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        taxDB = new CountingTaxonomyDao();
+        executor = new HeldExecutor();
+        async = new AsyncTaxonomyDao(taxDB, executor);
+    }
+
+    public void testConcurrentGetsShareOneLookup() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<CompletableFuture<Lineage>> futures = new ArrayList<CompletableFuture<Lineage>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    CompletableFuture<Lineage> future = async.getLineage(562);
+                    synchronized (futures) {
+                        futures.add(future);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(2, futures.size());
+        assertSame(futures.get(0), futures.get(1));
+        assertEquals(1, executor.size());
+        assertEquals(1, async.getInFlightCount());
+
+        executor.runAll();
+        assertEquals(1, taxDB.lookups.size());
+        assertEquals("[562]", taxDB.lookups.get(0));
+        assertEquals(562, futures.get(0).get().getExternalNode().getTaxID());
+        assertEquals(0, async.getInFlightCount());
+    }
+
+    public void testGetAllJoinsKeyInFlight() throws Exception {
+        CompletableFuture<Lineage> single = async.getLineage(562);
+        CompletableFuture<Lineage[]> batch = async.getLineages(new int[]{9606, 562, 1423, 9606});
+        assertFalse(batch.isDone());
+        assertEquals(2, executor.size());
+        assertEquals(3, async.getInFlightCount());
+
+        executor.runAll();
+        /*562 is only looked up by the single request; the batch asks for the other keys once*/
+        assertEquals(Arrays.asList("[562]", "[9606, 1423]"), taxDB.lookups);
+        assertEquals(562, single.get().getExternalNode().getTaxID());
+        Lineage[] lineages = batch.get();
+        assertEquals(4, lineages.length);
+        assertEquals(9606, lineages[0].getExternalNode().getTaxID());
+        assertSame(single.get(), lineages[1]);
+        assertEquals(1423, lineages[2].getExternalNode().getTaxID());
+        assertSame(lineages[0], lineages[3]);
+        assertEquals(0, async.getInFlightCount());
+    }
+
+    public void testFailedLookupCompletesExceptionally() throws Exception {
+        taxDB.failing = true;
+        CompletableFuture<Lineage[]> batch = async.getLineages(new int[]{562, 9606});
+        CompletableFuture<Lineage> single = async.getLineage(562);
+        executor.runAll();
+
+        assertTrue(batch.isCompletedExceptionally());
+        assertTrue(single.isCompletedExceptionally());
+        try {
+            single.get();
+            fail("the lookup failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DatabaseException);
+        }
+        assertEquals(0, async.getInFlightCount());
+
+        /*the failed keys are not in flight anymore, so they are looked up again*/
+        taxDB.failing = false;
+        CompletableFuture<Lineage> retry = async.getLineage(562);
+        assertNotSame(single, retry);
+        executor.runAll();
+        assertEquals(562, retry.get().getExternalNode().getTaxID());
+        assertEquals(2, taxDB.lookups.size());
+    }
+
+    public void testSubmitAfterShutdownFails() throws Exception {
+        AsyncTaxonomyDao owning = new AsyncTaxonomyDao(taxDB, 1);
+        owning.shutdown();
+        CompletableFuture<Lineage> single = owning.getLineage(562);
+        CompletableFuture<Lineage[]> batch = owning.getGiLineages(new int[]{1, 2});
+
+        assertTrue(single.isCompletedExceptionally());
+        assertTrue(batch.isCompletedExceptionally());
+        try {
+            single.get();
+            fail("the lookup was rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, owning.getInFlightCount());
+        assertTrue(taxDB.lookups.isEmpty());
+    }
+
+    /*a lineage of the root and one node with the given tax_id*/
+    private static Lineage lineage(int taxID) throws Exception {
+        TaxNode root = new TaxNode(1, 1);
+        TaxNode node = new TaxNode(taxID, 1);
+        node.setParentNode(root);
+        return new Lineage(new TaxNode[]{node, root});
+    }
+
+    /**
+     * answers the batch lookups with a lineage per key and records the keys of
+     * every lookup; fails every lookup when failing is set
+     */
+    private static final class CountingTaxonomyDao implements TaxonomyDao {
+        private final List<String> lookups = new ArrayList<String>();
+        private volatile boolean failing = false;
+
+        @Override
+        public Lineage[] getLineages(int[] taxIDs) throws DatabaseException {
+            synchronized (lookups) {
+                lookups.add(Arrays.toString(taxIDs));
+            }
+            if (failing) {
+                throw new DatabaseException("database not available");
+            }
+            Lineage[] lineages = new Lineage[taxIDs.length];
+            for (int i = 0; i < taxIDs.length; i++) {
+                lineages[i] = getLineage(taxIDs[i]);
+            }
+            return lineages;
+        }
+
+        @Override
+        public Lineage getLineage(int taxID) throws DatabaseException {
+            try {
+                return lineage(taxID);
+            } catch (Exception e) {
+                throw new DatabaseException(e.getMessage());
+            }
+        }
+
+        @Override
+        public Lineage[] getGiLineages(int[] giNumbers) throws DatabaseException {
+            return getLineages(giNumbers);
+        }
+
+        @Override
+        public Lineage getGiLineage(int giNumber) throws DatabaseException {
+            return getLineage(giNumber);
+        }
+
+        @Override
+        public Lineage getAccessionLineage(String accession) throws DatabaseException {
+            throw new DatabaseException("no accessions");
+        }
+
+        @Override
+        public Lineage[] getAccessionLineages(String[] accessions) throws DatabaseException {
+            throw new DatabaseException("no accessions");
+        }
+
+        @Override
+        public Lineage getCommonLineage(int[] taxIDs) throws DatabaseException {
+            throw new DatabaseException("no common lineages");
+        }
+
+        @Override
+        public Lineage getLineage(String organismName) throws DatabaseException {
+            throw new DatabaseException("no names");
+        }
+
+        @Override
+        public void disconnect() throws DatabaseException {
+        }
+    }
+
+    /**
+     * holds the submitted lookups until runAll() is called
+     */
+    private static final class HeldExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        void runAll() {
+            List<Runnable> held;
+            synchronized (this) {
+                held = new ArrayList<Runnable>(tasks);
+                tasks.clear();
+            }
+            for (Runnable task : held) {
+                task.run();
+            }
+        }
+    }
+}
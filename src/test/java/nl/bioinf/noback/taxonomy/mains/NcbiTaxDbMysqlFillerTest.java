@@ -0,0 +1,398 @@
+package nl.bioinf.noback.taxonomy.mains;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import nl.bioinf.noback.taxonomy.dao.MysqlBulkLoader;
+
+/**
+ * Checks that the bulk load of NcbiTaxDbMysqlFiller produces the same rows as the
+ * row-by-row INSERT statements it replaced. The LOAD DATA statements of
+ * MysqlBulkLoader go to a stand-in Connection that reads the chunk files back with
+ * the default LOAD DATA rules; the INSERT parameters go to a stand-in
+ * PreparedStatement that records them.
+ */
+public class NcbiTaxDbMysqlFillerTest extends TestCase {
+
+    private static final String[] DIVISIONS = {
+        "0\t|\tBCT\t|\tBacteria\t|\t\t|",
+        "4\t|\tPLN\t|\tPlants and Fungi\t|\tcomment with a \\ backslash\t|",
+        "11\t|\tENV\t|\tEnvironmental samples\t|\tAnonymous sequences cloned directly from the environment\t|"
+    };
+    private static final String[] DELETED_NODES = {
+        "2954411\t|",
+        "12\t|"
+    };
+    private static final String[] NODES = {
+        "1\t|\t1\t|\tno rank\t|\t\t|\t8\t|\t0\t|\t1\t|\t0\t|\t0\t|\t0\t|\t0\t|\t0\t|\t\t|",
+        "2\t|\t131567\t|\tsuperkingdom\t|\t\t|\t0\t|\t0\t|\t11\t|\t0\t|\t0\t|\t0\t|\t0\t|\t0\t|\t\t|",
+        "9606\t|\t9605\t|\tspecies\t|\tHS\t|\t5\t|\t1\t|\t1\t|\t1\t|\t2\t|\t1\t|\t1\t|\t0\t|\t\t|"
+    };
+    private static final String[] NAMES = {
+        "1\t|\tall\t|\t\t|\tsynonym\t|",
+        "2\t|\tBacteria\t|\tBacteria <bacteria>\t|\tscientific name\t|",
+        "562\t|\t\"Bacillus coli\" Migula 1895\t|\t\t|\tauthority\t|",
+        "9606\t|\tHomo sapiens Linnaeus, 1758\t|\t\t|\tauthority\t|",
+        "10239\t|\tVirus d'H\u00e9relle \\ test\t|\t\t|\tsynonym\t|",
+        "12908\t|\tunclassified sequences\t|\tab\t|\tscientific name\t|"
+    };
+    private static final String[] MERGED_NODES = {
+        "12\t|\t74109\t|",
+        "30\t|\t29\t|"
+    };
+    private static final String[] GI_NUMBERS = {
+        "6\t9913",
+        "7\t9913 ",
+        "2147483647\t1"
+    };
+
+    /**
+     * @param testName
+     */
+    public NcbiTaxDbMysqlFillerTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(NcbiTaxDbMysqlFillerTest.class);
+    }
+
+    public void testDivisions() throws Exception {
+        List<List<String>> inserted = insert(DIVISIONS, new RowInserter() {
+            @Override
+            public void insert(String line, PreparedStatement divisionsStmnt) throws Exception {
+                String[] elements = line.split("\\t+\\|\\t+");
+                int id = Integer.parseInt(elements[0]);
+                String code = elements[1];
+                String name = elements[2];
+                String comments = elements[3];
+                comments = comments.length() < 2 ? null : comments;
+                divisionsStmnt.setInt(1, id);
+                divisionsStmnt.setString(2, code);
+                divisionsStmnt.setString(3, name);
+                divisionsStmnt.setString(4, comments);
+                divisionsStmnt.executeUpdate();
+            }
+        });
+        assertSameRows(inserted, bulkLoad(DIVISIONS, NcbiTaxDbMysqlFiller.DIVISION_ROWS));
+    }
+
+    public void testDeletedNodes() throws Exception {
+        List<List<String>> inserted = insert(DELETED_NODES, new RowInserter() {
+            @Override
+            public void insert(String line, PreparedStatement deletedNodesStmnt) throws Exception {
+                String[] elements = line.split("\\t?\\|\\t?");
+                int id = Integer.parseInt(elements[0]);
+                deletedNodesStmnt.setInt(1, id);
+                deletedNodesStmnt.executeUpdate();
+            }
+        });
+        assertSameRows(inserted, bulkLoad(DELETED_NODES, NcbiTaxDbMysqlFiller.DELETED_NODE_ROWS));
+    }
+
+    public void testNodes() throws Exception {
+        List<List<String>> inserted = insert(NODES, new RowInserter() {
+            @Override
+            public void insert(String line, PreparedStatement nodesStmnt) throws Exception {
+                String[] elements = line.split("\\t\\|\\t");
+                int id = Integer.parseInt(elements[0]);
+                int parentId = Integer.parseInt(elements[1]);
+                String rank = elements[2];
+                String divisionCode = elements[3];
+                int inheritedDiv = Integer.parseInt(elements[4]);
+                int genCodeId = Integer.parseInt(elements[5]);
+                nodesStmnt.setInt(1, id);
+                nodesStmnt.setInt(2, parentId);
+                nodesStmnt.setString(3, rank);
+                nodesStmnt.setString(4, divisionCode);
+                nodesStmnt.setInt(5, inheritedDiv);
+                nodesStmnt.setInt(6, genCodeId);
+                nodesStmnt.executeUpdate();
+            }
+        });
+        assertSameRows(inserted, bulkLoad(NODES, NcbiTaxDbMysqlFiller.NODE_ROWS));
+    }
+
+    public void testNames() throws Exception {
+        List<List<String>> inserted = insert(NAMES, new RowInserter() {
+            @Override
+            public void insert(String line, PreparedStatement namesStmnt) throws Exception {
+                String[] elements = line.split("\\t\\|\\t");
+                int id = Integer.parseInt(elements[0]);
+                String name = elements[1];
+                String uniqueName = elements[2];
+                if (uniqueName.length() > 2) {
+                    namesStmnt.setString(3, uniqueName);
+                } else {
+                    namesStmnt.setNull(3, Types.VARCHAR);
+                }
+                String nameClass = elements[3];
+                nameClass = nameClass.substring(0, nameClass.length() - 2);
+                namesStmnt.setInt(1, id);
+                namesStmnt.setString(2, name);
+                namesStmnt.setString(4, nameClass);
+                namesStmnt.executeUpdate();
+            }
+        });
+        assertSameRows(inserted, bulkLoad(NAMES, NcbiTaxDbMysqlFiller.NAME_ROWS));
+    }
+
+    public void testMergedNodes() throws Exception {
+        List<List<String>> inserted = insert(MERGED_NODES, new RowInserter() {
+            @Override
+            public void insert(String line, PreparedStatement mergedNodesStmnt) throws Exception {
+                String[] elements = line.split("\\t\\|\\t");
+                int oldId = Integer.parseInt(elements[0]);
+                int newId = Integer.parseInt(elements[1].substring(0, elements[1].length() - 2));
+                mergedNodesStmnt.setInt(1, oldId);
+                mergedNodesStmnt.setInt(2, newId);
+                mergedNodesStmnt.executeUpdate();
+            }
+        });
+        assertSameRows(inserted, bulkLoad(MERGED_NODES, NcbiTaxDbMysqlFiller.MERGED_NODE_ROWS));
+    }
+
+    public void testGiNumbers() throws Exception {
+        List<List<String>> expected = new ArrayList<List<String>>();
+        expected.add(Arrays.asList("6", "9913"));
+        expected.add(Arrays.asList("7", "9913"));
+        expected.add(Arrays.asList("2147483647", "1"));
+        assertSameRows(expected, bulkLoad(GI_NUMBERS, NcbiTaxDbMysqlFiller.GI_NUMBER_ROWS));
+    }
+
+    public void testAccessionHeadersAreSkipped() throws Exception {
+        String[] lines = {
+            "accession\taccession.version\ttaxid\tgi",
+            "A0A009IHW8\tA0A009IHW8.1\t1310613\t1835922267",
+            "accession.version\ttaxid",
+            "NP_000005.3\t9606"
+        };
+        List<List<String>> expected = new ArrayList<List<String>>();
+        expected.add(Arrays.asList("A0A009IHW8.1", "1310613"));
+        expected.add(Arrays.asList("NP_000005.3", "9606"));
+        assertSameRows(expected, bulkLoad(lines, NcbiTaxDbMysqlFiller.ACCESSION_ROWS));
+    }
+
+    /**
+     * more lines than fit in the chunks in flight, so that the rows reach the table in
+     * several LOAD DATA statements, formatted on several threads
+     */
+    public void testManyChunks() throws Exception {
+        String[] lines = new String[1001];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = NAMES[i % NAMES.length].replaceFirst("^\\d+", Integer.toString(i));
+        }
+        List<List<String>> inserted = insert(lines, new RowInserter() {
+            @Override
+            public void insert(String line, PreparedStatement namesStmnt) throws Exception {
+                String[] elements = line.split("\\t\\|\\t");
+                namesStmnt.setInt(1, Integer.parseInt(elements[0]));
+                namesStmnt.setString(2, elements[1]);
+                if (elements[2].length() > 2) {
+                    namesStmnt.setString(3, elements[2]);
+                } else {
+                    namesStmnt.setNull(3, Types.VARCHAR);
+                }
+                namesStmnt.setString(4, elements[3].substring(0, elements[3].length() - 2));
+                namesStmnt.executeUpdate();
+            }
+        });
+        assertSameRows(inserted, bulkLoad(lines, NcbiTaxDbMysqlFiller.NAME_ROWS));
+    }
+
+    /*the former row-by-row import of one line*/
+    private interface RowInserter {
+        void insert(String line, PreparedStatement statement) throws Exception;
+    }
+
+    /*the rows the INSERT statements would have written: the parameters of each executeUpdate()*/
+    private static List<List<String>> insert(String[] lines, RowInserter inserter) throws Exception {
+        final List<List<String>> rows = new ArrayList<List<String>>();
+        final Map<Integer, String> parameters = new TreeMap<Integer, String>();
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(NcbiTaxDbMysqlFillerTest.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("setNull")) {
+                            parameters.put((Integer) args[0], null);
+                        } else if (name.startsWith("set")) {
+                            parameters.put((Integer) args[0], args[1] == null ? null : args[1].toString());
+                        } else if (name.equals("executeUpdate")) {
+                            rows.add(new ArrayList<String>(parameters.values()));
+                            parameters.clear();
+                            return 1;
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        for (String line : lines) {
+            inserter.insert(line, statement);
+        }
+        return rows;
+    }
+
+    /*the rows the bulk load writes: the chunk files read back as LOAD DATA reads them*/
+    private static List<List<String>> bulkLoad(String[] lines, MysqlBulkLoader.RowFormatter<String> formatter) throws Exception {
+        final List<List<String>> rows = new ArrayList<List<String>>();
+        final Statement statement = (Statement) Proxy.newProxyInstance(NcbiTaxDbMysqlFillerTest.class.getClassLoader(),
+                new Class<?>[]{Statement.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                        if (method.getName().equals("executeUpdate") && ((String) args[0]).startsWith("LOAD DATA")) {
+                            List<List<String>> loaded = readLoadDataFile(new File(fileName((String) args[0])));
+                            rows.addAll(loaded);
+                            return loaded.size();
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        Connection connection = (Connection) Proxy.newProxyInstance(NcbiTaxDbMysqlFillerTest.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("createStatement")) {
+                            return statement;
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        MysqlBulkLoader<String> loader = new MysqlBulkLoader<String>(connection, "test_table", "(columns)", formatter, 3, 7);
+        try {
+            for (String line : lines) {
+                loader.add(line);
+            }
+            long loaded = loader.finish();
+            assertEquals(rows.size(), loaded);
+        } finally {
+            loader.abort();
+        }
+        return rows;
+    }
+
+    /*the file name of a LOAD DATA LOCAL INFILE statement, unescaped*/
+    private static String fileName(String sql) {
+        int start = sql.indexOf('\'') + 1;
+        StringBuilder name = new StringBuilder();
+        for (int i = start; sql.charAt(i) != '\''; i++) {
+            char ch = sql.charAt(i);
+            name.append(ch == '\\' ? sql.charAt(++i) : ch);
+        }
+        return name.toString();
+    }
+
+    /*
+     * reads a file with the defaults of LOAD DATA: fields terminated by tab, lines by
+     * newline, escaped by backslash, with \N for null
+     */
+    private static List<List<String>> readLoadDataFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        String content = new String(bytes.toByteArray(), "UTF-8");
+        List<List<String>> rows = new ArrayList<List<String>>();
+        List<String> row = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean isNull = false;
+        for (int i = 0; i < content.length(); i++) {
+            char ch = content.charAt(i);
+            if (ch == '\\') {
+                char escaped = content.charAt(++i);
+                switch (escaped) {
+                    case 'N':
+                        isNull = true;
+                        break;
+                    case '0':
+                        field.append('\0');
+                        break;
+                    case 'b':
+                        field.append('\b');
+                        break;
+                    case 'n':
+                        field.append('\n');
+                        break;
+                    case 'r':
+                        field.append('\r');
+                        break;
+                    case 't':
+                        field.append('\t');
+                        break;
+                    case 'Z':
+                        field.append('\u001a');
+                        break;
+                    default:
+                        field.append(escaped);
+                }
+            } else if (ch == '\t' || ch == '\n') {
+                row.add(isNull ? null : field.toString());
+                field.setLength(0);
+                isNull = false;
+                if (ch == '\n') {
+                    rows.add(row);
+                    row = new ArrayList<String>();
+                }
+            } else {
+                field.append(ch);
+            }
+        }
+        assertTrue("incomplete last line", row.isEmpty() && field.length() == 0);
+        return rows;
+    }
+
+    /*the chunks are imported in the order in which they are ready*/
+    private static void assertSameRows(List<List<String>> expected, List<List<String>> actual) {
+        Comparator<List<String>> order = new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> r1, List<String> r2) {
+                return r1.toString().compareTo(r2.toString());
+            }
+        };
+        expected = new ArrayList<List<String>>(expected);
+        actual = new ArrayList<List<String>>(actual);
+        Collections.sort(expected, order);
+        Collections.sort(actual, order);
+        assertEquals(expected, actual);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
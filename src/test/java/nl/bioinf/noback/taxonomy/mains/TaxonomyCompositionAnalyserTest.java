@@ -0,0 +1,288 @@
+package nl.bioinf.noback.taxonomy.mains;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import nl.bioinf.noback.taxonomy.dao.DatabaseException;
+import nl.bioinf.noback.taxonomy.dao.TaxonomyDao;
+import nl.bioinf.noback.taxonomy.model.Lineage;
+import nl.bioinf.noback.taxonomy.model.TaxNode;
+import nl.bioinf.noback.taxonomy.model.TaxTree;
+import nl.bioinf.noback.taxonomy.model.TaxonomyRank;
+import nl.bioinf.noback.taxonomy.tax_composition.BlastResultTaxonomyAnalyser;
+import nl.bioinf.noback.taxonomy.tax_composition.TaxonomyCompositionAnalyserSettings;
+
+/**
+ * Checks that TaxonomyCompositionAnalyser gives the same tree and the same summary
+ * counts when one input file is analysed on the reader thread, and when its query
+ * blocks are handed over to several analysis threads whose partial trees and counts
+ * are merged afterwards. The input has hits without a known tax_id and perfect hits
+ * whose common lineage can not be retrieved, so the failure counts are compared too.
+ */
+public class TaxonomyCompositionAnalyserTest extends TestCase {
+
+    /*tax_id, parent tax_id and rank of three full lineages below the root*/
+    private static final Object[][] TAXONOMY = {
+        {2, 1, TaxonomyRank.SUPERKINGDOM},
+        {1224, 2, TaxonomyRank.PHYLUM},
+        {1236, 1224, TaxonomyRank.CLASS},
+        {91347, 1236, TaxonomyRank.ORDER},
+        {543, 91347, TaxonomyRank.FAMILY},
+        {561, 543, TaxonomyRank.GENUS},
+        {562, 561, TaxonomyRank.SPECIES},
+        {1239, 2, TaxonomyRank.PHYLUM},
+        {91061, 1239, TaxonomyRank.CLASS},
+        {1385, 91061, TaxonomyRank.ORDER},
+        {186817, 1385, TaxonomyRank.FAMILY},
+        {1386, 186817, TaxonomyRank.GENUS},
+        {1423, 1386, TaxonomyRank.SPECIES},
+        {2759, 1, TaxonomyRank.SUPERKINGDOM},
+        {33208, 2759, TaxonomyRank.KINGDOM},
+        {7711, 33208, TaxonomyRank.PHYLUM},
+        {40674, 7711, TaxonomyRank.CLASS},
+        {9443, 40674, TaxonomyRank.ORDER},
+        {9604, 9443, TaxonomyRank.FAMILY},
+        {9605, 9604, TaxonomyRank.GENUS},
+        {9606, 9605, TaxonomyRank.SPECIES}
+    };
+    /*the tax_ids the hits refer to; 999999 is not in the TaxDB*/
+    private static final int[] HIT_TAX_IDS = {562, 561, 543, 1423, 1386, 1239, 9606, 9605, 7711, 999999};
+    /*common lineages including this tax_id fail as if the database failed*/
+    private static final int FAILING_COMMON_TAX_ID = 1386;
+    private static final int QUERIES = 3000;
+    private static final int QUERY_LENGTH = 100;
+    private static final int QUERY_BLOCK_SIZE = 7;
+
+    private File inputFile;
+    private TaxonomyDao taxDB;
+
+    /**
+     * @param testName
+     */
+    public TaxonomyCompositionAnalyserTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TaxonomyCompositionAnalyserTest.class);
+    }
+
+    /**
+     * writes an input file of queries with one to three perfect or imperfect hits each
+     */
+    @Override
+    protected void setUp() throws Exception {
+        taxDB = new LineageTaxonomyDao();
+        inputFile = File.createTempFile("blast_results", ".txt");
+        Random random = new Random(25);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(inputFile));
+        try {
+            writer.write("QUERY_ID\tHIT_ID\tQUERY_LENGTH\tHSP_ALIGN_LENGTH\tHSP_IDENTITIES\tHSP_POSITIVES\tHSP_ALIGN_PERCENTAGE");
+            writer.newLine();
+            for (int i = 0; i < QUERIES; i++) {
+                int hits = 1 + random.nextInt(3);
+                for (int j = 0; j < hits; j++) {
+                    int taxID = HIT_TAX_IDS[random.nextInt(HIT_TAX_IDS.length)];
+                    int alignLength = QUERY_LENGTH;
+                    int identities = QUERY_LENGTH;
+                    if (random.nextBoolean()) {
+                        alignLength = 50 + random.nextInt(QUERY_LENGTH - 50);
+                        identities = alignLength - random.nextInt(alignLength / 2);
+                    }
+                    int positives = identities + random.nextInt(alignLength - identities + 1);
+                    writer.write("query_" + i + "\tref|AB" + j + "|TAXID=" + taxID + "\t" + QUERY_LENGTH
+                            + "\t" + alignLength + "\t" + identities + "\t" + positives
+                            + "\t" + (100.0 * alignLength / QUERY_LENGTH));
+                    writer.newLine();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        inputFile.delete();
+    }
+
+    public void testInputHasFailures() throws Exception {
+        TaxonomyCompositionAnalyser single = analyse(1);
+        BlastResultTaxonomyAnalyser counts = single.getBlastResultsAnalyser();
+        assertEquals(QUERIES, counts.getQueryCount());
+        assertTrue(counts.getFailedLineageCount() > 0);
+        assertTrue(counts.getFailedCommonLineageCount() > 0);
+        assertTrue(single.getNullLineages() > 0);
+        assertEquals(QUERIES - single.getNullLineages(), single.getTaxTree().getRoot().getCumulativeChildNumber());
+    }
+
+    public void testWorkersEqualReaderThread() throws Exception {
+        TaxonomyCompositionAnalyser single = analyse(1);
+        assertSameAnalysis(single, analyse(4));
+        assertSameAnalysis(single, analyse(7));
+    }
+
+    /*the input file analysed with the given number of analysis threads*/
+    private TaxonomyCompositionAnalyser analyse(int threads) throws Exception {
+        TaxonomyCompositionAnalyserSettings settings = new TaxonomyCompositionAnalyserSettings();
+        settings.setInputFile(inputFile);
+        settings.setInputHasTaxIdField(true);
+        settings.setQueryBlockSize(QUERY_BLOCK_SIZE);
+        settings.setAnalysisThreads(threads);
+        TaxonomyCompositionAnalyser analyser = new TaxonomyCompositionAnalyser(settings, taxDB);
+        analyser.analyse();
+        return analyser;
+    }
+
+    private static void assertSameAnalysis(TaxonomyCompositionAnalyser expected, TaxonomyCompositionAnalyser actual) throws Exception {
+        BlastResultTaxonomyAnalyser expectedCounts = expected.getBlastResultsAnalyser();
+        BlastResultTaxonomyAnalyser actualCounts = actual.getBlastResultsAnalyser();
+        assertEquals(expectedCounts.getQueryCount(), actualCounts.getQueryCount());
+        assertEquals(expectedCounts.getHitCount(), actualCounts.getHitCount());
+        assertEquals(expectedCounts.getFailedLineageCount(), actualCounts.getFailedLineageCount());
+        assertEquals(expectedCounts.getFailedCommonLineageCount(), actualCounts.getFailedCommonLineageCount());
+        assertEquals(expectedCounts.getBlastCategoryNumbers(), actualCounts.getBlastCategoryNumbers());
+        assertEquals(expected.getNullLineages(), actual.getNullLineages());
+
+        TaxTree expectedTree = expected.getTaxTree();
+        TaxTree actualTree = actual.getTaxTree();
+        assertEquals(expectedTree.size(), actualTree.size());
+        assertEquals(describe(expectedTree), describe(actualTree));
+        assertEquals(expectedTree.getTaxonomyLevelOccurrenceCounts(), actualTree.getTaxonomyLevelOccurrenceCounts());
+        assertEquals(expectedTree.preOrderToText(expectedTree.getRoot(), true, 50, 1).toString(),
+                actualTree.preOrderToText(actualTree.getRoot(), true, 50, 1).toString());
+    }
+
+    /*the counts, level and children of every node reachable from the root*/
+    private static Map<Integer, String> describe(TaxTree tree) throws Exception {
+        Map<Integer, String> nodes = new TreeMap<Integer, String>();
+        List<TaxNode> todo = new ArrayList<TaxNode>();
+        todo.add(tree.getRoot());
+        while (!todo.isEmpty()) {
+            TaxNode node = todo.remove(todo.size() - 1);
+            List<Integer> children = new ArrayList<Integer>();
+            Iterator<TaxNode> it = node.getChildren();
+            while (it.hasNext()) {
+                TaxNode child = it.next();
+                children.add(child.getTaxID());
+                todo.add(child);
+            }
+            Collections.sort(children);
+            nodes.put(node.getTaxID(), "cumulative=" + node.getCumulativeChildNumber()
+                    + " occurrences=" + node.getOccurenceCount()
+                    + " level=" + node.getLevel()
+                    + " children=" + children);
+        }
+        assertEquals(tree.size(), nodes.size());
+        return nodes;
+    }
+
+    /**
+     * answers the lineage lookups from the TAXONOMY nodes; the lookups only read, so
+     * the analysis threads can share it
+     */
+    private static final class LineageTaxonomyDao implements TaxonomyDao {
+        private final Map<Integer, Lineage> lineages = new HashMap<Integer, Lineage>();
+
+        private LineageTaxonomyDao() throws Exception {
+            Map<Integer, TaxNode> taxonomy = new HashMap<Integer, TaxNode>();
+            TaxNode root = new TaxNode(1, 1);
+            root.setRank(TaxonomyRank.NO_RANK);
+            root.setScientificName("root");
+            taxonomy.put(1, root);
+            for (Object[] row : TAXONOMY) {
+                TaxNode node = new TaxNode((Integer) row[0], (Integer) row[1]);
+                node.setRank((TaxonomyRank) row[2]);
+                node.setScientificName("taxon " + row[0]);
+                node.setParentNode(taxonomy.get(node.getParentTaxID()));
+                taxonomy.put(node.getTaxID(), node);
+            }
+            for (TaxNode node : taxonomy.values()) {
+                List<TaxNode> leafFirst = new ArrayList<TaxNode>();
+                for (TaxNode n = node; n.getTaxID() != 1; n = n.getParentNode()) {
+                    leafFirst.add(n);
+                }
+                leafFirst.add(root);
+                lineages.put(node.getTaxID(), new Lineage(leafFirst));
+            }
+        }
+
+        @Override
+        public Lineage getLineage(int taxID) throws DatabaseException {
+            Lineage lineage = lineages.get(taxID);
+            if (lineage == null) {
+                throw new DatabaseException("no lineage for taxID " + taxID);
+            }
+            return lineage;
+        }
+
+        @Override
+        public Lineage[] getLineages(int[] taxIDs) throws DatabaseException {
+            Lineage[] found = new Lineage[taxIDs.length];
+            for (int i = 0; i < taxIDs.length; i++) {
+                found[i] = lineages.get(taxIDs[i]);
+            }
+            return found;
+        }
+
+        @Override
+        public Lineage getCommonLineage(int[] taxIDs) throws DatabaseException {
+            Lineage common = null;
+            for (int taxID : taxIDs) {
+                if (taxID == FAILING_COMMON_TAX_ID) {
+                    throw new DatabaseException("common lineage query failed");
+                }
+                try {
+                    common = common == null ? getLineage(taxID) : getLineage(taxID).getIntersection(common);
+                } catch (Exception e) {
+                    throw new DatabaseException(e.getMessage());
+                }
+            }
+            return common;
+        }
+
+        @Override
+        public Lineage getGiLineage(int giNumber) throws DatabaseException {
+            throw new DatabaseException("no gi numbers");
+        }
+
+        @Override
+        public Lineage[] getGiLineages(int[] giNumbers) throws DatabaseException {
+            throw new DatabaseException("no gi numbers");
+        }
+
+        @Override
+        public Lineage getAccessionLineage(String accession) throws DatabaseException {
+            throw new DatabaseException("no accessions");
+        }
+
+        @Override
+        public Lineage[] getAccessionLineages(String[] accessions) throws DatabaseException {
+            throw new DatabaseException("no accessions");
+        }
+
+        @Override
+        public Lineage getLineage(String organismName) throws DatabaseException {
+            throw new DatabaseException("no names");
+        }
+
+        @Override
+        public void disconnect() throws DatabaseException {
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package nl.bioinf.noback.taxonomy.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the lineages of one input give the same tree when they are added to
+ * a single tree, and when blocks of them are added to partial trees that are merged
+ * afterwards. TaxonomyCompositionAnalyserTest runs the analysis threads that build
+ * and merge the partial trees.
+ */
+public class TaxTreeTest extends TestCase {
+
+    /*tax_id, parent tax_id and rank of three full lineages below the root*/
+    private static final Object[][] TAXONOMY = {
+        {2, 1, TaxonomyRank.SUPERKINGDOM},
+        {1224, 2, TaxonomyRank.PHYLUM},
+        {1236, 1224, TaxonomyRank.CLASS},
+        {91347, 1236, TaxonomyRank.ORDER},
+        {543, 91347, TaxonomyRank.FAMILY},
+        {561, 543, TaxonomyRank.GENUS},
+        {562, 561, TaxonomyRank.SPECIES},
+        {1239, 2, TaxonomyRank.PHYLUM},
+        {91061, 1239, TaxonomyRank.CLASS},
+        {1385, 91061, TaxonomyRank.ORDER},
+        {186817, 1385, TaxonomyRank.FAMILY},
+        {1386, 186817, TaxonomyRank.GENUS},
+        {1423, 1386, TaxonomyRank.SPECIES},
+        {2759, 1, TaxonomyRank.SUPERKINGDOM},
+        {33208, 2759, TaxonomyRank.KINGDOM},
+        {7711, 33208, TaxonomyRank.PHYLUM},
+        {40674, 7711, TaxonomyRank.CLASS},
+        {9443, 40674, TaxonomyRank.ORDER},
+        {9604, 9443, TaxonomyRank.FAMILY},
+        {9605, 9604, TaxonomyRank.GENUS},
+        {9606, 9605, TaxonomyRank.SPECIES}
+    };
+    private static final int[] LEAVES = {562, 1423, 9606};
+    private static final int LINEAGES = 20000;
+    private static final int BLOCK_SIZE = 250;
+
+    private Map<Integer, TaxNode> taxonomy;
+    private List<List<Lineage>> blocks;
+
+    /**
+     * @param testName
+     */
+    public TaxTreeTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TaxTreeTest.class);
+    }
+
+    /**
+     * builds the blocks of lineages of the input. The lineages share their nodes, as
+     * those of a lineage cache do, and end at random levels
+     */
+    @Override
+    protected void setUp() throws Exception {
+        taxonomy = new HashMap<Integer, TaxNode>();
+        TaxNode root = new TaxNode(1, 1);
+        root.setRank(TaxonomyRank.NO_RANK);
+        root.setScientificName("root");
+        taxonomy.put(1, root);
+        for (Object[] row : TAXONOMY) {
+            TaxNode node = new TaxNode((Integer) row[0], (Integer) row[1]);
+            node.setRank((TaxonomyRank) row[2]);
+            node.setScientificName("taxon " + row[0]);
+            node.setParentNode(taxonomy.get(node.getParentTaxID()));
+            taxonomy.put(node.getTaxID(), node);
+        }
+
+        Random random = new Random(25);
+        blocks = new ArrayList<List<Lineage>>();
+        List<Lineage> block = null;
+        for (int i = 0; i < LINEAGES; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                block = new ArrayList<Lineage>(BLOCK_SIZE);
+                blocks.add(block);
+            }
+            List<TaxNode> leafFirst = new ArrayList<TaxNode>();
+            TaxNode node = taxonomy.get(LEAVES[random.nextInt(LEAVES.length)]);
+            while (node.getTaxID() != 1) {
+                leafFirst.add(node);
+                node = node.getParentNode();
+            }
+            leafFirst.add(node);
+            /*queries are assigned at any level, up to the root*/
+            leafFirst = leafFirst.subList(random.nextInt(leafFirst.size()), leafFirst.size());
+            block.add(new Lineage(leafFirst));
+        }
+    }
+
+    public void testOnePartEqualsSingleTree() throws Exception {
+        assertSameTree(analyse(), analyse(1));
+    }
+
+    public void testMergedPartsEqualSingleTree() throws Exception {
+        TaxTree single = analyse();
+        assertSameTree(single, analyse(4));
+        assertSameTree(single, analyse(7));
+    }
+
+    public void testLineagesAreNotModified() throws Exception {
+        analyse(4);
+        for (TaxNode node : taxonomy.values()) {
+            assertEquals(0, node.getCumulativeChildNumber());
+            assertEquals(0, node.getOccurenceCount());
+            assertFalse(node.hasChildren());
+        }
+    }
+
+    /*all lineages added to one tree*/
+    private TaxTree analyse() throws Exception {
+        TaxTree tree = new TaxTree();
+        for (List<Lineage> block : blocks) {
+            for (Lineage lineage : block) {
+                tree.addLineage(lineage);
+            }
+        }
+        return tree;
+    }
+
+    /*the blocks dealt out over partial trees, merged at the end*/
+    private TaxTree analyse(int parts) throws Exception {
+        List<TaxTree> partials = new ArrayList<TaxTree>();
+        for (int i = 0; i < parts; i++) {
+            partials.add(new TaxTree());
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            TaxTree partial = partials.get(i % parts);
+            for (Lineage lineage : blocks.get(i)) {
+                partial.addLineage(lineage);
+            }
+        }
+        TaxTree tree = new TaxTree();
+        for (TaxTree partial : partials) {
+            tree.merge(partial);
+        }
+        return tree;
+    }
+
+    private static void assertSameTree(TaxTree expected, TaxTree actual) throws Exception {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getRoot().getTaxID(), actual.getRoot().getTaxID());
+        assertEquals(describe(expected), describe(actual));
+        assertEquals(expected.getTaxonomyLevelOccurrenceCounts(), actual.getTaxonomyLevelOccurrenceCounts());
+        assertEquals(expected.preOrderToText(expected.getRoot(), true, 50, 1).toString(),
+                actual.preOrderToText(actual.getRoot(), true, 50, 1).toString());
+    }
+
+    /*the counts, level and children of every node reachable from the root*/
+    private static Map<Integer, String> describe(TaxTree tree) throws Exception {
+        Map<Integer, String> nodes = new TreeMap<Integer, String>();
+        List<TaxNode> todo = new ArrayList<TaxNode>();
+        todo.add(tree.getRoot());
+        while (!todo.isEmpty()) {
+            TaxNode node = todo.remove(todo.size() - 1);
+            List<Integer> children = new ArrayList<Integer>();
+            Iterator<TaxNode> it = node.getChildren();
+            while (it.hasNext()) {
+                TaxNode child = it.next();
+                children.add(child.getTaxID());
+                todo.add(child);
+            }
+            Collections.sort(children);
+            nodes.put(node.getTaxID(), "cumulative=" + node.getCumulativeChildNumber()
+                    + " occurrences=" + node.getOccurenceCount()
+                    + " level=" + node.getLevel()
+                    + " children=" + children);
+        }
+        assertEquals(tree.size(), nodes.size());
+        return nodes;
+    }
+}